@@ -16,7 +16,13 @@
 #   public *;
 #}
 
+
 # Note: the onAudioData method name is hardcoded in NativeAudioEngine.cpp so need to tell ProGuard to skip it
 -keep public interface tech.schober.vinylcast.audio.NativeAudioEngineListener {
-     void onAudioData(byte[]);
+     void onAudioData(java.nio.ByteBuffer, int, int, long);
+}
+
+# Note: the onSpectrumPublished method name is hardcoded in NativeAudioEngine.cpp so need to tell ProGuard to skip it
+-keepclassmembers enum tech.schober.vinylcast.audio.NativeAudioEngine {
+     private static void onSpectrumPublished();
 }
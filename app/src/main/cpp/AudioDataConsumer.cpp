@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include <ctime>
+#include <logging_macros.h>
+#include <sys/resource.h>
+#include <unistd.h>
+
+#include "AudioDataConsumer.h"
+
+// how long the consumer waits for data before re-checking if it should stop
+static const long kWaitTimeoutNanos = 100 * 1000 * 1000;
+// same as android.os.Process.THREAD_PRIORITY_URGENT_AUDIO
+static const int kConsumerThreadPriority = -19;
+static const int64_t kNanosPerSecond = 1000000000;
+
+AudioDataConsumer::AudioDataConsumer(JavaVM *javaVm) : mJavaVm(javaVm) {
+    sem_init(&mDataAvailable, 0, 0);
+}
+
+AudioDataConsumer::~AudioDataConsumer() {
+    stop();
+    sem_destroy(&mDataAvailable);
+}
+
+bool AudioDataConsumer::start(AudioDataRing *audioDataRing, jobject listener,
+                              jmethodID onAudioDataMethod, int64_t bytesPerSecond) {
+    if (mThread.joinable()) {
+        LOGW("AudioDataConsumer already running - ignoring this start request");
+        return false;
+    }
+    if (audioDataRing == nullptr || listener == nullptr || onAudioDataMethod == nullptr) {
+        LOGE("AudioDataConsumer missing ring or listener");
+        return false;
+    }
+
+    mListener = listener;
+    mOnAudioDataMethod = onAudioDataMethod;
+    mBytesPerSecond = bytesPerSecond;
+    // skip anything left over from a previous recording
+    mStartPosition = audioDataRing->getWritePosition();
+    audioDataRing->setReadPosition(mStartPosition);
+    mAudioDataRing.store(audioDataRing, std::memory_order_release);
+
+    mRunning = true;
+    mThread = std::thread(&AudioDataConsumer::run, this);
+    return true;
+}
+
+void AudioDataConsumer::stop() {
+    mRunning = false;
+    sem_post(&mDataAvailable);
+    if (mThread.joinable()) {
+        mThread.join();
+    }
+    mAudioDataRing.store(nullptr, std::memory_order_release);
+    mListener = nullptr;
+    mOnAudioDataMethod = nullptr;
+}
+
+void AudioDataConsumer::run() {
+    JNIEnv *env;
+    JavaVMAttachArgs attachArgs = {JNI_VERSION_1_6, "NativeAudioConsumer", nullptr};
+    if (mJavaVm->AttachCurrentThread(&env, &attachArgs) != JNI_OK) {
+        LOGE("AudioDataConsumer failed to attach to JVM");
+        mRunning = false;
+        return;
+    }
+    setpriority(PRIO_PROCESS, gettid(), kConsumerThreadPriority);
+
+    AudioDataRing *audioDataRing = mAudioDataRing.load(std::memory_order_acquire);
+    jobject audioDataBuffer = env->NewDirectByteBuffer(audioDataRing->getData(),
+                                                       audioDataRing->getCapacity());
+
+    while (mRunning) {
+        timespec timeout;
+        clock_gettime(CLOCK_REALTIME, &timeout);
+        timeout.tv_nsec += kWaitTimeoutNanos;
+        if (timeout.tv_nsec >= 1000000000L) {
+            timeout.tv_sec += 1;
+            timeout.tv_nsec -= 1000000000L;
+        }
+        sem_timedwait(&mDataAvailable, &timeout);
+        drain(env, audioDataBuffer);
+    }
+
+    env->DeleteLocalRef(audioDataBuffer);
+    mJavaVm->DetachCurrentThread();
+}
+
+void AudioDataConsumer::drain(JNIEnv *env, jobject audioDataBuffer) {
+    AudioDataRing *audioDataRing = mAudioDataRing.load(std::memory_order_acquire);
+    int64_t readPosition = audioDataRing->getReadPosition();
+    int64_t writePosition = audioDataRing->getWritePosition();
+    if (writePosition == readPosition) {
+        return;
+    }
+
+    // available data may wrap around the end of the ring so hand it over in two parts
+    size_t capacity = audioDataRing->getCapacity();
+    size_t index = static_cast<size_t>(readPosition) & (capacity - 1);
+    size_t length = static_cast<size_t>(writePosition - readPosition);
+    size_t firstPart = std::min(length, capacity - index);
+    callOnAudioData(env, audioDataBuffer, index, firstPart, readPosition);
+    if (firstPart < length) {
+        callOnAudioData(env, audioDataBuffer, 0, length - firstPart, readPosition + firstPart);
+    }
+
+    audioDataRing->setReadPosition(writePosition);
+}
+
+int64_t AudioDataConsumer::getCaptureNanos(int64_t position) {
+    mCaptureTimes.update();
+    const CaptureTime &captureTime = mCaptureTimes.front();
+    if (captureTime.position < mStartPosition || mBytesPerSecond <= 0) {
+        // nothing pushed yet this recording
+        return 0;
+    }
+    return captureTime.nanos + (position - captureTime.position) * kNanosPerSecond / mBytesPerSecond;
+}
+
+void AudioDataConsumer::callOnAudioData(JNIEnv *env, jobject audioDataBuffer, size_t offset,
+                                        size_t length, int64_t position) {
+    if (mSpectrumAnalyzer != nullptr) {
+        AudioDataRing *audioDataRing = mAudioDataRing.load(std::memory_order_acquire);
+        if (mSpectrumAnalyzer->feed(audioDataRing->getData() + offset, length)
+                && mOnSpectrumPublishedMethod != nullptr) {
+            env->CallStaticVoidMethod(mEngineClass, mOnSpectrumPublishedMethod);
+            if (env->ExceptionCheck()) {
+                LOGE("Exception thrown by onSpectrumPublished");
+                env->ExceptionDescribe();
+                env->ExceptionClear();
+            }
+        }
+    }
+    env->CallVoidMethod(mListener, mOnAudioDataMethod, audioDataBuffer,
+                        static_cast<jint>(offset), static_cast<jint>(length),
+                        static_cast<jlong>(getCaptureNanos(position)));
+    if (env->ExceptionCheck()) {
+        LOGE("Exception thrown by onAudioData");
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+}
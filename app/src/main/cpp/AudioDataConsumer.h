@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_AUDIODATACONSUMER_H
+#define VINYLCAST_AUDIODATACONSUMER_H
+
+#include <atomic>
+#include <jni.h>
+#include <semaphore.h>
+#include <thread>
+
+#include "AudioDataRing.h"
+#include "SpectrumAnalyzer.h"
+#include "TripleBuffer.h"
+
+/**
+ * Dedicated native worker thread that drains the AudioDataRing and calls into Java.
+ *
+ * The real-time audio callback only calls push(): a memcpy into the bounded lock-free ring and
+ * a sem_post() to wake this thread. It never blocks, allocates or touches the JVM. All JNI work,
+ * including attaching to the JVM, happens on the consumer thread so Java GC pauses or slow
+ * consumers can only ever cause dropped data (counted) rather than glitches in local playback.
+ *
+ * The visualizer's SpectrumAnalyzer is fed here too, before the data goes to Java, and Java is
+ * told whenever that published a new spectrum so the visualizer only wakes up when there is one.
+ *
+ * Each push() also brings the time its audio was captured. Only the latest is kept, as a ring
+ * position and its capture time handed over through a triple buffer, and the capture time of
+ * whatever is drained is extrapolated from it at the stream's byte rate.
+ */
+class AudioDataConsumer {
+
+public:
+    explicit AudioDataConsumer(JavaVM *javaVm);
+    ~AudioDataConsumer();
+
+    /**
+     * Start the consumer thread. listener must be a global ref that stays valid until stop().
+     * @param bytesPerSecond byte rate of the pushed audio, for capture times
+     */
+    bool start(AudioDataRing *audioDataRing, jobject listener, jmethodID onAudioDataMethod,
+               int64_t bytesPerSecond);
+    void stop();
+
+    void setSpectrumAnalyzer(SpectrumAnalyzer *spectrumAnalyzer) {
+        mSpectrumAnalyzer = spectrumAnalyzer;
+    }
+
+    /**
+     * Static void method called after each feed() that published a spectrum. Only set while the
+     * consumer thread isn't running, engineClass must be a global ref that outlives the consumer.
+     */
+    void setOnSpectrumPublished(jclass engineClass, jmethodID onSpectrumPublishedMethod) {
+        mEngineClass = engineClass;
+        mOnSpectrumPublishedMethod = onSpectrumPublishedMethod;
+    }
+
+    /**
+     * Hand audio data to the consumer thread. Real-time safe.
+     * @param captureNanos CLOCK_MONOTONIC time the first frame of data was captured
+     * @return false if the ring was full and the data was dropped
+     */
+    bool push(const void *data, size_t numBytes, int64_t captureNanos) {
+        AudioDataRing *audioDataRing = mAudioDataRing.load(std::memory_order_acquire);
+        if (audioDataRing == nullptr) {
+            return false;
+        }
+        int64_t position = audioDataRing->getWritePosition();
+        if (!audioDataRing->write(data, numBytes)) {
+            return false;
+        }
+        CaptureTime &captureTime = mCaptureTimes.back();
+        captureTime.position = position;
+        captureTime.nanos = captureNanos;
+        mCaptureTimes.publish();
+        sem_post(&mDataAvailable);
+        return true;
+    }
+
+    // bytes pushed but not yet handed to Java
+    int64_t getQueuedBytes() const {
+        AudioDataRing *audioDataRing = mAudioDataRing.load(std::memory_order_acquire);
+        if (audioDataRing == nullptr) {
+            return 0;
+        }
+        return audioDataRing->getWritePosition() - audioDataRing->getReadPosition();
+    }
+
+private:
+    struct CaptureTime {
+        int64_t position = -1;
+        int64_t nanos = 0;
+    };
+
+    void run();
+    void drain(JNIEnv *env, jobject audioDataBuffer);
+    void callOnAudioData(JNIEnv *env, jobject audioDataBuffer, size_t offset, size_t length,
+                         int64_t position);
+    int64_t getCaptureNanos(int64_t position);
+
+    JavaVM *mJavaVm;
+    std::thread mThread;
+    std::atomic<bool> mRunning{false};
+    std::atomic<AudioDataRing *> mAudioDataRing{nullptr};
+    sem_t mDataAvailable;
+    SpectrumAnalyzer *mSpectrumAnalyzer = nullptr;
+
+    // latest push()'s ring position and capture time, anything before mStartPosition belongs to
+    // a previous recording
+    TripleBuffer<CaptureTime> mCaptureTimes;
+    int64_t mStartPosition = 0;
+    int64_t mBytesPerSecond = 0;
+
+    jobject mListener = nullptr;
+    jmethodID mOnAudioDataMethod = nullptr;
+    jclass mEngineClass = nullptr;
+    jmethodID mOnSpectrumPublishedMethod = nullptr;
+};
+
+#endif //VINYLCAST_AUDIODATACONSUMER_H
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_AUDIODATARING_H
+#define VINYLCAST_AUDIODATARING_H
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <cstring>
+#include <memory>
+
+/**
+ * Single-producer / single-consumer byte ring shared between the real-time audio callback
+ * (producer) and the AudioDataConsumer thread. The backing memory is allocated once and handed
+ * to Java via NewDirectByteBuffer so no copies or JNI calls happen on the audio thread: the
+ * callback does a memcpy and publishes the new write position with a release store.
+ *
+ * Positions are running byte counts, the index into the buffer is (position & mask).
+ */
+class AudioDataRing {
+
+public:
+    explicit AudioDataRing(size_t minCapacity) {
+        mCapacity = 1;
+        while (mCapacity < minCapacity) {
+            mCapacity <<= 1;
+        }
+        mMask = mCapacity - 1;
+        mBuffer = std::make_unique<uint8_t[]>(mCapacity);
+    }
+
+    /**
+     * Copy numBytes into the ring. Real-time safe: never blocks or allocates.
+     * @return false if the consumer has not freed enough space, in which case nothing is written
+     */
+    bool write(const void *data, size_t numBytes) {
+        int64_t writePosition = mWritePosition.load(std::memory_order_relaxed);
+        int64_t readPosition = mReadPosition.load(std::memory_order_acquire);
+        if (numBytes > mCapacity - static_cast<size_t>(writePosition - readPosition)) {
+            return false;
+        }
+
+        size_t index = static_cast<size_t>(writePosition) & mMask;
+        size_t firstPart = std::min(numBytes, mCapacity - index);
+        memcpy(mBuffer.get() + index, data, firstPart);
+        if (firstPart < numBytes) {
+            memcpy(mBuffer.get(), static_cast<const uint8_t *>(data) + firstPart, numBytes - firstPart);
+        }
+
+        mWritePosition.store(writePosition + numBytes, std::memory_order_release);
+        return true;
+    }
+
+    int64_t getWritePosition() const {
+        return mWritePosition.load(std::memory_order_acquire);
+    }
+
+    int64_t getReadPosition() const {
+        return mReadPosition.load(std::memory_order_acquire);
+    }
+
+    /**
+     * Called by the consumer once it is done with all bytes before readPosition.
+     */
+    void setReadPosition(int64_t readPosition) {
+        mReadPosition.store(readPosition, std::memory_order_release);
+    }
+
+    uint8_t *getData() const {
+        return mBuffer.get();
+    }
+
+    size_t getCapacity() const {
+        return mCapacity;
+    }
+
+private:
+    std::unique_ptr<uint8_t[]> mBuffer;
+    size_t mCapacity;
+    size_t mMask;
+
+    std::atomic<int64_t> mWritePosition{0};
+    std::atomic<int64_t> mReadPosition{0};
+};
+
+#endif //VINYLCAST_AUDIODATARING_H
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include <cmath>
+
+#include "AudioKernels.h"
+
+namespace {
+
+inline int16_t saturateToI16(float value) {
+    // clamp before converting, out of range float to int conversions are undefined
+    if (value <= -32768.0f) return INT16_MIN;
+    if (value >= 32767.0f) return INT16_MAX;
+    return static_cast<int16_t>(lrintf(value));
+}
+
+void applyGainFloat(float *samples, int32_t numSamples, float gain) {
+    for (int32_t i = 0; i < numSamples; i++) {
+        samples[i] *= gain;
+    }
+}
+
+void applyGainI16(int16_t *samples, int32_t numSamples, float gain) {
+    for (int32_t i = 0; i < numSamples; i++) {
+        samples[i] = saturateToI16(samples[i] * gain);
+    }
+}
+
+void convertI16ToFloat(const int16_t *src, float *dst, int32_t numSamples) {
+    for (int32_t i = 0; i < numSamples; i++) {
+        dst[i] = src[i] * (1.0f / 32768.0f);
+    }
+}
+
+void convertFloatToI16(const float *src, int16_t *dst, int32_t numSamples) {
+    for (int32_t i = 0; i < numSamples; i++) {
+        dst[i] = saturateToI16(src[i] * 32768.0f);
+    }
+}
+
+void saturateFloat(float *samples, int32_t numSamples) {
+    for (int32_t i = 0; i < numSamples; i++) {
+        samples[i] = std::fmin(std::fmax(samples[i], -1.0f), 1.0f);
+    }
+}
+
+void downmixStereoFloat(const float *src, float *dst, int32_t numFrames) {
+    for (int32_t i = 0; i < numFrames; i++) {
+        dst[i] = (src[2 * i] + src[2 * i + 1]) * 0.5f;
+    }
+}
+
+void downmixStereoI16(const int16_t *src, int16_t *dst, int32_t numFrames) {
+    for (int32_t i = 0; i < numFrames; i++) {
+        dst[i] = static_cast<int16_t>((src[2 * i] + src[2 * i + 1]) >> 1);
+    }
+}
+
+const AudioKernels kScalarAudioKernels = {
+        "scalar",
+        applyGainFloat,
+        applyGainI16,
+        convertI16ToFloat,
+        convertFloatToI16,
+        saturateFloat,
+        downmixStereoFloat,
+        downmixStereoI16,
+};
+
+const AudioKernels &selectAudioKernels() {
+    // later instruction sets win, each getter already checks the CPU supports it
+    const AudioKernels *kernels = getAvx2AudioKernels();
+    if (kernels == nullptr) kernels = getSse2AudioKernels();
+    if (kernels == nullptr) kernels = getNeonAudioKernels();
+    return kernels != nullptr ? *kernels : kScalarAudioKernels;
+}
+
+} // namespace
+
+const AudioKernels &getScalarAudioKernels() {
+    return kScalarAudioKernels;
+}
+
+const AudioKernels &getAudioKernels() {
+    // thread safe static initialization, only the first call does the CPU checks
+    static const AudioKernels &kernels = selectAudioKernels();
+    return kernels;
+}
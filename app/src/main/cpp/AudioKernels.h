@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_AUDIOKERNELS_H
+#define VINYLCAST_AUDIOKERNELS_H
+
+#include <cstdint>
+
+/**
+ * Sample processing kernels used on the real-time audio thread. Each instruction set gets its
+ * own table of functions and getAudioKernels() picks the best one the CPU supports, once.
+ *
+ * Every table must produce the same results as the scalar reference, which defines the
+ * semantics. The only exception is rounding to 16 bit on armv7, which has no round-to-nearest
+ * conversion and may differ by one step for values right at a .5 boundary.
+ *
+ * None of the kernels allocate, lock or log, and they have no alignment requirements.
+ */
+struct AudioKernels {
+    const char *name;
+
+    // samples *= gain, float samples are not clipped
+    void (*applyGainFloat)(float *samples, int32_t numSamples, float gain);
+    // samples = saturate(round(samples * gain))
+    void (*applyGainI16)(int16_t *samples, int32_t numSamples, float gain);
+    // dst = src / 32768
+    void (*convertI16ToFloat)(const int16_t *src, float *dst, int32_t numSamples);
+    // dst = saturate(round(src * 32768))
+    void (*convertFloatToI16)(const float *src, int16_t *dst, int32_t numSamples);
+    // samples = clamp(samples, -1.0, 1.0)
+    void (*saturateFloat)(float *samples, int32_t numSamples);
+    // dst[i] = (left + right) * 0.5 of interleaved stereo frame i, dst may be src
+    void (*downmixStereoFloat)(const float *src, float *dst, int32_t numFrames);
+    // dst[i] = (left + right) >> 1 of interleaved stereo frame i, dst may be src
+    void (*downmixStereoI16)(const int16_t *src, int16_t *dst, int32_t numFrames);
+};
+
+/**
+ * @return the fastest kernels supported by this CPU, selected on first use
+ */
+const AudioKernels &getAudioKernels();
+
+/**
+ * @return the portable reference implementation
+ */
+const AudioKernels &getScalarAudioKernels();
+
+// Kernels for a specific instruction set, nullptr if not built for this ABI or not supported
+// by this CPU. Exposed for the host tests which compare them against the scalar reference.
+const AudioKernels *getNeonAudioKernels();
+const AudioKernels *getSse2AudioKernels();
+const AudioKernels *getAvx2AudioKernels();
+
+#endif //VINYLCAST_AUDIOKERNELS_H
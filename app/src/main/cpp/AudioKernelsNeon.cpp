@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include "AudioKernels.h"
+
+#if defined(__ARM_NEON)
+
+#include <arm_neon.h>
+
+#if !defined(__aarch64__)
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+
+namespace {
+
+inline int32x4_t roundToI32(float32x4_t values) {
+#if defined(__aarch64__)
+    return vcvtnq_s32_f32(values);
+#else
+    // armv7 only truncates, so add +-0.5 first (rounds ties away from zero)
+    uint32x4_t sign = vandq_u32(vreinterpretq_u32_f32(values), vdupq_n_u32(0x80000000));
+    float32x4_t half = vreinterpretq_f32_u32(vorrq_u32(sign, vreinterpretq_u32_f32(vdupq_n_f32(0.5f))));
+    return vcvtq_s32_f32(vaddq_f32(values, half));
+#endif
+}
+
+// float to int conversion and narrowing both saturate, so no explicit clamp is needed
+inline int16x4_t roundToI16(float32x4_t values) {
+    return vqmovn_s32(roundToI32(values));
+}
+
+void applyGainFloat(float *samples, int32_t numSamples, float gain) {
+    int32_t i = 0;
+    for (; i + 4 <= numSamples; i += 4) {
+        vst1q_f32(samples + i, vmulq_n_f32(vld1q_f32(samples + i), gain));
+    }
+    getScalarAudioKernels().applyGainFloat(samples + i, numSamples - i, gain);
+}
+
+void applyGainI16(int16_t *samples, int32_t numSamples, float gain) {
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        int16x8_t in = vld1q_s16(samples + i);
+        float32x4_t low = vmulq_n_f32(vcvtq_f32_s32(vmovl_s16(vget_low_s16(in))), gain);
+        float32x4_t high = vmulq_n_f32(vcvtq_f32_s32(vmovl_s16(vget_high_s16(in))), gain);
+        vst1q_s16(samples + i, vcombine_s16(roundToI16(low), roundToI16(high)));
+    }
+    getScalarAudioKernels().applyGainI16(samples + i, numSamples - i, gain);
+}
+
+void convertI16ToFloat(const int16_t *src, float *dst, int32_t numSamples) {
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        int16x8_t in = vld1q_s16(src + i);
+        // fixed point conversion with 15 fractional bits is exactly / 32768
+        vst1q_f32(dst + i, vcvtq_n_f32_s32(vmovl_s16(vget_low_s16(in)), 15));
+        vst1q_f32(dst + i + 4, vcvtq_n_f32_s32(vmovl_s16(vget_high_s16(in)), 15));
+    }
+    getScalarAudioKernels().convertI16ToFloat(src + i, dst + i, numSamples - i);
+}
+
+void convertFloatToI16(const float *src, int16_t *dst, int32_t numSamples) {
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        float32x4_t low = vmulq_n_f32(vld1q_f32(src + i), 32768.0f);
+        float32x4_t high = vmulq_n_f32(vld1q_f32(src + i + 4), 32768.0f);
+        vst1q_s16(dst + i, vcombine_s16(roundToI16(low), roundToI16(high)));
+    }
+    getScalarAudioKernels().convertFloatToI16(src + i, dst + i, numSamples - i);
+}
+
+void saturateFloat(float *samples, int32_t numSamples) {
+    float32x4_t min = vdupq_n_f32(-1.0f);
+    float32x4_t max = vdupq_n_f32(1.0f);
+    int32_t i = 0;
+    for (; i + 4 <= numSamples; i += 4) {
+        vst1q_f32(samples + i, vminq_f32(vmaxq_f32(vld1q_f32(samples + i), min), max));
+    }
+    getScalarAudioKernels().saturateFloat(samples + i, numSamples - i);
+}
+
+void downmixStereoFloat(const float *src, float *dst, int32_t numFrames) {
+    int32_t i = 0;
+    for (; i + 4 <= numFrames; i += 4) {
+        float32x4x2_t in = vld2q_f32(src + 2 * i);
+        vst1q_f32(dst + i, vmulq_n_f32(vaddq_f32(in.val[0], in.val[1]), 0.5f));
+    }
+    getScalarAudioKernels().downmixStereoFloat(src + 2 * i, dst + i, numFrames - i);
+}
+
+void downmixStereoI16(const int16_t *src, int16_t *dst, int32_t numFrames) {
+    int32_t i = 0;
+    for (; i + 8 <= numFrames; i += 8) {
+        int16x8x2_t in = vld2q_s16(src + 2 * i);
+        // halving add keeps the full precision sum, same as (l + r) >> 1
+        vst1q_s16(dst + i, vhaddq_s16(in.val[0], in.val[1]));
+    }
+    getScalarAudioKernels().downmixStereoI16(src + 2 * i, dst + i, numFrames - i);
+}
+
+const AudioKernels kNeonAudioKernels = {
+        "neon",
+        applyGainFloat,
+        applyGainI16,
+        convertI16ToFloat,
+        convertFloatToI16,
+        saturateFloat,
+        downmixStereoFloat,
+        downmixStereoI16,
+};
+
+} // namespace
+
+const AudioKernels *getNeonAudioKernels() {
+#if !defined(__aarch64__)
+    // NEON is optional on armv7
+    if ((getauxval(AT_HWCAP) & HWCAP_NEON) == 0) {
+        return nullptr;
+    }
+#endif
+    return &kNeonAudioKernels;
+}
+
+#else
+
+const AudioKernels *getNeonAudioKernels() {
+    return nullptr;
+}
+
+#endif
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include "AudioKernels.h"
+
+#if defined(__SSE2__)
+
+#include <immintrin.h>
+
+#define AVX2 __attribute__((target("avx2")))
+
+namespace {
+
+// SSE2 is part of both Android x86 ABIs, so these need no runtime check
+
+inline __m128i widenI16Low(__m128i values) {
+    return _mm_srai_epi32(_mm_unpacklo_epi16(values, values), 16);
+}
+
+inline __m128i widenI16High(__m128i values) {
+    return _mm_srai_epi32(_mm_unpackhi_epi16(values, values), 16);
+}
+
+// out of range conversions return INT32_MIN, so clamp in float first
+inline __m128i roundToI32Sse2(__m128 values) {
+    values = _mm_min_ps(_mm_max_ps(values, _mm_set1_ps(-32768.0f)), _mm_set1_ps(32767.0f));
+    return _mm_cvtps_epi32(values);
+}
+
+void applyGainFloatSse2(float *samples, int32_t numSamples, float gain) {
+    __m128 gains = _mm_set1_ps(gain);
+    int32_t i = 0;
+    for (; i + 4 <= numSamples; i += 4) {
+        _mm_storeu_ps(samples + i, _mm_mul_ps(_mm_loadu_ps(samples + i), gains));
+    }
+    getScalarAudioKernels().applyGainFloat(samples + i, numSamples - i, gain);
+}
+
+void applyGainI16Sse2(int16_t *samples, int32_t numSamples, float gain) {
+    __m128 gains = _mm_set1_ps(gain);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m128i in = _mm_loadu_si128((const __m128i *) (samples + i));
+        __m128 low = _mm_mul_ps(_mm_cvtepi32_ps(widenI16Low(in)), gains);
+        __m128 high = _mm_mul_ps(_mm_cvtepi32_ps(widenI16High(in)), gains);
+        __m128i out = _mm_packs_epi32(roundToI32Sse2(low), roundToI32Sse2(high));
+        _mm_storeu_si128((__m128i *) (samples + i), out);
+    }
+    getScalarAudioKernels().applyGainI16(samples + i, numSamples - i, gain);
+}
+
+void convertI16ToFloatSse2(const int16_t *src, float *dst, int32_t numSamples) {
+    __m128 scale = _mm_set1_ps(1.0f / 32768.0f);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m128i in = _mm_loadu_si128((const __m128i *) (src + i));
+        _mm_storeu_ps(dst + i, _mm_mul_ps(_mm_cvtepi32_ps(widenI16Low(in)), scale));
+        _mm_storeu_ps(dst + i + 4, _mm_mul_ps(_mm_cvtepi32_ps(widenI16High(in)), scale));
+    }
+    getScalarAudioKernels().convertI16ToFloat(src + i, dst + i, numSamples - i);
+}
+
+void convertFloatToI16Sse2(const float *src, int16_t *dst, int32_t numSamples) {
+    __m128 scale = _mm_set1_ps(32768.0f);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m128 low = _mm_mul_ps(_mm_loadu_ps(src + i), scale);
+        __m128 high = _mm_mul_ps(_mm_loadu_ps(src + i + 4), scale);
+        __m128i out = _mm_packs_epi32(roundToI32Sse2(low), roundToI32Sse2(high));
+        _mm_storeu_si128((__m128i *) (dst + i), out);
+    }
+    getScalarAudioKernels().convertFloatToI16(src + i, dst + i, numSamples - i);
+}
+
+void saturateFloatSse2(float *samples, int32_t numSamples) {
+    __m128 min = _mm_set1_ps(-1.0f);
+    __m128 max = _mm_set1_ps(1.0f);
+    int32_t i = 0;
+    for (; i + 4 <= numSamples; i += 4) {
+        _mm_storeu_ps(samples + i, _mm_min_ps(_mm_max_ps(_mm_loadu_ps(samples + i), min), max));
+    }
+    getScalarAudioKernels().saturateFloat(samples + i, numSamples - i);
+}
+
+void downmixStereoFloatSse2(const float *src, float *dst, int32_t numFrames) {
+    __m128 half = _mm_set1_ps(0.5f);
+    int32_t i = 0;
+    for (; i + 4 <= numFrames; i += 4) {
+        __m128 a = _mm_loadu_ps(src + 2 * i);
+        __m128 b = _mm_loadu_ps(src + 2 * i + 4);
+        __m128 left = _mm_shuffle_ps(a, b, _MM_SHUFFLE(2, 0, 2, 0));
+        __m128 right = _mm_shuffle_ps(a, b, _MM_SHUFFLE(3, 1, 3, 1));
+        _mm_storeu_ps(dst + i, _mm_mul_ps(_mm_add_ps(left, right), half));
+    }
+    getScalarAudioKernels().downmixStereoFloat(src + 2 * i, dst + i, numFrames - i);
+}
+
+void downmixStereoI16Sse2(const int16_t *src, int16_t *dst, int32_t numFrames) {
+    __m128i ones = _mm_set1_epi16(1);
+    int32_t i = 0;
+    for (; i + 8 <= numFrames; i += 8) {
+        // multiply-add by one sums each left/right pair into 32 bits
+        __m128i a = _mm_madd_epi16(_mm_loadu_si128((const __m128i *) (src + 2 * i)), ones);
+        __m128i b = _mm_madd_epi16(_mm_loadu_si128((const __m128i *) (src + 2 * i + 8)), ones);
+        __m128i out = _mm_packs_epi32(_mm_srai_epi32(a, 1), _mm_srai_epi32(b, 1));
+        _mm_storeu_si128((__m128i *) (dst + i), out);
+    }
+    getScalarAudioKernels().downmixStereoI16(src + 2 * i, dst + i, numFrames - i);
+}
+
+const AudioKernels kSse2AudioKernels = {
+        "sse2",
+        applyGainFloatSse2,
+        applyGainI16Sse2,
+        convertI16ToFloatSse2,
+        convertFloatToI16Sse2,
+        saturateFloatSse2,
+        downmixStereoFloatSse2,
+        downmixStereoI16Sse2,
+};
+
+// AVX2 versions, only called after checking the CPU supports them
+
+AVX2 inline __m128i roundToI16Avx2(__m256 values) {
+    values = _mm256_min_ps(_mm256_max_ps(values, _mm256_set1_ps(-32768.0f)), _mm256_set1_ps(32767.0f));
+    __m256i rounded = _mm256_cvtps_epi32(values);
+    return _mm_packs_epi32(_mm256_castsi256_si128(rounded), _mm256_extracti128_si256(rounded, 1));
+}
+
+AVX2 void applyGainFloatAvx2(float *samples, int32_t numSamples, float gain) {
+    __m256 gains = _mm256_set1_ps(gain);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        _mm256_storeu_ps(samples + i, _mm256_mul_ps(_mm256_loadu_ps(samples + i), gains));
+    }
+    applyGainFloatSse2(samples + i, numSamples - i, gain);
+}
+
+AVX2 void applyGainI16Avx2(int16_t *samples, int32_t numSamples, float gain) {
+    __m256 gains = _mm256_set1_ps(gain);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m256i in = _mm256_cvtepi16_epi32(_mm_loadu_si128((const __m128i *) (samples + i)));
+        __m256 gained = _mm256_mul_ps(_mm256_cvtepi32_ps(in), gains);
+        _mm_storeu_si128((__m128i *) (samples + i), roundToI16Avx2(gained));
+    }
+    getScalarAudioKernels().applyGainI16(samples + i, numSamples - i, gain);
+}
+
+AVX2 void convertI16ToFloatAvx2(const int16_t *src, float *dst, int32_t numSamples) {
+    __m256 scale = _mm256_set1_ps(1.0f / 32768.0f);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m256i in = _mm256_cvtepi16_epi32(_mm_loadu_si128((const __m128i *) (src + i)));
+        _mm256_storeu_ps(dst + i, _mm256_mul_ps(_mm256_cvtepi32_ps(in), scale));
+    }
+    getScalarAudioKernels().convertI16ToFloat(src + i, dst + i, numSamples - i);
+}
+
+AVX2 void convertFloatToI16Avx2(const float *src, int16_t *dst, int32_t numSamples) {
+    __m256 scale = _mm256_set1_ps(32768.0f);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m256 scaled = _mm256_mul_ps(_mm256_loadu_ps(src + i), scale);
+        _mm_storeu_si128((__m128i *) (dst + i), roundToI16Avx2(scaled));
+    }
+    getScalarAudioKernels().convertFloatToI16(src + i, dst + i, numSamples - i);
+}
+
+AVX2 void saturateFloatAvx2(float *samples, int32_t numSamples) {
+    __m256 min = _mm256_set1_ps(-1.0f);
+    __m256 max = _mm256_set1_ps(1.0f);
+    int32_t i = 0;
+    for (; i + 8 <= numSamples; i += 8) {
+        __m256 in = _mm256_loadu_ps(samples + i);
+        _mm256_storeu_ps(samples + i, _mm256_min_ps(_mm256_max_ps(in, min), max));
+    }
+    saturateFloatSse2(samples + i, numSamples - i);
+}
+
+AVX2 void downmixStereoFloatAvx2(const float *src, float *dst, int32_t numFrames) {
+    __m256 half = _mm256_set1_ps(0.5f);
+    int32_t i = 0;
+    for (; i + 8 <= numFrames; i += 8) {
+        __m256 a = _mm256_loadu_ps(src + 2 * i);
+        __m256 b = _mm256_loadu_ps(src + 2 * i + 8);
+        // shuffles stay within 128 bit lanes, the permute restores frame order
+        __m256 left = _mm256_shuffle_ps(a, b, _MM_SHUFFLE(2, 0, 2, 0));
+        __m256 right = _mm256_shuffle_ps(a, b, _MM_SHUFFLE(3, 1, 3, 1));
+        __m256 sum = _mm256_mul_ps(_mm256_add_ps(left, right), half);
+        sum = _mm256_castpd_ps(_mm256_permute4x64_pd(_mm256_castps_pd(sum), _MM_SHUFFLE(3, 1, 2, 0)));
+        _mm256_storeu_ps(dst + i, sum);
+    }
+    downmixStereoFloatSse2(src + 2 * i, dst + i, numFrames - i);
+}
+
+AVX2 void downmixStereoI16Avx2(const int16_t *src, int16_t *dst, int32_t numFrames) {
+    __m256i ones = _mm256_set1_epi16(1);
+    int32_t i = 0;
+    for (; i + 16 <= numFrames; i += 16) {
+        __m256i a = _mm256_madd_epi16(_mm256_loadu_si256((const __m256i *) (src + 2 * i)), ones);
+        __m256i b = _mm256_madd_epi16(_mm256_loadu_si256((const __m256i *) (src + 2 * i + 16)), ones);
+        __m256i out = _mm256_packs_epi32(_mm256_srai_epi32(a, 1), _mm256_srai_epi32(b, 1));
+        out = _mm256_permute4x64_epi64(out, _MM_SHUFFLE(3, 1, 2, 0));
+        _mm256_storeu_si256((__m256i *) (dst + i), out);
+    }
+    downmixStereoI16Sse2(src + 2 * i, dst + i, numFrames - i);
+}
+
+const AudioKernels kAvx2AudioKernels = {
+        "avx2",
+        applyGainFloatAvx2,
+        applyGainI16Avx2,
+        convertI16ToFloatAvx2,
+        convertFloatToI16Avx2,
+        saturateFloatAvx2,
+        downmixStereoFloatAvx2,
+        downmixStereoI16Avx2,
+};
+
+} // namespace
+
+const AudioKernels *getSse2AudioKernels() {
+    return &kSse2AudioKernels;
+}
+
+const AudioKernels *getAvx2AudioKernels() {
+    return __builtin_cpu_supports("avx2") ? &kAvx2AudioKernels : nullptr;
+}
+
+#else
+
+const AudioKernels *getSse2AudioKernels() {
+    return nullptr;
+}
+
+const AudioKernels *getAvx2AudioKernels() {
+    return nullptr;
+}
+
+#endif
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include <cmath>
+#include <complex>
+
+#include "Biquad.h"
+
+namespace {
+
+BiquadCoefficients normalize(double b0, double b1, double b2, double a0, double a1, double a2) {
+    BiquadCoefficients c;
+    c.b0 = static_cast<float>(b0 / a0);
+    c.b1 = static_cast<float>(b1 / a0);
+    c.b2 = static_cast<float>(b2 / a0);
+    c.a1 = static_cast<float>(a1 / a0);
+    c.a2 = static_cast<float>(a2 / a0);
+    return c;
+}
+
+double getOmega(double sampleRate, double frequency) {
+    // keep the design stable whatever the caller asks for
+    double limited = std::fmin(std::fmax(frequency, 1.0), sampleRate * 0.49);
+    return 2.0 * M_PI * limited / sampleRate;
+}
+
+double getRiaaDecibels(double frequency) {
+    // analog RIAA playback response relative to 1kHz
+    auto magnitude = [](double f) {
+        std::complex<double> s(0.0, 2.0 * M_PI * f);
+        return std::abs((1.0 + s * 318e-6) / ((1.0 + s * 3180e-6) * (1.0 + s * 75e-6)));
+    };
+    return 20.0 * std::log10(magnitude(frequency) / magnitude(1000.0));
+}
+
+} // namespace
+
+BiquadCoefficients BiquadCoefficients::highPass(double sampleRate, double frequency, double q) {
+    double w0 = getOmega(sampleRate, frequency);
+    double cosW0 = std::cos(w0);
+    double alpha = std::sin(w0) / (2.0 * q);
+    return normalize((1.0 + cosW0) / 2.0, -(1.0 + cosW0), (1.0 + cosW0) / 2.0,
+                     1.0 + alpha, -2.0 * cosW0, 1.0 - alpha);
+}
+
+BiquadCoefficients BiquadCoefficients::peaking(double sampleRate, double frequency, double q,
+                                               double gainDecibels) {
+    double a = std::pow(10.0, gainDecibels / 40.0);
+    double w0 = getOmega(sampleRate, frequency);
+    double cosW0 = std::cos(w0);
+    double alpha = std::sin(w0) / (2.0 * q);
+    return normalize(1.0 + alpha * a, -2.0 * cosW0, 1.0 - alpha * a,
+                     1.0 + alpha / a, -2.0 * cosW0, 1.0 - alpha / a);
+}
+
+BiquadCoefficients BiquadCoefficients::lowShelf(double sampleRate, double frequency, double q,
+                                                double gainDecibels) {
+    double a = std::pow(10.0, gainDecibels / 40.0);
+    double w0 = getOmega(sampleRate, frequency);
+    double cosW0 = std::cos(w0);
+    double twoSqrtAAlpha = 2.0 * std::sqrt(a) * std::sin(w0) / (2.0 * q);
+    return normalize(a * ((a + 1.0) - (a - 1.0) * cosW0 + twoSqrtAAlpha),
+                     2.0 * a * ((a - 1.0) - (a + 1.0) * cosW0),
+                     a * ((a + 1.0) - (a - 1.0) * cosW0 - twoSqrtAAlpha),
+                     (a + 1.0) + (a - 1.0) * cosW0 + twoSqrtAAlpha,
+                     -2.0 * ((a - 1.0) + (a + 1.0) * cosW0),
+                     (a + 1.0) + (a - 1.0) * cosW0 - twoSqrtAAlpha);
+}
+
+BiquadCoefficients BiquadCoefficients::highShelf(double sampleRate, double frequency, double q,
+                                                 double gainDecibels) {
+    double a = std::pow(10.0, gainDecibels / 40.0);
+    double w0 = getOmega(sampleRate, frequency);
+    double cosW0 = std::cos(w0);
+    double twoSqrtAAlpha = 2.0 * std::sqrt(a) * std::sin(w0) / (2.0 * q);
+    return normalize(a * ((a + 1.0) + (a - 1.0) * cosW0 + twoSqrtAAlpha),
+                     -2.0 * a * ((a - 1.0) + (a + 1.0) * cosW0),
+                     a * ((a + 1.0) + (a - 1.0) * cosW0 - twoSqrtAAlpha),
+                     (a + 1.0) - (a - 1.0) * cosW0 + twoSqrtAAlpha,
+                     2.0 * ((a - 1.0) - (a + 1.0) * cosW0),
+                     (a + 1.0) - (a - 1.0) * cosW0 - twoSqrtAAlpha);
+}
+
+BiquadCoefficients BiquadCoefficients::riaaDeEmphasis(double sampleRate) {
+    // matched z: poles at 3180us and 75us, zero at 318us, plus a second real zero at -r which
+    // stands in for the analog response above the last corner
+    double p1 = std::exp(-1.0 / (3180e-6 * sampleRate));
+    double p2 = std::exp(-1.0 / (75e-6 * sampleRate));
+    double z1 = std::exp(-1.0 / (318e-6 * sampleRate));
+    auto design = [&](double r) {
+        BiquadCoefficients c = normalize(1.0, r - z1, -z1 * r, 1.0, -(p1 + p2), p1 * p2);
+        double gain = std::pow(10.0, -c.getResponseDecibels(sampleRate, 1000.0) / 20.0);
+        c.b0 = static_cast<float>(c.b0 * gain);
+        c.b1 = static_cast<float>(c.b1 * gain);
+        c.b2 = static_cast<float>(c.b2 * gain);
+        return c;
+    };
+    auto maxError = [&](double r) {
+        BiquadCoefficients c = design(r);
+        // third octaves from 1kHz up to 20kHz or close to Nyquist
+        double maxFrequency = std::fmin(20000.0, sampleRate * 0.46);
+        double error = 0.0;
+        for (double frequency = 1000.0; frequency < maxFrequency * 1.26; frequency *= 1.26) {
+            double f = std::fmin(frequency, maxFrequency);
+            error = std::fmax(error, std::fabs(c.getResponseDecibels(sampleRate, f) - getRiaaDecibels(f)));
+        }
+        return error;
+    };
+    // coarse then fine search for r, only runs when the sample rate or settings change
+    double bestR = 0.0;
+    double bestError = maxError(bestR);
+    for (double r = 0.01; r <= 0.5; r += 0.01) {
+        double error = maxError(r);
+        if (error < bestError) {
+            bestError = error;
+            bestR = r;
+        }
+    }
+    double coarseR = bestR;
+    for (double r = coarseR - 0.01; r <= coarseR + 0.01; r += 0.001) {
+        double error = maxError(r);
+        if (error < bestError) {
+            bestError = error;
+            bestR = r;
+        }
+    }
+    return design(bestR);
+}
+
+double BiquadCoefficients::getResponseDecibels(double sampleRate, double frequency) const {
+    std::complex<double> z1 = std::polar(1.0, -2.0 * M_PI * frequency / sampleRate);
+    std::complex<double> z2 = z1 * z1;
+    std::complex<double> h = (static_cast<double>(b0) + static_cast<double>(b1) * z1 + static_cast<double>(b2) * z2) /
+                             (1.0 + static_cast<double>(a1) * z1 + static_cast<double>(a2) * z2);
+    return 20.0 * std::log10(std::abs(h));
+}
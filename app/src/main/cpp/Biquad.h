@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_BIQUAD_H
+#define VINYLCAST_BIQUAD_H
+
+#include <cstdint>
+
+/**
+ * Normalized (a0 = 1) second order IIR filter coefficients. Designs follow the Audio EQ Cookbook
+ * (https://www.w3.org/TR/audio-eq-cookbook/), computed in double and stored as float.
+ */
+struct BiquadCoefficients {
+    float b0 = 1.0f;
+    float b1 = 0.0f;
+    float b2 = 0.0f;
+    float a1 = 0.0f;
+    float a2 = 0.0f;
+
+    static BiquadCoefficients highPass(double sampleRate, double frequency, double q);
+    static BiquadCoefficients peaking(double sampleRate, double frequency, double q, double gainDecibels);
+    static BiquadCoefficients lowShelf(double sampleRate, double frequency, double q, double gainDecibels);
+    static BiquadCoefficients highShelf(double sampleRate, double frequency, double q, double gainDecibels);
+
+    /**
+     * RIAA playback (de-emphasis) curve, 3180us/318us/75us time constants, normalized to unity
+     * gain at 1kHz. Matched z rather than bilinear, which would be 13dB low at 20kHz for 44.1kHz,
+     * here the error stays within about 0.35dB up to 20kHz.
+     */
+    static BiquadCoefficients riaaDeEmphasis(double sampleRate);
+
+    /**
+     * @return magnitude response in decibels at frequency
+     */
+    double getResponseDecibels(double sampleRate, double frequency) const;
+};
+
+// Transposed direct form II state of one channel.
+struct BiquadState {
+    float z1 = 0.0f;
+    float z2 = 0.0f;
+};
+
+// Applied to the state once per block, a decaying tail costs far more to filter than a zero.
+inline float flushDenormal(float value) {
+    return (value > -1e-15f && value < 1e-15f) ? 0.0f : value;
+}
+
+/**
+ * Filters one channel of interleaved float samples in place.
+ */
+inline void processBiquad(const BiquadCoefficients &c, BiquadState &state,
+                          float *samples, int32_t numFrames, int32_t channelCount) {
+    float z1 = state.z1;
+    float z2 = state.z2;
+    for (int32_t i = 0; i < numFrames * channelCount; i += channelCount) {
+        float in = samples[i];
+        float out = c.b0 * in + z1;
+        z1 = c.b1 * in - c.a1 * out + z2;
+        z2 = c.b2 * in - c.a2 * out;
+        samples[i] = out;
+    }
+    state.z1 = flushDenormal(z1);
+    state.z2 = flushDenormal(z2);
+}
+
+/**
+ * Filters both channels of interleaved stereo in place. Running the two independent recursions in
+ * one loop lets them overlap, nearly halving the cost of processBiquad() on each channel.
+ */
+inline void processBiquadStereo(const BiquadCoefficients &c, BiquadState &left, BiquadState &right,
+                                float *samples, int32_t numFrames) {
+    float l1 = left.z1, l2 = left.z2;
+    float r1 = right.z1, r2 = right.z2;
+    for (int32_t i = 0; i < numFrames * 2; i += 2) {
+        float inL = samples[i];
+        float inR = samples[i + 1];
+        float outL = c.b0 * inL + l1;
+        float outR = c.b0 * inR + r1;
+        l1 = c.b1 * inL - c.a1 * outL + l2;
+        r1 = c.b1 * inR - c.a1 * outR + r2;
+        l2 = c.b2 * inL - c.a2 * outL;
+        r2 = c.b2 * inR - c.a2 * outR;
+        samples[i] = outL;
+        samples[i + 1] = outR;
+    }
+    left.z1 = flushDenormal(l1);
+    left.z2 = flushDenormal(l2);
+    right.z1 = flushDenormal(r1);
+    right.z2 = flushDenormal(r2);
+}
+
+#endif //VINYLCAST_BIQUAD_H
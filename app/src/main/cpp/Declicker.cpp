@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include <algorithm>
+#include <cmath>
+
+#include "AudioKernels.h"
+#include "Declicker.h"
+
+// a click is a residual this many times above its recent average
+static const float kThresholdRatio = 10.0f;
+// and above this absolute level, so noise in near silence isn't "repaired"
+static const float kThresholdFloor = 1e-3f;
+// time constant of the residual average
+static const float kEnvelopeMillis = 5.0f;
+// longest click that is repaired
+static const float kMaxClickMillis = 1.0f;
+// a click ends after this long with the residual below the threshold
+static const float kQuietMillis = 0.6f;
+
+// autoregressive model used to predict the audio under a click
+static const int32_t kArOrder = 16;
+static const int32_t kArContextFrames = 256;
+// bounds the stack buffers of repair(), 1ms at 192kHz
+static const int32_t kMaxRepairFrames = 196;
+
+void Declicker::prepare(int32_t sampleRate, int32_t channelCount, int32_t lookaheadMillis, int32_t maxFrames) {
+    mSampleRate = sampleRate;
+    mChannelCount = channelCount;
+    mLookaheadFrames = std::max(lookaheadMillis, 0) * sampleRate / 1000;
+    // also long enough to have the samples backward prediction starts from
+    mQuietFrames = std::max(kArOrder + 2, static_cast<int32_t>(kQuietMillis * sampleRate / 1000));
+    // a click has to be repaired before its first sample leaves the delay line
+    mMaxClickFrames = std::min({mLookaheadFrames / 2, static_cast<int32_t>(kMaxClickMillis * sampleRate / 1000),
+                                kMaxRepairFrames - 2, mLookaheadFrames - mQuietFrames - 4});
+    mEnvelopeCoefficient = 1.0f - std::exp(-1000.0f / (kEnvelopeMillis * sampleRate));
+    // let the average settle before trusting the threshold
+    mWarmupFrames = static_cast<int32_t>(4.0f * kEnvelopeMillis * sampleRate / 1000);
+    mPosition = 0;
+    mRepairCount.store(0, std::memory_order_relaxed);
+
+    // power of two delay lines so indices wrap with a mask, long enough to keep the context
+    // before a click around until it is repaired
+    int64_t delaySize = 1;
+    while (delaySize <= mLookaheadFrames + kArContextFrames + mMaxClickFrames + mQuietFrames + 4) {
+        delaySize <<= 1;
+    }
+    mDelayMask = delaySize - 1;
+    for (Channel &channel : mChannels) {
+        channel = Channel();
+        if (isEnabled()) {
+            channel.delay.assign(static_cast<size_t>(delaySize), 0.0f);
+        }
+    }
+    mConvertBuffer.assign(isEnabled() ? static_cast<size_t>(maxFrames) * channelCount : 0, 0.0f);
+}
+
+void Declicker::process(float *samples, int32_t numFrames) {
+    if (!isEnabled()) {
+        return;
+    }
+    // channels beyond kMaxChannels pass through undelayed
+    for (int32_t channel = 0; channel < std::min(mChannelCount, kMaxChannels); channel++) {
+        processChannel(mChannels[channel], samples + channel, numFrames);
+    }
+    mPosition += numFrames;
+}
+
+void Declicker::process(int16_t *samples, int32_t numFrames) {
+    int32_t maxFrames = static_cast<int32_t>(mConvertBuffer.size()) / mChannelCount;
+    if (!isEnabled() || maxFrames == 0) {
+        return;
+    }
+    const AudioKernels &kernels = getAudioKernels();
+    for (int32_t offset = 0; offset < numFrames; offset += maxFrames) {
+        int32_t frames = std::min(maxFrames, numFrames - offset);
+        int16_t *block = samples + offset * mChannelCount;
+        kernels.convertI16ToFloat(block, mConvertBuffer.data(), frames * mChannelCount);
+        process(mConvertBuffer.data(), frames);
+        kernels.convertFloatToI16(mConvertBuffer.data(), block, frames * mChannelCount);
+    }
+}
+
+void Declicker::processChannel(Channel &channel, float *samples, int32_t numFrames) {
+    for (int32_t i = 0; i < numFrames; i++) {
+        int64_t n = mPosition + i;
+        float x = samples[i * mChannelCount];
+        at(channel, n) = x;
+
+        float residual = std::fabs(x - 2.0f * channel.x1 + channel.x2);
+        channel.x2 = channel.x1;
+        channel.x1 = x;
+        bool loud = residual > kThresholdRatio * channel.envelope + kThresholdFloor;
+
+        if (channel.state == kStateIdle) {
+            if (loud && n >= mWarmupFrames) {
+                // x[n - 1] is the last sample the residual says is good
+                channel.state = kStateClick;
+                channel.clickStart = n;
+                channel.lastLoud = n;
+            } else {
+                channel.envelope += mEnvelopeCoefficient * (residual - channel.envelope);
+            }
+        } else {
+            if (loud) {
+                channel.lastLoud = n;
+            }
+            if (channel.state == kStateClick && channel.lastLoud - channel.clickStart > mMaxClickFrames) {
+                // too long for a click, let it through until it has died down
+                channel.state = kStateMusic;
+            }
+            if (channel.state == kStateMusic) {
+                channel.envelope += mEnvelopeCoefficient * (residual - channel.envelope);
+            }
+            if (n - channel.lastLoud >= mQuietFrames) {
+                if (channel.state == kStateClick) {
+                    // an impulse at k makes the residual loud from k to k + 2, keep a sample of
+                    // margin on each side
+                    repair(channel, channel.clickStart - 1, channel.lastLoud - 1);
+                }
+                channel.state = kStateIdle;
+            }
+        }
+
+        samples[i * mChannelCount] = at(channel, n - mLookaheadFrames);
+    }
+}
+
+void Declicker::repair(Channel &channel, int64_t start, int64_t end) {
+    // All samples read and written here are still in the delay line: the context before start
+    // and the kArOrder samples after end, which arrived during the quiet frames.
+    int32_t gap = static_cast<int32_t>(end - start + 1);
+
+    // AR model of the audio before the click, autocorrelation method and Levinson-Durbin. The
+    // model is of the deviation from the context's mean, an offset would bias every prediction.
+    double mean = 0.0;
+    for (int64_t index = start - kArContextFrames; index < start; index++) {
+        mean += at(channel, index);
+    }
+    mean /= kArContextFrames;
+    double r[kArOrder + 1];
+    for (int32_t lag = 0; lag <= kArOrder; lag++) {
+        double sum = 0.0;
+        for (int64_t index = start - kArContextFrames + lag; index < start; index++) {
+            sum += (at(channel, index) - mean) * (at(channel, index - lag) - mean);
+        }
+        r[lag] = sum;
+    }
+    // a little white noise keeps the model stable on pure tones
+    r[0] *= 1.0 + 1e-6;
+
+    double a[kArOrder + 1] = {};
+    double error = r[0];
+    bool usable = error > 1e-9;
+    for (int32_t order = 1; order <= kArOrder && usable; order++) {
+        double reflection = r[order];
+        for (int32_t k = 1; k < order; k++) {
+            reflection -= a[k] * r[order - k];
+        }
+        reflection /= error;
+        double previous[kArOrder + 1];
+        std::copy(a, a + order, previous);
+        a[order] = reflection;
+        for (int32_t k = 1; k < order; k++) {
+            a[k] = previous[k] - reflection * previous[order - k];
+        }
+        error *= 1.0 - reflection * reflection;
+        usable = error > 0.0;
+    }
+
+    if (!usable) {
+        // nothing but an offset before the click, bridge it with a line
+        float p0 = at(channel, start - 1);
+        float p1 = at(channel, end + 1);
+        for (int32_t i = 0; i < gap; i++) {
+            at(channel, start + i) = p0 + (p1 - p0) * (i + 1) / (gap + 1);
+        }
+        mRepairCount.fetch_add(1, std::memory_order_relaxed);
+        return;
+    }
+
+    // predict forward from before the click and backward from after it, then crossfade
+    float forward[kArOrder + kMaxRepairFrames];
+    float backward[kArOrder + kMaxRepairFrames];
+    for (int32_t k = 0; k < kArOrder; k++) {
+        forward[k] = static_cast<float>(at(channel, start - kArOrder + k) - mean);
+        backward[k] = static_cast<float>(at(channel, end + kArOrder - k) - mean);
+    }
+    for (int32_t i = kArOrder; i < kArOrder + gap; i++) {
+        double f = 0.0;
+        double b = 0.0;
+        for (int32_t k = 1; k <= kArOrder; k++) {
+            f += a[k] * forward[i - k];
+            b += a[k] * backward[i - k];
+        }
+        forward[i] = static_cast<float>(f);
+        backward[i] = static_cast<float>(b);
+    }
+    for (int32_t i = 0; i < gap; i++) {
+        float weight = static_cast<float>(i + 1) / (gap + 1);
+        at(channel, start + i) = static_cast<float>(mean)
+                + (1.0f - weight) * forward[kArOrder + i] + weight * backward[kArOrder + gap - 1 - i];
+    }
+    mRepairCount.fetch_add(1, std::memory_order_relaxed);
+}
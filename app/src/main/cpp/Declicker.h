@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_DECLICKER_H
+#define VINYLCAST_DECLICKER_H
+
+#include <atomic>
+#include <cstdint>
+#include <vector>
+
+/**
+ * Streaming click and pop removal for the real-time audio path.
+ *
+ * Clicks are found as impulses in the second difference of each channel, which is small for
+ * music but large for the near-vertical edges of a scratch or dust hit, against a threshold that
+ * follows the recent level of that residual. A detected click is replaced by autoregressive
+ * prediction, forward from the audio before it and backward from the audio after it, crossfaded.
+ *
+ * Repairing needs the samples after a click, so the output is delayed by a fixed lookahead. That
+ * delay is the latency the declicker adds, see getLatencyFrames(). Clicks longer than half the
+ * lookahead (and longer than 1ms) are left alone, at that length they are more likely music
+ * than surface noise.
+ */
+class Declicker {
+
+public:
+    static const int32_t kMaxChannels = 2;
+
+    /**
+     * Allocates the delay lines. Not real-time safe, call before the streams start.
+     * @param lookaheadMillis 0 disables the declicker
+     */
+    void prepare(int32_t sampleRate, int32_t channelCount, int32_t lookaheadMillis, int32_t maxFrames);
+
+    bool isEnabled() const {
+        return mLookaheadFrames > 0;
+    }
+
+    int32_t getLatencyFrames() const {
+        return mLookaheadFrames;
+    }
+
+    int64_t getLatencyNanos() const {
+        return mSampleRate > 0 ? static_cast<int64_t>(mLookaheadFrames) * 1000000000 / mSampleRate : 0;
+    }
+
+    // number of clicks repaired since prepare()
+    int64_t getRepairCount() const {
+        return mRepairCount.load(std::memory_order_relaxed);
+    }
+
+    /**
+     * Declicks interleaved samples in place, the output lags the input by getLatencyFrames().
+     * Real-time safe.
+     */
+    void process(float *samples, int32_t numFrames);
+    void process(int16_t *samples, int32_t numFrames);
+
+private:
+    static const int32_t kStateIdle = 0;
+    static const int32_t kStateClick = 1;
+    // loud for too long to be a click, wait for it to end before detecting again
+    static const int32_t kStateMusic = 2;
+
+    struct Channel {
+        std::vector<float> delay;
+        // last two input samples, for the second difference
+        float x1 = 0.0f;
+        float x2 = 0.0f;
+        // running mean of |residual| outside clicks
+        float envelope = 0.0f;
+        int32_t state = kStateIdle;
+        int64_t clickStart = 0;
+        int64_t lastLoud = 0;
+    };
+
+    void processChannel(Channel &channel, float *samples, int32_t numFrames);
+    void repair(Channel &channel, int64_t start, int64_t end);
+
+    float &at(Channel &channel, int64_t index) {
+        return channel.delay[index & mDelayMask];
+    }
+
+    int32_t mSampleRate = 0;
+    int32_t mChannelCount = 2;
+    int32_t mLookaheadFrames = 0;
+    int32_t mMaxClickFrames = 0;
+    int32_t mQuietFrames = 0;
+    float mEnvelopeCoefficient = 0.0f;
+    int32_t mWarmupFrames = 0;
+    int64_t mDelayMask = 0;
+    // frames seen so far, the index of the next input frame
+    int64_t mPosition = 0;
+    std::atomic<int64_t> mRepairCount{0};
+    Channel mChannels[kMaxChannels];
+    std::vector<float> mConvertBuffer;
+};
+
+#endif //VINYLCAST_DECLICKER_H
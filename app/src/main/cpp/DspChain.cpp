@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include <algorithm>
+
+#include "AudioKernels.h"
+#include "DspChain.h"
+
+// Q of the two sections of a 4th order Butterworth filter
+static const double kButterworth4Q1 = 0.54119610;
+static const double kButterworth4Q2 = 1.30656296;
+
+void DspChain::prepare(int32_t sampleRate, int32_t channelCount, int32_t maxFrames) {
+    mChannelCount = channelCount;
+    mConvertBuffer.assign(static_cast<size_t>(maxFrames) * mChannelCount, 0.0f);
+    for (auto &stage : mStates) {
+        for (auto &state : stage) {
+            state = BiquadState();
+        }
+    }
+
+    std::lock_guard<std::mutex> lock(mLock);
+    mSampleRate = sampleRate;
+    publishLocked();
+}
+
+void DspChain::setRumbleFilter(float cutoffHz) {
+    std::lock_guard<std::mutex> lock(mLock);
+    mRumbleCutoffHz = cutoffHz;
+    publishLocked();
+}
+
+void DspChain::setRiaaEqualization(bool enabled) {
+    std::lock_guard<std::mutex> lock(mLock);
+    mRiaaEnabled = enabled;
+    publishLocked();
+}
+
+void DspChain::setEqBand(int32_t band, int32_t type, float frequencyHz, float q, float gainDecibels) {
+    if (band < 0 || band >= kNumEqBands) {
+        return;
+    }
+    std::lock_guard<std::mutex> lock(mLock);
+    EqBand &eqBand = mEqBands[band];
+    eqBand.type = type;
+    eqBand.frequencyHz = frequencyHz;
+    eqBand.q = q > 0.0f ? q : 0.707f;
+    eqBand.gainDecibels = gainDecibels;
+    publishLocked();
+}
+
+void DspChain::publishLocked() {
+    Coefficients &c = mCoefficients.back();
+
+    bool rumble = mRumbleCutoffHz > 0.0f;
+    c.enabled[kStageRumble1] = rumble;
+    c.enabled[kStageRumble2] = rumble;
+    if (rumble) {
+        c.stages[kStageRumble1] = BiquadCoefficients::highPass(mSampleRate, mRumbleCutoffHz, kButterworth4Q1);
+        c.stages[kStageRumble2] = BiquadCoefficients::highPass(mSampleRate, mRumbleCutoffHz, kButterworth4Q2);
+    }
+
+    c.enabled[kStageRiaa] = mRiaaEnabled;
+    if (mRiaaEnabled) {
+        c.stages[kStageRiaa] = BiquadCoefficients::riaaDeEmphasis(mSampleRate);
+    }
+
+    for (int32_t i = 0; i < kNumEqBands; i++) {
+        const EqBand &band = mEqBands[i];
+        // a band at 0dB is a no-op, don't spend cycles on it
+        bool enabled = band.type != kEqBandTypeOff && band.gainDecibels != 0.0f;
+        c.enabled[kStageEq + i] = enabled;
+        if (band.type == kEqBandTypePeaking) {
+            c.stages[kStageEq + i] = BiquadCoefficients::peaking(mSampleRate, band.frequencyHz, band.q, band.gainDecibels);
+        } else if (band.type == kEqBandTypeLowShelf) {
+            c.stages[kStageEq + i] = BiquadCoefficients::lowShelf(mSampleRate, band.frequencyHz, band.q, band.gainDecibels);
+        } else if (band.type == kEqBandTypeHighShelf) {
+            c.stages[kStageEq + i] = BiquadCoefficients::highShelf(mSampleRate, band.frequencyHz, band.q, band.gainDecibels);
+        } else {
+            c.enabled[kStageEq + i] = false;
+        }
+    }
+
+    c.anyEnabled = std::any_of(std::begin(c.enabled), std::end(c.enabled), [](bool e) { return e; });
+    mCoefficients.publish();
+}
+
+const DspChain::Coefficients &DspChain::updateCoefficients() {
+    if (mCoefficients.update()) {
+        // a stage that was switched off starts from silence when it comes back
+        const Coefficients &c = mCoefficients.front();
+        for (int32_t stage = 0; stage < kNumStages; stage++) {
+            if (!c.enabled[stage]) {
+                for (auto &state : mStates[stage]) {
+                    state = BiquadState();
+                }
+            }
+        }
+    }
+    return mCoefficients.front();
+}
+
+void DspChain::processStages(const Coefficients &c, float *samples, int32_t numFrames) {
+    for (int32_t stage = 0; stage < kNumStages; stage++) {
+        if (!c.enabled[stage]) {
+            continue;
+        }
+        if (mChannelCount == 2) {
+            processBiquadStereo(c.stages[stage], mStates[stage][0], mStates[stage][1], samples, numFrames);
+            continue;
+        }
+        // channels beyond kMaxChannels pass through unfiltered
+        for (int32_t channel = 0; channel < std::min(mChannelCount, kMaxChannels); channel++) {
+            processBiquad(c.stages[stage], mStates[stage][channel], samples + channel, numFrames, mChannelCount);
+        }
+    }
+}
+
+void DspChain::process(float *samples, int32_t numFrames) {
+    const Coefficients &c = updateCoefficients();
+    if (c.anyEnabled) {
+        processStages(c, samples, numFrames);
+    }
+}
+
+void DspChain::process(int16_t *samples, int32_t numFrames) {
+    const Coefficients &c = updateCoefficients();
+    int32_t maxFrames = static_cast<int32_t>(mConvertBuffer.size()) / mChannelCount;
+    if (!c.anyEnabled || maxFrames == 0) {
+        return;
+    }
+    const AudioKernels &kernels = getAudioKernels();
+    // callbacks bigger than the buffer prepare() sized are filtered in pieces
+    for (int32_t offset = 0; offset < numFrames; offset += maxFrames) {
+        int32_t frames = std::min(maxFrames, numFrames - offset);
+        int16_t *block = samples + offset * mChannelCount;
+        kernels.convertI16ToFloat(block, mConvertBuffer.data(), frames * mChannelCount);
+        processStages(c, mConvertBuffer.data(), frames);
+        kernels.convertFloatToI16(mConvertBuffer.data(), block, frames * mChannelCount);
+    }
+}
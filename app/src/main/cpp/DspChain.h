@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_DSPCHAIN_H
+#define VINYLCAST_DSPCHAIN_H
+
+#include <cstdint>
+#include <mutex>
+#include <vector>
+
+#include "Biquad.h"
+#include "TripleBuffer.h"
+
+// EQ band types, must match NativeAudioEngine.EQ_BAND_TYPE_* in Java
+static const int32_t kEqBandTypeOff = 0;
+static const int32_t kEqBandTypePeaking = 1;
+static const int32_t kEqBandTypeLowShelf = 2;
+static const int32_t kEqBandTypeHighShelf = 3;
+
+/**
+ * Fixed chain of biquad stages applied to the captured audio before local playback and the Java
+ * hand-off: subsonic rumble high-pass, RIAA de-emphasis, then the parametric EQ bands.
+ *
+ * Setters may be called from any thread at any time. They design new coefficients and publish
+ * them through a triple buffer, which the audio callback picks up at the start of its next
+ * process() call without locking.
+ */
+class DspChain {
+
+public:
+    static const int32_t kMaxChannels = 2;
+    static const int32_t kNumEqBands = 4;
+
+    // stage slots, each keeps its own filter state across coefficient changes
+    static const int32_t kStageRumble1 = 0;
+    static const int32_t kStageRumble2 = 1;
+    static const int32_t kStageRiaa = 2;
+    static const int32_t kStageEq = 3;
+    static const int32_t kNumStages = kStageEq + kNumEqBands;
+
+    /**
+     * Sets the stream format and allocates the buffer used to filter 16 bit audio. Not real-time
+     * safe, call before the streams start.
+     */
+    void prepare(int32_t sampleRate, int32_t channelCount, int32_t maxFrames);
+
+    /**
+     * @param cutoffHz 4th order Butterworth high-pass corner, 0 to disable
+     */
+    void setRumbleFilter(float cutoffHz);
+    void setRiaaEqualization(bool enabled);
+    void setEqBand(int32_t band, int32_t type, float frequencyHz, float q, float gainDecibels);
+
+    /**
+     * Filters interleaved samples in place. Real-time safe.
+     */
+    void process(float *samples, int32_t numFrames);
+    void process(int16_t *samples, int32_t numFrames);
+
+private:
+    struct EqBand {
+        int32_t type = kEqBandTypeOff;
+        float frequencyHz = 1000.0f;
+        float q = 0.707f;
+        float gainDecibels = 0.0f;
+    };
+
+    struct Coefficients {
+        bool enabled[kNumStages] = {};
+        BiquadCoefficients stages[kNumStages];
+        bool anyEnabled = false;
+    };
+
+    // writer side, guarded by mLock
+    void publishLocked();
+
+    // audio thread side
+    const Coefficients &updateCoefficients();
+    void processStages(const Coefficients &c, float *samples, int32_t numFrames);
+
+    std::mutex mLock;
+    int32_t mSampleRate = 48000;
+    float mRumbleCutoffHz = 0.0f;
+    bool mRiaaEnabled = false;
+    EqBand mEqBands[kNumEqBands];
+
+    TripleBuffer<Coefficients> mCoefficients;
+
+    // audio thread side
+    int32_t mChannelCount = 2;
+    BiquadState mStates[kNumStages][kMaxChannels];
+    std::vector<float> mConvertBuffer;
+};
+
+#endif //VINYLCAST_DSPCHAIN_H
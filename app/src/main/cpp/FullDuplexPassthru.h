@@ -23,41 +23,107 @@
 #ifndef OBOE_FULLDUPLEXPASSTHRU_H
 #define OBOE_FULLDUPLEXPASSTHRU_H
 
-constexpr float kScaleI16ToFloat = (1.0f / 32768.0f);
-
-// Applies gain, overwrites the value pointed to by *sample.
-inline void applyGain(int16_t* sample, float_t gain) {
-    // Convert int16 -> float.
-    float_t fval = static_cast<float_t>(*sample) * kScaleI16ToFloat;
-    // Apply gain.
-    fval *= gain;
-    // Convert float->i16.
-    fval += 1.0; // to avoid discontinuity at 0.0 caused by truncation
-    fval *= 32768.0f;
-    auto ival = static_cast<int32_t>(fval);
-    // clip to 16-bit range
-    if (ival < 0) ival = 0;
-    else if (ival > 0x0FFFF) ival = 0x0FFFF;
-    // center at zero
-    ival -= 32768;
-    // Replace original value.
-    *sample = static_cast<int16_t>(ival);
-}
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <ctime>
+
+#include "AudioDataConsumer.h"
+#include "AudioKernels.h"
+#include "Declicker.h"
+#include "DspChain.h"
+
 
 class FullDuplexPassthru : public oboe::FullDuplexStream {
 
 public:
+    static constexpr int64_t kNanosPerSecond = 1000000000;
+    // how often the input stream's timestamp is refreshed, frames in between are extrapolated.
+    // Querying it can take a lock on the legacy AAudio path so it isn't done every callback.
+    static constexpr int64_t kTimestampIntervalNanos = 100 * 1000 * 1000;
 
     void setSkipLocalPlayback(bool skipLocalPlayback) {
         mSkipLocalPlayback = skipLocalPlayback;
     }
 
-    void setAudioDataCallback(JavaVM* javaVm, jobject audioDataCallbackInstance,
-            jmethodID audioDataCallbackMethod) {
-        LOGD("FullDuplexPassthru - setAudioDataCallback");
-        mJavaVm = javaVm;
-        mAudioDataCallbackInstance = audioDataCallbackInstance;
-        mAudioDataCallbackMethod = audioDataCallbackMethod;
+    void setAudioDataConsumer(AudioDataConsumer *audioDataConsumer) {
+        LOGD("FullDuplexPassthru - setAudioDataConsumer");
+        mAudioDataConsumer = audioDataConsumer;
+    }
+
+    void setDspChain(DspChain *dspChain) {
+        mDspChain = dspChain;
+    }
+
+    void setDeclicker(Declicker *declicker) {
+        mDeclicker = declicker;
+    }
+
+    // time spent declicking, summed over and the longest of the callbacks since resetCounters()
+    int64_t getDeclickerTotalNanos() const {
+        return mDeclickerTotalNanos.load(std::memory_order_relaxed);
+    }
+
+    int64_t getDeclickerMaxNanos() const {
+        return mDeclickerMaxNanos.load(std::memory_order_relaxed);
+    }
+
+    int64_t getDeclickerCallbackCount() const {
+        return mDeclickerCallbackCount.load(std::memory_order_relaxed);
+    }
+
+    // callbacks since resetCounters(), and the time spent in them in total and at most
+    int64_t getCallbackCount() const {
+        return mCallbackCount.load(std::memory_order_relaxed);
+    }
+
+    int64_t getCallbackTotalNanos() const {
+        return mCallbackTotalNanos.load(std::memory_order_relaxed);
+    }
+
+    int64_t getCallbackMaxNanos() const {
+        return mCallbackMaxNanos.load(std::memory_order_relaxed);
+    }
+
+    // time from the ADC capturing a callback's first frame to the callback, summed over and the
+    // longest of the callbacks since resetCounters()
+    int64_t getInputLatencyCount() const {
+        return mInputLatencyCount.load(std::memory_order_relaxed);
+    }
+
+    int64_t getInputLatencyTotalNanos() const {
+        return mInputLatencyTotalNanos.load(std::memory_order_relaxed);
+    }
+
+    int64_t getInputLatencyMaxNanos() const {
+        return mInputLatencyMaxNanos.load(std::memory_order_relaxed);
+    }
+
+    // number of callbacks whose audio data could not be handed off because the FIFO was full
+    int64_t getOverrunCount() const {
+        return mOverrunCount.load(std::memory_order_relaxed);
+    }
+
+    // total number of input frames dropped because of those overruns
+    int64_t getDroppedFrameCount() const {
+        return mDroppedFrameCount.load(std::memory_order_relaxed);
+    }
+
+    void resetCounters() {
+        mOverrunCount.store(0, std::memory_order_relaxed);
+        mDroppedFrameCount.store(0, std::memory_order_relaxed);
+        mDeclickerTotalNanos.store(0, std::memory_order_relaxed);
+        mDeclickerMaxNanos.store(0, std::memory_order_relaxed);
+        mDeclickerCallbackCount.store(0, std::memory_order_relaxed);
+        mCallbackCount.store(0, std::memory_order_relaxed);
+        mCallbackTotalNanos.store(0, std::memory_order_relaxed);
+        mCallbackMaxNanos.store(0, std::memory_order_relaxed);
+        mInputLatencyCount.store(0, std::memory_order_relaxed);
+        mInputLatencyTotalNanos.store(0, std::memory_order_relaxed);
+        mInputLatencyMaxNanos.store(0, std::memory_order_relaxed);
+        mTimestampQueryNanos = 0;
+        mTimestampFrame = -1;
     }
 
     void setGainDecibels(double decibels) {
@@ -84,15 +150,43 @@ public:
                     bytesFromInput, bytesForOutput);
             return oboe::DataCallbackResult::Continue;
         }
+        auto callbackStart = std::chrono::steady_clock::now();
 
         if (bytesFromInput > 0 && mGain != 1.0) {
-            // Apply gain in-place to inputData.
-            // Assumes we're dealing with int16 samples.
-            if (this->getInputStream()->getFormat() == oboe::AudioFormat::I16) {
-                void *inputDataEnd = (void *) ((u_char *) inputData + bytesFromInput);
-                for (int16_t *sample = (int16_t *) inputData; sample < inputDataEnd; sample++) {
-                    applyGain(sample, mGain);
-                }
+            // Apply gain in-place to inputData, in the stream's own format. Float samples are
+            // only scaled, values beyond +-1.0 are clipped once when a consumer converts them.
+            int32_t numSamples = numInputFrames * getInputStream()->getChannelCount();
+            if (getInputStream()->getFormat() == oboe::AudioFormat::Float) {
+                mKernels.applyGainFloat((float *) inputData, numSamples, mGain);
+            } else if (getInputStream()->getFormat() == oboe::AudioFormat::I16) {
+                mKernels.applyGainI16((int16_t *) inputData, numSamples, mGain);
+            }
+        }
+
+        if (bytesFromInput > 0 && mDspChain != nullptr) {
+            // filter in place too, so local playback and the consumer get the same audio
+            if (getInputStream()->getFormat() == oboe::AudioFormat::Float) {
+                mDspChain->process((float *) inputData, numInputFrames);
+            } else if (getInputStream()->getFormat() == oboe::AudioFormat::I16) {
+                mDspChain->process((int16_t *) inputData, numInputFrames);
+            }
+        }
+
+        if (bytesFromInput > 0 && mDeclicker != nullptr && mDeclicker->isEnabled()) {
+            // after the filters so a rumble filter or EQ boost can't hide or exaggerate clicks
+            auto start = std::chrono::steady_clock::now();
+            if (getInputStream()->getFormat() == oboe::AudioFormat::Float) {
+                mDeclicker->process((float *) inputData, numInputFrames);
+            } else if (getInputStream()->getFormat() == oboe::AudioFormat::I16) {
+                mDeclicker->process((int16_t *) inputData, numInputFrames);
+            }
+            int64_t nanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                    std::chrono::steady_clock::now() - start).count();
+            mDeclickerTotalNanos.fetch_add(nanos, std::memory_order_relaxed);
+            mDeclickerCallbackCount.fetch_add(1, std::memory_order_relaxed);
+            // only this thread writes the max, no compare and swap needed
+            if (nanos > mDeclickerMaxNanos.load(std::memory_order_relaxed)) {
+                mDeclickerMaxNanos.store(nanos, std::memory_order_relaxed);
             }
         }
 
@@ -101,44 +195,103 @@ public:
                 // copy audio data to output stream with (if needed) zeroed out bytes at end
                 memcpy(outputData, inputData, bytesFromInput);
                 memset((u_char *) outputData + bytesFromInput, 0, bytesToZero);
+                if (getOutputStream()->getFormat() == oboe::AudioFormat::Float) {
+                    // gain and EQ boost can push float samples beyond full scale, clip our copy
+                    // rather than rely on the device to handle them
+                    mKernels.saturateFloat((float *) outputData,
+                            numOutputFrames * getOutputStream()->getChannelCount());
+                }
             } else {
                 // set zeroed bytes to output
                 memset((u_char *) outputData , 0, bytesForOutput);
             }
         }
 
-        // send to audio data to jni callback
-        if (bytesFromInput > 0 && mJavaVm != NULL) {
-            JNIEnv* env;
-            int getEnvStat = mJavaVm->GetEnv((void **)&env, JNI_VERSION_1_6);
-            if (getEnvStat == JNI_EDETACHED) {
-                LOGD("GetEnv: not attached");
-                if (mJavaVm->AttachCurrentThread(&env, NULL) != 0) {
-                    LOGE("GetEnv: Failed to attach");
-                } else {
-                    LOGD("GetEnv: now attached");
-                }
-            } else if (getEnvStat == JNI_OK) {
-                // already attached
-            } else if (getEnvStat == JNI_EVERSION) {
-                LOGE("GetEnv: version not supported");
+        // hand audio data to the consumer thread: a memcpy and an atomic publish, never blocks
+        if (bytesFromInput > 0 && mAudioDataConsumer != nullptr) {
+            int64_t nowNanos = getMonotonicNanos();
+            int64_t captureNanos = getCaptureNanos(numInputFrames, nowNanos);
+            int64_t inputLatencyNanos = nowNanos - captureNanos;
+            mInputLatencyTotalNanos.fetch_add(inputLatencyNanos, std::memory_order_relaxed);
+            mInputLatencyCount.fetch_add(1, std::memory_order_relaxed);
+            if (inputLatencyNanos > mInputLatencyMaxNanos.load(std::memory_order_relaxed)) {
+                mInputLatencyMaxNanos.store(inputLatencyNanos, std::memory_order_relaxed);
             }
+            if (mDeclicker != nullptr && mDeclicker->isEnabled()) {
+                // what leaves the declicker's delay line was captured its lookahead earlier
+                captureNanos -= mDeclicker->getLatencyNanos();
+            }
+            if (!mAudioDataConsumer->push(inputData, bytesFromInput, captureNanos)) {
+                mOverrunCount.fetch_add(1, std::memory_order_relaxed);
+                mDroppedFrameCount.fetch_add(numInputFrames, std::memory_order_relaxed);
+            }
+        }
 
-            jbyteArray buffer = env->NewByteArray(bytesFromInput);
-            env->SetByteArrayRegion(buffer, 0, bytesFromInput, (jbyte *)inputData);
-            env->CallVoidMethod(mAudioDataCallbackInstance, mAudioDataCallbackMethod, buffer);
-            env->DeleteLocalRef(buffer);
-        };
+        int64_t callbackNanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                std::chrono::steady_clock::now() - callbackStart).count();
+        mCallbackTotalNanos.fetch_add(callbackNanos, std::memory_order_relaxed);
+        mCallbackCount.fetch_add(1, std::memory_order_relaxed);
+        if (callbackNanos > mCallbackMaxNanos.load(std::memory_order_relaxed)) {
+            mCallbackMaxNanos.store(callbackNanos, std::memory_order_relaxed);
+        }
 
         return oboe::DataCallbackResult::Continue;
     }
 
 private:
+    static int64_t getMonotonicNanos() {
+        timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return now.tv_sec * kNanosPerSecond + now.tv_nsec;
+    }
+
+    /**
+     * CLOCK_MONOTONIC time the ADC captured the first of the numInputFrames just read, the same
+     * clock as Java's System.nanoTime(). Extrapolated from the input stream's latest timestamp,
+     * or if it has none (OpenSL ES) from the callback time less the frames' duration.
+     */
+    int64_t getCaptureNanos(int numInputFrames, int64_t nowNanos) {
+        oboe::AudioStream *inputStream = getInputStream();
+        int64_t sampleRate = inputStream->getSampleRate();
+        if (nowNanos - mTimestampQueryNanos >= kTimestampIntervalNanos) {
+            mTimestampQueryNanos = nowNanos;
+            auto timestamp = inputStream->getTimestamp(CLOCK_MONOTONIC);
+            if (timestamp) {
+                mTimestampFrame = timestamp.value().position;
+                mTimestampNanos = timestamp.value().timestamp;
+            } else {
+                mTimestampFrame = -1;
+            }
+        }
+        if (mTimestampFrame < 0) {
+            return nowNanos - numInputFrames * kNanosPerSecond / sampleRate;
+        }
+        int64_t firstFrame = inputStream->getFramesRead() - numInputFrames;
+        return mTimestampNanos + (firstFrame - mTimestampFrame) * kNanosPerSecond / sampleRate;
+    }
+
     bool mSkipLocalPlayback = false;
     float_t mGain = 1.0;
+    const AudioKernels &mKernels = getAudioKernels();
+
+    AudioDataConsumer *mAudioDataConsumer = nullptr;
+    DspChain *mDspChain = nullptr;
+    Declicker *mDeclicker = nullptr;
+    std::atomic<int64_t> mOverrunCount{0};
+    std::atomic<int64_t> mDroppedFrameCount{0};
+    std::atomic<int64_t> mDeclickerTotalNanos{0};
+    std::atomic<int64_t> mDeclickerMaxNanos{0};
+    std::atomic<int64_t> mDeclickerCallbackCount{0};
+    std::atomic<int64_t> mCallbackCount{0};
+    std::atomic<int64_t> mCallbackTotalNanos{0};
+    std::atomic<int64_t> mCallbackMaxNanos{0};
+    std::atomic<int64_t> mInputLatencyCount{0};
+    std::atomic<int64_t> mInputLatencyTotalNanos{0};
+    std::atomic<int64_t> mInputLatencyMaxNanos{0};
 
-    JavaVM* mJavaVm;
-    jobject mAudioDataCallbackInstance;
-    jmethodID mAudioDataCallbackMethod;
+    // input stream frame position and its capture time, only used on the callback thread
+    int64_t mTimestampQueryNanos = 0;
+    int64_t mTimestampFrame = -1;
+    int64_t mTimestampNanos = 0;
 };
 #endif //OBOE_FULLDUPLEXPASSTHRU_H
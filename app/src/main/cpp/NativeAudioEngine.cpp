@@ -25,16 +25,30 @@
 #include <climits>
 
 #include "NativeAudioEngine.h"
+#include "AudioKernels.h"
+
+// amount of audio the consumer thread can fall behind before the audio callback drops data
+static const size_t kAudioDataRingMillis = 500;
 
 NativeAudioEngine::NativeAudioEngine(JNIEnv *env) {
     assert(mOutputChannelCount == mInputChannelCount);
     // cache pointer to JavaVM based on initial JNIEnv.
     jint rs = env->GetJavaVM(&mJavaVm);
     assert (rs == JNI_OK);
+    mAudioDataConsumer = std::make_unique<AudioDataConsumer>(mJavaVm);
+    mFullDuplexPassthru.setAudioDataConsumer(mAudioDataConsumer.get());
+    mAudioDataConsumer->setSpectrumAnalyzer(&mSpectrumAnalyzer);
+    mFullDuplexPassthru.setDspChain(&mDspChain);
+    mFullDuplexPassthru.setDeclicker(&mDeclicker);
+    LOGI("Using %s audio kernels", getAudioKernels().name);
 }
 
 NativeAudioEngine::~NativeAudioEngine() {
     stopRecording(nullptr);
+    JNIEnv *env;
+    if (mEngineClass != nullptr && mJavaVm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) == JNI_OK) {
+        env->DeleteGlobalRef(mEngineClass);
+    }
 }
 
 void NativeAudioEngine::setRecordingDeviceId(int32_t deviceId) {
@@ -76,13 +90,28 @@ bool NativeAudioEngine::setLowLatency(bool lowLatency) {
     return true;
 }
 
+bool NativeAudioEngine::setDeclickerLookahead(int32_t lookaheadMillis) {
+    if (mIsRecording) {
+        LOGW("Recording already in progress - ignoring this setDeclickerLookahead request");
+        return false;
+    }
+
+    mDeclickerLookaheadMillis = lookaheadMillis;
+    return true;
+}
+
 void NativeAudioEngine::setAudioDataListener(JNIEnv *env, jobject instance, jobject callbackObject) {
+    if (mIsRecording) {
+        LOGW("Recording already in progress - ignoring this setAudioDataListener request");
+        return;
+    }
+
     //declare ref java class
     jclass jClassAudioDataListener = env->GetObjectClass(callbackObject);
 
     //declare java method id
     //Note: this method name is hardcoded so need to tell ProGuard to skip it
-    jmethodID jMethodIdOnAudioData = env->GetMethodID(jClassAudioDataListener, "onAudioData", "([B)V");
+    jmethodID jMethodIdOnAudioData = env->GetMethodID(jClassAudioDataListener, "onAudioData", "(Ljava/nio/ByteBuffer;IIJ)V");
 
     //check null
     if(jMethodIdOnAudioData == 0){
@@ -90,10 +119,23 @@ void NativeAudioEngine::setAudioDataListener(JNIEnv *env, jobject instance, jobj
         return;
     }
 
-    JavaVM* javaVm;
-    env->GetJavaVM(&javaVm); //store JavaVM reference for later use of env
+    if (mCallbackObject != nullptr) {
+        env->DeleteGlobalRef(mCallbackObject);
+    }
     mCallbackObject = env->NewGlobalRef(callbackObject);
-    mFullDuplexPassthru.setAudioDataCallback(javaVm, mCallbackObject, jMethodIdOnAudioData);
+    mOnAudioDataMethod = jMethodIdOnAudioData;
+
+    // instance is the NativeAudioEngine class, kept for as long as the engine
+    if (mEngineClass == nullptr) {
+        //Note: this method name is hardcoded so need to tell ProGuard to skip it
+        jmethodID jMethodIdOnSpectrumPublished = env->GetStaticMethodID(static_cast<jclass>(instance), "onSpectrumPublished", "()V");
+        if (jMethodIdOnSpectrumPublished == 0) {
+            LOGE("jMethodID for onSpectrumPublished not found");
+            return;
+        }
+        mEngineClass = static_cast<jclass>(env->NewGlobalRef(instance));
+        mAudioDataConsumer->setOnSpectrumPublished(mEngineClass, jMethodIdOnSpectrumPublished);
+    }
 }
 
 int32_t NativeAudioEngine::getSampleRate() {
@@ -129,6 +171,15 @@ int32_t NativeAudioEngine::getBitRate() {
     }
 }
 
+int32_t NativeAudioEngine::getSampleFormat() {
+    if (mRecordingStream && mPlayStream) {
+        return static_cast<int32_t>(mFormat);
+    } else {
+        LOGE("Recording and/or Playback streams not created yet. Need to call prepareRecording() first.");
+        return -1;
+    }
+}
+
 int32_t NativeAudioEngine::getAudioApi() {
     if (mRecordingStream && mPlayStream) {
         return static_cast<int32_t>(mAudioApi);
@@ -138,6 +189,73 @@ int32_t NativeAudioEngine::getAudioApi() {
     }
 }
 
+int64_t NativeAudioEngine::getOverrunCount() {
+    return mFullDuplexPassthru.getOverrunCount();
+}
+
+int64_t NativeAudioEngine::getDroppedFrameCount() {
+    return mFullDuplexPassthru.getDroppedFrameCount();
+}
+
+int32_t NativeAudioEngine::getDeclickerLatencyMillis() {
+    return mDeclickerLookaheadMillis;
+}
+
+int64_t NativeAudioEngine::getDeclickerRepairCount() {
+    return mDeclicker.getRepairCount();
+}
+
+int64_t NativeAudioEngine::getDeclickerAverageMicros() {
+    int64_t callbacks = mFullDuplexPassthru.getDeclickerCallbackCount();
+    return callbacks > 0 ? mFullDuplexPassthru.getDeclickerTotalNanos() / callbacks / 1000 : 0;
+}
+
+int64_t NativeAudioEngine::getDeclickerMaxMicros() {
+    return mFullDuplexPassthru.getDeclickerMaxNanos() / 1000;
+}
+
+void NativeAudioEngine::getPipelineStats(int64_t *stats) {
+    stats[kPipelineStatCallbackCount] = mFullDuplexPassthru.getCallbackCount();
+    stats[kPipelineStatCallbackTotalNanos] = mFullDuplexPassthru.getCallbackTotalNanos();
+    stats[kPipelineStatCallbackMaxNanos] = mFullDuplexPassthru.getCallbackMaxNanos();
+    stats[kPipelineStatOverrunCount] = mFullDuplexPassthru.getOverrunCount();
+    stats[kPipelineStatDroppedFrameCount] = mFullDuplexPassthru.getDroppedFrameCount();
+    stats[kPipelineStatQueuedBytes] = mAudioDataConsumer->getQueuedBytes();
+    stats[kPipelineStatDeclickerRepairCount] = mDeclicker.getRepairCount();
+    stats[kPipelineStatInputLatencyCount] = mFullDuplexPassthru.getInputLatencyCount();
+    stats[kPipelineStatInputLatencyTotalNanos] = mFullDuplexPassthru.getInputLatencyTotalNanos();
+    stats[kPipelineStatInputLatencyMaxNanos] = mFullDuplexPassthru.getInputLatencyMaxNanos();
+    stats[kPipelineStatDeclickerLatencyNanos] = mDeclicker.getLatencyNanos();
+}
+
+bool NativeAudioEngine::startSpectrumAnalysis(int32_t fftLength, int32_t hopLength, int32_t numBins,
+                                              int32_t decimation) {
+    if (!mRecordingStream) {
+        LOGE("Recording stream not created yet. Need to call prepareRecording() first.");
+        return false;
+    }
+    if (fftLength < 4 || (fftLength & (fftLength - 1)) != 0 || numBins < 1 || numBins > fftLength / 2
+            || hopLength < 1 || hopLength > fftLength) {
+        LOGE("Spectrum analysis needs a power of two FFT length, a hop of at most that length and at most fftLength / 2 bins");
+        return false;
+    }
+    if (decimation < 1 || decimation > SpectrumAnalyzer::kMaxDecimation || (decimation & (decimation - 1)) != 0) {
+        LOGE("Spectrum analysis decimation must be a power of two up to %d", SpectrumAnalyzer::kMaxDecimation);
+        return false;
+    }
+    mSpectrumAnalyzer.start(mSampleRate, mInputChannelCount, mFormat == oboe::AudioFormat::Float, fftLength,
+            hopLength, numBins, decimation);
+    return true;
+}
+
+void NativeAudioEngine::stopSpectrumAnalysis() {
+    mSpectrumAnalyzer.stop();
+}
+
+bool NativeAudioEngine::getSpectrumDecibels(float *decibels, int32_t numBins) {
+    return mSpectrumAnalyzer.getSpectrumDecibels(decibels, numBins);
+}
+
 const char * NativeAudioEngine::getOboeVersion() {
     return oboe::Version::Text;
 }
@@ -147,6 +265,21 @@ void NativeAudioEngine::setGainDecibels(double decibels) {
     mFullDuplexPassthru.setGainDecibels(decibels);
 }
 
+void NativeAudioEngine::setRumbleFilter(float cutoffHz) {
+    LOGD("Rumble filter set to %.0fHz", cutoffHz);
+    mDspChain.setRumbleFilter(cutoffHz);
+}
+
+void NativeAudioEngine::setRiaaEqualization(bool enabled) {
+    LOGD("RIAA equalization %s", enabled ? "enabled" : "disabled");
+    mDspChain.setRiaaEqualization(enabled);
+}
+
+void NativeAudioEngine::setEqBand(int32_t band, int32_t type, float frequencyHz, float q, float gainDecibels) {
+    LOGD("EQ band %d set to type %d, %.0fHz, Q %.2f, %+.1fdB", band, type, frequencyHz, q, gainDecibels);
+    mDspChain.setEqBand(band, type, frequencyHz, q, gainDecibels);
+}
+
 bool NativeAudioEngine::prepareRecording(JNIEnv *env) {
     LOGD("prepareRecording");
     if (mIsRecording) {
@@ -166,6 +299,7 @@ bool NativeAudioEngine::prepareRecording(JNIEnv *env) {
     }
     warnIfNotLowLatency(mPlayStream);
     mSampleRate = mPlayStream->getSampleRate();
+    mFormat = mPlayStream->getFormat();
 
     setupRecordingStreamParameters(&inBuilder);
     result = inBuilder.openManagedStream(mRecordingStream);
@@ -176,6 +310,19 @@ bool NativeAudioEngine::prepareRecording(JNIEnv *env) {
     warnIfNotLowLatency(mRecordingStream);
     mAudioApi = mRecordingStream->getAudioApi();
 
+    // FIFO between the audio callback and the consumer thread, sized to hold kAudioDataRingMillis of audio
+    size_t bytesPerSecond = static_cast<size_t>(mSampleRate) * mRecordingStream->getBytesPerFrame();
+    mAudioDataRing = std::make_unique<AudioDataRing>(bytesPerSecond * kAudioDataRingMillis / 1000);
+
+    // filter state and 16 bit conversion buffer, callbacks never ask for more than the capacity
+    mDspChain.prepare(mSampleRate, mInputChannelCount, mPlayStream->getBufferCapacityInFrames());
+    mDeclicker.prepare(mSampleRate, mInputChannelCount, mDeclickerLookaheadMillis,
+            mPlayStream->getBufferCapacityInFrames());
+    if (mDeclicker.isEnabled()) {
+        LOGI("Declicker enabled, adds %dms (%d frames) of latency",
+                mDeclickerLookaheadMillis, mDeclicker.getLatencyFrames());
+    }
+
     mFullDuplexPassthru.setInputStream(mRecordingStream.get());
     mFullDuplexPassthru.setOutputStream(mPlayStream.get());
 
@@ -190,6 +337,15 @@ bool NativeAudioEngine::startRecording(JNIEnv *env) {
 
     if (mRecordingStream && mPlayStream) {
         mIsRecording = true;
+        mFullDuplexPassthru.resetCounters();
+        if (mCallbackObject != nullptr) {
+            int64_t bytesPerSecond = static_cast<int64_t>(mRecordingStream->getSampleRate()) *
+                    mRecordingStream->getBytesPerFrame();
+            mAudioDataConsumer->start(mAudioDataRing.get(), mCallbackObject, mOnAudioDataMethod,
+                                      bytesPerSecond);
+        } else {
+            LOGW("No audio data listener set, audio data will only be played locally");
+        }
         oboe::Result result = mFullDuplexPassthru.start();
         return (result == oboe::Result::OK);
     } else {
@@ -207,14 +363,20 @@ bool NativeAudioEngine::stopRecording(JNIEnv *env) {
     }
 
     mFullDuplexPassthru.stop();
-
-    // if JNIEnv not provided, get one from cached JavaVM
-    if (env == nullptr) {
-        LOGW("JNIEnv not provided so getting a new one");
-        jint rs = mJavaVm->AttachCurrentThread(&env, NULL);
-        assert (rs == JNI_OK);
+    mAudioDataConsumer->stop();
+    mSpectrumAnalyzer.stop();
+
+    if (mCallbackObject != nullptr) {
+        // if JNIEnv not provided, get one from cached JavaVM
+        if (env == nullptr) {
+            LOGW("JNIEnv not provided so getting a new one");
+            jint rs = mJavaVm->AttachCurrentThread(&env, NULL);
+            assert (rs == JNI_OK);
+        }
+        env->DeleteGlobalRef(mCallbackObject);
+        mCallbackObject = nullptr;
+        mOnAudioDataMethod = nullptr;
     }
-    env->DeleteGlobalRef(mCallbackObject);
 
     /*
      * Note: The order of events is important here.
@@ -234,6 +396,8 @@ bool NativeAudioEngine::stopRecording(JNIEnv *env) {
     }
 
     mIsRecording = false;
+    // ask for float again next time, the last streams may have fallen back to I16
+    mFormat = oboe::AudioFormat::Float;
     return true;
 }
 
@@ -24,10 +24,28 @@
 #define OBOE_NATIVEAUDIOENGINE_H
 
 #include <jni.h>
+#include <memory>
 #include <oboe/Oboe.h>
 #include <string>
 #include <thread>
+#include "Declicker.h"
+#include "DspChain.h"
 #include "FullDuplexPassthru.h"
+#include "SpectrumAnalyzer.h"
+
+// indices into getPipelineStats(), must match PIPELINE_STAT_* in NativeAudioEngine.java
+static const int32_t kPipelineStatCallbackCount = 0;
+static const int32_t kPipelineStatCallbackTotalNanos = 1;
+static const int32_t kPipelineStatCallbackMaxNanos = 2;
+static const int32_t kPipelineStatOverrunCount = 3;
+static const int32_t kPipelineStatDroppedFrameCount = 4;
+static const int32_t kPipelineStatQueuedBytes = 5;
+static const int32_t kPipelineStatDeclickerRepairCount = 6;
+static const int32_t kPipelineStatInputLatencyCount = 7;
+static const int32_t kPipelineStatInputLatencyTotalNanos = 8;
+static const int32_t kPipelineStatInputLatencyMaxNanos = 9;
+static const int32_t kPipelineStatDeclickerLatencyNanos = 10;
+static const int32_t kPipelineStatCount = 11;
 
 class NativeAudioEngine : public oboe::AudioStreamCallback {
    public:
@@ -50,31 +68,60 @@ class NativeAudioEngine : public oboe::AudioStreamCallback {
 
     bool setAudioApi(oboe::AudioApi);
     bool setLowLatency(bool lowLatency);
+    bool setDeclickerLookahead(int32_t lookaheadMillis);
     bool isAAudioSupportedAndRecommended();
 
     void setAudioDataListener(JNIEnv *env, jobject instance, jobject callback);
     int32_t getSampleRate();
     int32_t getChannelCount();
     int32_t getBitRate();
+    int32_t getSampleFormat();
     int32_t getAudioApi();
+    int64_t getOverrunCount();
+    int64_t getDroppedFrameCount();
+    int32_t getDeclickerLatencyMillis();
+    int64_t getDeclickerRepairCount();
+    int64_t getDeclickerAverageMicros();
+    int64_t getDeclickerMaxMicros();
+    /**
+     * Snapshot of the pipeline's counters since recording started, in one call for the metrics.
+     * @param stats kPipelineStatCount values, indexed by kPipelineStat*
+     */
+    void getPipelineStats(int64_t *stats);
+    bool startSpectrumAnalysis(int32_t fftLength, int32_t hopLength, int32_t numBins, int32_t decimation);
+    void stopSpectrumAnalysis();
+    bool getSpectrumDecibels(float *decibels, int32_t numBins);
     const char * getOboeVersion();
 
     void setGainDecibels(double decibels);
+    void setRumbleFilter(float cutoffHz);
+    void setRiaaEqualization(bool enabled);
+    void setEqBand(int32_t band, int32_t type, float frequencyHz, float q, float gainDecibels);
 
 private:
     JavaVM* mJavaVm;
     FullDuplexPassthru mFullDuplexPassthru;
-    jobject mCallbackObject;
+    DspChain mDspChain;
+    Declicker mDeclicker;
+    SpectrumAnalyzer mSpectrumAnalyzer;
+    std::unique_ptr<AudioDataRing> mAudioDataRing;
+    std::unique_ptr<AudioDataConsumer> mAudioDataConsumer;
+    jobject mCallbackObject = nullptr;
+    jmethodID mOnAudioDataMethod = nullptr;
+    jclass mEngineClass = nullptr;
 
     bool mIsRecording = false;
     int32_t mRecordingDeviceId = oboe::kUnspecified;
     int32_t mPlaybackDeviceId = oboe::kUnspecified;
-    oboe::AudioFormat mFormat = oboe::AudioFormat::I16;
+    // float is the native format of AAudio on most devices, so requesting it avoids a conversion
+    // inside the stream. The playback stream's actual format is used for recording too.
+    oboe::AudioFormat mFormat = oboe::AudioFormat::Float;
     int32_t mSampleRate = oboe::kUnspecified;
     int32_t mInputChannelCount = oboe::ChannelCount::Stereo;
     int32_t mOutputChannelCount = oboe::ChannelCount::Stereo;
     oboe::AudioApi mAudioApi = oboe::AudioApi::AAudio;
     bool mLowLatency = false;
+    int32_t mDeclickerLookaheadMillis = 0;
 
     oboe::ManagedStream mRecordingStream;
     oboe::ManagedStream mPlayStream;
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#include <algorithm>
+#include <cmath>
+
+#include "AudioKernels.h"
+#include "SpectrumAnalyzer.h"
+
+// reported for bins with no energy at all instead of -infinity
+static const float kMinDecibels = -120.0f;
+// how often a spectrum is published, per second of audio, about the display's refresh rate
+static const int32_t kPublishRateHz = 60;
+// input frames downmixed at a time
+static const int32_t kChunkFrames = 256;
+
+void SpectrumAnalyzer::start(int32_t sampleRate, int32_t channelCount, bool isFloat, int32_t fftLength,
+                             int32_t hopLength, int32_t numBins, int32_t decimation) {
+    std::lock_guard<std::mutex> lock(mLock);
+    mChannelCount = channelCount;
+    mIsFloat = isFloat;
+    mFftLength = fftLength;
+    mHopLength = std::max(1, std::min(hopLength, fftLength));
+    mNumBins = std::min(numBins, kMaxBins);
+    mDecimation = std::max(1, std::min(decimation, kMaxDecimation));
+    mFramesPerPublish = std::max(1, sampleRate / mDecimation / (kPublishRateHz * mHopLength));
+
+    mConverted.resize(kChunkFrames * 2);
+    mMono.resize(kChunkFrames + kMaxDecimation);
+    mMonoPending = 0;
+
+    mFrame.assign(fftLength, 0.0f);
+    mFramePosition = 0;
+
+    // Hann window scaled to an average of 1, so a full scale sine reads 0dB whatever the length
+    mWindow.resize(fftLength);
+    double sum = 0.0;
+    for (int32_t i = 0; i < fftLength; i++) {
+        mWindow[i] = static_cast<float>(0.5 * (1.0 - std::cos(2.0 * M_PI * i / (fftLength - 1))));
+        sum += mWindow[i];
+    }
+    for (float &value : mWindow) {
+        value = static_cast<float>(value * fftLength / sum);
+    }
+
+    int32_t complexLength = fftLength / 2;
+    mReal.assign(complexLength, 0.0f);
+    mImag.assign(complexLength, 0.0f);
+    mTwiddleReal.resize(complexLength);
+    mTwiddleImag.resize(complexLength);
+    for (int32_t k = 0; k < complexLength; k++) {
+        double angle = -2.0 * M_PI * k / complexLength;
+        mTwiddleReal[k] = static_cast<float>(std::cos(angle));
+        mTwiddleImag[k] = static_cast<float>(std::sin(angle));
+    }
+    mSplitReal.resize(complexLength + 1);
+    mSplitImag.resize(complexLength + 1);
+    for (int32_t k = 0; k <= complexLength; k++) {
+        double angle = -2.0 * M_PI * k / fftLength;
+        mSplitReal[k] = static_cast<float>(std::cos(angle));
+        mSplitImag[k] = static_cast<float>(std::sin(angle));
+    }
+    mBitReverse.resize(complexLength);
+    int32_t bits = 0;
+    while ((1 << bits) < complexLength) {
+        bits++;
+    }
+    for (int32_t i = 0; i < complexLength; i++) {
+        int32_t reversed = 0;
+        for (int32_t bit = 0; bit < bits; bit++) {
+            reversed |= ((i >> bit) & 1) << (bits - 1 - bit);
+        }
+        mBitReverse[i] = reversed;
+    }
+    mPower.assign(complexLength + 1, 0.0f);
+
+    // bin edges grow with the square of the bin index, over frequencies 0 to fftLength / 2
+    int32_t numFrequencies = complexLength + 1;
+    mBinStarts.resize(mNumBins + 1);
+    for (int32_t bin = 0; bin < mNumBins; bin++) {
+        double fraction = static_cast<double>(bin) / mNumBins;
+        mBinStarts[bin] = static_cast<int32_t>(std::lround(fraction * fraction * (numFrequencies - 1)));
+    }
+    mBinStarts[mNumBins] = numFrequencies;
+
+    mPowerSums.assign(mNumBins, 0.0f);
+    mFramesAnalyzed = 0;
+    // drop whatever the last run published and the reader hasn't picked up
+    mSpectra.update();
+    mEnabled = true;
+}
+
+void SpectrumAnalyzer::stop() {
+    std::lock_guard<std::mutex> lock(mLock);
+    mEnabled = false;
+    mSpectra.update();
+}
+
+bool SpectrumAnalyzer::feed(const void *data, size_t numBytes) {
+    std::lock_guard<std::mutex> lock(mLock);
+    if (!mEnabled) {
+        return false;
+    }
+    mPublished = false;
+
+    // ring parts always hold whole frames, the ring and frame sizes are both powers of two
+    size_t frameSize = mChannelCount * (mIsFloat ? sizeof(float) : sizeof(int16_t));
+    const uint8_t *bytes = static_cast<const uint8_t *>(data);
+    int32_t numFrames = static_cast<int32_t>(numBytes / frameSize);
+    const AudioKernels &kernels = getAudioKernels();
+    while (numFrames > 0) {
+        int32_t chunkFrames = std::min(numFrames, kChunkFrames);
+        downmix(bytes, mMono.data() + mMonoPending, chunkFrames);
+        bytes += chunkFrames * frameSize;
+        numFrames -= chunkFrames;
+
+        // averaging pairs is downmixing stereo, once per halving of the rate
+        int32_t available = mMonoPending + chunkFrames;
+        int32_t decimated = available / mDecimation;
+        for (int32_t length = decimated * mDecimation; length > decimated; length /= 2) {
+            kernels.downmixStereoFloat(mMono.data(), mMono.data(), length / 2);
+        }
+        analyze(mMono.data(), decimated);
+
+        int32_t used = decimated * mDecimation;
+        mMonoPending = available - used;
+        std::copy(mMono.begin() + used, mMono.begin() + available, mMono.begin());
+    }
+    return mPublished;
+}
+
+void SpectrumAnalyzer::downmix(const void *src, float *dst, int32_t numFrames) {
+    const AudioKernels &kernels = getAudioKernels();
+    if (mIsFloat) {
+        const float *samples = static_cast<const float *>(src);
+        if (mChannelCount == 1) {
+            std::copy(samples, samples + numFrames, dst);
+            return;
+        } else if (mChannelCount == 2) {
+            kernels.downmixStereoFloat(samples, dst, numFrames);
+            return;
+        }
+    } else {
+        const int16_t *samples = static_cast<const int16_t *>(src);
+        if (mChannelCount == 1) {
+            kernels.convertI16ToFloat(samples, dst, numFrames);
+            return;
+        } else if (mChannelCount == 2) {
+            // converted first, the 16 bit downmix drops the lowest bit
+            kernels.convertI16ToFloat(samples, mConverted.data(), numFrames * 2);
+            kernels.downmixStereoFloat(mConverted.data(), dst, numFrames);
+            return;
+        }
+    }
+
+    // any other channel count
+    float scale = 1.0f / mChannelCount;
+    for (int32_t i = 0; i < numFrames; i++) {
+        float sum = 0.0f;
+        for (int32_t channel = 0; channel < mChannelCount; channel++) {
+            int32_t index = i * mChannelCount + channel;
+            sum += mIsFloat ? static_cast<const float *>(src)[index]
+                    : static_cast<const int16_t *>(src)[index] * (1.0f / 32768.0f);
+        }
+        dst[i] = sum * scale;
+    }
+}
+
+void SpectrumAnalyzer::analyze(const float *mono, int32_t numFrames) {
+    while (numFrames > 0) {
+        int32_t count = std::min(numFrames, mFftLength - mFramePosition);
+        std::copy(mono, mono + count, mFrame.begin() + mFramePosition);
+        mono += count;
+        numFrames -= count;
+        mFramePosition += count;
+        if (mFramePosition == mFftLength) {
+            analyzeFrame();
+            // keep the overlap with the next frame
+            std::copy(mFrame.begin() + mHopLength, mFrame.end(), mFrame.begin());
+            mFramePosition = mFftLength - mHopLength;
+        }
+    }
+}
+
+void SpectrumAnalyzer::analyzeFrame() {
+    // even samples become the real part and odd samples the imaginary part of a complex FFT of
+    // half the length, loaded in bit reversed order
+    int32_t complexLength = mFftLength / 2;
+    for (int32_t n = 0; n < complexLength; n++) {
+        int32_t index = mBitReverse[n];
+        mReal[index] = mFrame[2 * n] * mWindow[2 * n];
+        mImag[index] = mFrame[2 * n + 1] * mWindow[2 * n + 1];
+    }
+    fft();
+
+    // Z[k] holds the even samples' spectrum E[k] + i O[k], conj(Z[N - k]) the same with E[k] - i O[k].
+    // X[k] = E[k] + e^(-2 pi i k / fftLength) O[k], for k up to the Nyquist frequency.
+    // One sided power, doubled for all but DC and Nyquist.
+    float scale = 4.0f / (static_cast<float>(mFftLength) * mFftLength);
+    for (int32_t k = 0; k <= complexLength; k++) {
+        int32_t j = k == complexLength ? 0 : k;
+        int32_t m = k == 0 ? 0 : complexLength - k;
+        float evenReal = 0.5f * (mReal[j] + mReal[m]);
+        float evenImag = 0.5f * (mImag[j] - mImag[m]);
+        float oddReal = 0.5f * (mImag[j] + mImag[m]);
+        float oddImag = -0.5f * (mReal[j] - mReal[m]);
+        float real = evenReal + mSplitReal[k] * oddReal - mSplitImag[k] * oddImag;
+        float imag = evenImag + mSplitReal[k] * oddImag + mSplitImag[k] * oddReal;
+        mPower[k] = (real * real + imag * imag) * scale;
+    }
+    mPower[0] *= 0.25f;
+    mPower[complexLength] *= 0.25f;
+
+    for (int32_t bin = 0; bin < mNumBins; bin++) {
+        int32_t end = std::max(mBinStarts[bin + 1], mBinStarts[bin] + 1);
+        float binPower = 0.0f;
+        for (int32_t k = mBinStarts[bin]; k < end && k <= complexLength; k++) {
+            binPower = std::max(binPower, mPower[k]);
+        }
+        mPowerSums[bin] += binPower;
+    }
+    if (++mFramesAnalyzed == mFramesPerPublish) {
+        publish();
+    }
+}
+
+void SpectrumAnalyzer::publish() {
+    Spectrum &spectrum = mSpectra.back();
+    for (int32_t bin = 0; bin < mNumBins; bin++) {
+        float power = mPowerSums[bin] / mFramesAnalyzed;
+        spectrum.decibels[bin] = power > 0.0f ? std::max(kMinDecibels, 10.0f * std::log10(power)) : kMinDecibels;
+    }
+    spectrum.numBins = mNumBins;
+    mSpectra.publish();
+    mPublished = true;
+
+    std::fill(mPowerSums.begin(), mPowerSums.end(), 0.0f);
+    mFramesAnalyzed = 0;
+}
+
+void SpectrumAnalyzer::fft() {
+    // decimation in time on bit reversed input, two radix-2 passes fused into each radix-4 pass
+    int32_t length = static_cast<int32_t>(mReal.size());
+    float *re = mReal.data();
+    float *im = mImag.data();
+    int32_t half = 1;
+
+    int32_t log2Length = 0;
+    while ((1 << log2Length) < length) {
+        log2Length++;
+    }
+    if (log2Length % 2 == 1) {
+        // one radix-2 pass, its twiddles are all 1
+        for (int32_t i = 0; i < length; i += 2) {
+            float r = re[i + 1];
+            float m = im[i + 1];
+            re[i + 1] = re[i] - r;
+            im[i + 1] = im[i] - m;
+            re[i] += r;
+            im[i] += m;
+        }
+        half = 2;
+    }
+
+    for (; half < length; half *= 4) {
+        int32_t twiddleStep = length / (4 * half);
+        for (int32_t start = 0; start < length; start += 4 * half) {
+            for (int32_t k = 0; k < half; k++) {
+                int32_t i0 = start + k;
+                int32_t i1 = i0 + half;
+                int32_t i2 = i1 + half;
+                int32_t i3 = i2 + half;
+                int32_t t1 = k * twiddleStep;
+                // a = x0, b = w^2 x1, c = w x2, d = w^3 x3
+                float w1r = mTwiddleReal[t1], w1i = mTwiddleImag[t1];
+                float w2r = mTwiddleReal[2 * t1], w2i = mTwiddleImag[2 * t1];
+                float w3r = mTwiddleReal[3 * t1], w3i = mTwiddleImag[3 * t1];
+                float br = re[i1] * w2r - im[i1] * w2i;
+                float bi = re[i1] * w2i + im[i1] * w2r;
+                float cr = re[i2] * w1r - im[i2] * w1i;
+                float ci = re[i2] * w1i + im[i2] * w1r;
+                float dr = re[i3] * w3r - im[i3] * w3i;
+                float di = re[i3] * w3i + im[i3] * w3r;
+                float sumAbR = re[i0] + br, sumAbI = im[i0] + bi;
+                float diffAbR = re[i0] - br, diffAbI = im[i0] - bi;
+                float sumCdR = cr + dr, sumCdI = ci + di;
+                float diffCdR = cr - dr, diffCdI = ci - di;
+                re[i0] = sumAbR + sumCdR;
+                im[i0] = sumAbI + sumCdI;
+                re[i2] = sumAbR - sumCdR;
+                im[i2] = sumAbI - sumCdI;
+                // -i (c - d) and +i (c - d)
+                re[i1] = diffAbR + diffCdI;
+                im[i1] = diffAbI - diffCdR;
+                re[i3] = diffAbR - diffCdI;
+                im[i3] = diffAbI + diffCdR;
+            }
+        }
+    }
+}
+
+bool SpectrumAnalyzer::getSpectrumDecibels(float *decibels, int32_t numBins) {
+    if (!mSpectra.update()) {
+        return false;
+    }
+    const Spectrum &spectrum = mSpectra.front();
+    std::copy(spectrum.decibels, spectrum.decibels + std::min(numBins, spectrum.numBins), decibels);
+    return true;
+}
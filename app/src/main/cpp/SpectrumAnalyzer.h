@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_SPECTRUMANALYZER_H
+#define VINYLCAST_SPECTRUMANALYZER_H
+
+#include <cstdint>
+#include <mutex>
+#include <vector>
+
+#include "TripleBuffer.h"
+
+/**
+ * Short time Fourier transform of the recorded audio for the visualizer, run on the
+ * AudioDataConsumer thread so Java only ever sees a handful of bins.
+ *
+ * Audio is converted to float and downmixed to mono with the AudioKernels, for any channel count
+ * and either sample format, optionally decimated, and then cut into Hann windowed frames and
+ * transformed with a real FFT:
+ * the frame is packed into a complex FFT of half the length, done in radix-4 passes over
+ * separate real and imaginary arrays, and then split into the spectrum of the real input. All
+ * tables and buffers are allocated by start(), analyzing never allocates.
+ *
+ * Each frame's power spectrum is grouped into bins whose width grows with the square of their
+ * index, which matches how we hear better than equal widths (see
+ * https://dlbeer.co.nz/articles/fftvis.html), keeping the loudest frequency of each bin. Bins are
+ * averaged over about a display frame's worth of audio and then published through a triple
+ * buffer, so the UI thread reading them never waits for the analysis or the other way around.
+ *
+ * start(), stop() and getSpectrumDecibels() are called from one thread (the UI), feed() from the
+ * AudioDataConsumer thread.
+ */
+class SpectrumAnalyzer {
+
+public:
+    static const int32_t kMaxBins = 256;
+    static const int32_t kMaxDecimation = 16;
+
+    /**
+     * Allocates the FFT tables and buffers. Can be called while feed() runs on another thread.
+     * @param isFloat samples are float, otherwise 16 bit
+     * @param fftLength power of two, at least 4
+     * @param hopLength frames between the starts of consecutive FFTs, fftLength / 2 for 50% overlap
+     * @param decimation power of two up to kMaxDecimation, the audio is averaged over this many
+     *        frames before analysis, so the spectrum covers sampleRate / decimation / 2 and
+     *        fftLength and hopLength count decimated frames. 1 analyzes every frame.
+     */
+    void start(int32_t sampleRate, int32_t channelCount, bool isFloat, int32_t fftLength, int32_t hopLength,
+               int32_t numBins, int32_t decimation);
+    void stop();
+
+    /**
+     * Analyzes interleaved samples. Called by the AudioDataConsumer thread.
+     * @return true if a new spectrum was published
+     */
+    bool feed(const void *data, size_t numBytes);
+
+    /**
+     * Copies the latest published bins, 0dB is a full scale sine, into decibels. Never blocks.
+     * @return false if nothing was published since the last call, decibels are left as they were
+     */
+    bool getSpectrumDecibels(float *decibels, int32_t numBins);
+
+private:
+    struct Spectrum {
+        float decibels[kMaxBins];
+        int32_t numBins;
+    };
+
+    void downmix(const void *src, float *dst, int32_t numFrames);
+    void analyze(const float *mono, int32_t numFrames);
+    void analyzeFrame();
+    void fft();
+    void publish();
+
+    // serializes start() and stop() with feed(), the reader side never takes it
+    std::mutex mLock;
+    bool mEnabled = false;
+    int32_t mChannelCount = 2;
+    bool mIsFloat = true;
+    int32_t mFftLength = 0;
+    int32_t mHopLength = 0;
+    int32_t mNumBins = 0;
+    int32_t mDecimation = 1;
+
+    // input converted to float, for downmixing 16 bit stereo
+    std::vector<float> mConverted;
+    // downmixed input, the first mMonoPending samples left over from the last feed() because
+    // decimation needs whole groups of mDecimation
+    std::vector<float> mMono;
+    int32_t mMonoPending = 0;
+
+    // mono input of the current frame, mFramePosition samples of it filled
+    std::vector<float> mFrame;
+    int32_t mFramePosition = 0;
+    std::vector<float> mWindow;
+
+    // complex FFT of fftLength / 2 points
+    std::vector<float> mReal;
+    std::vector<float> mImag;
+    std::vector<int32_t> mBitReverse;
+    // e^(-2 pi i k / (fftLength / 2)), for the complex FFT's butterflies
+    std::vector<float> mTwiddleReal;
+    std::vector<float> mTwiddleImag;
+    // e^(-2 pi i k / fftLength), for splitting the complex result into the real input's spectrum
+    std::vector<float> mSplitReal;
+    std::vector<float> mSplitImag;
+    // power of each FFT output index 0 to fftLength / 2
+    std::vector<float> mPower;
+
+    // first FFT output index of each bin, plus the end of the last one
+    std::vector<int32_t> mBinStarts;
+    // sum of each bin's power over mFramesAnalyzed frames, published every mFramesPerPublish
+    std::vector<float> mPowerSums;
+    int32_t mFramesAnalyzed = 0;
+    int32_t mFramesPerPublish = 1;
+    // whether the current feed() published
+    bool mPublished = false;
+    TripleBuffer<Spectrum> mSpectra;
+};
+
+#endif //VINYLCAST_SPECTRUMANALYZER_H
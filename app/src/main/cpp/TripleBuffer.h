@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_TRIPLEBUFFER_H
+#define VINYLCAST_TRIPLEBUFFER_H
+
+#include <atomic>
+#include <cstdint>
+
+/**
+ * Hands the latest value from one writer thread to one reader thread without locks. The writer
+ * fills back() and publishes it, the reader picks up the most recent publish with update() and
+ * uses front() until the next one. Neither side ever waits, intermediate values the reader was
+ * too slow to see are skipped.
+ */
+template <typename T>
+class TripleBuffer {
+
+public:
+    // writer side
+
+    T &back() {
+        return mBuffers[mBackIndex];
+    }
+
+    void publish() {
+        mBackIndex = mMiddle.exchange(mBackIndex | kDirty, std::memory_order_acq_rel) & kIndexMask;
+    }
+
+    // reader side
+
+    /**
+     * @return true if front() changed since the last call
+     */
+    bool update() {
+        if ((mMiddle.load(std::memory_order_relaxed) & kDirty) == 0) {
+            return false;
+        }
+        mFrontIndex = mMiddle.exchange(mFrontIndex, std::memory_order_acq_rel) & kIndexMask;
+        return true;
+    }
+
+    const T &front() const {
+        return mBuffers[mFrontIndex];
+    }
+
+private:
+    static constexpr int32_t kIndexMask = 0x3;
+    // set while the middle buffer holds a value the reader hasn't taken yet
+    static constexpr int32_t kDirty = 0x4;
+
+    T mBuffers[3] = {};
+    int32_t mBackIndex = 0;
+    std::atomic<int32_t> mMiddle{1};
+    int32_t mFrontIndex = 2;
+};
+
+#endif //VINYLCAST_TRIPLEBUFFER_H
@@ -20,9 +20,11 @@
  *
  */
 
+#include <algorithm>
 #include <jni.h>
 #include <logging_macros.h>
 #include "NativeAudioEngine.h"
+#include "AudioKernels.h"
 
 static const int kOboeApiAAudio = 0;
 static const int kOboeApiOpenSLES = 1;
@@ -120,6 +122,18 @@ extern "C" {
         return engine->setLowLatency(lowLatency);
     }
 
+    JNIEXPORT jboolean JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_setDeclickerLookahead(JNIEnv *env, jclass type, jint lookaheadMillis) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return JNI_FALSE;
+        }
+
+        return engine->setDeclickerLookahead(lookaheadMillis) ? JNI_TRUE : JNI_FALSE;
+    }
+
     JNIEXPORT jboolean JNICALL
     Java_tech_schober_vinylcast_audio_NativeAudioEngine_setAudioApi(JNIEnv *env,jclass type, jint apiType) {
         if (engine == nullptr) {
@@ -201,6 +215,17 @@ extern "C" {
         return engine->getBitRate();
     }
 
+    JNIEXPORT jint JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getSampleFormat(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return JNI_ERR;
+        }
+        return engine->getSampleFormat();
+    }
+
     JNIEXPORT jint JNICALL
     Java_tech_schober_vinylcast_audio_NativeAudioEngine_getAudioApi(JNIEnv *env, jclass type) {
         if (engine == nullptr) {
@@ -212,6 +237,134 @@ extern "C" {
         return engine->getAudioApi();
     }
 
+    JNIEXPORT jlong JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getOverrunCount(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return 0;
+        }
+        return engine->getOverrunCount();
+    }
+
+    JNIEXPORT jlong JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getDroppedFrameCount(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return 0;
+        }
+        return engine->getDroppedFrameCount();
+    }
+
+    JNIEXPORT jint JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getDeclickerLatencyMillis(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return 0;
+        }
+        return engine->getDeclickerLatencyMillis();
+    }
+
+    JNIEXPORT jlong JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getDeclickerRepairCount(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return 0;
+        }
+        return engine->getDeclickerRepairCount();
+    }
+
+    JNIEXPORT jlong JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getDeclickerAverageMicros(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return 0;
+        }
+        return engine->getDeclickerAverageMicros();
+    }
+
+    JNIEXPORT jlong JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getDeclickerMaxMicros(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return 0;
+        }
+        return engine->getDeclickerMaxMicros();
+    }
+
+    JNIEXPORT jboolean JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getPipelineStats(JNIEnv *env, jclass type, jlongArray stats) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return JNI_FALSE;
+        }
+        if (env->GetArrayLength(stats) < kPipelineStatCount) {
+            LOGE("getPipelineStats needs an array of %d values", kPipelineStatCount);
+            return JNI_FALSE;
+        }
+
+        int64_t values[kPipelineStatCount];
+        engine->getPipelineStats(values);
+        static_assert(sizeof(jlong) == sizeof(int64_t), "jlong must be 64 bits");
+        env->SetLongArrayRegion(stats, 0, kPipelineStatCount, reinterpret_cast<const jlong *>(values));
+        return JNI_TRUE;
+    }
+
+    JNIEXPORT jboolean JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_startSpectrumAnalysis(JNIEnv *env, jclass type, jint fftLength, jint hopLength, jint numBins, jint decimation) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return JNI_FALSE;
+        }
+        return engine->startSpectrumAnalysis(fftLength, hopLength, numBins, decimation) ? JNI_TRUE : JNI_FALSE;
+    }
+
+    JNIEXPORT void JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_stopSpectrumAnalysis(JNIEnv *env, jclass type) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return;
+        }
+        engine->stopSpectrumAnalysis();
+    }
+
+    JNIEXPORT jboolean JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_getSpectrumDecibels(JNIEnv *env, jclass type, jfloatArray decibels) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return JNI_FALSE;
+        }
+
+        // a few floats, copied in and out rather than pinning the array
+        jint numBins = std::min(env->GetArrayLength(decibels), SpectrumAnalyzer::kMaxBins);
+        float bins[SpectrumAnalyzer::kMaxBins];
+        env->GetFloatArrayRegion(decibels, 0, numBins, bins);
+        if (!engine->getSpectrumDecibels(bins, numBins)) {
+            return JNI_FALSE;
+        }
+        env->SetFloatArrayRegion(decibels, 0, numBins, bins);
+        return JNI_TRUE;
+    }
+
     JNIEXPORT jstring JNICALL
     Java_tech_schober_vinylcast_audio_NativeAudioEngine_getOboeVersion(JNIEnv *env, jclass type) {
         if (engine == nullptr) {
@@ -234,4 +387,58 @@ extern "C" {
         }
         engine->setGainDecibels(decibels);
     }
+
+    JNIEXPORT void JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_setRumbleFilter(JNIEnv *env, jclass clazz,
+                                                                        jfloat cutoffHz) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return;
+        }
+        engine->setRumbleFilter(cutoffHz);
+    }
+
+    JNIEXPORT void JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_setRiaaEqualization(JNIEnv *env, jclass clazz,
+                                                                            jboolean enabled) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return;
+        }
+        engine->setRiaaEqualization(enabled);
+    }
+
+    JNIEXPORT void JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_setEqBand(JNIEnv *env, jclass clazz,
+                                                                  jint band, jint type,
+                                                                  jfloat frequencyHz, jfloat q,
+                                                                  jfloat gainDecibels) {
+        if (engine == nullptr) {
+            LOGE(
+                    "Engine is null, you must call createEngine "
+                    "before calling this method");
+            return;
+        }
+        engine->setEqBand(band, type, frequencyHz, q, gainDecibels);
+    }
+
+    JNIEXPORT void JNICALL
+    Java_tech_schober_vinylcast_audio_NativeAudioEngine_convertFloatToI16(JNIEnv *env, jclass clazz,
+                                                                          jobject src, jint offset,
+                                                                          jint length, jbyteArray dst) {
+        // does not need the engine, only the kernels
+        auto *srcAddress = static_cast<uint8_t *>(env->GetDirectBufferAddress(src));
+        if (srcAddress == nullptr) {
+            LOGE("convertFloatToI16 needs a direct ByteBuffer");
+            return;
+        }
+        auto *dstAddress = static_cast<int16_t *>(env->GetPrimitiveArrayCritical(dst, nullptr));
+        getAudioKernels().convertFloatToI16(reinterpret_cast<const float *>(srcAddress + offset),
+                                            dstAddress, length / 4);
+        env->ReleasePrimitiveArrayCritical(dst, dstAddress, 0);
+    }
 }
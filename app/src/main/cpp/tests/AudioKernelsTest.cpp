@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+// Compares every instruction set's kernels built for the host against the scalar reference.
+// Sizes are chosen to cover the vector loops as well as the scalar tails.
+
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+
+#include "TestUtils.h"
+#include "../AudioKernels.h"
+
+namespace {
+
+const int32_t kSizes[] = {0, 1, 3, 7, 8, 15, 16, 17, 31, 33, 192, 1029};
+const float kGains[] = {0.0f, 0.5f, 1.0f, 1.7f, 4.0f, 31.6f};
+
+#if defined(__arm__)
+// no round-to-nearest conversion on armv7, see AudioKernels.h
+const int kI16Tolerance = 1;
+#else
+const int kI16Tolerance = 0;
+#endif
+
+std::vector<int16_t> randomI16(int32_t count) {
+    std::vector<int16_t> values(count);
+    for (int32_t i = 0; i < count; i++) {
+        // include both extremes, they are where saturation goes wrong
+        int32_t r = rand() % 70;
+        values[i] = r == 0 ? INT16_MIN : r == 1 ? INT16_MAX : static_cast<int16_t>(rand() % 65536 - 32768);
+    }
+    return values;
+}
+
+std::vector<float> randomFloat(int32_t count) {
+    std::vector<float> values(count);
+    for (int32_t i = 0; i < count; i++) {
+        int32_t r = rand() % 70;
+        if (r == 0) {
+            values[i] = 1.0f;
+        } else if (r == 1) {
+            values[i] = -1.0f;
+        } else if (r == 2) {
+            // exact ties after scaling by 32768
+            values[i] = (rand() % 200 - 100 + 0.5f) / 32768.0f;
+        } else {
+            // about 10% out of range
+            values[i] = (rand() / static_cast<float>(RAND_MAX)) * 2.2f - 1.1f;
+        }
+    }
+    return values;
+}
+
+void checkI16(const char *what, const std::vector<int16_t> &expected, const std::vector<int16_t> &actual,
+              int tolerance) {
+    for (size_t i = 0; i < expected.size(); i++) {
+        if (std::abs(expected[i] - actual[i]) > tolerance) {
+            FAIL("%s size %zu index %zu: expected %d, got %d",
+                    what, expected.size(), i, expected[i], actual[i]);
+            return;
+        }
+    }
+}
+
+void checkFloat(const char *what, const std::vector<float> &expected, const std::vector<float> &actual) {
+    for (size_t i = 0; i < expected.size(); i++) {
+        if (expected[i] != actual[i]) {
+            FAIL("%s size %zu index %zu: expected %.9g, got %.9g",
+                    what, expected.size(), i, expected[i], actual[i]);
+            return;
+        }
+    }
+}
+
+void testApplyGain(const AudioKernels &reference, const AudioKernels &kernels) {
+    for (int32_t size : kSizes) {
+        for (float gain : kGains) {
+            std::vector<float> floats = randomFloat(size);
+            std::vector<float> expectedFloats = floats;
+            reference.applyGainFloat(expectedFloats.data(), size, gain);
+            kernels.applyGainFloat(floats.data(), size, gain);
+            checkFloat("applyGainFloat", expectedFloats, floats);
+
+            std::vector<int16_t> shorts = randomI16(size);
+            std::vector<int16_t> expectedShorts = shorts;
+            reference.applyGainI16(expectedShorts.data(), size, gain);
+            kernels.applyGainI16(shorts.data(), size, gain);
+            checkI16("applyGainI16", expectedShorts, shorts, kI16Tolerance);
+        }
+    }
+}
+
+void testConvert(const AudioKernels &reference, const AudioKernels &kernels) {
+    for (int32_t size : kSizes) {
+        std::vector<int16_t> shorts = randomI16(size);
+        std::vector<float> expectedFloats(size);
+        std::vector<float> floats(size);
+        reference.convertI16ToFloat(shorts.data(), expectedFloats.data(), size);
+        kernels.convertI16ToFloat(shorts.data(), floats.data(), size);
+        checkFloat("convertI16ToFloat", expectedFloats, floats);
+
+        floats = randomFloat(size);
+        std::vector<int16_t> expectedShorts(size);
+        reference.convertFloatToI16(floats.data(), expectedShorts.data(), size);
+        kernels.convertFloatToI16(floats.data(), shorts.data(), size);
+        checkI16("convertFloatToI16", expectedShorts, shorts, kI16Tolerance);
+    }
+}
+
+void testSaturate(const AudioKernels &reference, const AudioKernels &kernels) {
+    for (int32_t size : kSizes) {
+        std::vector<float> floats = randomFloat(size);
+        for (float &value : floats) {
+            value *= 3.0f;
+        }
+        std::vector<float> expected = floats;
+        reference.saturateFloat(expected.data(), size);
+        kernels.saturateFloat(floats.data(), size);
+        checkFloat("saturateFloat", expected, floats);
+    }
+}
+
+void testDownmix(const AudioKernels &reference, const AudioKernels &kernels) {
+    for (int32_t frames : kSizes) {
+        std::vector<float> floats = randomFloat(frames * 2);
+        std::vector<float> expectedFloats(frames);
+        std::vector<float> actualFloats(frames);
+        reference.downmixStereoFloat(floats.data(), expectedFloats.data(), frames);
+        kernels.downmixStereoFloat(floats.data(), actualFloats.data(), frames);
+        checkFloat("downmixStereoFloat", expectedFloats, actualFloats);
+        // in place
+        kernels.downmixStereoFloat(floats.data(), floats.data(), frames);
+        floats.resize(frames);
+        checkFloat("downmixStereoFloat in place", expectedFloats, floats);
+
+        std::vector<int16_t> shorts = randomI16(frames * 2);
+        std::vector<int16_t> expectedShorts(frames);
+        std::vector<int16_t> actualShorts(frames);
+        reference.downmixStereoI16(shorts.data(), expectedShorts.data(), frames);
+        kernels.downmixStereoI16(shorts.data(), actualShorts.data(), frames);
+        checkI16("downmixStereoI16", expectedShorts, actualShorts, 0);
+        kernels.downmixStereoI16(shorts.data(), shorts.data(), frames);
+        shorts.resize(frames);
+        checkI16("downmixStereoI16 in place", expectedShorts, shorts, 0);
+    }
+}
+
+void testScalarReference() {
+    const AudioKernels &scalar = getScalarAudioKernels();
+
+    float floats[] = {0.0f, 0.5f, -1.0f, 1.0f, 1.5f, -2.0f, 0.5f / 32768.0f, 1.5f / 32768.0f};
+    int16_t shorts[8];
+    scalar.convertFloatToI16(floats, shorts, 8);
+    const int16_t expectedShorts[] = {0, 16384, -32768, 32767, 32767, -32768, 0, 2};
+    for (int i = 0; i < 8; i++) {
+        CHECK_EQ(expectedShorts[i], shorts[i]);
+    }
+
+    int16_t gained[] = {1000, -1000, 20000, -20000};
+    scalar.applyGainI16(gained, 4, 2.0f);
+    CHECK_EQ(2000, gained[0]);
+    CHECK_EQ(-2000, gained[1]);
+    CHECK_EQ(INT16_MAX, gained[2]);
+    CHECK_EQ(INT16_MIN, gained[3]);
+
+    int16_t stereo[] = {INT16_MAX, INT16_MAX, INT16_MIN, INT16_MIN, 3, -4};
+    int16_t mono[3];
+    scalar.downmixStereoI16(stereo, mono, 3);
+    CHECK_EQ(INT16_MAX, mono[0]);
+    CHECK_EQ(INT16_MIN, mono[1]);
+    CHECK_EQ(-1, mono[2]);
+
+    float clipped[] = {-3.0f, -0.25f, 0.75f, 3.0f};
+    scalar.saturateFloat(clipped, 4);
+    CHECK_EQ(-1.0f, clipped[0]);
+    CHECK_EQ(-0.25f, clipped[1]);
+    CHECK_EQ(0.75f, clipped[2]);
+    CHECK_EQ(1.0f, clipped[3]);
+}
+
+} // namespace
+
+int main() {
+    srand(1);
+    testScalarReference();
+
+    const AudioKernels *candidates[] = {
+            getNeonAudioKernels(),
+            getSse2AudioKernels(),
+            getAvx2AudioKernels(),
+    };
+    const AudioKernels &reference = getScalarAudioKernels();
+    for (const AudioKernels *kernels : candidates) {
+        if (kernels == nullptr) {
+            continue;
+        }
+        printf("testing %s kernels\n", kernels->name);
+        testApplyGain(reference, *kernels);
+        testConvert(reference, *kernels);
+        testSaturate(reference, *kernels);
+        testDownmix(reference, *kernels);
+    }
+    printf("selected %s kernels\n", getAudioKernels().name);
+
+    return testResult();
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+// Repairs synthetic clicks on a music-like signal, leaves clean audio untouched, and measures the
+// time spent per callback against the callback's real-time budget.
+
+#include <algorithm>
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+
+#include "TestUtils.h"
+#include "../Declicker.h"
+
+namespace {
+
+const int32_t kSampleRate = 48000;
+const int32_t kFramesPerBurst = 192;
+
+// a few partials plus a little noise, stands in for music
+std::vector<float> makeSignal(int32_t frames) {
+    std::vector<float> signal(frames * 2);
+    srand(7);
+    for (int32_t i = 0; i < frames; i++) {
+        double t = static_cast<double>(i) / kSampleRate;
+        double value = 0.3 * std::sin(2 * M_PI * 220.0 * t) + 0.15 * std::sin(2 * M_PI * 1375.0 * t)
+                + 0.05 * std::sin(2 * M_PI * 5210.0 * t);
+        double noise = (rand() / static_cast<double>(RAND_MAX) - 0.5) * 0.002;
+        signal[2 * i] = static_cast<float>(value + noise);
+        signal[2 * i + 1] = static_cast<float>(0.8 * value - noise);
+    }
+    return signal;
+}
+
+void runDeclicker(Declicker &declicker, std::vector<float> &samples) {
+    int32_t frames = static_cast<int32_t>(samples.size() / 2);
+    for (int32_t offset = 0; offset < frames; offset += kFramesPerBurst) {
+        declicker.process(samples.data() + offset * 2, std::min(kFramesPerBurst, frames - offset));
+    }
+}
+
+// largest difference between output and the clean signal, allowing for the lookahead delay
+float maxError(const std::vector<float> &clean, const std::vector<float> &output, int32_t latency,
+               int32_t fromFrame, int32_t toFrame) {
+    float error = 0.0f;
+    for (int32_t i = fromFrame; i < toFrame; i++) {
+        for (int32_t channel = 0; channel < 2; channel++) {
+            error = std::max(error, std::fabs(output[2 * (i + latency) + channel] - clean[2 * i + channel]));
+        }
+    }
+    return error;
+}
+
+void testCleanSignalPassesUnchanged() {
+    Declicker declicker;
+    declicker.prepare(kSampleRate, 2, 10, kFramesPerBurst);
+    CHECK_EQ(480, declicker.getLatencyFrames());
+    CHECK_EQ(10000000, declicker.getLatencyNanos());
+
+    std::vector<float> clean = makeSignal(kSampleRate);
+    std::vector<float> output = clean;
+    runDeclicker(declicker, output);
+
+    CHECK_EQ(0, declicker.getRepairCount());
+    CHECK(maxError(clean, output, declicker.getLatencyFrames(), 0, kSampleRate - 480) == 0.0f);
+}
+
+void testClicksAreRepaired() {
+    Declicker declicker;
+    declicker.prepare(kSampleRate, 2, 5, kFramesPerBurst);
+    int32_t latency = declicker.getLatencyFrames();
+
+    std::vector<float> clean = makeSignal(kSampleRate);
+    std::vector<float> output = clean;
+    // clicks of 1 to 24 samples, alternating sign, in both channels, some across bursts
+    const int32_t clickStarts[] = {4000, 9001, 15555, 22000, 30719, 38400};
+    const int32_t clickLengths[] = {1, 3, 8, 2, 24, 5};
+    for (int32_t c = 0; c < 6; c++) {
+        for (int32_t i = 0; i < clickLengths[c]; i++) {
+            float click = (c % 2 == 0 ? 0.6f : -0.5f) * (1.0f - 0.5f * i / clickLengths[c]);
+            output[2 * (clickStarts[c] + i)] += click;
+            output[2 * (clickStarts[c] + i) + 1] += click * 0.7f;
+        }
+    }
+    float clickedError = maxError(clean, output, 0, 0, kSampleRate);
+
+    runDeclicker(declicker, output);
+
+    CHECK_EQ(12, declicker.getRepairCount());
+    float repairedError = maxError(clean, output, latency, 0, kSampleRate - latency);
+    printf("click error %.3f, after declicking %.3f\n", clickedError, repairedError);
+    CHECK(clickedError > 0.5f);
+    CHECK(repairedError < 0.05f);
+}
+
+void testLongTransientIsLeftAlone() {
+    Declicker declicker;
+    declicker.prepare(kSampleRate, 2, 20, kFramesPerBurst);
+
+    // 3ms of loud high frequency content is music, not a click
+    std::vector<float> clean = makeSignal(kSampleRate / 4);
+    for (int32_t i = 6000; i < 6144; i++) {
+        float burst = 0.4f * static_cast<float>(std::sin(2 * M_PI * 9000.0 * i / kSampleRate));
+        clean[2 * i] += burst;
+        clean[2 * i + 1] += burst;
+    }
+    std::vector<float> output = clean;
+    runDeclicker(declicker, output);
+
+    CHECK_EQ(0, declicker.getRepairCount());
+}
+
+void testDisabled() {
+    Declicker declicker;
+    declicker.prepare(kSampleRate, 2, 0, kFramesPerBurst);
+    CHECK(!declicker.isEnabled());
+    CHECK_EQ(0, declicker.getLatencyFrames());
+    CHECK_EQ(0, declicker.getLatencyNanos());
+    std::vector<float> samples = makeSignal(kFramesPerBurst);
+    std::vector<float> expected = samples;
+    declicker.process(samples.data(), kFramesPerBurst);
+    CHECK(samples == expected);
+}
+
+void testI16() {
+    Declicker declicker;
+    declicker.prepare(kSampleRate, 2, 5, kFramesPerBurst);
+    std::vector<int16_t> samples(kFramesPerBurst * 2 * 16, 1000);
+    samples[2 * 2000] = 30000;
+    declicker.process(samples.data(), kFramesPerBurst * 16);
+    CHECK_EQ(1, declicker.getRepairCount());
+    CHECK_EQ(1000, samples[2 * (2000 + declicker.getLatencyFrames())]);
+}
+
+void benchmarkCallback() {
+    for (int32_t lookahead : {5, 20}) {
+        Declicker declicker;
+        declicker.prepare(kSampleRate, 2, lookahead, kFramesPerBurst);
+        std::vector<float> signal = makeSignal(kSampleRate * 10);
+        int32_t bursts = static_cast<int32_t>(signal.size() / 2) / kFramesPerBurst;
+        double maxNanos = 0.0;
+        auto start = std::chrono::steady_clock::now();
+        for (int32_t burst = 0; burst < bursts; burst++) {
+            auto burstStart = std::chrono::steady_clock::now();
+            declicker.process(signal.data() + burst * kFramesPerBurst * 2, kFramesPerBurst);
+            maxNanos = std::max(maxNanos, std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - burstStart).count());
+        }
+        double totalNanos = std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count();
+        double budgetNanos = 1e9 * kFramesPerBurst / kSampleRate;
+        printf("%2dms lookahead: %6.0f ns average, %6.0f ns max per %d frame callback (%.2f%% of budget)\n",
+                lookahead, totalNanos / bursts, maxNanos, kFramesPerBurst, 100.0 * totalNanos / bursts / budgetNanos);
+    }
+}
+
+} // namespace
+
+int main() {
+    testCleanSignalPassesUnchanged();
+    testClicksAreRepaired();
+    testLongTransientIsLeftAlone();
+    testDisabled();
+    testI16();
+    benchmarkCallback();
+
+    return testResult();
+}
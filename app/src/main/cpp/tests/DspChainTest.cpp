@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+// Frequency response of the filter designs, behaviour of the chain when stages are switched,
+// and a benchmark of the cost of each stage per 1000 stereo frames.
+
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <functional>
+#include <vector>
+
+#include "TestUtils.h"
+#include "../DspChain.h"
+#include "../TripleBuffer.h"
+
+namespace {
+
+const int32_t kSampleRate = 48000;
+const int32_t kFramesPerBurst = 192;
+
+bool near(double expected, double actual, double tolerance) {
+    return std::fabs(expected - actual) <= tolerance;
+}
+
+#define CHECK_NEAR(expected, actual, tolerance) do { \
+        if (!near(expected, actual, tolerance)) FAIL("expected %.3f, got %.3f", (double) (expected), (double) (actual)); \
+    } while (0)
+
+// peak level in dB of a sine after passing through the chain, once it has settled
+double measureDecibels(DspChain &chain, double frequency) {
+    std::vector<float> buffer(kFramesPerBurst * 2);
+    double phase = 0.0;
+    double peak = 0.0;
+    int32_t bursts = kSampleRate / kFramesPerBurst;
+    for (int32_t burst = 0; burst < bursts; burst++) {
+        for (int32_t i = 0; i < kFramesPerBurst; i++) {
+            float sample = static_cast<float>(0.1 * std::sin(phase));
+            phase += 2.0 * M_PI * frequency / kSampleRate;
+            buffer[2 * i] = sample;
+            buffer[2 * i + 1] = sample;
+        }
+        chain.process(buffer.data(), kFramesPerBurst);
+        if (burst >= bursts / 2) {
+            for (float sample : buffer) {
+                peak = std::fmax(peak, std::fabs(sample));
+            }
+        }
+    }
+    return 20.0 * std::log10(peak / 0.1);
+}
+
+void testRiaaResponse() {
+    for (double sampleRate : {44100.0, 48000.0, 96000.0}) {
+        BiquadCoefficients riaa = BiquadCoefficients::riaaDeEmphasis(sampleRate);
+        // published RIAA playback curve relative to 1kHz
+        CHECK_NEAR(0.0, riaa.getResponseDecibels(sampleRate, 1000.0), 0.01);
+        CHECK_NEAR(19.27, riaa.getResponseDecibels(sampleRate, 20.0), 0.1);
+        CHECK_NEAR(13.09, riaa.getResponseDecibels(sampleRate, 100.0), 0.1);
+        CHECK_NEAR(-8.21, riaa.getResponseDecibels(sampleRate, 5000.0), 0.35);
+        CHECK_NEAR(-13.73, riaa.getResponseDecibels(sampleRate, 10000.0), 0.35);
+        CHECK_NEAR(-19.62, riaa.getResponseDecibels(sampleRate, 20000.0), 0.35);
+    }
+}
+
+void testFilterDesigns() {
+    BiquadCoefficients highPass = BiquadCoefficients::highPass(kSampleRate, 100.0, M_SQRT1_2);
+    CHECK_NEAR(-3.01, highPass.getResponseDecibels(kSampleRate, 100.0), 0.05);
+    CHECK_NEAR(0.0, highPass.getResponseDecibels(kSampleRate, 5000.0), 0.05);
+
+    BiquadCoefficients peaking = BiquadCoefficients::peaking(kSampleRate, 1000.0, 1.0, 6.0);
+    CHECK_NEAR(6.0, peaking.getResponseDecibels(kSampleRate, 1000.0), 0.01);
+    CHECK_NEAR(0.0, peaking.getResponseDecibels(kSampleRate, 20000.0), 0.1);
+
+    BiquadCoefficients lowShelf = BiquadCoefficients::lowShelf(kSampleRate, 100.0, M_SQRT1_2, -6.0);
+    CHECK_NEAR(-6.0, lowShelf.getResponseDecibels(kSampleRate, 10.0), 0.1);
+    CHECK_NEAR(0.0, lowShelf.getResponseDecibels(kSampleRate, 5000.0), 0.1);
+
+    BiquadCoefficients highShelf = BiquadCoefficients::highShelf(kSampleRate, 8000.0, M_SQRT1_2, 4.0);
+    CHECK_NEAR(4.0, highShelf.getResponseDecibels(kSampleRate, 23000.0), 0.1);
+    CHECK_NEAR(0.0, highShelf.getResponseDecibels(kSampleRate, 100.0), 0.1);
+}
+
+void testChain() {
+    DspChain chain;
+    chain.prepare(kSampleRate, 2, kFramesPerBurst);
+
+    // nothing enabled is a bit exact pass through
+    CHECK_NEAR(0.0, measureDecibels(chain, 1000.0), 1e-6);
+
+    chain.setRumbleFilter(20.0f);
+    CHECK(measureDecibels(chain, 5.0) < -45.0);
+    CHECK_NEAR(-3.0, measureDecibels(chain, 20.0), 0.3);
+    CHECK_NEAR(0.0, measureDecibels(chain, 1000.0), 0.05);
+
+    chain.setRiaaEqualization(true);
+    CHECK_NEAR(0.0, measureDecibels(chain, 1000.0), 0.05);
+    CHECK_NEAR(13.09, measureDecibels(chain, 100.0), 0.2);
+
+    chain.setRumbleFilter(0.0f);
+    chain.setRiaaEqualization(false);
+    chain.setEqBand(1, kEqBandTypePeaking, 3000.0f, 2.0f, -9.0f);
+    CHECK_NEAR(-9.0, measureDecibels(chain, 3000.0), 0.1);
+    CHECK_NEAR(0.0, measureDecibels(chain, 200.0), 0.1);
+
+    // out of range bands are ignored
+    chain.setEqBand(DspChain::kNumEqBands, kEqBandTypePeaking, 3000.0f, 2.0f, 9.0f);
+    chain.setEqBand(1, kEqBandTypeOff, 3000.0f, 2.0f, -9.0f);
+    CHECK_NEAR(0.0, measureDecibels(chain, 3000.0), 1e-6);
+
+    // 16 bit audio goes through the same stages, also when bigger than prepare() allowed for
+    chain.setEqBand(0, kEqBandTypeLowShelf, 200.0f, 0.707f, -12.0f);
+    std::vector<int16_t> shorts;
+    for (int32_t i = 0; i < 50; i++) {
+        shorts.assign(kFramesPerBurst * 2 * 3, 16000);
+        chain.process(shorts.data(), kFramesPerBurst * 3);
+    }
+    // DC through a -12dB low shelf
+    CHECK_NEAR(16000 * std::pow(10.0, -12.0 / 20.0), shorts.back(), 20.0);
+}
+
+void testTripleBuffer() {
+    TripleBuffer<int> buffer;
+    CHECK(!buffer.update());
+    buffer.back() = 1;
+    buffer.publish();
+    buffer.back() = 2;
+    buffer.publish();
+    CHECK(buffer.update());
+    CHECK_EQ(2, buffer.front());
+    CHECK(!buffer.update());
+    CHECK_EQ(2, buffer.front());
+    buffer.back() = 3;
+    buffer.publish();
+    CHECK(buffer.update());
+    CHECK_EQ(3, buffer.front());
+}
+
+double benchmarkNanosPer1000Frames(const std::function<void(DspChain &)> &configure) {
+    DspChain chain;
+    chain.prepare(kSampleRate, 2, kFramesPerBurst);
+    configure(chain);
+    std::vector<float> buffer(kFramesPerBurst * 2);
+    for (size_t i = 0; i < buffer.size(); i++) {
+        buffer[i] = static_cast<float>(std::sin(i * 0.01) * 0.5);
+    }
+    const int32_t bursts = 20000;
+    auto start = std::chrono::steady_clock::now();
+    for (int32_t burst = 0; burst < bursts; burst++) {
+        chain.process(buffer.data(), kFramesPerBurst);
+    }
+    auto elapsed = std::chrono::steady_clock::now() - start;
+    double nanos = std::chrono::duration<double, std::nano>(elapsed).count();
+    return nanos / (bursts * kFramesPerBurst / 1000.0);
+}
+
+void benchmarkStages() {
+    struct Stage {
+        const char *name;
+        std::function<void(DspChain &)> configure;
+    };
+    const Stage stages[] = {
+            {"bypass", [](DspChain &chain) {}},
+            {"rumble (2 biquads)", [](DspChain &chain) { chain.setRumbleFilter(20.0f); }},
+            {"riaa (1 biquad)", [](DspChain &chain) { chain.setRiaaEqualization(true); }},
+            {"eq band (1 biquad)", [](DspChain &chain) { chain.setEqBand(0, kEqBandTypePeaking, 1000.0f, 1.0f, 3.0f); }},
+            {"full chain (7 biquads)", [](DspChain &chain) {
+                chain.setRumbleFilter(20.0f);
+                chain.setRiaaEqualization(true);
+                for (int32_t band = 0; band < DspChain::kNumEqBands; band++) {
+                    chain.setEqBand(band, kEqBandTypePeaking, 250.0f * (band + 1), 1.0f, 3.0f);
+                }
+            }},
+    };
+    for (const Stage &stage : stages) {
+        printf("%-24s %8.0f ns per 1000 stereo frames\n", stage.name, benchmarkNanosPer1000Frames(stage.configure));
+    }
+}
+
+} // namespace
+
+int main() {
+    testRiaaResponse();
+    testFilterDesigns();
+    testChain();
+    testTripleBuffer();
+    benchmarkStages();
+
+    return testResult();
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+// Levels and bin placement of the visualizer spectrum, for float and 16 bit input of any channel
+// count and with decimation, accuracy of the real FFT against a double precision complex FFT,
+// publishing to a concurrent reader, and the cost of the analysis.
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <complex>
+#include <cstdio>
+#include <cstdlib>
+#include <thread>
+#include <vector>
+
+#include "TestUtils.h"
+#include "../AudioKernels.h"
+#include "../SpectrumAnalyzer.h"
+
+namespace {
+
+const int32_t kSampleRate = 48000;
+const int32_t kFftLength = 256;
+const int32_t kNumBins = 16;
+
+std::vector<int16_t> toI16(const std::vector<float> &samples) {
+    std::vector<int16_t> converted(samples.size());
+    for (size_t i = 0; i < samples.size(); i++) {
+        converted[i] = static_cast<int16_t>(std::lround(samples[i] * 32767.0f));
+    }
+    return converted;
+}
+
+std::vector<float> makeSine(double frequency, double amplitude, int32_t frames, int32_t channelCount) {
+    std::vector<float> samples(frames * channelCount);
+    for (int32_t i = 0; i < frames; i++) {
+        for (int32_t channel = 0; channel < channelCount; channel++) {
+            samples[i * channelCount + channel] = static_cast<float>(amplitude * std::sin(2.0 * M_PI * frequency * i / kSampleRate));
+        }
+    }
+    return samples;
+}
+
+// the sample rate at which every analyzed frame is published, 60 hops a second
+int32_t publishEveryFrame(int32_t hopLength) {
+    return 60 * hopLength;
+}
+
+int32_t loudestBin(const float *decibels) {
+    int32_t loudest = 0;
+    for (int32_t bin = 1; bin < kNumBins; bin++) {
+        if (decibels[bin] > decibels[loudest]) {
+            loudest = bin;
+        }
+    }
+    return loudest;
+}
+
+// Textbook in place radix-2 FFT in double precision with precomputed twiddles, the baseline
+// benchmarkFrame() compares the analyzer's float real FFT against.
+class ReferenceFft {
+public:
+    explicit ReferenceFft(size_t length) : mTwiddles(length / 2) {
+        for (size_t k = 0; k < length / 2; k++) {
+            mTwiddles[k] = std::polar(1.0, -2.0 * M_PI * k / length);
+        }
+    }
+
+    void transform(std::vector<std::complex<double>> &data) const {
+        size_t length = data.size();
+        for (size_t i = 1, j = 0; i < length; i++) {
+            size_t bit = length >> 1;
+            for (; j & bit; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                std::swap(data[i], data[j]);
+            }
+        }
+        for (size_t size = 2; size <= length; size <<= 1) {
+            size_t step = length / size;
+            for (size_t start = 0; start < length; start += size) {
+                for (size_t k = 0; k < size / 2; k++) {
+                    std::complex<double> t = mTwiddles[k * step] * data[start + k + size / 2];
+                    data[start + k + size / 2] = data[start + k] - t;
+                    data[start + k] += t;
+                }
+            }
+        }
+    }
+
+private:
+    std::vector<std::complex<double>> mTwiddles;
+};
+
+// the analyzer's bins for a single frame, computed with referenceFft()
+std::vector<float> referenceBins(const std::vector<float> &frame, int32_t numBins) {
+    int32_t length = static_cast<int32_t>(frame.size());
+    std::vector<double> window(length);
+    double sum = 0.0;
+    for (int32_t i = 0; i < length; i++) {
+        window[i] = 0.5 * (1.0 - std::cos(2.0 * M_PI * i / (length - 1)));
+        sum += window[i];
+    }
+    std::vector<std::complex<double>> data(length);
+    for (int32_t i = 0; i < length; i++) {
+        data[i] = frame[i] * window[i] * length / sum;
+    }
+    ReferenceFft(length).transform(data);
+
+    std::vector<float> bins(numBins);
+    int32_t numFrequencies = length / 2 + 1;
+    for (int32_t bin = 0; bin < numBins; bin++) {
+        double from = static_cast<double>(bin) / numBins;
+        double to = static_cast<double>(bin + 1) / numBins;
+        int32_t start = static_cast<int32_t>(std::lround(from * from * (numFrequencies - 1)));
+        int32_t end = bin == numBins - 1 ? numFrequencies
+                : static_cast<int32_t>(std::lround(to * to * (numFrequencies - 1)));
+        end = std::max(end, start + 1);
+        double binPower = 0.0;
+        for (int32_t k = start; k < end && k < numFrequencies; k++) {
+            double power = std::norm(data[k]) * 4.0 / (static_cast<double>(length) * length);
+            if (k == 0 || k == length / 2) {
+                power *= 0.25;
+            }
+            binPower = std::max(binPower, power);
+        }
+        bins[bin] = static_cast<float>(10.0 * std::log10(binPower));
+    }
+    return bins;
+}
+
+void testMatchesReference() {
+    srand(3);
+    // odd and even numbers of radix-4 passes, with and without the extra radix-2 pass
+    for (int32_t length : {8, 16, 256, 512, 2048}) {
+        int32_t numBins = std::min(kNumBins, length / 2);
+        std::vector<float> frame(length);
+        for (float &sample : frame) {
+            sample = rand() / static_cast<float>(RAND_MAX) - 0.5f;
+        }
+        SpectrumAnalyzer analyzer;
+        analyzer.start(publishEveryFrame(length), 1, true, length, length, numBins, 1);
+        analyzer.feed(frame.data(), frame.size() * sizeof(float));
+        std::vector<float> decibels(numBins);
+        CHECK(analyzer.getSpectrumDecibels(decibels.data(), numBins));
+
+        std::vector<float> expected = referenceBins(frame, numBins);
+        for (int32_t bin = 0; bin < numBins; bin++) {
+            if (std::fabs(expected[bin] - decibels[bin]) > 0.01f) {
+                FAIL("length %d bin %d: expected %.3fdB, got %.3fdB", length, bin, expected[bin], decibels[bin]);
+            }
+        }
+    }
+}
+
+void testHopLength() {
+    // without overlap a frame of silence after a frame of sine doesn't see the sine at all
+    std::vector<float> samples = makeSine(3000.0, 0.5, kFftLength, 1);
+    samples.resize(kFftLength * 2, 0.0f);
+    float decibels[kNumBins];
+
+    SpectrumAnalyzer analyzer;
+    analyzer.start(publishEveryFrame(kFftLength), 1, true, kFftLength, kFftLength, kNumBins, 1);
+    analyzer.feed(samples.data(), kFftLength * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    analyzer.feed(samples.data() + kFftLength, kFftLength * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK(decibels[loudestBin(decibels)] == -120.0f);
+
+    // with 75% overlap the third frame after it still holds part of it
+    analyzer.start(publishEveryFrame(kFftLength / 4), 1, true, kFftLength, kFftLength / 4, kNumBins, 1);
+    analyzer.feed(samples.data(), kFftLength * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    analyzer.feed(samples.data() + kFftLength, kFftLength / 4 * 3 * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK(decibels[loudestBin(decibels)] > -40.0f);
+}
+
+void testSineLevelAndBin() {
+    SpectrumAnalyzer analyzer;
+    analyzer.start(kSampleRate, 2, true, kFftLength, kFftLength / 2, kNumBins, 1);
+    float decibels[kNumBins];
+    CHECK(!analyzer.getSpectrumDecibels(decibels, kNumBins));
+
+    // FFT index 32 of 128, bins cover index^2 / 256 * 128 so it lands in bin 8
+    double frequency = 32.0 * kSampleRate / kFftLength;
+    std::vector<float> samples = makeSine(frequency, 0.5, kSampleRate / 10, 2);
+    analyzer.feed(samples.data(), samples.size() * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK_EQ(8, loudestBin(decibels));
+    // a sine of amplitude 0.5 is -6dB, the Hann window's scalloping loss is 0 at a bin center
+    CHECK(std::fabs(decibels[8] - 20.0f * std::log10(0.5f)) < 0.1f);
+    CHECK(decibels[2] < decibels[8] - 40.0f);
+
+    // nothing new since the last call
+    CHECK(!analyzer.getSpectrumDecibels(decibels, kNumBins));
+}
+
+void testI16Mono() {
+    SpectrumAnalyzer analyzer;
+    analyzer.start(kSampleRate, 1, false, kFftLength, kFftLength / 2, kNumBins, 1);
+    std::vector<float> sine = makeSine(10000.0, 0.25, kSampleRate / 10, 1);
+    std::vector<int16_t> samples(sine.size());
+    for (size_t i = 0; i < sine.size(); i++) {
+        samples[i] = static_cast<int16_t>(std::lround(sine[i] * 32767.0f));
+    }
+    // fed in odd sized pieces, as the ring hands them over
+    for (size_t offset = 0; offset < samples.size(); offset += 333) {
+        size_t count = std::min<size_t>(333, samples.size() - offset);
+        analyzer.feed(samples.data() + offset, count * sizeof(int16_t));
+    }
+    float decibels[kNumBins];
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    // 10kHz is FFT index 53.3, in bin 10 (index 50 to 60)
+    CHECK_EQ(10, loudestBin(decibels));
+    CHECK(decibels[10] > 20.0f * std::log10(0.25f) - 1.5f);
+}
+
+void testSilenceAndStop() {
+    SpectrumAnalyzer analyzer;
+    analyzer.start(kSampleRate, 2, true, kFftLength, kFftLength / 2, kNumBins, 1);
+    std::vector<float> silence(kFftLength * 16, 0.0f);
+    analyzer.feed(silence.data(), silence.size() * sizeof(float));
+    float decibels[kNumBins];
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK(decibels[0] == -120.0f);
+
+    analyzer.stop();
+    CHECK(!analyzer.feed(silence.data(), silence.size() * sizeof(float)));
+    CHECK(!analyzer.getSpectrumDecibels(decibels, kNumBins));
+}
+
+void testPublishCadence() {
+    // 48000 / (60 * 128) rounds down to a spectrum every 6 frames
+    SpectrumAnalyzer analyzer;
+    analyzer.start(kSampleRate, 1, true, kFftLength, kFftLength / 2, kNumBins, 1);
+    std::vector<float> samples = makeSine(1000.0, 0.5, kFftLength + 6 * kFftLength / 2, 1);
+    float decibels[kNumBins];
+    CHECK(!analyzer.feed(samples.data(), (kFftLength + 4 * kFftLength / 2) * sizeof(float)));
+    CHECK(!analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK(analyzer.feed(samples.data() + kFftLength + 4 * kFftLength / 2, kFftLength / 2 * sizeof(float)));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK(!analyzer.getSpectrumDecibels(decibels, kNumBins));
+
+    // a restart drops the spectrum the reader didn't pick up
+    analyzer.feed(samples.data(), samples.size() * sizeof(float));
+    analyzer.start(kSampleRate, 1, true, kFftLength, kFftLength / 2, kNumBins, 1);
+    CHECK(!analyzer.getSpectrumDecibels(decibels, kNumBins));
+}
+
+void testConcurrentReader() {
+    // The writer alternates about a second of noise repeating every frame and the same noise at a
+    // quarter of the level, so every spectrum published is the loud one scaled by the same amount
+    // in all bins. The reader must only ever see whole spectra, never bins from two of them.
+    srand(5);
+    const int32_t segmentLength = kFftLength * 180;
+    std::vector<float> loud(segmentLength);
+    for (int32_t i = 0; i < kFftLength; i++) {
+        loud[i] = rand() / static_cast<float>(RAND_MAX) - 0.5f;
+    }
+    for (int32_t i = kFftLength; i < segmentLength; i++) {
+        loud[i] = loud[i - kFftLength];
+    }
+    std::vector<float> quiet(loud);
+    for (float &sample : quiet) {
+        sample *= 0.25f;
+    }
+
+    SpectrumAnalyzer analyzer;
+    analyzer.start(kSampleRate, 1, true, kFftLength, kFftLength, kNumBins, 1);
+    float reference[kNumBins];
+    analyzer.feed(loud.data(), segmentLength * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(reference, kNumBins));
+
+    std::atomic<bool> done{false};
+    std::thread writer([&] {
+        for (int32_t second = 0; second < 20; second++) {
+            const std::vector<float> &samples = second % 2 == 0 ? quiet : loud;
+            for (size_t offset = 0; offset < samples.size(); offset += 1000) {
+                size_t count = std::min<size_t>(1000, samples.size() - offset);
+                analyzer.feed(samples.data() + offset, count * sizeof(float));
+                // paced a little, so the reader overlaps plenty of publishes
+                std::this_thread::sleep_for(std::chrono::microseconds(50));
+            }
+        }
+        done = true;
+    });
+
+    int32_t updates = 0;
+    int32_t torn = 0;
+    float decibels[kNumBins];
+    while (!done) {
+        if (analyzer.getSpectrumDecibels(decibels, kNumBins)) {
+            updates++;
+            float offset = decibels[0] - reference[0];
+            for (int32_t bin = 1; bin < kNumBins; bin++) {
+                if (std::fabs(decibels[bin] - reference[bin] - offset) > 0.1f) {
+                    torn++;
+                    break;
+                }
+            }
+        }
+    }
+    writer.join();
+    printf("%d spectra read while writing\n", updates);
+    CHECK(updates > 0);
+    CHECK_EQ(0, torn);
+}
+
+void testChannelLayouts() {
+    // the same sine as mono, stereo and 4 channels, float and 16 bit, fed in odd sized pieces
+    std::vector<float> expected(kNumBins);
+    for (int32_t channelCount : {2, 1, 4}) {
+        std::vector<float> sine = makeSine(4000.0, 0.5, kSampleRate / 10, channelCount);
+        std::vector<int16_t> sineI16 = toI16(sine);
+        for (bool isFloat : {true, false}) {
+            SpectrumAnalyzer analyzer;
+            analyzer.start(kSampleRate, channelCount, isFloat, kFftLength, kFftLength / 2, kNumBins, 1);
+            size_t sampleSize = isFloat ? sizeof(float) : sizeof(int16_t);
+            const uint8_t *bytes = isFloat ? reinterpret_cast<const uint8_t *>(sine.data())
+                    : reinterpret_cast<const uint8_t *>(sineI16.data());
+            size_t frameSize = channelCount * sampleSize;
+            size_t totalFrames = sine.size() / channelCount;
+            for (size_t frame = 0; frame < totalFrames; frame += 333) {
+                size_t count = std::min<size_t>(333, totalFrames - frame);
+                analyzer.feed(bytes + frame * frameSize, count * frameSize);
+            }
+            float decibels[kNumBins];
+            CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+            if (channelCount == 2 && isFloat) {
+                std::copy(decibels, decibels + kNumBins, expected.begin());
+                continue;
+            }
+            for (int32_t bin = 0; bin < kNumBins; bin++) {
+                // 16 bit quantization noise only shows in the quietest bins
+                float tolerance = expected[bin] > -60.0f ? 0.05f : 10.0f;
+                if (std::fabs(expected[bin] - decibels[bin]) > tolerance) {
+                    FAIL("%d channels %s bin %d: expected %.3fdB, got %.3fdB", channelCount,
+                            isFloat ? "float" : "16 bit", bin, expected[bin], decibels[bin]);
+                }
+            }
+        }
+    }
+}
+
+void testDecimation() {
+    // 3kHz at 48kHz decimated by 2 is FFT index 32 of 128, bin 8, like 6kHz without decimation
+    SpectrumAnalyzer analyzer;
+    analyzer.start(kSampleRate, 2, true, kFftLength, kFftLength / 2, kNumBins, 2);
+    double frequency = 32.0 * kSampleRate / 2 / kFftLength;
+    std::vector<float> samples = makeSine(frequency, 0.5, kSampleRate / 10, 2);
+    // pieces of an odd number of frames, so pairs straddle feeds
+    for (size_t frame = 0; frame < samples.size() / 2; frame += 191) {
+        size_t count = std::min<size_t>(191, samples.size() / 2 - frame);
+        analyzer.feed(samples.data() + frame * 2, count * 2 * sizeof(float));
+    }
+    float decibels[kNumBins];
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK_EQ(8, loudestBin(decibels));
+    // averaging pairs attenuates 3kHz by cos(pi * 3 / 48)
+    float expected = 20.0f * std::log10(0.5f * static_cast<float>(std::cos(M_PI * frequency / kSampleRate)));
+    CHECK(std::fabs(decibels[8] - expected) < 0.1f);
+
+    // by 8, 18kHz would alias to 3kHz but averaging 8 frames filters most of it out
+    analyzer.start(kSampleRate, 1, true, kFftLength / 8, kFftLength / 16, kNumBins, 8);
+    samples = makeSine(18000.0, 0.5, kSampleRate / 10, 1);
+    analyzer.feed(samples.data(), samples.size() * sizeof(float));
+    CHECK(analyzer.getSpectrumDecibels(decibels, kNumBins));
+    CHECK(decibels[loudestBin(decibels)] < 20.0f * std::log10(0.5f) - 15.0f);
+}
+
+void benchmarkFrame() {
+    for (int32_t length : {256, 1024, 4096}) {
+        std::vector<float> frame = makeSine(1000.0, 0.5, length, 1);
+        const int32_t frames = 4000000 / length;
+
+        SpectrumAnalyzer analyzer;
+        analyzer.start(kSampleRate, 1, true, length, length, kNumBins, 1);
+        auto start = std::chrono::steady_clock::now();
+        for (int32_t i = 0; i < frames; i++) {
+            analyzer.feed(frame.data(), frame.size() * sizeof(float));
+        }
+        double analyzerNanos = std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count();
+
+        ReferenceFft reference(length);
+        std::vector<std::complex<double>> data(length);
+        start = std::chrono::steady_clock::now();
+        for (int32_t i = 0; i < frames; i++) {
+            std::copy(frame.begin(), frame.end(), data.begin());
+            reference.transform(data);
+        }
+        double referenceNanos = std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count();
+
+        printf("%4d point frame: %7.0f ns float real FFT analysis, %7.0f ns double complex FFT alone (%.1fx)\n",
+                length, analyzerNanos / frames, referenceNanos / frames, referenceNanos / analyzerNanos);
+    }
+}
+
+void benchmarkSecondOfAudio() {
+    // the visualizer's settings, 256 point FFT with 50% overlap
+    std::vector<float> stereo = makeSine(1000.0, 0.5, kSampleRate, 2);
+    std::vector<int16_t> stereoI16 = toI16(stereo);
+    std::vector<float> mono = makeSine(1000.0, 0.5, kSampleRate, 1);
+    struct Input {
+        const char *name;
+        int32_t channelCount;
+        bool isFloat;
+        const void *data;
+        size_t numBytes;
+    };
+    const Input inputs[] = {
+            {"float stereo", 2, true, stereo.data(), stereo.size() * sizeof(float)},
+            {"16 bit stereo", 2, false, stereoI16.data(), stereoI16.size() * sizeof(int16_t)},
+            {"float mono", 1, true, mono.data(), mono.size() * sizeof(float)},
+    };
+    const int32_t seconds = 20;
+    float decibels[kNumBins];
+    printf("%s kernels\n", getAudioKernels().name);
+    for (const Input &input : inputs) {
+        for (int32_t decimation : {1, 2, 4}) {
+            SpectrumAnalyzer analyzer;
+            analyzer.start(kSampleRate, input.channelCount, input.isFloat, kFftLength, kFftLength / 2, kNumBins,
+                    decimation);
+            auto start = std::chrono::steady_clock::now();
+            for (int32_t second = 0; second < seconds; second++) {
+                // in callback sized pieces, as the AudioDataConsumer hands them over
+                size_t pieceBytes = 192 * input.channelCount * (input.isFloat ? sizeof(float) : sizeof(int16_t));
+                const uint8_t *bytes = static_cast<const uint8_t *>(input.data);
+                for (size_t offset = 0; offset < input.numBytes; offset += pieceBytes) {
+                    analyzer.feed(bytes + offset, std::min(pieceBytes, input.numBytes - offset));
+                }
+                analyzer.getSpectrumDecibels(decibels, kNumBins);
+            }
+            double micros = std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+            printf("%-13s decimated by %d: %4.0f us per second of 48kHz audio\n", input.name, decimation,
+                    micros / seconds);
+        }
+    }
+}
+
+} // namespace
+
+int main() {
+    testMatchesReference();
+    testHopLength();
+    testSineLevelAndBin();
+    testI16Mono();
+    testSilenceAndStop();
+    testPublishCadence();
+    testConcurrentReader();
+    testChannelLayouts();
+    testDecimation();
+    benchmarkFrame();
+    benchmarkSecondOfAudio();
+
+    return testResult();
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Allen Schober
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+#ifndef VINYLCAST_TESTUTILS_H
+#define VINYLCAST_TESTUTILS_H
+
+#include <cstdio>
+
+// Minimal assertions for the host-built native tests, which have no test framework available.
+// Failures are counted and printed, main() returns testResult() as the process exit code.
+
+inline int &testFailureCount() {
+    static int failures = 0;
+    return failures;
+}
+
+#define FAIL(...) do { \
+        fprintf(stderr, "%s:%d: ", __FILE__, __LINE__); \
+        fprintf(stderr, __VA_ARGS__); \
+        fprintf(stderr, "\n"); \
+        testFailureCount()++; \
+    } while (0)
+
+#define CHECK(condition) do { \
+        if (!(condition)) FAIL("check failed: %s", #condition); \
+    } while (0)
+
+#define CHECK_EQ(expected, actual) do { \
+        if (!((expected) == (actual))) FAIL("expected %s == %s", #expected, #actual); \
+    } while (0)
+
+inline int testResult() {
+    if (testFailureCount() > 0) {
+        fprintf(stderr, "%d failure(s)\n", testFailureCount());
+        return 1;
+    }
+    printf("all tests passed\n");
+    return 0;
+}
+
+#endif //VINYLCAST_TESTUTILS_H
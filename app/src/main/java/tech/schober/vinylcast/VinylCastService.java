@@ -12,6 +12,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -24,6 +25,7 @@ import androidx.media.MediaBrowserServiceCompat;
 import androidx.media.session.MediaButtonReceiver;
 import androidx.preference.PreferenceManager;
 
+import com.google.android.gms.cast.HlsSegmentFormat;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaLoadRequestData;
 import com.google.android.gms.cast.MediaMetadata;
@@ -38,17 +40,23 @@ import java.lang.annotation.RetentionPolicy;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import tech.schober.vinylcast.audio.AudioChunkBuffer;
 import tech.schober.vinylcast.audio.AudioRecordStreamProvider;
 import tech.schober.vinylcast.audio.AudioStreamProvider;
 import tech.schober.vinylcast.audio.AudioVisualizer;
 import tech.schober.vinylcast.audio.ConvertAudioStreamProvider;
+import tech.schober.vinylcast.audio.FlacAudioStreamProvider;
 import tech.schober.vinylcast.audio.NativeAudioEngine;
+import tech.schober.vinylcast.audio.OpusAudioStreamProvider;
 import tech.schober.vinylcast.server.HttpStreamServer;
 import tech.schober.vinylcast.server.HttpStreamServerImpl;
+import tech.schober.vinylcast.server.NioHttpStreamServer;
 import tech.schober.vinylcast.utils.VinylCastHelpers;
 import timber.log.Timber;
 
 import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_AAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_FLAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_OPUS;
 
 public class VinylCastService extends MediaBrowserServiceCompat {
     private static final String TAG = "VinylCastService";
@@ -61,7 +69,15 @@ public class VinylCastService extends MediaBrowserServiceCompat {
 
     private static final int AUDIO_STREAM_BUFFER_SIZE = 8192;
     private static final int AUDIO_VISUALIZER_FFT_LENGTH = 256;
+    // 50% overlap
+    private static final int AUDIO_VISUALIZER_FFT_HOP_LENGTH = AUDIO_VISUALIZER_FFT_LENGTH / 2;
     private static final int AUDIO_VISUALIZER_FFT_BINS = 16;
+    // 16 bins don't need the top octave, analyzing 0 to 12kHz at 48kHz halves the FFTs per second
+    private static final int AUDIO_VISUALIZER_DECIMATION = 2;
+    private static final long HTTP_CLIENT_MAX_LAG_MS = 2000;
+    // MIME type Cast receivers expect for an HLS playlist
+    private static final String HLS_CONTENT_TYPE = "application/x-mpegURL";
+    private static final String DASH_CONTENT_TYPE = "application/dash+xml";
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({STATUS_PREPARING, STATUS_READY, STATUS_RECORDING, STATUS_STOPPED, STATUS_ERROR_UNKNOWN, STATUS_ERROR_PERMISSION_DENIED, STATUS_ERROR_AUDIO_FOCUS_FAILED, STATUS_ERROR_AUDIO_RECORD_FAILED, STATUS_ERROR_AUDIO_CONVERT_FAILED, STATUS_ERROR_HTTP_SERVER_FAILED})
@@ -84,7 +100,8 @@ public class VinylCastService extends MediaBrowserServiceCompat {
     private AudioRecordStreamProvider audioRecordStreamProvider;
 
     private Thread convertAudioThread;
-    private ConvertAudioStreamProvider convertAudioStreamProvider;
+    // every converter is also the Runnable doing the conversion on convertAudioThread
+    private AudioStreamProvider convertAudioStreamProvider;
 
     private HttpStreamServer httpStreamServer;
     private AudioStreamProvider httpStreamProvider;
@@ -98,6 +115,7 @@ public class VinylCastService extends MediaBrowserServiceCompat {
     private SessionManagerListener castSessionManagerListener;
     private BecomingNoisyReceiver becomingNoisyReceiver;
     private IntentFilter becomingNoisyIntentFilter = new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
+    private ScreenStateReceiver screenStateReceiver;
 
     public interface VinylCastServiceListener {
         void onStatusUpdate(@StatusCode int statusCode);
@@ -124,10 +142,16 @@ public class VinylCastService extends MediaBrowserServiceCompat {
 
         public void addAudioVisualizerListener(AudioVisualizer.AudioVisualizerListener listener) {
             audioVisualizerListeners.add(listener);
+            if (audioVisualizer != null) {
+                audioVisualizer.onListenersChanged();
+            }
         }
 
         public void removeAudioVisualizerListener(AudioVisualizer.AudioVisualizerListener listener) {
             audioVisualizerListeners.remove(listener);
+            if (audioVisualizer != null) {
+                audioVisualizer.onListenersChanged();
+            }
         }
 
         public void start() {
@@ -261,9 +285,11 @@ public class VinylCastService extends MediaBrowserServiceCompat {
         int playbackDeviceId = VinylCastHelpers.getSharedPreferenceStringAsInteger(this, R.string.prefs_key_local_playback_device_id, R.string.prefs_default_local_playback_device_id);
         @AudioStreamProvider.AudioEncoding int audioEncoding = VinylCastHelpers.getSharedPreferenceStringAsInteger(this, R.string.prefs_key_audio_encoding, R.string.prefs_default_audio_encoding);
         boolean lowLatency = PreferenceManager.getDefaultSharedPreferences (this).getBoolean(getString(R.string.prefs_key_low_latency), Boolean.valueOf(getString(R.string.prefs_default_low_latency)));
+        int declickerLookaheadMillis = VinylCastHelpers.getSharedPreferenceStringAsInteger(this, R.string.prefs_key_declicker, R.string.prefs_default_declicker);
         double gainDecibels = VinylCastHelpers.getGainPreference(this);
 
         NativeAudioEngine.setGainDecibels(gainDecibels);
+        VinylCastHelpers.applyAudioProcessingPreferences(this);
 
         if (isPlaybackDeviceSelected() && !requestAudioFocus()) {
             Timber.e("Failed to get Audio Focus for playback. Stopping VinylCastService...");
@@ -272,7 +298,7 @@ public class VinylCastService extends MediaBrowserServiceCompat {
             return;
         }
 
-        if (!startAudioRecord(recordingDeviceId, playbackDeviceId, lowLatency)) {
+        if (!startAudioRecord(recordingDeviceId, playbackDeviceId, lowLatency, declickerLookaheadMillis)) {
             Timber.e("Failed to start Audio Record. Stopping VinylCastService...");
             updateStatus(STATUS_ERROR_AUDIO_RECORD_FAILED);
             disengage(true);
@@ -281,7 +307,9 @@ public class VinylCastService extends MediaBrowserServiceCompat {
 
         switch (audioEncoding) {
             case AUDIO_ENCODING_AAC:
-                if (!startAudioConverter(audioRecordStreamProvider, AUDIO_STREAM_BUFFER_SIZE)) {
+            case AUDIO_ENCODING_OPUS:
+            case AUDIO_ENCODING_FLAC:
+                if (!startAudioConverter(audioRecordStreamProvider, audioEncoding)) {
                     Timber.e("Failed to start Audio Converter. Stopping VinylCastService...");
                     updateStatus(STATUS_ERROR_AUDIO_CONVERT_FAILED);
                     disengage(true);
@@ -303,11 +331,9 @@ public class VinylCastService extends MediaBrowserServiceCompat {
 
         //startAudioRecognition();
 
-        startAudioVisualizer(
-                audioRecordStreamProvider.getAudioInputStream(),
-                audioRecordStreamProvider.getSampleRate(),
-                AUDIO_VISUALIZER_FFT_LENGTH,
-                AUDIO_VISUALIZER_FFT_BINS);
+        // the spectrum is computed by the native engine, only its bins come back to Java
+        startAudioVisualizer(AUDIO_VISUALIZER_FFT_LENGTH, AUDIO_VISUALIZER_FFT_HOP_LENGTH, AUDIO_VISUALIZER_FFT_BINS,
+                AUDIO_VISUALIZER_DECIMATION);
 
         // put service in the foreground, post notification
         VinylCastHelpers.createStopNotification(mediaSession,
@@ -396,8 +422,8 @@ public class VinylCastService extends MediaBrowserServiceCompat {
         }
     }
 
-    private boolean startAudioRecord(int recordingDeviceId, int playbackDeviceId, boolean lowLatency) {
-        audioRecordStreamProvider = new AudioRecordStreamProvider(recordingDeviceId, playbackDeviceId, lowLatency, AUDIO_STREAM_BUFFER_SIZE);
+    private boolean startAudioRecord(int recordingDeviceId, int playbackDeviceId, boolean lowLatency, int declickerLookaheadMillis) {
+        audioRecordStreamProvider = new AudioRecordStreamProvider(recordingDeviceId, playbackDeviceId, lowLatency, declickerLookaheadMillis, AUDIO_STREAM_BUFFER_SIZE);
         return audioRecordStreamProvider.start();
     }
 
@@ -410,16 +436,28 @@ public class VinylCastService extends MediaBrowserServiceCompat {
         return success;
     }
 
-    private boolean startAudioConverter(AudioStreamProvider rawAudioStream, int audioBufferSize) {
+    private boolean startAudioConverter(AudioStreamProvider rawAudioStream, @AudioStreamProvider.AudioEncoding int audioEncoding) {
         try {
-            convertAudioStreamProvider = new ConvertAudioStreamProvider(rawAudioStream, audioBufferSize);
-            convertAudioThread = new Thread(convertAudioStreamProvider, "ConvertAudio");
-            convertAudioThread.start();
-            return true;
-        } catch (IOException e) {
-            Timber.e(e,"Exception starting audio record task.");
+            if (audioEncoding == AUDIO_ENCODING_OPUS) {
+                if (!OpusAudioStreamProvider.isOpusEncoderAvailable()) {
+                    Timber.e("No Opus encoder available on this device.");
+                    return false;
+                }
+                convertAudioStreamProvider = new OpusAudioStreamProvider(rawAudioStream);
+            } else if (audioEncoding == AUDIO_ENCODING_FLAC) {
+                convertAudioStreamProvider = new FlacAudioStreamProvider(rawAudioStream);
+            } else {
+                int bitRate = ConvertAudioStreamProvider.getConvertAudioStreamBitRate(this);
+                @ConvertAudioStreamProvider.AacProfile int aacProfile = ConvertAudioStreamProvider.getConvertAudioStreamAacProfile(this);
+                convertAudioStreamProvider = new ConvertAudioStreamProvider(rawAudioStream, bitRate, aacProfile);
+            }
+        } catch (IllegalArgumentException e) {
+            Timber.e(e, "Unsupported audio format for encoding.");
             return false;
         }
+        convertAudioThread = new Thread((Runnable) convertAudioStreamProvider, "ConvertAudio");
+        convertAudioThread.start();
+        return true;
     }
 
     private boolean stopAudioConverter() {
@@ -432,14 +470,32 @@ public class VinylCastService extends MediaBrowserServiceCompat {
     }
 
     private boolean startHttpServer(AudioStreamProvider audioStreamProvider) {
+        @AudioChunkBuffer.SlowConsumerPolicy int slowClientPolicy = VinylCastHelpers.getSharedPreferenceStringAsInteger(this, R.string.prefs_key_slow_client_policy, R.string.prefs_default_slow_client_policy);
+        @HttpStreamServer.HttpServerType int httpServerType = VinylCastHelpers.getSharedPreferenceStringAsInteger(this, R.string.prefs_key_http_server_type, R.string.prefs_default_http_server_type);
         try {
-            httpStreamServer = new HttpStreamServerImpl(
-                    this,
-                    HttpStreamServer.HTTP_SERVER_URL_PATH,
-                    HttpStreamServer.HTTP_SERVER_PORT,
-                    audioStreamProvider.getAudioEncoding(),
-                    audioStreamProvider.getAudioInputStream(),
-                    AUDIO_STREAM_BUFFER_SIZE);
+            switch (httpServerType) {
+                case HttpStreamServer.HTTP_SERVER_TYPE_NANOHTTPD:
+                    httpStreamServer = new HttpStreamServerImpl(
+                            this,
+                            HttpStreamServer.HTTP_SERVER_URL_PATH,
+                            HttpStreamServer.HTTP_SERVER_PORT,
+                            audioStreamProvider,
+                            AUDIO_STREAM_BUFFER_SIZE,
+                            slowClientPolicy,
+                            HTTP_CLIENT_MAX_LAG_MS);
+                    break;
+                case HttpStreamServer.HTTP_SERVER_TYPE_NIO:
+                default:
+                    httpStreamServer = new NioHttpStreamServer(
+                            this,
+                            HttpStreamServer.HTTP_SERVER_URL_PATH,
+                            HttpStreamServer.HTTP_SERVER_PORT,
+                            audioStreamProvider,
+                            AUDIO_STREAM_BUFFER_SIZE,
+                            slowClientPolicy,
+                            HTTP_CLIENT_MAX_LAG_MS);
+                    break;
+            }
             httpStreamServer.start();
             return true;
         } catch (IOException e) {
@@ -457,23 +513,21 @@ public class VinylCastService extends MediaBrowserServiceCompat {
         return true;
     }
 
-    private boolean startAudioVisualizer(
-            final InputStream rawAudioInputStream,
-            final int sampleRate,
-            int fftLength,
-            int fftBins) {
-        audioVisualizer = new AudioVisualizer(
-                rawAudioInputStream,
-                AUDIO_STREAM_BUFFER_SIZE,
-                sampleRate,
-                fftLength,
-                fftBins,
-                audioVisualizerListeners);
-        audioVisualizer.start();
+    private boolean startAudioVisualizer(int fftLength, int hopLength, int fftBins, int decimation) {
+        audioVisualizer = new AudioVisualizer(fftLength, hopLength, fftBins, decimation, audioVisualizerListeners);
+        // no one sees the visualizer with the screen off, pause the analysis until it's back on
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        audioVisualizer.setScreenOn(powerManager.isInteractive());
+        if (!audioVisualizer.start()) {
+            audioVisualizer = null;
+            return false;
+        }
+        registerForScreenState();
         return true;
     }
 
     private boolean stopAudioVisualizer() {
+        unregisterForScreenState();
         if (audioVisualizer != null) {
             audioVisualizer.stop();
             audioVisualizer = null;
@@ -511,6 +565,20 @@ public class VinylCastService extends MediaBrowserServiceCompat {
         }
     }
 
+    private void registerForScreenState() {
+        screenStateReceiver = new ScreenStateReceiver();
+        IntentFilter screenStateIntentFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenStateIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(screenStateReceiver, screenStateIntentFilter);
+    }
+
+    private void unregisterForScreenState() {
+        if (screenStateReceiver != null) {
+            unregisterReceiver(screenStateReceiver);
+            screenStateReceiver = null;
+        }
+    }
+
     private void updateMediaSession() {
         int state = isRecording() ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_STOPPED;
         long action = isRecording() ? PlaybackStateCompat.ACTION_STOP : PlaybackStateCompat.ACTION_PLAY;
@@ -532,9 +600,24 @@ public class VinylCastService extends MediaBrowserServiceCompat {
         RemoteMediaClient remoteMediaClient = ((VinylCastApplication)getApplication()).getCastSessionManager().getCurrentCastSession().getRemoteMediaClient();
         if (isRecording() && httpStreamServer != null) {
             MediaMetadata audioMetadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MUSIC_TRACK);
-            String url = httpStreamServer.getStreamUrl();
-            MediaInfo mediaInfo = new MediaInfo.Builder(url)
-                    .setContentType(httpStreamServer.getContentType())
+            @HttpStreamServer.CastDelivery int castDelivery = VinylCastHelpers.getSharedPreferenceStringAsInteger(this, R.string.prefs_key_cast_delivery, R.string.prefs_default_cast_delivery);
+            MediaInfo.Builder mediaInfoBuilder;
+            String hlsPlaylistUrl = httpStreamServer.getHlsPlaylistUrl();
+            String cmafManifestUrl = httpStreamServer.getCmafManifestUrl();
+            if (castDelivery == HttpStreamServer.CAST_DELIVERY_CMAF && cmafManifestUrl != null) {
+                // receivers fetch fragments while they are still being encoded
+                mediaInfoBuilder = new MediaInfo.Builder(cmafManifestUrl)
+                        .setContentType(DASH_CONTENT_TYPE);
+            } else if (castDelivery == HttpStreamServer.CAST_DELIVERY_HLS && hlsPlaylistUrl != null) {
+                // receivers fetch short segments and can recover from a dropped connection
+                mediaInfoBuilder = new MediaInfo.Builder(hlsPlaylistUrl)
+                        .setContentType(HLS_CONTENT_TYPE)
+                        .setHlsSegmentFormat(HlsSegmentFormat.AAC);
+            } else {
+                mediaInfoBuilder = new MediaInfo.Builder(httpStreamServer.getStreamUrl())
+                        .setContentType(httpStreamServer.getContentType());
+            }
+            MediaInfo mediaInfo = mediaInfoBuilder
                     .setStreamType(MediaInfo.STREAM_TYPE_LIVE)
                     .setStreamDuration(MediaInfo.UNKNOWN_DURATION)
                     .setMetadata(audioMetadata)
@@ -631,4 +714,13 @@ public class VinylCastService extends MediaBrowserServiceCompat {
             }
         }
     }
+
+    private class ScreenStateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (audioVisualizer != null) {
+                audioVisualizer.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+            }
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package tech.schober.vinylcast.audio;
+
+/**
+ * Immutable chunk of audio data published once to an AudioChunkBuffer and shared by every
+ * consumer reading it. The data array must never be modified after publishing.
+ */
+public final class AudioChunk {
+    // capture time of audio that didn't come with one
+    public static final long NO_CAPTURE_TIME = 0;
+
+    private final long sequence;
+    private final byte[] data;
+    private final long publishTimeNanos;
+    private final long captureNanos;
+
+    AudioChunk(long sequence, byte[] data, long publishTimeNanos, long captureNanos) {
+        this.sequence = sequence;
+        this.data = data;
+        this.publishTimeNanos = publishTimeNanos;
+        this.captureNanos = captureNanos;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return data.length;
+    }
+
+    /**
+     * @return System.nanoTime() at which the chunk was published
+     */
+    public long getPublishTimeNanos() {
+        return publishTimeNanos;
+    }
+
+    /**
+     * @return System.nanoTime() at which the ADC captured the start of the chunk's audio, or
+     * NO_CAPTURE_TIME
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+}
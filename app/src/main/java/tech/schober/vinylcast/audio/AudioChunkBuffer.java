@@ -0,0 +1,400 @@
+package tech.schober.vinylcast.audio;
+
+import androidx.annotation.IntDef;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import tech.schober.vinylcast.utils.Metrics;
+
+/**
+ * Bounded single-producer / multi-consumer buffer of immutable AudioChunks.
+ * <p>
+ * Each chunk is published once and shared by every consumer. Each consumer holds a Cursor, its
+ * own bounded queue into the shared chunks, that can fall at most maxLagMillis (and never more
+ * than the buffer capacity) behind the newest chunk. What happens to a consumer that falls
+ * further behind is decided by its SlowConsumerPolicy. Publishing never blocks on a consumer.
+ */
+public class AudioChunkBuffer {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({SLOW_CONSUMER_DROP_OLDEST, SLOW_CONSUMER_SKIP_TO_LIVE, SLOW_CONSUMER_DISCONNECT})
+    public @interface SlowConsumerPolicy {}
+    // drop only the chunks older than maxLagMillis
+    public static final int SLOW_CONSUMER_DROP_OLDEST = 0;
+    // drop everything queued and continue from the newest chunk
+    public static final int SLOW_CONSUMER_SKIP_TO_LIVE = 1;
+    // close the consumer once it is maxLagMillis behind
+    public static final int SLOW_CONSUMER_DISCONNECT = 2;
+
+    // how long a blocked cursor parks before re-checking for close/interrupt
+    private static final long CURSOR_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AudioChunk[] slots;
+    private final int capacity;
+    private final int mask;
+
+    // sequence number of the next chunk to be published
+    private volatile long head = 0;
+    private volatile boolean closed = false;
+
+    // Copy-on-write array of cursors so the publisher can iterate without locking or allocating.
+    private volatile Cursor[] cursors = new Cursor[0];
+
+    /**
+     * Create an AudioChunkBuffer
+     * @param minCapacity minimum number of chunks held, rounded up to a power of two
+     */
+    public AudioChunkBuffer(int minCapacity) {
+        int size = Math.max(minCapacity, 2);
+        int powerOfTwo = Integer.highestOneBit(size);
+        this.capacity = powerOfTwo < size ? powerOfTwo << 1 : powerOfTwo;
+        this.mask = this.capacity - 1;
+        this.slots = new AudioChunk[this.capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getCursorCount() {
+        return cursors.length;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Publish a chunk, taking ownership of data which must not be modified afterwards.
+     * Must only be called from a single publishing thread. Never blocks.
+     * @return the published chunk or null if the buffer is closed
+     */
+    public AudioChunk publish(byte[] data) {
+        return publish(data, AudioChunk.NO_CAPTURE_TIME);
+    }
+
+    /**
+     * Publish a chunk of audio captured at captureNanos, see publish(byte[]).
+     */
+    public AudioChunk publish(byte[] data, long captureNanos) {
+        if (closed) {
+            return null;
+        }
+        long sequence = head;
+        AudioChunk chunk = new AudioChunk(sequence, data, System.nanoTime(), captureNanos);
+        slots[(int) (sequence & mask)] = chunk;
+        head = sequence + 1;
+        wakeCursors();
+        return chunk;
+    }
+
+    /**
+     * Copy length bytes of data into a new chunk and publish it.
+     */
+    public AudioChunk publish(byte[] data, int offset, int length) {
+        return publish(data, offset, length, AudioChunk.NO_CAPTURE_TIME);
+    }
+
+    public AudioChunk publish(byte[] data, int offset, int length, long captureNanos) {
+        return publish(Arrays.copyOfRange(data, offset, offset + length), captureNanos);
+    }
+
+    /**
+     * @return the newest published chunk or null if nothing has been published yet
+     */
+    public AudioChunk getNewestChunk() {
+        long newest = head - 1;
+        return newest < 0 ? null : chunkAt(newest);
+    }
+
+    /**
+     * Create a new cursor that starts with the next chunk published.
+     * Cursors should be closed when no longer needed.
+     */
+    public Cursor newCursor(@SlowConsumerPolicy int slowConsumerPolicy, long maxLagMillis) {
+        return addCursor(false, slowConsumerPolicy, maxLagMillis);
+    }
+
+    /**
+     * Create a new cursor that starts with the newest chunk already published, so a consumer of
+     * self-contained chunks (e.g. encoded frames) gets data right away and starts on a chunk
+     * boundary. Cursors should be closed when no longer needed.
+     */
+    public Cursor newCursorFromNewest(@SlowConsumerPolicy int slowConsumerPolicy, long maxLagMillis) {
+        return addCursor(true, slowConsumerPolicy, maxLagMillis);
+    }
+
+    private synchronized Cursor addCursor(boolean fromNewest, @SlowConsumerPolicy int slowConsumerPolicy, long maxLagMillis) {
+        long start = head;
+        if (fromNewest && start > 0) {
+            start--;
+        }
+        Cursor cursor = new Cursor(start, slowConsumerPolicy, maxLagMillis);
+        Cursor[] newCursors = Arrays.copyOf(cursors, cursors.length + 1);
+        newCursors[cursors.length] = cursor;
+        cursors = newCursors;
+        return cursor;
+    }
+
+    /**
+     * Close the buffer. Cursors will return any remaining chunks and then end of stream.
+     */
+    public void close() {
+        closed = true;
+        wakeCursors();
+    }
+
+    private AudioChunk chunkAt(long sequence) {
+        AudioChunk chunk = slots[(int) (sequence & mask)];
+        // slot may already hold a newer chunk if the publisher lapped this sequence
+        return (chunk != null && chunk.getSequence() == sequence) ? chunk : null;
+    }
+
+    private synchronized void removeCursor(Cursor cursor) {
+        Cursor[] current = cursors;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == cursor) {
+                Cursor[] newCursors = new Cursor[current.length - 1];
+                System.arraycopy(current, 0, newCursors, 0, i);
+                System.arraycopy(current, i + 1, newCursors, i, current.length - i - 1);
+                cursors = newCursors;
+                return;
+            }
+        }
+    }
+
+    private void wakeCursors() {
+        for (Cursor cursor : cursors) {
+            Thread waitingThread = cursor.waitingThread;
+            if (waitingThread != null) {
+                LockSupport.unpark(waitingThread);
+            }
+        }
+    }
+
+    /**
+     * A consumer's position in the shared chunks. Can be used chunk by chunk via nextChunk() or
+     * as a blocking InputStream.
+     */
+    public class Cursor extends InputStream {
+        private final @SlowConsumerPolicy int slowConsumerPolicy;
+        private final long maxLagNanos;
+
+        // only written by the consuming thread, read by others for lag checks and metrics
+        private volatile long nextSequence;
+        private volatile long skippedChunks = 0;
+        private volatile long consumedBytes = 0;
+        private Metrics.Histogram captureLatency;
+        private AudioChunk currentChunk;
+        private int currentOffset;
+        private volatile Thread waitingThread;
+        private volatile boolean cursorClosed = false;
+        private final byte[] singleByte = new byte[1];
+
+        private Cursor(long nextSequence, @SlowConsumerPolicy int slowConsumerPolicy, long maxLagMillis) {
+            this.nextSequence = nextSequence;
+            this.slowConsumerPolicy = slowConsumerPolicy;
+            this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        }
+
+        public @SlowConsumerPolicy int getSlowConsumerPolicy() {
+            return slowConsumerPolicy;
+        }
+
+        /**
+         * @return total number of chunks this cursor dropped because it fell behind
+         */
+        public long getSkippedChunks() {
+            return skippedChunks;
+        }
+
+        /**
+         * Record how long ago each chunk was captured as this cursor takes it.
+         */
+        public void setCaptureLatency(Metrics.Histogram captureLatency) {
+            this.captureLatency = captureLatency;
+        }
+
+        /**
+         * @return total length of the chunks this cursor has taken so far
+         */
+        public long getConsumedBytes() {
+            return consumedBytes;
+        }
+
+        /**
+         * @return number of published chunks this cursor has not consumed yet
+         */
+        public long getQueuedChunks() {
+            return Math.max(0, head - nextSequence);
+        }
+
+        /**
+         * @return how long ago the oldest unread chunk was published, 0 if caught up
+         */
+        public long getLagNanos() {
+            if (nextSequence >= head) {
+                return 0;
+            }
+            AudioChunk chunk = chunkAt(nextSequence);
+            // a lapped cursor is at least a full buffer behind
+            return chunk == null ? Long.MAX_VALUE : System.nanoTime() - chunk.getPublishTimeNanos();
+        }
+
+        public boolean isLagging() {
+            return getLagNanos() > maxLagNanos;
+        }
+
+        /**
+         * Close this cursor if it uses SLOW_CONSUMER_DISCONNECT and has fallen too far behind.
+         * Safe to call from the publishing thread, lets it evict consumers that are stuck in a
+         * blocking write without waiting for them.
+         * @return true if the cursor is closed
+         */
+        public boolean closeIfLagging() {
+            if (!cursorClosed && slowConsumerPolicy == SLOW_CONSUMER_DISCONNECT && isLagging()) {
+                close();
+            }
+            return cursorClosed;
+        }
+
+        public boolean isClosed() {
+            return cursorClosed;
+        }
+
+        /**
+         * Block until the next chunk is available.
+         * @return the next chunk or null once the buffer is closed and drained
+         */
+        public AudioChunk nextChunk() throws IOException {
+            while (true) {
+                AudioChunk chunk = pollChunk();
+                if (chunk != null) {
+                    return chunk;
+                }
+                if (closed) {
+                    // anything published before close is visible now
+                    return pollChunk();
+                }
+                awaitChunk();
+            }
+        }
+
+        /**
+         * Get the next chunk without blocking, for consumers driven by a selector or event loop.
+         * @return the next chunk or null if none has been published yet
+         */
+        public AudioChunk pollChunk() throws IOException {
+            while (true) {
+                if (cursorClosed) {
+                    throw new IOException("Cursor closed");
+                }
+                if (nextSequence >= head) {
+                    return null;
+                }
+                applySlowConsumerPolicy();
+                AudioChunk chunk = chunkAt(nextSequence);
+                if (chunk != null) {
+                    nextSequence++;
+                    consumedBytes += chunk.getLength();
+                    if (captureLatency != null && chunk.getCaptureNanos() != AudioChunk.NO_CAPTURE_TIME) {
+                        captureLatency.record(System.nanoTime() - chunk.getCaptureNanos());
+                    }
+                    return chunk;
+                }
+                // lapped between the policy check and the read so try again
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int bytesRead = read(singleByte, 0, 1);
+            return bytesRead < 0 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (currentChunk == null || currentOffset == currentChunk.getLength()) {
+                currentChunk = nextChunk();
+                currentOffset = 0;
+                if (currentChunk == null) {
+                    return -1;
+                }
+            }
+            int bytesRead = Math.min(len, currentChunk.getLength() - currentOffset);
+            System.arraycopy(currentChunk.getData(), currentOffset, b, off, bytesRead);
+            currentOffset += bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public int available() {
+            return currentChunk == null ? 0 : currentChunk.getLength() - currentOffset;
+        }
+
+        @Override
+        public void close() {
+            if (!cursorClosed) {
+                cursorClosed = true;
+                removeCursor(this);
+                Thread thread = waitingThread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        private void applySlowConsumerPolicy() throws IOException {
+            if (!isLagging()) {
+                return;
+            }
+
+            long newest = head - 1;
+            long previousSequence = nextSequence;
+            switch (slowConsumerPolicy) {
+                case SLOW_CONSUMER_DROP_OLDEST:
+                    long now = System.nanoTime();
+                    while (nextSequence < newest) {
+                        AudioChunk chunk = chunkAt(nextSequence);
+                        if (chunk != null && now - chunk.getPublishTimeNanos() <= maxLagNanos) {
+                            break;
+                        }
+                        nextSequence++;
+                    }
+                    break;
+                case SLOW_CONSUMER_SKIP_TO_LIVE:
+                    nextSequence = newest;
+                    break;
+                case SLOW_CONSUMER_DISCONNECT:
+                    close();
+                    throw new IOException("Consumer fell more than " + TimeUnit.NANOSECONDS.toMillis(maxLagNanos) + "ms behind");
+            }
+            skippedChunks += nextSequence - previousSequence;
+        }
+
+        private void awaitChunk() throws InterruptedIOException {
+            waitingThread = Thread.currentThread();
+            try {
+                // re-check after publishing waitingThread so we can't miss a wake up
+                if (nextSequence >= head && !closed && !cursorClosed) {
+                    LockSupport.parkNanos(this, CURSOR_PARK_NANOS);
+                }
+            } finally {
+                waitingThread = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted waiting for audio chunk");
+            }
+        }
+    }
+}
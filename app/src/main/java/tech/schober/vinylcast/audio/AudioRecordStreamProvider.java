@@ -1,18 +1,16 @@
 package tech.schober.vinylcast.audio;
 
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.IntDef;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
-import tech.schober.vinylcast.utils.VinylCastHelpers;
+import tech.schober.vinylcast.utils.Metrics;
 
 public class AudioRecordStreamProvider implements AudioStreamProvider {
 
@@ -27,13 +25,51 @@ public class AudioRecordStreamProvider implements AudioStreamProvider {
     public static final int AUDIO_DEVICE_ID_NONE = -1;
     public static final int AUDIO_DEVICE_ID_AUTO_SELECT = 0;
 
+    // number of bufferSize buffers held by the shared audio ring (~1.4 sec at 48kHz 16-bit stereo,
+    // scaled up for wider samples to hold the same duration)
+    private static final int AUDIO_RING_BUFFER_COUNT = 32;
+
     protected int bufferSize;
-    private CopyOnWriteArrayList<OutputStream> nativeAudioWriteStreams = new CopyOnWriteArrayList<>();
+    // audio in the format the native streams run in
+    private AudioRingBuffer audioRingBuffer;
+    // the same audio converted to 16 bit once for all consumers needing it, null until requested
+    // or if the native format is already 16 bit
+    private volatile AudioRingBuffer i16AudioRingBuffer;
+    // only used on the native consumer thread
+    private byte[] i16ConvertBuffer;
+    // native counters are copied here when the metrics are rendered
+    private final long[] pipelineStats = new long[NativeAudioEngine.PIPELINE_STAT_COUNT];
+    private final Metrics.Collector nativeMetricsCollector = new Metrics.Collector() {
+        @Override
+        public void collect(Metrics.Writer writer) {
+            synchronized (pipelineStats) {
+                if (!NativeAudioEngine.getPipelineStats(pipelineStats)) {
+                    return;
+                }
+                writer.counter("vinylcast_native_callbacks_total", "Native audio callbacks", pipelineStats[NativeAudioEngine.PIPELINE_STAT_CALLBACK_COUNT]);
+                writer.summary("vinylcast_native_callback_seconds", "Time per native audio callback", null, null,
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_CALLBACK_COUNT],
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_CALLBACK_TOTAL_NANOS],
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_CALLBACK_MAX_NANOS]);
+                writer.counter("vinylcast_native_overruns_total", "Native callbacks whose audio was dropped because Java fell behind", pipelineStats[NativeAudioEngine.PIPELINE_STAT_OVERRUN_COUNT]);
+                writer.counter("vinylcast_native_dropped_frames_total", "Audio frames dropped because Java fell behind", pipelineStats[NativeAudioEngine.PIPELINE_STAT_DROPPED_FRAME_COUNT]);
+                writer.gauge("vinylcast_native_queued_bytes", "Audio waiting to be handed to Java", pipelineStats[NativeAudioEngine.PIPELINE_STAT_QUEUED_BYTES]);
+                writer.counter("vinylcast_declicker_repairs_total", "Clicks repaired by the declicker", pipelineStats[NativeAudioEngine.PIPELINE_STAT_DECLICKER_REPAIR_COUNT]);
+                writer.gauge("vinylcast_declicker_latency_seconds", "Delay added by the declicker's lookahead",
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_DECLICKER_LATENCY_NANOS] / (double) TimeUnit.SECONDS.toNanos(1));
+                writer.summary("vinylcast_native_input_latency_seconds", "Time from capture to native audio callback", null, null,
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_INPUT_LATENCY_COUNT],
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_INPUT_LATENCY_TOTAL_NANOS],
+                        pipelineStats[NativeAudioEngine.PIPELINE_STAT_INPUT_LATENCY_MAX_NANOS]);
+            }
+        }
+    };
 
-    public AudioRecordStreamProvider(int recordingDeviceId, int playbackDeviceId, boolean lowLatency, int bufferSize) {
+    public AudioRecordStreamProvider(int recordingDeviceId, int playbackDeviceId, boolean lowLatency, int declickerLookaheadMillis, int bufferSize) {
         NativeAudioEngine.setRecordingDeviceId(recordingDeviceId);
         NativeAudioEngine.setPlaybackDeviceId(playbackDeviceId);
         NativeAudioEngine.setLowLatency(lowLatency);
+        NativeAudioEngine.setDeclickerLookahead(declickerLookaheadMillis);
         this.bufferSize = bufferSize;
     }
 
@@ -45,59 +81,92 @@ public class AudioRecordStreamProvider implements AudioStreamProvider {
             Log.w(TAG, "Failed to Prepare to Record.");
             return false;
         }
-        Log.d(TAG, "Prepared to Record - sampleRate: " + NativeAudioEngine.getSampleRate() +", channel count: " + NativeAudioEngine.getChannelCount());
+        Log.d(TAG, "Prepared to Record - sampleRate: " + NativeAudioEngine.getSampleRate() +", channel count: " + NativeAudioEngine.getChannelCount() + ", sample format: " + NativeAudioEngine.getSampleFormat());
+
+        // single shared ring of raw audio, each consumer gets its own read cursor
+        int bytesPerSample = AudioStreamProvider.getBytesPerSample(NativeAudioEngine.getSampleFormat());
+        int frameSize = NativeAudioEngine.getChannelCount() * bytesPerSample;
+        audioRingBuffer = new AudioRingBuffer(bufferSize * AUDIO_RING_BUFFER_COUNT * bytesPerSample / 2, frameSize, NativeAudioEngine.getSampleRate());
+        i16AudioRingBuffer = null;
 
-        // callback from NativeAudioEngine with audioData will end up on own thread
+        // callback from NativeAudioEngine with audioData will end up on native consumer thread
         NativeAudioEngine.setAudioDataListener(new NativeAudioEngineListener() {
             @Override
-            public void onAudioData(byte[] audioData) {
-                //Log.v(TAG, "audioData.length: " + audioData.length);
-                for (OutputStream writeStream : nativeAudioWriteStreams) {
-                    try {
-                        writeStream.write(audioData);
-                        writeStream.flush();
-                    } catch (IOException e) {
-                        Log.w(TAG, "Exception writing to raw audio output stream. Removing from list of streams.", e);
-                        nativeAudioWriteStreams.remove(writeStream);
-                    }
+            public void onAudioData(ByteBuffer audioData, int offset, int length, long captureNanos) {
+                //Log.v(TAG, "audioData length: " + length);
+                Metrics.AUDIO_RECEIVED_BYTES.add(length);
+                if (captureNanos != AudioChunk.NO_CAPTURE_TIME) {
+                    Metrics.CAPTURE_LATENCY_ENGINE.record(System.nanoTime() - captureNanos);
                 }
-
-                if (nativeAudioWriteStreams.isEmpty()) {
-                    Log.e(TAG, "No open write streams.");
+                audioRingBuffer.write(audioData, offset, length, captureNanos);
+                AudioRingBuffer i16Ring = i16AudioRingBuffer;
+                if (i16Ring != null) {
+                    int i16Length = length / 2;
+                    if (i16ConvertBuffer == null || i16ConvertBuffer.length < i16Length) {
+                        i16ConvertBuffer = new byte[i16Length];
+                    }
+                    NativeAudioEngine.convertFloatToI16(audioData, offset, length, i16ConvertBuffer);
+                    i16Ring.write(i16ConvertBuffer, 0, i16Length, captureNanos);
                 }
             }
         });
 
+        Metrics.reset();
+        Metrics.addCollector(nativeMetricsCollector);
         return NativeAudioEngine.startRecording();
     }
 
     public boolean stop() {
         Log.d(TAG, "stop");
 
-        try {
-            for (OutputStream writeStream : nativeAudioWriteStreams) {
-                nativeAudioWriteStreams.remove(writeStream);
-                writeStream.close();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Exception closing streams", e);
+        Metrics.removeCollector(nativeMetricsCollector);
+        boolean stopSuccess = NativeAudioEngine.stopRecording();
+        Log.d(TAG, "Stopped Recording - overruns: " + NativeAudioEngine.getOverrunCount() + ", dropped frames: " + NativeAudioEngine.getDroppedFrameCount());
+        if (NativeAudioEngine.getDeclickerLatencyMillis() > 0) {
+            Log.d(TAG, "Declicker - latency: " + NativeAudioEngine.getDeclickerLatencyMillis() + "ms, clicks repaired: " + NativeAudioEngine.getDeclickerRepairCount()
+                    + ", time per callback: " + NativeAudioEngine.getDeclickerAverageMicros() + "us avg, " + NativeAudioEngine.getDeclickerMaxMicros() + "us max");
         }
-
-        return NativeAudioEngine.stopRecording();
+        if (audioRingBuffer != null) {
+            audioRingBuffer.close();
+        }
+        if (i16AudioRingBuffer != null) {
+            i16AudioRingBuffer.close();
+        }
+        return stopSuccess;
     }
 
     @Override
     public InputStream getAudioInputStream() {
         Log.d(TAG, "getAudioInputStream");
-        Pair<OutputStream, InputStream> audioStreams;
-        try {
-            audioStreams = VinylCastHelpers.getPipedAudioStreams(bufferSize);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception creating audio stream", e);
+        if (audioRingBuffer == null) {
+            Log.e(TAG, "Audio ring buffer not created yet. Need to call start() first.");
             return null;
         }
-        nativeAudioWriteStreams.add(audioStreams.first);
-        return audioStreams.second;
+        return audioRingBuffer.newReader();
+    }
+
+    /**
+     * Float audio is converted to 16 bit once, into a second ring shared by every 16 bit consumer.
+     */
+    @Override
+    public InputStream getAudioInputStream(@SampleFormat int sampleFormat) {
+        if (sampleFormat == getSampleFormat()) {
+            return getAudioInputStream();
+        }
+        if (sampleFormat != SAMPLE_FORMAT_I16 || getSampleFormat() != SAMPLE_FORMAT_FLOAT) {
+            throw new IllegalArgumentException("Sample format " + sampleFormat + " not available from " + getSampleFormat());
+        }
+        if (audioRingBuffer == null) {
+            Log.e(TAG, "Audio ring buffer not created yet. Need to call start() first.");
+            return null;
+        }
+        synchronized (this) {
+            if (i16AudioRingBuffer == null) {
+                Log.d(TAG, "Converting float audio to 16 bit");
+                i16AudioRingBuffer = new AudioRingBuffer(audioRingBuffer.getCapacity() / 2, audioRingBuffer.getFrameSize() / 2, NativeAudioEngine.getSampleRate());
+            }
+            return i16AudioRingBuffer.newReader();
+        }
     }
 
     @Override
@@ -110,6 +179,11 @@ public class AudioRecordStreamProvider implements AudioStreamProvider {
         return NativeAudioEngine.getChannelCount();
     }
 
+    @Override
+    public @SampleFormat int getSampleFormat() {
+        return NativeAudioEngine.getSampleFormat();
+    }
+
     @Override
     public int getAudioEncoding() {
         return AUDIO_ENCODING_WAV;
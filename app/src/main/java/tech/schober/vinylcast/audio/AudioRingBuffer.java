@@ -0,0 +1,449 @@
+package tech.schober.vinylcast.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single-producer / multi-consumer ring buffer of raw audio bytes.
+ * <p>
+ * There is exactly one writer (the native audio callback) and any number of readers, each with
+ * its own read cursor. The writer never blocks and never waits for readers: a reader that falls
+ * more than the buffer capacity behind is moved forward to the oldest data still available and
+ * the skipped bytes are counted. Adding a consumer costs a cursor rather than a copy plus a lock.
+ * <p>
+ * If the sample rate is known, readers can also tell when the audio they are about to read was
+ * captured. The writer passes the capture time along with each write and the ring keeps it as the
+ * capture time of position 0, from which any position's follows. Dropped audio or clock drift
+ * only shift it by the next write.
+ * <p>
+ * A reader finds out it was lapped by checking writeLimit before and after copying. A volatile
+ * read alone doesn't keep the copy's plain reads from moving after the second check, nor a
+ * volatile write the writer's plain stores from moving before publishing writeLimit, so both
+ * sides update writeLimit with a read-modify-write, which orders in both directions. VarHandle
+ * fences would do the same but need API 33.
+ */
+public class AudioRingBuffer {
+    // how long a blocked reader parks before re-checking for close/interrupt
+    private static final long READER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final AtomicLongFieldUpdater<AudioRingBuffer> WRITE_LIMIT =
+            AtomicLongFieldUpdater.newUpdater(AudioRingBuffer.class, "writeLimit");
+
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+    private final int frameSize;
+    private final int sampleRate;
+
+    // Total number of bytes the writer has reserved (written or being written).
+    private volatile long writeLimit = 0;
+    // Total number of bytes the writer has published to readers.
+    private volatile long writePosition = 0;
+    private volatile boolean closed = false;
+    // System.nanoTime() the audio at position 0 would have been captured
+    private volatile long captureBaseNanos = AudioChunk.NO_CAPTURE_TIME;
+
+    // Copy-on-write array of readers so the writer can iterate without locking or allocating.
+    private volatile Reader[] readers = new Reader[0];
+
+    /**
+     * Create an AudioRingBuffer
+     * @param minCapacity minimum size of the ring in bytes, rounded up to a power of two
+     * @param frameSize size of one audio frame in bytes, readers are always kept frame aligned
+     */
+    public AudioRingBuffer(int minCapacity, int frameSize) {
+        this(minCapacity, frameSize, 0);
+    }
+
+    /**
+     * Create an AudioRingBuffer keeping track of capture times
+     * @param sampleRate frames per second, 0 if unknown and capture times aren't tracked
+     */
+    public AudioRingBuffer(int minCapacity, int frameSize, int sampleRate) {
+        if (frameSize <= 0) {
+            throw new IllegalArgumentException("frameSize must be positive: " + frameSize);
+        }
+        int size = Math.max(minCapacity, frameSize);
+        int powerOfTwo = Integer.highestOneBit(size);
+        this.capacity = powerOfTwo < size ? powerOfTwo << 1 : powerOfTwo;
+        this.mask = this.capacity - 1;
+        this.frameSize = frameSize;
+        this.sampleRate = sampleRate;
+        this.buffer = new byte[this.capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getReaderCount() {
+        return readers.length;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Write audio data to the ring and wake any waiting readers. Must only be called from a
+     * single writer thread. Never blocks.
+     */
+    public void write(byte[] data, int offset, int length) {
+        if (closed || length <= 0) {
+            return;
+        }
+
+        long position = writePosition;
+        if (length > capacity) {
+            // only the newest capacity bytes can ever be read
+            position += length - capacity;
+            offset += length - capacity;
+            length = capacity;
+        }
+        // the ring stores below must not move before this, see class doc
+        WRITE_LIMIT.getAndSet(this, position + length);
+
+        int index = (int) (position & mask);
+        int firstPart = Math.min(length, capacity - index);
+        System.arraycopy(data, offset, buffer, index, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(data, offset + firstPart, buffer, 0, length - firstPart);
+        }
+
+        writePosition = position + length;
+        wakeReaders();
+    }
+
+    /**
+     * Write audio data captured at captureNanos, see write(byte[], int, int).
+     * @param captureNanos System.nanoTime() the first frame was captured or NO_CAPTURE_TIME
+     */
+    public void write(byte[] data, int offset, int length, long captureNanos) {
+        setCaptureNanos(captureNanos);
+        write(data, offset, length);
+    }
+
+    /**
+     * Write audio data captured at captureNanos, see write(ByteBuffer, int, int).
+     * @param captureNanos System.nanoTime() the first frame was captured or NO_CAPTURE_TIME
+     */
+    public void write(ByteBuffer data, int offset, int length, long captureNanos) {
+        setCaptureNanos(captureNanos);
+        write(data, offset, length);
+    }
+
+    /**
+     * Write audio data from a (typically direct) ByteBuffer to the ring. The position of data is
+     * modified. Must only be called from a single writer thread. Never blocks.
+     */
+    public void write(ByteBuffer data, int offset, int length) {
+        if (closed || length <= 0) {
+            return;
+        }
+
+        long position = writePosition;
+        if (length > capacity) {
+            // only the newest capacity bytes can ever be read
+            position += length - capacity;
+            offset += length - capacity;
+            length = capacity;
+        }
+        // the ring stores below must not move before this, see class doc
+        WRITE_LIMIT.getAndSet(this, position + length);
+
+        int index = (int) (position & mask);
+        int firstPart = Math.min(length, capacity - index);
+        data.position(offset);
+        data.get(buffer, index, firstPart);
+        if (firstPart < length) {
+            data.get(buffer, 0, length - firstPart);
+        }
+
+        writePosition = position + length;
+        wakeReaders();
+    }
+
+    /**
+     * @return System.nanoTime() the audio at position was captured, or NO_CAPTURE_TIME
+     */
+    public long getCaptureNanos(long position) {
+        long base = captureBaseNanos;
+        return base == AudioChunk.NO_CAPTURE_TIME ? AudioChunk.NO_CAPTURE_TIME : base + positionToNanos(position);
+    }
+
+    private void setCaptureNanos(long captureNanos) {
+        if (sampleRate > 0 && captureNanos != AudioChunk.NO_CAPTURE_TIME) {
+            captureBaseNanos = captureNanos - positionToNanos(writePosition);
+        }
+    }
+
+    private long positionToNanos(long position) {
+        long frames = position / frameSize;
+        // split so the multiplication can't overflow however long we record
+        return frames / sampleRate * TimeUnit.SECONDS.toNanos(1) + frames % sampleRate * TimeUnit.SECONDS.toNanos(1) / sampleRate;
+    }
+
+    /**
+     * Create a new reader positioned at the current write position.
+     * Readers should be closed when no longer needed.
+     */
+    public synchronized Reader newReader() {
+        Reader reader = new Reader(writePosition);
+        Reader[] newReaders = Arrays.copyOf(readers, readers.length + 1);
+        newReaders[readers.length] = reader;
+        readers = newReaders;
+        return reader;
+    }
+
+    /**
+     * Close the ring. Readers will return any remaining data and then end of stream.
+     */
+    public void close() {
+        closed = true;
+        wakeReaders();
+    }
+
+    private synchronized void removeReader(Reader reader) {
+        Reader[] current = readers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == reader) {
+                Reader[] newReaders = new Reader[current.length - 1];
+                System.arraycopy(current, 0, newReaders, 0, i);
+                System.arraycopy(current, i + 1, newReaders, i, current.length - i - 1);
+                readers = newReaders;
+                return;
+            }
+        }
+    }
+
+    private void wakeReaders() {
+        for (Reader reader : readers) {
+            Thread waitingThread = reader.waitingThread;
+            if (waitingThread != null) {
+                LockSupport.unpark(waitingThread);
+            }
+        }
+    }
+
+    /**
+     * An independent read cursor into the ring exposed as a blocking InputStream so existing
+     * AudioStreamProvider consumers keep working.
+     */
+    public class Reader extends InputStream {
+        private long readPosition;
+        private long skippedBytes = 0;
+        private volatile Thread waitingThread;
+        private volatile boolean readerClosed = false;
+        private final byte[] singleByte = new byte[1];
+
+        private Reader(long readPosition) {
+            this.readPosition = readPosition;
+        }
+
+        /**
+         * @return System.nanoTime() the next byte to read was captured, or NO_CAPTURE_TIME
+         */
+        public long getCaptureNanos() {
+            return AudioRingBuffer.this.getCaptureNanos(readPosition);
+        }
+
+        /**
+         * @return total number of bytes this reader lost because it fell too far behind the writer
+         */
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        public boolean isClosed() {
+            return readerClosed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int bytesRead = read(singleByte, 0, 1);
+            return bytesRead < 0 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int bytesToRead = awaitAvailable(len);
+                if (bytesToRead < 0) {
+                    return -1;
+                }
+                if (copyFromRing(b, off, bytesToRead) > 0) {
+                    return bytesToRead;
+                }
+                // writer lapped us mid-copy, cursor was moved forward so try again
+            }
+        }
+
+        /**
+         * Read into dst straight out of the ring, blocking until at least one byte is available.
+         * Lets consumers such as MediaCodec input buffers skip an intermediate byte[].
+         * @return number of bytes read or -1 at end of stream
+         */
+        public int read(ByteBuffer dst) throws IOException {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            while (true) {
+                int bytesToRead = awaitAvailable(dst.remaining());
+                if (bytesToRead < 0) {
+                    return -1;
+                }
+                if (copyFromRing(dst, bytesToRead) > 0) {
+                    return bytesToRead;
+                }
+                // writer lapped us mid-copy, cursor was moved forward so try again
+            }
+        }
+
+        /**
+         * Block until dst is full.
+         * @return number of bytes read, fewer than requested only at end of stream (-1 if none)
+         */
+        public int readFully(ByteBuffer dst) throws IOException {
+            int totalBytesRead = 0;
+            while (dst.hasRemaining()) {
+                int bytesRead = read(dst);
+                if (bytesRead < 0) {
+                    return totalBytesRead == 0 ? -1 : totalBytesRead;
+                }
+                totalBytesRead += bytesRead;
+            }
+            return totalBytesRead;
+        }
+
+        @Override
+        public int available() {
+            long available = writePosition - readPosition;
+            return (int) Math.max(0, Math.min(available, capacity));
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, writePosition - readPosition));
+            readPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            if (!readerClosed) {
+                readerClosed = true;
+                removeReader(this);
+                Thread thread = waitingThread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        /**
+         * Block until data is available.
+         * @return number of bytes that can be read now, at most len, or -1 at end of stream
+         */
+        private int awaitAvailable(int len) throws IOException {
+            while (true) {
+                if (readerClosed) {
+                    throw new IOException("Reader closed");
+                }
+                long available = writePosition - readPosition;
+                if (available > 0) {
+                    return (int) Math.min(len, Math.min(available, capacity));
+                }
+                if (closed) {
+                    return -1;
+                }
+                awaitData();
+            }
+        }
+
+        private int copyFromRing(byte[] b, int off, int len) {
+            if (writeLimit - readPosition > capacity) {
+                resyncToOldest();
+                return 0;
+            }
+
+            int index = (int) (readPosition & mask);
+            int firstPart = Math.min(len, capacity - index);
+            System.arraycopy(buffer, index, b, off, firstPart);
+            if (firstPart < len) {
+                System.arraycopy(buffer, 0, b, off + firstPart, len - firstPart);
+            }
+
+            // the writer may have overwritten what we just copied, if so discard it. The copy's
+            // reads must not move after this check, see class doc
+            if (WRITE_LIMIT.getAndAdd(AudioRingBuffer.this, 0) - readPosition > capacity) {
+                resyncToOldest();
+                return 0;
+            }
+            readPosition += len;
+            return len;
+        }
+
+        private int copyFromRing(ByteBuffer dst, int len) {
+            if (writeLimit - readPosition > capacity) {
+                resyncToOldest();
+                return 0;
+            }
+
+            int startPosition = dst.position();
+            int index = (int) (readPosition & mask);
+            int firstPart = Math.min(len, capacity - index);
+            dst.put(buffer, index, firstPart);
+            if (firstPart < len) {
+                dst.put(buffer, 0, len - firstPart);
+            }
+
+            // the writer may have overwritten what we just copied, if so discard it. The copy's
+            // reads must not move after this check, see class doc
+            if (WRITE_LIMIT.getAndAdd(AudioRingBuffer.this, 0) - readPosition > capacity) {
+                dst.position(startPosition);
+                resyncToOldest();
+                return 0;
+            }
+            readPosition += len;
+            return len;
+        }
+
+        private void resyncToOldest() {
+            // jump to the oldest frame aligned position the writer can't be touching
+            long oldest = writeLimit - capacity + frameSize;
+            long remainder = oldest % frameSize;
+            if (remainder != 0) {
+                oldest += frameSize - remainder;
+            }
+            skippedBytes += oldest - readPosition;
+            readPosition = oldest;
+        }
+
+        private void awaitData() throws InterruptedIOException {
+            waitingThread = Thread.currentThread();
+            try {
+                // re-check after publishing waitingThread so we can't miss a wake up
+                if (writePosition == readPosition && !closed && !readerClosed) {
+                    LockSupport.parkNanos(this, READER_PARK_NANOS);
+                }
+            } finally {
+                waitingThread = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted waiting for audio data");
+            }
+        }
+    }
+}
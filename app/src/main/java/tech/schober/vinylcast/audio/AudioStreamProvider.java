@@ -8,13 +8,60 @@ import java.lang.annotation.RetentionPolicy;
 
 public interface AudioStreamProvider {
     @Retention(RetentionPolicy.SOURCE)
-    @IntDef({AUDIO_ENCODING_WAV, AUDIO_ENCODING_AAC})
+    @IntDef({AUDIO_ENCODING_WAV, AUDIO_ENCODING_AAC, AUDIO_ENCODING_OPUS, AUDIO_ENCODING_FLAC})
     @interface AudioEncoding {}
     int AUDIO_ENCODING_WAV = 0;
     int AUDIO_ENCODING_AAC = 1;
+    int AUDIO_ENCODING_OPUS = 2;
+    int AUDIO_ENCODING_FLAC = 3;
+
+    // values match oboe::AudioFormat
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({SAMPLE_FORMAT_I16, SAMPLE_FORMAT_FLOAT})
+    @interface SampleFormat {}
+    int SAMPLE_FORMAT_I16 = 1;
+    int SAMPLE_FORMAT_FLOAT = 2;
 
     InputStream getAudioInputStream();
+
+    /**
+     * For PCM providers, a stream of the same audio in sampleFormat. Providers offering more than
+     * their own format convert once for all consumers of a format.
+     * @throws IllegalArgumentException if the audio isn't available in sampleFormat
+     */
+    default InputStream getAudioInputStream(@SampleFormat int sampleFormat) {
+        if (sampleFormat != getSampleFormat()) {
+            throw new IllegalArgumentException("Sample format " + sampleFormat + " not available, only " + getSampleFormat());
+        }
+        return getAudioInputStream();
+    }
+
+    /**
+     * @return buffer of self-contained chunks (e.g. encoded frames) shared by all consumers, or
+     * null if the audio is only available as a stream via getAudioInputStream()
+     */
+    default AudioChunkBuffer getAudioChunkBuffer() {
+        return null;
+    }
+
+    /**
+     * @return bytes every consumer must receive before its first chunk (e.g. Ogg header pages),
+     * or null if the stream has no such header
+     */
+    default byte[] getStreamHeader() {
+        return null;
+    }
+
     int getSampleRate();
     int getChannelCount();
+
+    /**
+     * @return format of the PCM samples, for encoded streams the format they decode to
+     */
+    @SampleFormat int getSampleFormat();
     int getAudioEncoding();
+
+    static int getBytesPerSample(@SampleFormat int sampleFormat) {
+        return sampleFormat == SAMPLE_FORMAT_FLOAT ? 4 : 2;
+    }
 }
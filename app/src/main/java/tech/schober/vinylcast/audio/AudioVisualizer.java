@@ -2,126 +2,153 @@ package tech.schober.vinylcast.audio;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Process;
-import android.util.Log;
+import android.view.Choreographer;
 
-import java.io.InputStream;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import github.bewantbe.audio_analyzer_for_android.STFT;
 import timber.log.Timber;
 
-public class AudioVisualizer {
+/**
+ * Hands the spectrum the native engine computes from the recorded audio to listeners, on the
+ * display frame after it was published. No audio data reaches Java for this, only fftBins values
+ * per spectrum, and reading them never blocks: the native side publishes through a lock-free
+ * triple buffer.
+ *
+ * Frames are not polled. The native engine reports each publish and only then is a single frame
+ * callback posted, so when no audio arrives, say while recording is stalled, there are no frame
+ * callbacks and no JNI calls at all.
+ *
+ * Analysis only runs while there is someone to show it to, that is while listeners are
+ * registered and the screen is on, so nothing is spent on it while the app sits in the
+ * background. Nothing is allocated per frame either: results alternate between two preallocated
+ * arrays, so the array a listener got stays unchanged until the update after next.
+ *
+ * All methods are called on the main thread, which is also where listeners are called. Only the
+ * publish notification comes from the native audio data thread, and it just posts to the main
+ * thread, at most once per frame.
+ */
+public class AudioVisualizer implements Choreographer.FrameCallback {
     private static final String TAG = "AudioVisualizer";
 
-    private InputStream audioInputStream;
-    private int audioBufferSize;
+    private int fftLength;
+    private int hopLength;
     private int fftBins;
+    private int decimation;
+    private float[] spectrumDecibels;
+    private final double[][] spectrumAmpDBBuffers = new double[2][];
+    private int spectrumAmpDBBufferIndex;
 
-    private STFT stft;
-
-    private Thread audioVisualizerThread;
-    private Handler audioVisualizerRenderHandler;
-    private Runnable audioVisualizerRenderRunnable;
     private List<AudioVisualizerListener> audioVisualizerListenersImmutable;
+    private boolean started;
+    private boolean screenOn = true;
+    private boolean analyzing;
+
+    // set from the audio data thread when a frame is requested, cleared by that frame
+    private final AtomicBoolean framePending = new AtomicBoolean();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable postFrameCallback = () -> Choreographer.getInstance().postFrameCallback(this);
+    private final Runnable onSpectrumPublished = () -> {
+        if (framePending.compareAndSet(false, true)) {
+            mainHandler.post(postFrameCallback);
+        }
+    };
 
-    public AudioVisualizer(InputStream audioInputStream, int audioBufferSize, int sampleRate, int fftLength, int fftBins, CopyOnWriteArrayList audioVisualizerListeners) {
-        this.audioInputStream = audioInputStream;
-        this.audioBufferSize = audioBufferSize;
+    public AudioVisualizer(int fftLength, int hopLength, int fftBins, int decimation, CopyOnWriteArrayList audioVisualizerListeners) {
+        this.fftLength = fftLength;
+        this.hopLength = hopLength;
         this.fftBins = fftBins;
-        this.stft = new STFT(fftLength, sampleRate, fftBins);
+        this.decimation = decimation;
+        this.spectrumDecibels = new float[fftBins];
+        this.spectrumAmpDBBuffers[0] = new double[fftBins];
+        this.spectrumAmpDBBuffers[1] = new double[fftBins];
         this.audioVisualizerListenersImmutable = Collections.unmodifiableList(audioVisualizerListeners);
     }
 
-    public void start() {
-
-        Runnable audioVisualizerRunnable = new AudioVisualizerFeed();
-        audioVisualizerRenderRunnable = new AudioVisualizerRender();
-
-        audioVisualizerThread = new Thread(audioVisualizerRunnable, "AudioVisualizerFeed");
-        audioVisualizerThread.start();
-
-        audioVisualizerRenderHandler = new Handler(Looper.getMainLooper());
-        audioVisualizerRenderHandler.post(audioVisualizerRenderRunnable);
+    public boolean start() {
+        started = true;
+        if (!updateAnalyzing()) {
+            started = false;
+            return false;
+        }
+        return true;
     }
 
     public void stop() {
-        if (audioVisualizerThread != null) {
-            audioVisualizerThread.interrupt();
-            audioVisualizerThread = null;
-        }
-        if (audioVisualizerRenderHandler != null) {
-            audioVisualizerRenderHandler.removeCallbacks(audioVisualizerRenderRunnable);
-            audioVisualizerRenderHandler = null;
-            audioVisualizerRenderRunnable = null;
-        }
+        started = false;
+        updateAnalyzing();
     }
 
-    public interface AudioVisualizerListener {
-        void onAudioVisualizerData(double[] spectrumAmpDB);
+    /**
+     * Call after adding or removing a listener.
+     */
+    public void onListenersChanged() {
+        updateAnalyzing();
     }
 
-    class AudioVisualizerFeed implements Runnable {
-        private static final String TAG = "AudioVisualizerFeed";
-
-        @Override
-        public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
-
-            byte[] rawByteBuffer = new byte[audioBufferSize];
-            short[] monoShortBuffer = new short[audioBufferSize / 4];
-
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    int bytesRead = audioInputStream.read(rawByteBuffer, 0, rawByteBuffer.length);
-                    if (bytesRead > 0) {
-
-                        int rawAudioBufferIndex = 0;
-                        int monoArrayIndex = 0;
-
-                        // split audio into left/right channels and then average for mono audio
-                        while (rawAudioBufferIndex < bytesRead) {
-                            int leftSample = (short) ((rawByteBuffer[rawAudioBufferIndex] & 0xff) | (rawByteBuffer[rawAudioBufferIndex + 1] << 8));
-
-                            rawAudioBufferIndex = rawAudioBufferIndex + 2;
-                            int rightSample = (short) ((rawByteBuffer[rawAudioBufferIndex] & 0xff) | (rawByteBuffer[rawAudioBufferIndex + 1] << 8));
-                            rawAudioBufferIndex = rawAudioBufferIndex + 2;
-
-                            short mono = (short) ((leftSample + rightSample) / 2);
+    public void setScreenOn(boolean screenOn) {
+        this.screenOn = screenOn;
+        updateAnalyzing();
+    }
 
-                            monoShortBuffer[monoArrayIndex] = mono;
-                            monoArrayIndex++;
-                        }
+    /**
+     * Starts or stops native analysis and the frame callbacks to match whether anyone can see it.
+     * @return false if analysis should run but failed to start
+     */
+    private boolean updateAnalyzing() {
+        boolean shouldAnalyze = started && screenOn && !audioVisualizerListenersImmutable.isEmpty();
+        if (shouldAnalyze == analyzing) {
+            return true;
+        }
 
-                        stft.feedData(monoShortBuffer, monoArrayIndex);
-                    }
-                } catch (Exception e) {
-                    Timber.e(e, "Exception reading audio stream input. Exiting.");
-                    break;
-                }
+        if (shouldAnalyze) {
+            framePending.set(false);
+            NativeAudioEngine.setSpectrumPublishedListener(onSpectrumPublished);
+            if (!NativeAudioEngine.startSpectrumAnalysis(fftLength, hopLength, fftBins, decimation)) {
+                NativeAudioEngine.setSpectrumPublishedListener(null);
+                Timber.e("Failed to start native spectrum analysis");
+                return false;
             }
+        } else {
+            NativeAudioEngine.stopSpectrumAnalysis();
+            NativeAudioEngine.setSpectrumPublishedListener(null);
+            mainHandler.removeCallbacks(postFrameCallback);
+            Choreographer.getInstance().removeFrameCallback(this);
         }
+        analyzing = shouldAnalyze;
+        Timber.d("Spectrum analysis %s", analyzing ? "running" : "paused");
+        return true;
     }
 
-    class AudioVisualizerRender implements Runnable {
-
-        private static final String TAG = "AudioVisualizerRender";
-
-        @Override
-        public void run() {
-            double[] spectrumAmpDB = stft.getSpectrumAmpDB();
-            spectrumAmpDB = Arrays.copyOf(spectrumAmpDB, fftBins);
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // cleared first so a publish from here on requests the next frame
+        framePending.set(false);
+        if (!analyzing) {
+            // posted by a publish that raced with stopping
+            return;
+        }
+        if (NativeAudioEngine.getSpectrumDecibels(spectrumDecibels)) {
+            double[] spectrumAmpDB = spectrumAmpDBBuffers[spectrumAmpDBBufferIndex];
+            spectrumAmpDBBufferIndex ^= 1;
+            for (int i = 0; i < fftBins; i++) {
+                spectrumAmpDB[i] = spectrumDecibels[i];
+            }
 
             for (AudioVisualizerListener listener : audioVisualizerListenersImmutable) {
                 if (listener != null) {
                     listener.onAudioVisualizerData(spectrumAmpDB);
                 }
             }
-            audioVisualizerRenderHandler.postDelayed(audioVisualizerRenderRunnable, 66);
         }
     }
-}
 
+    public interface AudioVisualizerListener {
+        /**
+         * @param spectrumAmpDB reused by later updates, copy it to keep it
+         */
+        void onAudioVisualizerData(double[] spectrumAmpDB);
+    }
+}
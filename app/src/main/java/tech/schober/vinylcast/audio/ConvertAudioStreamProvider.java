@@ -1,107 +1,105 @@
 package tech.schober.vinylcast.audio;
 
+import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.os.Process;
 import android.util.Log;
-import android.util.Pair;
 
-import org.apache.commons.io.IOUtils;
+import androidx.annotation.IntDef;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InterruptedIOException;
-import java.io.OutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 
+import tech.schober.vinylcast.R;
+import tech.schober.vinylcast.server.AdtsFrames;
 import tech.schober.vinylcast.utils.VinylCastHelpers;
 
 /**
- * Runnable used to convert raw PCM audio data from rawAudioInputStream to an AAC ADTS input stream.
+ * Runnable used to convert raw PCM audio data from rawAudioInputStream to AAC ADTS frames.
+ * Each frame is encoded once and published as its own immutable chunk in encodedFrameBuffer,
+ * shared by every consumer, so consumers always start and stay on a frame boundary.
  * Based on https://stackoverflow.com/questions/18862715/how-to-generate-the-aac-adts-elementary-stream-with-android-mediacodec
  */
-public class ConvertAudioStreamProvider implements Runnable, AudioStreamProvider {
+public class ConvertAudioStreamProvider extends MediaCodecAudioStreamProvider {
     private static final String TAG = "ConvertAudioTask";
 
-    private static final String CODEC_MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
-    private static final int CODEC_BIT_RATE = 192000;
-    private static final long CODEC_TIMEOUT = 10000;
-    private static final boolean CODEC_VERBOSE = false;
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({AAC_PROFILE_LC, AAC_PROFILE_HE, AAC_PROFILE_HE_V2})
+    public @interface AacProfile {}
+    public static final int AAC_PROFILE_LC = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+    // LC core at half the sample rate plus Spectral Band Replication
+    public static final int AAC_PROFILE_HE = MediaCodecInfo.CodecProfileLevel.AACObjectHE;
+    // HE-AAC with Parametric Stereo, mono core plus stereo side info
+    public static final int AAC_PROFILE_HE_V2 = MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS;
+
+    // AAC LC encodes 1024 samples per channel into each frame, HE-AAC 2048 (1024 for the core)
+    private static final int AAC_LC_FRAME_SAMPLES = 1024;
+    private static final int AAC_HE_FRAME_SAMPLES = 2048;
 
     // ADTS Header Information from https://wiki.multimedia.cx/index.php/ADTS
+    // HE-AAC is signalled implicitly: ADTS carries AAC LC at the core sample rate and decoders
+    // detect the SBR (and PS) extensions in the payload
     private static final int ADTS_HEADER_AUDIO_OBJECT_TYPE = 2; // AAC LC
-    private static final int ADTS_HEADER_SAMPLE_RATE_INDEX = 3; // 3 = 48000, 4 = 44100
-    private static final int ADTS_HEADER_CHANNEL_CONFIG = 2; // 2 Channel
 
-    private InputStream inputAudioStream;
-    private int sampleRate;
-    private int channelCount;
-    private OutputStream convertedAudioWriteStream;
-    private InputStream convertedAudioReadStream;
+    private int bitRate;
+    private @AacProfile int aacProfile;
+    private int adtsSampleRateIndex;
+    private int adtsChannelConfig;
 
     /**
-     * Create a ConvertAudioTask
+     * Create a ConvertAudioTask encoding at the sample rate and channel count of rawAudioStream
      * @param rawAudioStream
-     * @param bufferSize
+     * @param bitRate
+     * @param aacProfile
+     * @throws IllegalArgumentException if the stream format can't be described by ADTS headers
      */
-    public ConvertAudioStreamProvider(AudioStreamProvider rawAudioStream, int bufferSize) throws IOException {
-        this.inputAudioStream = rawAudioStream.getAudioInputStream();
-        this.sampleRate = rawAudioStream.getSampleRate();
-        this.channelCount = rawAudioStream.getChannelCount();
-        Log.d(TAG, "ConvertAudioTask - sampleRate: " + sampleRate +", channel count: " + channelCount);
-
-        Pair<OutputStream, InputStream> convertedAudioStreams = VinylCastHelpers.getPipedAudioStreams(bufferSize);
-        this.convertedAudioWriteStream = convertedAudioStreams.first;
-        this.convertedAudioReadStream = convertedAudioStreams.second;
+    public ConvertAudioStreamProvider(AudioStreamProvider rawAudioStream, int bitRate, @AacProfile int aacProfile) {
+        super(rawAudioStream, aacProfile == AAC_PROFILE_LC ? AAC_LC_FRAME_SAMPLES : AAC_HE_FRAME_SAMPLES);
+        this.bitRate = bitRate;
+        if (aacProfile == AAC_PROFILE_HE_V2 && channelCount != 2) {
+            Log.w(TAG, "HE-AAC v2 needs stereo input, using HE-AAC for " + channelCount + " channels");
+            aacProfile = AAC_PROFILE_HE;
+        }
+        this.aacProfile = aacProfile;
+        Log.d(TAG, "ConvertAudioTask - sampleRate: " + sampleRate +", channel count: " + channelCount
+                + ", bitRate: " + bitRate + ", profile: " + aacProfile);
+
+        // HE-AAC headers describe the core which runs at half the sample rate
+        int coreSampleRate = aacProfile == AAC_PROFILE_LC ? sampleRate : sampleRate / 2;
+        this.adtsSampleRateIndex = AdtsFrames.findSampleRateIndex(coreSampleRate);
+        if (adtsSampleRateIndex < 0) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " not supported by ADTS for AAC profile " + aacProfile);
+        }
+        // HE-AAC v2 core is mono, Parametric Stereo recreates the second channel
+        this.adtsChannelConfig = aacProfile == AAC_PROFILE_HE_V2 ? 1 : getAdtsChannelConfig(channelCount);
+        if (adtsChannelConfig < 0) {
+            throw new IllegalArgumentException("Channel count " + channelCount + " not supported by ADTS");
+        }
     }
 
-    /**
-     * Handle providing raw audio to MediaCodec InputBuffer
-     * @param codec
-     * @param inputBufferId
-     * @return number bytes provided
-     * @throws IOException
-     */
-    private int queueCodecInputBuffer(MediaCodec codec, int inputBufferId) throws IOException {
-        ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferId);
-        inputBuffer.clear();
-
-        int bytesAvailable = inputAudioStream.available();
-        int bytesToWrite = bytesAvailable < inputBuffer.limit() ? bytesAvailable : inputBuffer.limit();
-
-        inputBuffer.put(IOUtils.toByteArray(inputAudioStream, bytesToWrite));
-        codec.queueInputBuffer(inputBufferId, 0, bytesToWrite, 0, 0);
-        return bytesToWrite;
+    @Override
+    protected MediaFormat createMediaFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, aacProfile);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        return format;
     }
 
     /**
-     * Handle reading encoded audio from MediaCodec OutputBuffer
-     * @param codec
-     * @param outputBufferId
-     * @param info
-     * @return number bytes read
-     * @throws IOException
+     * Prefix the raw AAC frame with its ADTS header
      */
-    private int dequeueCodecOutputBuffer(MediaCodec codec, int outputBufferId, MediaCodec.BufferInfo info) throws IOException {
-        int outBitsSize = info.size;
+    @Override
+    protected byte[] frameEncodedData(ByteBuffer encodedFrame, MediaCodec.BufferInfo info) {
+        int outBitsSize = encodedFrame.remaining();
         int outPacketSize = outBitsSize + 7;    // 7 is ADTS header size
-        ByteBuffer outBuf = codec.getOutputBuffer(outputBufferId);
-
-        outBuf.position(info.offset);
-        outBuf.limit(info.offset + outBitsSize);
 
+        // the only per frame allocation, ownership passes to the shared frame buffer
         byte[] packet = new byte[outPacketSize];
         addADTStoPacket(packet, outPacketSize);
-        outBuf.get(packet, 7, outBitsSize);
-
-        convertedAudioWriteStream.write(packet, 0, outPacketSize);
-        convertedAudioWriteStream.flush();
-
-        outBuf.clear();
-        codec.releaseOutputBuffer(outputBufferId, false);
-
-        return outBitsSize;
+        encodedFrame.get(packet, 7, outBitsSize);
+        return packet;
     }
 
     /**
@@ -113,8 +111,8 @@ public class ConvertAudioStreamProvider implements Runnable, AudioStreamProvider
      **/
     private void addADTStoPacket(byte[] packet, int packetLen) {
         int profile = ADTS_HEADER_AUDIO_OBJECT_TYPE;
-        int freqIdx = ADTS_HEADER_SAMPLE_RATE_INDEX;
-        int chanCfg = ADTS_HEADER_CHANNEL_CONFIG;
+        int freqIdx = adtsSampleRateIndex;
+        int chanCfg = adtsChannelConfig;
 
         // fill in ADTS data
         packet[0] = (byte) 0xFF;
@@ -126,109 +124,12 @@ public class ConvertAudioStreamProvider implements Runnable, AudioStreamProvider
         packet[6] = (byte) 0xFC;
     }
 
-    @Override
-    public void run() {
-        Log.d(TAG, "starting...");
-        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
-
-        MediaFormat format = MediaFormat.createAudioFormat(CODEC_MIME_TYPE, sampleRate, channelCount);
-        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, CODEC_BIT_RATE);
-        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, CODEC_BIT_RATE);
-
-        MediaCodec codec;
-        try {
-            codec = MediaCodec.createEncoderByType(CODEC_MIME_TYPE);
-        } catch (IOException e) {
-            Log.e(TAG, "Exception creating codec", e);
-            return;
-        }
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-
-        codec.start();
-        int numBytesSubmitted = 0;
-        int numBytesDequeued = 0;
-        int bufferId;
-
-        while (!Thread.currentThread().isInterrupted()) {
-            // MediaCodec InputBuffer
-            bufferId = codec.dequeueInputBuffer(CODEC_TIMEOUT);
-            try {
-                if (bufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    int size = queueCodecInputBuffer(codec, bufferId);
-                    numBytesSubmitted += size;
-                    if (CODEC_VERBOSE && size > 0) {
-                        Log.d(TAG, "queued " + size + " bytes of input data.");
-                    }
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Exception queuing input buffer. Queuing End Of Stream.", e);
-                codec.queueInputBuffer(bufferId, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            }
-
-            // MediaCodec OutputBuffer
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            bufferId = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT);
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM) {
-                Log.d(TAG, "Dequeued End Of Stream.");
-                break;
-            } else {
-                try {
-                    if (bufferId >= 0) {
-                        int outBitsSize = dequeueCodecOutputBuffer(codec, bufferId, info);
-                        numBytesDequeued += outBitsSize;
-                        if (CODEC_VERBOSE) {
-                            Log.d(TAG, "  dequeued " + outBitsSize + " bytes of output data.");
-                        }
-                    }
-                } catch (InterruptedIOException e) {
-                    Log.d(TAG, "interrupted");
-                    break;
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception dequeuing output buffer", e);
-                    break;
-                }
-            }
-        }
-
-        if (CODEC_VERBOSE) {
-            Log.d(TAG, "queued a total of " + numBytesSubmitted + "bytes, "
-                    + "dequeued " + numBytesDequeued + " bytes.");
-        }
-        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        int inBitrate = sampleRate * channelCount * 16;  // bit/sec
-        int outBitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
-        float desiredRatio = (float) outBitrate / (float) inBitrate;
-        float actualRatio = (float) numBytesDequeued / (float) numBytesSubmitted;
-        if (actualRatio < 0.9 * desiredRatio || actualRatio > 1.1 * desiredRatio) {
-            Log.w(TAG, "desiredRatio = " + desiredRatio
-                    + ", actualRatio = " + actualRatio);
-        }
-        codec.stop();
-        codec.release();
-
-        Log.d(TAG, "stopping...");
-        try {
-            convertedAudioWriteStream.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Exception closing streams", e);
+    private static int getAdtsChannelConfig(int channelCount) {
+        if (channelCount >= 1 && channelCount <= 6) {
+            return channelCount;
         }
-    }
-
-    @Override
-    public InputStream getAudioInputStream() {
-        return convertedAudioReadStream;
-    }
-
-    @Override
-    public int getSampleRate() {
-        return sampleRate;
-    }
-
-    @Override
-    public int getChannelCount() {
-        return channelCount;
+        // 7 = 7.1 (8 channels)
+        return channelCount == 8 ? 7 : -1;
     }
 
     @Override
@@ -244,8 +145,12 @@ public class ConvertAudioStreamProvider implements Runnable, AudioStreamProvider
         return NativeAudioEngine.getChannelCount();
     }
 
-    public static int getConvertAudioStreamBitRate() {
-        return CODEC_BIT_RATE;
+    public static int getConvertAudioStreamBitRate(Context context) {
+        return VinylCastHelpers.getSharedPreferenceStringAsInteger(context, R.string.prefs_key_aac_bit_rate, R.string.prefs_default_aac_bit_rate);
+    }
+
+    public static @AacProfile int getConvertAudioStreamAacProfile(Context context) {
+        return VinylCastHelpers.getSharedPreferenceStringAsInteger(context, R.string.prefs_key_aac_profile, R.string.prefs_default_aac_profile);
     }
 
     public static @AudioEncoding int getConvertAudioStreamAudioEncoding() {
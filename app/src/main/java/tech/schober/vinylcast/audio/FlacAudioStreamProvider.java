@@ -0,0 +1,162 @@
+package tech.schober.vinylcast.audio;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+import tech.schober.vinylcast.utils.Metrics;
+
+/**
+ * Runnable used to convert raw PCM audio data from rawAudioInputStream to FLAC frames, lossless
+ * at roughly half the bandwidth of WAV. Each frame is encoded once by FlacEncoder and published
+ * as its own immutable chunk in encodedFrameBuffer, shared by every consumer. The fLaC marker and
+ * STREAMINFO block are available from getStreamHeader() for consumers joining at any frame.
+ */
+public class FlacAudioStreamProvider implements Runnable, AudioStreamProvider {
+    private static final String TAG = "FlacAudioTask";
+
+    // 24ms at 48kHz, about the same latency as an AAC frame
+    private static final int FLAC_BLOCK_SIZE = 1152;
+
+    // ~12 seconds of 1152 sample frames at 48kHz
+    private static final int ENCODED_FRAME_BUFFER_SIZE = 512;
+    private static final long ENCODED_FRAME_MAX_LAG_MS = 2000;
+
+    private InputStream inputAudioStream;
+    private int sampleRate;
+    private int channelCount;
+    private int pcmFrameSize;
+    private FlacEncoder flacEncoder;
+    private AudioChunkBuffer encodedFrameBuffer;
+
+    /**
+     * Create a FlacAudioStreamProvider encoding at the sample rate and channel count of rawAudioStream
+     * @param rawAudioStream
+     * @throws IllegalArgumentException if the stream isn't available as 16 bit PCM
+     */
+    public FlacAudioStreamProvider(AudioStreamProvider rawAudioStream) {
+        this.inputAudioStream = rawAudioStream.getAudioInputStream(SAMPLE_FORMAT_I16);
+        this.sampleRate = rawAudioStream.getSampleRate();
+        this.channelCount = rawAudioStream.getChannelCount();
+        Log.d(TAG, "FlacAudioTask - sampleRate: " + sampleRate + ", channel count: " + channelCount);
+
+        this.pcmFrameSize = channelCount * FlacEncoder.BITS_PER_SAMPLE / 8;
+        this.flacEncoder = new FlacEncoder(sampleRate, channelCount, FLAC_BLOCK_SIZE);
+        this.encodedFrameBuffer = new AudioChunkBuffer(ENCODED_FRAME_BUFFER_SIZE);
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "starting...");
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        // heap buffer so streams other than AudioRingBuffer.Reader can read into its array
+        ByteBuffer inputBuffer = ByteBuffer.allocate(FLAC_BLOCK_SIZE * pcmFrameSize);
+        long numBytesSubmitted = 0;
+        long numBytesEncoded = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            inputBuffer.clear();
+            long captureNanos = inputAudioStream instanceof AudioRingBuffer.Reader
+                    ? ((AudioRingBuffer.Reader) inputAudioStream).getCaptureNanos() : AudioChunk.NO_CAPTURE_TIME;
+            int bytesRead;
+            try {
+                bytesRead = readFully(inputBuffer);
+            } catch (InterruptedIOException e) {
+                Log.d(TAG, "interrupted");
+                break;
+            } catch (IOException e) {
+                Log.e(TAG, "Exception reading raw audio", e);
+                break;
+            }
+
+            // only whole sample frames, a short read means the raw audio stream has ended
+            int bytesAvailable = Math.max(bytesRead, 0);
+            int frameBytes = bytesAvailable - bytesAvailable % pcmFrameSize;
+            if (frameBytes > 0) {
+                inputBuffer.flip();
+                inputBuffer.limit(frameBytes);
+                long encodeStartNanos = System.nanoTime();
+                int encodedLength = flacEncoder.encodeFrame(inputBuffer);
+                Metrics.ENCODER_FRAME_SECONDS.record(System.nanoTime() - encodeStartNanos);
+                Metrics.ENCODER_INPUT_BYTES.add(frameBytes);
+                Metrics.ENCODER_OUTPUT_BYTES.add(encodedLength);
+                encodedFrameBuffer.publish(flacEncoder.getFrameBuffer(), 0, encodedLength, captureNanos);
+                if (captureNanos != AudioChunk.NO_CAPTURE_TIME) {
+                    Metrics.CAPTURE_LATENCY_ENCODER.record(System.nanoTime() - captureNanos);
+                }
+                numBytesSubmitted += frameBytes;
+                numBytesEncoded += encodedLength;
+            }
+            if (bytesRead < inputBuffer.capacity()) {
+                Log.d(TAG, "Raw audio ended.");
+                break;
+            }
+        }
+
+        if (numBytesSubmitted > 0) {
+            Log.d(TAG, "compression ratio = " + (float) numBytesEncoded / numBytesSubmitted);
+        }
+        Log.d(TAG, "stopping...");
+        encodedFrameBuffer.close();
+    }
+
+    private int readFully(ByteBuffer inputBuffer) throws IOException {
+        if (inputAudioStream instanceof AudioRingBuffer.Reader) {
+            return ((AudioRingBuffer.Reader) inputAudioStream).readFully(inputBuffer);
+        }
+
+        int totalBytesRead = 0;
+        while (inputBuffer.hasRemaining()) {
+            int bytesRead = inputAudioStream.read(inputBuffer.array(), inputBuffer.position(), inputBuffer.remaining());
+            if (bytesRead < 0) {
+                return totalBytesRead == 0 ? -1 : totalBytesRead;
+            }
+            inputBuffer.position(inputBuffer.position() + bytesRead);
+            totalBytesRead += bytesRead;
+        }
+        return totalBytesRead;
+    }
+
+    /**
+     * @return new stream of FLAC frames starting at the most recent frame boundary
+     */
+    @Override
+    public InputStream getAudioInputStream() {
+        return encodedFrameBuffer.newCursorFromNewest(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, ENCODED_FRAME_MAX_LAG_MS);
+    }
+
+    @Override
+    public AudioChunkBuffer getAudioChunkBuffer() {
+        return encodedFrameBuffer;
+    }
+
+    @Override
+    public byte[] getStreamHeader() {
+        return flacEncoder.getStreamHeader();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public @SampleFormat int getSampleFormat() {
+        return SAMPLE_FORMAT_I16;
+    }
+
+    @Override
+    public int getAudioEncoding() {
+        return AUDIO_ENCODING_FLAC;
+    }
+}
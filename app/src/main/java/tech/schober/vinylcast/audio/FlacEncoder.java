@@ -0,0 +1,568 @@
+package tech.schober.vinylcast.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming FLAC encoder for 16 bit PCM. Each call to encodeFrame() turns one block of
+ * interleaved samples into one complete, independently decodable FLAC frame so frames can be
+ * sent as soon as they are encoded. Uses stereo decorrelation, the fixed linear predictors and
+ * partitioned Rice coding, falling back to verbatim subframes for incompressible blocks.
+ * <p>
+ * All buffers are allocated up front, encoding a frame doesn't allocate. Not thread safe.
+ */
+public class FlacEncoder {
+
+    public static final int BITS_PER_SAMPLE = 16;
+
+    // "fLaC" in ascii
+    private static final byte[] STREAM_MARKER = new byte[]{0x66, 0x4c, 0x61, 0x43};
+    private static final int STREAMINFO_LENGTH = 34;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    // subset streams use at most partition order 8
+    private static final int MAX_PARTITION_ORDER = 8;
+    // 4 bit Rice parameters, 15 is the escape code
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int SUBFRAME_CONSTANT = 0x00;
+    private static final int SUBFRAME_VERBATIM = 0x01;
+    private static final int SUBFRAME_FIXED = 0x08;
+
+    private static final int CHANNEL_LEFT_SIDE = 8;
+    private static final int CHANNEL_RIGHT_SIDE = 9;
+    private static final int CHANNEL_MID_SIDE = 10;
+
+    // sample size code for 16 bits per sample
+    private static final int SAMPLE_SIZE_CODE_16 = 4;
+    // index is the frame header sample rate code
+    private static final int[] SAMPLE_RATE_CODES = {0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000};
+
+    private static final int[] CRC8_TABLE = createCrcTable(0x07, 8);
+    private static final int[] CRC16_TABLE = createCrcTable(0x8005, 16);
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int blockSize;
+    private final byte[] streamHeader;
+
+    // de-interleaved input, plus mid and side for stereo
+    private final int[][] channelSamples;
+    private final int[] midSamples;
+    private final int[] sideSamples;
+    private final int[] residual;
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] bestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    // per-signal estimate from chooseFixedOrder(), in bits
+    private long estimatedBits;
+
+    private final byte[] frameBuffer;
+    private int frameLength;
+    private long bitBuffer;
+    private int bitCount;
+    private long frameNumber = 0;
+
+    /**
+     * @param sampleRate
+     * @param channelCount 1 to 8
+     * @param blockSize samples per channel in every frame but the last, 16 to 65535
+     */
+    public FlacEncoder(int sampleRate, int channelCount, int blockSize) {
+        if (channelCount < 1 || channelCount > 8) {
+            throw new IllegalArgumentException("Channel count " + channelCount + " not supported by FLAC");
+        }
+        if (sampleRate <= 0 || sampleRate >= (1 << 20)) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " not supported by FLAC");
+        }
+        if (blockSize < 16 || blockSize > 65535) {
+            throw new IllegalArgumentException("Block size " + blockSize + " not supported by FLAC");
+        }
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.blockSize = blockSize;
+        this.streamHeader = createStreamHeader();
+
+        this.channelSamples = new int[channelCount][blockSize];
+        this.midSamples = channelCount == 2 ? new int[blockSize] : null;
+        this.sideSamples = channelCount == 2 ? new int[blockSize] : null;
+        this.residual = new int[blockSize];
+
+        // a verbatim frame plus headers, the side channel needs one extra bit per sample
+        int maxSubframeSize = 1 + (blockSize * (BITS_PER_SAMPLE + 1) + 7) / 8;
+        this.frameBuffer = new byte[16 + channelCount * maxSubframeSize + 2];
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return "fLaC" marker and STREAMINFO block, which a decoder needs before the first frame
+     */
+    public byte[] getStreamHeader() {
+        return streamHeader;
+    }
+
+    /**
+     * @return buffer holding the last frame from encodeFrame(), overwritten by the next call
+     */
+    public byte[] getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    /**
+     * Encode one frame.
+     * @param pcm interleaved little endian 16 bit samples, at most blockSize per channel. Only the
+     *            last frame of a stream may be shorter than blockSize. The remaining bytes are
+     *            consumed.
+     * @return length of the frame in getFrameBuffer()
+     */
+    public int encodeFrame(ByteBuffer pcm) {
+        int sampleCount = pcm.remaining() / (channelCount * 2);
+        if (sampleCount == 0 || sampleCount > blockSize) {
+            throw new IllegalArgumentException("Frame of " + sampleCount + " samples, block size is " + blockSize);
+        }
+        ByteOrder order = pcm.order();
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < sampleCount; i++) {
+            for (int channel = 0; channel < channelCount; channel++) {
+                channelSamples[channel][i] = pcm.getShort();
+            }
+        }
+        pcm.order(order);
+        return encodeFrame(sampleCount);
+    }
+
+    private int encodeFrame(int sampleCount) {
+        frameLength = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        int channelAssignment = channelCount - 1;
+        if (channelCount == 2) {
+            channelAssignment = chooseStereoDecorrelation(sampleCount);
+        }
+        writeFrameHeader(sampleCount, channelAssignment);
+
+        switch (channelAssignment) {
+            case CHANNEL_LEFT_SIDE:
+                writeSubframe(channelSamples[0], sampleCount, BITS_PER_SAMPLE);
+                writeSubframe(sideSamples, sampleCount, BITS_PER_SAMPLE + 1);
+                break;
+            case CHANNEL_RIGHT_SIDE:
+                writeSubframe(sideSamples, sampleCount, BITS_PER_SAMPLE + 1);
+                writeSubframe(channelSamples[1], sampleCount, BITS_PER_SAMPLE);
+                break;
+            case CHANNEL_MID_SIDE:
+                writeSubframe(midSamples, sampleCount, BITS_PER_SAMPLE);
+                writeSubframe(sideSamples, sampleCount, BITS_PER_SAMPLE + 1);
+                break;
+            default:
+                for (int channel = 0; channel < channelCount; channel++) {
+                    writeSubframe(channelSamples[channel], sampleCount, BITS_PER_SAMPLE);
+                }
+                break;
+        }
+
+        // zero pad to a byte boundary, then CRC-16 of everything before it
+        if (bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+        int crc16 = crc(CRC16_TABLE, 16, frameBuffer, 0, frameLength);
+        writeBits(crc16, 16);
+
+        frameNumber = (frameNumber + 1) & 0x7fffffffL;
+        return frameLength;
+    }
+
+    /**
+     * @return channel assignment needing the fewest estimated bits
+     */
+    private int chooseStereoDecorrelation(int sampleCount) {
+        int[] left = channelSamples[0];
+        int[] right = channelSamples[1];
+        for (int i = 0; i < sampleCount; i++) {
+            midSamples[i] = (left[i] + right[i]) >> 1;
+            sideSamples[i] = left[i] - right[i];
+        }
+
+        chooseFixedOrder(left, sampleCount);
+        long leftBits = estimatedBits;
+        chooseFixedOrder(right, sampleCount);
+        long rightBits = estimatedBits;
+        chooseFixedOrder(midSamples, sampleCount);
+        long midBits = estimatedBits;
+        chooseFixedOrder(sideSamples, sampleCount);
+        long sideBits = estimatedBits;
+
+        long independentBits = leftBits + rightBits;
+        long leftSideBits = leftBits + sideBits;
+        long rightSideBits = sideBits + rightBits;
+        long midSideBits = midBits + sideBits;
+        long best = Math.min(Math.min(independentBits, leftSideBits), Math.min(rightSideBits, midSideBits));
+        if (best == independentBits) {
+            return 1;
+        } else if (best == midSideBits) {
+            return CHANNEL_MID_SIDE;
+        } else if (best == leftSideBits) {
+            return CHANNEL_LEFT_SIDE;
+        }
+        return CHANNEL_RIGHT_SIDE;
+    }
+
+    /**
+     * Pick the fixed predictor order with the smallest total absolute residual and store the
+     * estimated size of its residual in estimatedBits.
+     */
+    private int chooseFixedOrder(int[] samples, int sampleCount) {
+        if (sampleCount <= MAX_FIXED_ORDER) {
+            estimatedBits = (long) sampleCount * (BITS_PER_SAMPLE + 1);
+            return 0;
+        }
+        long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum4 = 0;
+        int last0 = samples[3];
+        int last1 = samples[3] - samples[2];
+        int last2 = last1 - (samples[2] - samples[1]);
+        int last3 = last2 - (samples[2] - samples[1] - (samples[1] - samples[0]));
+        for (int i = MAX_FIXED_ORDER; i < sampleCount; i++) {
+            int error0 = samples[i];
+            int error1 = error0 - last0;
+            int error2 = error1 - last1;
+            int error3 = error2 - last2;
+            int error4 = error3 - last3;
+            sum0 += Math.abs(error0);
+            sum1 += Math.abs(error1);
+            sum2 += Math.abs(error2);
+            sum3 += Math.abs(error3);
+            sum4 += Math.abs(error4);
+            last0 = error0;
+            last1 = error1;
+            last2 = error2;
+            last3 = error3;
+        }
+
+        int order = 0;
+        long bestSum = sum0;
+        if (sum1 < bestSum) { order = 1; bestSum = sum1; }
+        if (sum2 < bestSum) { order = 2; bestSum = sum2; }
+        if (sum3 < bestSum) { order = 3; bestSum = sum3; }
+        if (sum4 < bestSum) { order = 4; bestSum = sum4; }
+
+        // zigzag mapping roughly doubles the magnitudes
+        int residualCount = sampleCount - MAX_FIXED_ORDER;
+        estimatedBits = riceBits(bestSum * 2, residualCount, null, 0);
+        return order;
+    }
+
+    private void writeSubframe(int[] samples, int sampleCount, int bitsPerSample) {
+        boolean constant = true;
+        for (int i = 1; i < sampleCount && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            writeBits(SUBFRAME_CONSTANT << 1, 8);
+            writeBits(samples[0], bitsPerSample);
+            return;
+        }
+
+        int order = chooseFixedOrder(samples, sampleCount);
+        long verbatimBits = (long) sampleCount * bitsPerSample;
+        if (sampleCount > MAX_FIXED_ORDER) {
+            computeFixedResidual(samples, sampleCount, order);
+            int partitionOrder = choosePartitionOrder(sampleCount, order);
+            long fixedBits = (long) order * bitsPerSample + 2 + 4 + estimatedBits;
+            if (fixedBits < verbatimBits) {
+                writeFixedSubframe(samples, sampleCount, bitsPerSample, order, partitionOrder);
+                return;
+            }
+        }
+
+        writeBits(SUBFRAME_VERBATIM << 1, 8);
+        for (int i = 0; i < sampleCount; i++) {
+            writeBits(samples[i], bitsPerSample);
+        }
+    }
+
+    private void computeFixedResidual(int[] x, int sampleCount, int order) {
+        switch (order) {
+            case 0:
+                for (int i = 0; i < sampleCount; i++) {
+                    residual[i] = x[i];
+                }
+                break;
+            case 1:
+                for (int i = 1; i < sampleCount; i++) {
+                    residual[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < sampleCount; i++) {
+                    residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < sampleCount; i++) {
+                    residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < sampleCount; i++) {
+                    residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Find the Rice partition order and parameters needing the fewest bits for residual[order..].
+     * Leaves the parameters in bestRiceParameters and their size in estimatedBits.
+     */
+    private int choosePartitionOrder(int sampleCount, int predictorOrder) {
+        int maxOrder = 0;
+        while (maxOrder < MAX_PARTITION_ORDER
+                && (sampleCount & ((2 << maxOrder) - 1)) == 0
+                && (sampleCount >> (maxOrder + 1)) > predictorOrder) {
+            maxOrder++;
+        }
+
+        // zigzag sums of the finest partitions, merged pairwise for each coarser order
+        int partitions = 1 << maxOrder;
+        int partitionSize = sampleCount >> maxOrder;
+        int i = predictorOrder;
+        for (int partition = 0; partition < partitions; partition++) {
+            long sum = 0;
+            int end = (partition + 1) * partitionSize;
+            for (; i < end; i++) {
+                int value = residual[i];
+                sum += (value << 1) ^ (value >> 31);
+            }
+            partitionSums[partition] = sum;
+        }
+
+        int bestOrder = maxOrder;
+        long bestBits = Long.MAX_VALUE;
+        for (int order = maxOrder; order >= 0; order--) {
+            partitions = 1 << order;
+            partitionSize = sampleCount >> order;
+            long bits = 0;
+            for (int partition = 0; partition < partitions; partition++) {
+                int count = partition == 0 ? partitionSize - predictorOrder : partitionSize;
+                bits += 4 + riceBits(partitionSums[partition], count, riceParameters, partition);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = order;
+                System.arraycopy(riceParameters, 0, bestRiceParameters, 0, partitions);
+            }
+            if (order > 0) {
+                for (int partition = 0; partition < partitions / 2; partition++) {
+                    partitionSums[partition] = partitionSums[2 * partition] + partitionSums[2 * partition + 1];
+                }
+            }
+        }
+        estimatedBits = bestBits;
+        return bestOrder;
+    }
+
+    /**
+     * Size of count Rice coded values summing to zigzagSum with the best parameter. This is an
+     * upper bound: the quotients sum to at most zigzagSum >> parameter.
+     * @param parameters if not null the chosen parameter is stored at index
+     */
+    private static long riceBits(long zigzagSum, int count, int[] parameters, int index) {
+        int bestParameter = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int parameter = 0; parameter <= MAX_RICE_PARAMETER; parameter++) {
+            long bits = (long) count * (parameter + 1) + (zigzagSum >> parameter);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestParameter = parameter;
+            }
+        }
+        if (parameters != null) {
+            parameters[index] = bestParameter;
+        }
+        return bestBits;
+    }
+
+    private void writeFixedSubframe(int[] samples, int sampleCount, int bitsPerSample, int order, int partitionOrder) {
+        writeBits((SUBFRAME_FIXED | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            writeBits(samples[i], bitsPerSample);
+        }
+
+        // residual coding method 0: 4 bit Rice parameters
+        writeBits(0, 2);
+        writeBits(partitionOrder, 4);
+        int partitions = 1 << partitionOrder;
+        int partitionSize = sampleCount >> partitionOrder;
+        int i = order;
+        for (int partition = 0; partition < partitions; partition++) {
+            int parameter = bestRiceParameters[partition];
+            writeBits(parameter, 4);
+            int end = (partition + 1) * partitionSize;
+            for (; i < end; i++) {
+                int value = residual[i];
+                writeRice((value << 1) ^ (value >> 31), parameter);
+            }
+        }
+    }
+
+    private void writeFrameHeader(int sampleCount, int channelAssignment) {
+        int blockSizeCode = getBlockSizeCode(sampleCount);
+        int sampleRateCode = getSampleRateCode(sampleRate);
+
+        // sync code, reserved bit and fixed blocksize strategy
+        writeBits(0xfff8, 16);
+        writeBits(blockSizeCode, 4);
+        writeBits(sampleRateCode, 4);
+        writeBits(channelAssignment, 4);
+        writeBits(SAMPLE_SIZE_CODE_16, 3);
+        writeBits(0, 1);
+        writeUtf8(frameNumber);
+        if (blockSizeCode == 6) {
+            writeBits(sampleCount - 1, 8);
+        } else if (blockSizeCode == 7) {
+            writeBits(sampleCount - 1, 16);
+        }
+        if (sampleRateCode == 12) {
+            writeBits(sampleRate / 1000, 8);
+        } else if (sampleRateCode == 13) {
+            writeBits(sampleRate, 16);
+        }
+        writeBits(crc(CRC8_TABLE, 8, frameBuffer, 0, frameLength), 8);
+    }
+
+    private static int getBlockSizeCode(int sampleCount) {
+        if (sampleCount == 192) {
+            return 1;
+        }
+        for (int code = 2; code <= 5; code++) {
+            if (sampleCount == 576 << (code - 2)) {
+                return code;
+            }
+        }
+        for (int code = 8; code <= 15; code++) {
+            if (sampleCount == 256 << (code - 8)) {
+                return code;
+            }
+        }
+        return sampleCount <= 256 ? 6 : 7;
+    }
+
+    private static int getSampleRateCode(int sampleRate) {
+        for (int code = 1; code < SAMPLE_RATE_CODES.length; code++) {
+            if (SAMPLE_RATE_CODES[code] == sampleRate) {
+                return code;
+            }
+        }
+        if (sampleRate % 1000 == 0 && sampleRate / 1000 <= 255) {
+            return 12;
+        }
+        // 0 means get it from STREAMINFO
+        return sampleRate <= 65535 ? 13 : 0;
+    }
+
+    private byte[] createStreamHeader() {
+        byte[] header = new byte[STREAM_MARKER.length + 4 + STREAMINFO_LENGTH];
+        System.arraycopy(STREAM_MARKER, 0, header, 0, STREAM_MARKER.length);
+        int offset = STREAM_MARKER.length;
+        // last metadata block flag, type 0 STREAMINFO, 24 bit length
+        header[offset++] = (byte) 0x80;
+        header[offset++] = 0;
+        header[offset++] = 0;
+        header[offset++] = (byte) STREAMINFO_LENGTH;
+        // min and max block size
+        header[offset++] = (byte) (blockSize >> 8);
+        header[offset++] = (byte) blockSize;
+        header[offset++] = (byte) (blockSize >> 8);
+        header[offset++] = (byte) blockSize;
+        // min and max frame size 0 (unknown) at offset..offset+5
+        offset += 6;
+        // 20 bit sample rate, 3 bit channels - 1, 5 bit bits per sample - 1, 36 bit total samples
+        // (0, unknown) then the MD5 signature left as 0 for streams
+        header[offset++] = (byte) (sampleRate >> 12);
+        header[offset++] = (byte) (sampleRate >> 4);
+        header[offset++] = (byte) (((sampleRate & 0x0f) << 4) | ((channelCount - 1) << 1) | ((BITS_PER_SAMPLE - 1) >> 4));
+        header[offset] = (byte) (((BITS_PER_SAMPLE - 1) & 0x0f) << 4);
+        return header;
+    }
+
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            writeBits((int) value, 8);
+            return;
+        }
+        int continuationBytes;
+        if (value < 0x800) {
+            continuationBytes = 1;
+        } else if (value < 0x10000) {
+            continuationBytes = 2;
+        } else if (value < 0x200000) {
+            continuationBytes = 3;
+        } else if (value < 0x4000000) {
+            continuationBytes = 4;
+        } else {
+            continuationBytes = 5;
+        }
+        // leading ones count the bytes, then the high bits of the value
+        int firstByte = (0xff00 >> (continuationBytes + 1)) & 0xff;
+        writeBits(firstByte | (int) (value >> (6 * continuationBytes)), 8);
+        for (int shift = 6 * (continuationBytes - 1); shift >= 0; shift -= 6) {
+            writeBits(0x80 | (int) ((value >> shift) & 0x3f), 8);
+        }
+    }
+
+    private void writeRice(int value, int parameter) {
+        int quotient = value >>> parameter;
+        // unary quotient as zeros ended by a one, then the low bits
+        if (quotient + 1 + parameter <= 32) {
+            writeBits((1 << parameter) | (value & ((1 << parameter) - 1)), quotient + 1 + parameter);
+            return;
+        }
+        for (; quotient > 31; quotient -= 31) {
+            writeBits(0, 31);
+        }
+        writeBits(1, quotient + 1);
+        writeBits(value, parameter);
+    }
+
+    /**
+     * Write the low bits of value, most significant first. bits must be at most 32.
+     */
+    private void writeBits(int value, int bits) {
+        if (bits == 0) {
+            return;
+        }
+        bitBuffer = (bitBuffer << bits) | (value & (0xffffffffL >>> (32 - bits)));
+        bitCount += bits;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            frameBuffer[frameLength++] = (byte) (bitBuffer >>> bitCount);
+        }
+    }
+
+    private static int crc(int[] table, int width, byte[] data, int offset, int length) {
+        int crc = 0;
+        int mask = (1 << width) - 1;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ table[((crc >>> (width - 8)) ^ data[i]) & 0xff]) & mask;
+        }
+        return crc;
+    }
+
+    private static int[] createCrcTable(int polynomial, int width) {
+        int[] table = new int[256];
+        int topBit = 1 << (width - 1);
+        int mask = (1 << width) - 1;
+        for (int i = 0; i < table.length; i++) {
+            int r = i << (width - 8);
+            for (int bit = 0; bit < 8; bit++) {
+                r = (r & topBit) != 0 ? (r << 1) ^ polynomial : r << 1;
+            }
+            table[i] = r & mask;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,497 @@
+package tech.schober.vinylcast.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import tech.schober.vinylcast.utils.Metrics;
+
+/**
+ * Runnable used to encode raw PCM audio data from rawAudioInputStream with a MediaCodec encoder.
+ * Subclasses describe the encoder format and wrap each encoded frame in its container framing.
+ * Each framed chunk is published once as its own immutable chunk in encodedFrameBuffer, shared by
+ * every consumer, so consumers always start and stay on a frame boundary.
+ */
+public abstract class MediaCodecAudioStreamProvider implements Runnable, AudioStreamProvider {
+    private static final String TAG = "MediaCodecAudioTask";
+
+    private static final long CODEC_TIMEOUT = 10000;
+    // use MediaCodec callbacks instead of polling dequeueInputBuffer/dequeueOutputBuffer
+    private static final boolean CODEC_ASYNC = true;
+    private static final long CODEC_END_OF_STREAM_TIMEOUT_MS = 1000;
+    private static final int CODEC_EVENT_QUEUE_SIZE = 64;
+    private static final int CODEC_EVENT_END_OF_STREAM = -1;
+    private static final int CODEC_EVENT_ERROR = -2;
+
+    // result of feeding one input buffer
+    private static final int INPUT_QUEUED = 0;
+    private static final int INPUT_DONE = 1;
+    private static final int INPUT_INTERRUPTED = 2;
+    private static final boolean CODEC_VERBOSE = false;
+
+    protected static final int PCM_BYTES_PER_SAMPLE = 2;
+
+    // ~11 seconds of 1024 sample frames at 48kHz
+    private static final int ENCODED_FRAME_BUFFER_SIZE = 512;
+    private static final long ENCODED_FRAME_MAX_LAG_MS = 2000;
+    // input buffers remembered for measuring encoder latency, more than a codec keeps in flight
+    private static final int QUEUED_FRAME_HISTORY_SIZE = 64;
+
+    private InputStream inputAudioStream;
+    protected final int sampleRate;
+    protected final int channelCount;
+    protected final int pcmFrameSize;
+    private final int inputFramePcmSize;
+    private AudioChunkBuffer encodedFrameBuffer;
+
+    // only used if inputAudioStream can't read into a ByteBuffer directly
+    private byte[] inputScratchBuffer;
+    private long samplesQueued = 0;
+    private long numBytesSubmitted = 0;
+    private long numBytesDequeued = 0;
+    // presentation time, System.nanoTime() and capture time of recently queued input buffers,
+    // by frame index
+    private final long[] queuedFramePresentationTimesUs = new long[QUEUED_FRAME_HISTORY_SIZE];
+    private final long[] queuedFrameNanos = new long[QUEUED_FRAME_HISTORY_SIZE];
+    private final long[] queuedFrameCaptureNanos = new long[QUEUED_FRAME_HISTORY_SIZE];
+    // capture time of the first frame framed since the last chunk was published
+    private long pendingChunkCaptureNanos = AudioChunk.NO_CAPTURE_TIME;
+
+    // input buffer indices from EncoderCallback, or one of the CODEC_EVENT values
+    private final BlockingQueue<Integer> codecEvents = new ArrayBlockingQueue<>(CODEC_EVENT_QUEUE_SIZE);
+
+    /**
+     * @param rawAudioStream PCM audio to encode at its own sample rate and channel count, read as
+     *                       16 bit which every MediaCodec encoder accepts
+     * @param inputFrameSamples samples per channel in each codec input buffer, ideally one
+     *                          encoded frame worth
+     */
+    protected MediaCodecAudioStreamProvider(AudioStreamProvider rawAudioStream, int inputFrameSamples) {
+        this.inputAudioStream = rawAudioStream.getAudioInputStream(SAMPLE_FORMAT_I16);
+        this.sampleRate = rawAudioStream.getSampleRate();
+        this.channelCount = rawAudioStream.getChannelCount();
+        this.pcmFrameSize = channelCount * PCM_BYTES_PER_SAMPLE;
+        this.inputFramePcmSize = inputFrameSamples * pcmFrameSize;
+        this.encodedFrameBuffer = new AudioChunkBuffer(ENCODED_FRAME_BUFFER_SIZE);
+    }
+
+    /**
+     * @return format the encoder is configured with, including its mime type
+     */
+    protected abstract MediaFormat createMediaFormat();
+
+    /**
+     * Wrap one encoded frame in the stream's framing. Called on the thread handling codec output.
+     * @param encodedFrame positioned at the frame data, only valid for the duration of the call
+     * @param info
+     * @return bytes to publish as one chunk, never modified afterwards, or null if nothing is
+     * ready to publish yet
+     */
+    protected abstract byte[] frameEncodedData(ByteBuffer encodedFrame, MediaCodec.BufferInfo info);
+
+    /**
+     * Called with the codec's output format once it is known, before the first encoded frame.
+     * Called on the thread handling codec output.
+     * @param format includes any codec specific data as csd-0, csd-1, ...
+     */
+    protected void onCodecOutputFormat(MediaFormat format) {
+    }
+
+    /**
+     * Called once the codec has output End Of Stream.
+     * @return any remaining framed data to publish as the final chunk, or null
+     */
+    protected byte[] finishEncodedData() {
+        return null;
+    }
+
+    /**
+     * Fill a MediaCodec InputBuffer with one frame of raw audio, blocking until it is all
+     * available. Timestamps come from the number of samples queued so far.
+     * @param codec
+     * @param inputBufferId
+     * @return number bytes provided, -1 once the raw audio stream has ended
+     * @throws IOException
+     */
+    private int queueCodecInputBuffer(MediaCodec codec, int inputBufferId) throws IOException {
+        ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferId);
+        int inputSize = Math.min(inputBuffer.capacity(), inputFramePcmSize);
+        inputSize -= inputSize % pcmFrameSize;
+        inputBuffer.clear();
+        inputBuffer.limit(inputSize);
+
+        long captureNanos = inputAudioStream instanceof AudioRingBuffer.Reader
+                ? ((AudioRingBuffer.Reader) inputAudioStream).getCaptureNanos() : AudioChunk.NO_CAPTURE_TIME;
+        int bytesRead = readFully(inputBuffer);
+        long presentationTimeUs = samplesQueued * 1000000L / sampleRate;
+        if (bytesRead < inputSize) {
+            codec.queueInputBuffer(inputBufferId, 0, Math.max(bytesRead, 0), presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return -1;
+        }
+        int frameIndex = (int) (samplesQueued * pcmFrameSize / inputFramePcmSize % QUEUED_FRAME_HISTORY_SIZE);
+        queuedFramePresentationTimesUs[frameIndex] = presentationTimeUs;
+        queuedFrameNanos[frameIndex] = System.nanoTime();
+        queuedFrameCaptureNanos[frameIndex] = captureNanos;
+        codec.queueInputBuffer(inputBufferId, 0, bytesRead, presentationTimeUs, 0);
+        Metrics.ENCODER_INPUT_BYTES.add(bytesRead);
+        samplesQueued += bytesRead / pcmFrameSize;
+        return bytesRead;
+    }
+
+    private int readFully(ByteBuffer inputBuffer) throws IOException {
+        if (inputAudioStream instanceof AudioRingBuffer.Reader) {
+            return ((AudioRingBuffer.Reader) inputAudioStream).readFully(inputBuffer);
+        }
+
+        if (inputScratchBuffer == null) {
+            inputScratchBuffer = new byte[inputFramePcmSize];
+        }
+        int totalBytesRead = 0;
+        while (inputBuffer.hasRemaining()) {
+            int bytesRead = inputAudioStream.read(inputScratchBuffer, 0, Math.min(inputScratchBuffer.length, inputBuffer.remaining()));
+            if (bytesRead < 0) {
+                return totalBytesRead == 0 ? -1 : totalBytesRead;
+            }
+            inputBuffer.put(inputScratchBuffer, 0, bytesRead);
+            totalBytesRead += bytesRead;
+        }
+        return totalBytesRead;
+    }
+
+    /**
+     * Drain all MediaCodec OutputBuffers that are ready
+     * @param codec
+     * @param info reused for every buffer
+     * @param timeoutUs how long to wait for the first buffer
+     * @return true once End Of Stream has been dequeued
+     */
+    private boolean drainCodecOutputBuffers(MediaCodec codec, MediaCodec.BufferInfo info, long timeoutUs) {
+        while (true) {
+            int bufferId = codec.dequeueOutputBuffer(info, timeoutUs);
+            timeoutUs = 0;
+            if (bufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            }
+            if (bufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onCodecOutputFormat(codec.getOutputFormat());
+                continue;
+            }
+            if (bufferId < 0) {
+                // output buffers changed, nothing to publish
+                continue;
+            }
+            if (handleCodecOutputBuffer(codec, bufferId, info)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if this was the End Of Stream buffer
+     */
+    private boolean handleCodecOutputBuffer(MediaCodec codec, int outputBufferId, MediaCodec.BufferInfo info) {
+        int outBitsSize = dequeueCodecOutputBuffer(codec, outputBufferId, info);
+        numBytesDequeued += outBitsSize;
+        if (CODEC_VERBOSE) {
+            Log.d(TAG, "  dequeued " + outBitsSize + " bytes of output data.");
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            Log.d(TAG, "Dequeued End Of Stream.");
+            byte[] finalChunk = finishEncodedData();
+            if (finalChunk != null) {
+                encodedFrameBuffer.publish(finalChunk);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handle reading encoded audio from MediaCodec OutputBuffer and publishing it framed
+     * @param codec
+     * @param outputBufferId
+     * @param info
+     * @return number bytes read
+     */
+    private int dequeueCodecOutputBuffer(MediaCodec codec, int outputBufferId, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // codec specific data isn't a frame, the stream framing carries the same information
+            codec.releaseOutputBuffer(outputBufferId, false);
+            return 0;
+        }
+
+        int outBitsSize = info.size;
+        if (outBitsSize == 0) {
+            // empty End Of Stream buffer
+            codec.releaseOutputBuffer(outputBufferId, false);
+            return 0;
+        }
+        long captureNanos = recordFrameLatency(info.presentationTimeUs);
+        if (pendingChunkCaptureNanos == AudioChunk.NO_CAPTURE_TIME) {
+            pendingChunkCaptureNanos = captureNanos;
+        }
+        Metrics.ENCODER_OUTPUT_BYTES.add(outBitsSize);
+        ByteBuffer outBuf = codec.getOutputBuffer(outputBufferId);
+
+        outBuf.position(info.offset);
+        outBuf.limit(info.offset + outBitsSize);
+
+        byte[] chunk = frameEncodedData(outBuf, info);
+        if (chunk != null) {
+            // chunk is handed over to the shared frame buffer, never modified again
+            encodedFrameBuffer.publish(chunk, pendingChunkCaptureNanos);
+            if (pendingChunkCaptureNanos != AudioChunk.NO_CAPTURE_TIME) {
+                Metrics.CAPTURE_LATENCY_ENCODER.record(System.nanoTime() - pendingChunkCaptureNanos);
+            }
+            pendingChunkCaptureNanos = AudioChunk.NO_CAPTURE_TIME;
+        }
+
+        outBuf.clear();
+        codec.releaseOutputBuffer(outputBufferId, false);
+
+        return outBitsSize;
+    }
+
+    /**
+     * Time since the input buffer this output frame started in was queued. Frames whose
+     * presentation time doesn't line up with an input buffer's (e.g. encoder priming) are skipped.
+     * @return capture time of the input buffer, or NO_CAPTURE_TIME if not known
+     */
+    private long recordFrameLatency(long presentationTimeUs) {
+        // rounded up to undo the rounding down in queueCodecInputBuffer()
+        long samples = (presentationTimeUs * sampleRate + 999999L) / 1000000L;
+        long inputFrameIndex = samples * pcmFrameSize / inputFramePcmSize;
+        int frameIndex = (int) (inputFrameIndex % QUEUED_FRAME_HISTORY_SIZE);
+        if (inputFrameIndex >= 0 && queuedFramePresentationTimesUs[frameIndex] == presentationTimeUs) {
+            Metrics.ENCODER_FRAME_SECONDS.record(System.nanoTime() - queuedFrameNanos[frameIndex]);
+            return queuedFrameCaptureNanos[frameIndex];
+        }
+        return AudioChunk.NO_CAPTURE_TIME;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "starting...");
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        MediaFormat format = createMediaFormat();
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, inputFramePcmSize);
+
+        MediaCodec codec;
+        try {
+            codec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Exception creating codec", e);
+            encodedFrameBuffer.close();
+            return;
+        }
+
+        HandlerThread codecCallbackThread = null;
+        Handler codecCallbackHandler = null;
+        if (CODEC_ASYNC) {
+            codecCallbackThread = new HandlerThread(getClass().getSimpleName() + "Callback", Process.THREAD_PRIORITY_AUDIO);
+            codecCallbackThread.start();
+            codecCallbackHandler = new Handler(codecCallbackThread.getLooper());
+            codec.setCallback(new EncoderCallback(), codecCallbackHandler);
+        }
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        codec.start();
+
+        if (CODEC_ASYNC) {
+            encodeAsync(codec);
+
+            // stop on the callback thread so it can't race with callbacks already queued there
+            codecCallbackHandler.post(() -> {
+                codec.stop();
+                codec.release();
+            });
+            codecCallbackThread.quitSafely();
+            try {
+                codecCallbackThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted waiting for codec callback thread");
+            }
+        } else {
+            encodeSync(codec);
+            codec.stop();
+            codec.release();
+        }
+
+        if (CODEC_VERBOSE) {
+            Log.d(TAG, "queued a total of " + numBytesSubmitted + "bytes, "
+                    + "dequeued " + numBytesDequeued + " bytes.");
+        }
+        int inBitrate = sampleRate * channelCount * 16;  // bit/sec
+        int outBitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        float desiredRatio = (float) outBitrate / (float) inBitrate;
+        float actualRatio = (float) numBytesDequeued / (float) numBytesSubmitted;
+        if (actualRatio < 0.9 * desiredRatio || actualRatio > 1.1 * desiredRatio) {
+            Log.w(TAG, "desiredRatio = " + desiredRatio
+                    + ", actualRatio = " + actualRatio);
+        }
+
+        Log.d(TAG, "stopping...");
+        encodedFrameBuffer.close();
+    }
+
+    /**
+     * Poll the codec for input and output buffers on this thread.
+     */
+    private void encodeSync(MediaCodec codec) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            // MediaCodec InputBuffer, blocks on raw audio until a full frame is available
+            if (!inputDone) {
+                int bufferId = codec.dequeueInputBuffer(CODEC_TIMEOUT);
+                if (bufferId >= 0) {
+                    int result = feedCodecInputBuffer(codec, bufferId);
+                    if (result == INPUT_INTERRUPTED) {
+                        break;
+                    }
+                    inputDone = result == INPUT_DONE;
+                }
+            }
+
+            // MediaCodec OutputBuffer, once input is done wait for the codec to flush the rest
+            if (drainCodecOutputBuffers(codec, info, inputDone ? CODEC_TIMEOUT : 0)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Feed input buffers on this thread as EncoderCallback hands them over. Output buffers are
+     * published on the callback thread as soon as the codec produces them, so neither thread
+     * wakes up unless there is raw audio or an encoded frame to handle.
+     */
+    private void encodeAsync(MediaCodec codec) {
+        boolean inputDone = false;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            Integer bufferId;
+            try {
+                if (!inputDone) {
+                    bufferId = codecEvents.take();
+                } else {
+                    // nothing left to feed, wait for the codec to flush the rest
+                    bufferId = codecEvents.poll(CODEC_END_OF_STREAM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (bufferId == null) {
+                        Log.w(TAG, "Timed out waiting for End Of Stream.");
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "interrupted");
+                break;
+            }
+
+            if (bufferId == CODEC_EVENT_END_OF_STREAM || bufferId == CODEC_EVENT_ERROR) {
+                break;
+            }
+            if (inputDone) {
+                continue;
+            }
+            int result = feedCodecInputBuffer(codec, bufferId);
+            if (result == INPUT_INTERRUPTED) {
+                break;
+            }
+            inputDone = result == INPUT_DONE;
+        }
+    }
+
+    /**
+     * @return INPUT_QUEUED, INPUT_DONE once End Of Stream was queued or INPUT_INTERRUPTED
+     */
+    private int feedCodecInputBuffer(MediaCodec codec, int bufferId) {
+        try {
+            int size = queueCodecInputBuffer(codec, bufferId);
+            if (size < 0) {
+                Log.d(TAG, "Raw audio ended. Queued End Of Stream.");
+                return INPUT_DONE;
+            }
+            numBytesSubmitted += size;
+            if (CODEC_VERBOSE) {
+                Log.d(TAG, "queued " + size + " bytes of input data.");
+            }
+            return INPUT_QUEUED;
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "interrupted");
+            return INPUT_INTERRUPTED;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception queuing input buffer. Queuing End Of Stream.", e);
+            codec.queueInputBuffer(bufferId, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return INPUT_DONE;
+        }
+    }
+
+    /**
+     * MediaCodec callbacks, all called on the codec callback thread.
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            codecEvents.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (handleCodecOutputBuffer(codec, index, info)) {
+                codecEvents.offer(CODEC_EVENT_END_OF_STREAM);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Codec error", e);
+            codecEvents.offer(CODEC_EVENT_ERROR);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.d(TAG, "Output format changed: " + format);
+            onCodecOutputFormat(format);
+        }
+    }
+
+    /**
+     * @return new stream of framed encoded audio starting at the most recent frame boundary
+     */
+    @Override
+    public InputStream getAudioInputStream() {
+        return encodedFrameBuffer.newCursorFromNewest(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, ENCODED_FRAME_MAX_LAG_MS);
+    }
+
+    @Override
+    public AudioChunkBuffer getAudioChunkBuffer() {
+        return encodedFrameBuffer;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public @SampleFormat int getSampleFormat() {
+        return SAMPLE_FORMAT_I16;
+    }
+}
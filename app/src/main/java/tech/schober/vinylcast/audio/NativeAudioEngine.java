@@ -1,14 +1,45 @@
 package tech.schober.vinylcast.audio;
 
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+
 public enum NativeAudioEngine {
 
     INSTANCE;
 
+    // EQ band types, must match kEqBandType* in DspChain.h
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({EQ_BAND_TYPE_OFF, EQ_BAND_TYPE_PEAKING, EQ_BAND_TYPE_LOW_SHELF, EQ_BAND_TYPE_HIGH_SHELF})
+    public @interface EqBandType {}
+    public static final int EQ_BAND_TYPE_OFF = 0;
+    public static final int EQ_BAND_TYPE_PEAKING = 1;
+    public static final int EQ_BAND_TYPE_LOW_SHELF = 2;
+    public static final int EQ_BAND_TYPE_HIGH_SHELF = 3;
+
+    // indices into getPipelineStats(), must match kPipelineStat* in NativeAudioEngine.h
+    public static final int PIPELINE_STAT_CALLBACK_COUNT = 0;
+    public static final int PIPELINE_STAT_CALLBACK_TOTAL_NANOS = 1;
+    public static final int PIPELINE_STAT_CALLBACK_MAX_NANOS = 2;
+    public static final int PIPELINE_STAT_OVERRUN_COUNT = 3;
+    public static final int PIPELINE_STAT_DROPPED_FRAME_COUNT = 4;
+    public static final int PIPELINE_STAT_QUEUED_BYTES = 5;
+    public static final int PIPELINE_STAT_DECLICKER_REPAIR_COUNT = 6;
+    public static final int PIPELINE_STAT_INPUT_LATENCY_COUNT = 7;
+    public static final int PIPELINE_STAT_INPUT_LATENCY_TOTAL_NANOS = 8;
+    public static final int PIPELINE_STAT_INPUT_LATENCY_MAX_NANOS = 9;
+    public static final int PIPELINE_STAT_DECLICKER_LATENCY_NANOS = 10;
+    public static final int PIPELINE_STAT_COUNT = 11;
+
     // Load native library
     static {
         System.loadLibrary("vinylCast");
     }
 
+    private static volatile Runnable spectrumPublishedListener;
+
     // Native methods
     public static native boolean create();
     public static native String getOboeVersion();
@@ -17,15 +48,68 @@ public enum NativeAudioEngine {
     public static native void setPlaybackDeviceId(int deviceId);
     public static native boolean setAudioApi(int apiType);
     public static native boolean setLowLatency(boolean lowLatency);
+    public static native boolean setDeclickerLookahead(int lookaheadMillis);
     public static native void setGainDecibels(double decibels);
+    public static native void setRumbleFilter(float cutoffHz);
+    public static native void setRiaaEqualization(boolean enabled);
+    public static native void setEqBand(int band, @EqBandType int type, float frequencyHz, float q, float gainDecibels);
     public static native void setAudioDataListener(NativeAudioEngineListener listener);
     public static native int getSampleRate();
     public static native int getChannelCount();
     public static native int getBitRate();
+    public static native @AudioStreamProvider.SampleFormat int getSampleFormat();
     public static native int getAudioApi();
+    public static native long getOverrunCount();
+    public static native long getDroppedFrameCount();
+    public static native int getDeclickerLatencyMillis();
+    public static native long getDeclickerRepairCount();
+    public static native long getDeclickerAverageMicros();
+    public static native long getDeclickerMaxMicros();
+    /**
+     * Copy the native pipeline's counters since recording started, without allocating.
+     * @param stats at least PIPELINE_STAT_COUNT values, indexed by PIPELINE_STAT_*
+     */
+    public static native boolean getPipelineStats(long[] stats);
+    /**
+     * @param decimation power of two up to 16, audio is averaged over this many frames before the
+     *        FFT, fftLength and hopLength count decimated frames
+     */
+    public static native boolean startSpectrumAnalysis(int fftLength, int hopLength, int bins, int decimation);
+    public static native void stopSpectrumAnalysis();
     public static native boolean prepareRecording();
     public static native boolean startRecording();
     public static native boolean stopRecording();
     public static native void delete();
+
+    /**
+     * Convert native order float samples to 16 bit with the engine's SIMD kernels.
+     * @param src direct buffer
+     * @param dst receives length / 2 bytes
+     */
+    public static native void convertFloatToI16(ByteBuffer src, int offset, int length, byte[] dst);
+
+    /**
+     * Copy the latest spectrum, in dB relative to a full scale sine. A new one is published for
+     * about every 1/60s of audio. Lock-free, safe to call every display frame.
+     * @param decibels one value per bin passed to startSpectrumAnalysis
+     * @return false if nothing was published since the last call, decibels is left unchanged
+     */
+    public static native boolean getSpectrumDecibels(float[] decibels);
+
+    /**
+     * @param listener run on the native audio data thread each time a new spectrum is published,
+     *        so it must not block, or null to stop
+     */
+    public static void setSpectrumPublishedListener(Runnable listener) {
+        spectrumPublishedListener = listener;
+    }
+
+    // Note: called from native code by this hardcoded name so need to tell ProGuard to skip it
+    private static void onSpectrumPublished() {
+        Runnable listener = spectrumPublishedListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
 }
 
@@ -1,5 +1,13 @@
 package tech.schober.vinylcast.audio;
 
+import java.nio.ByteBuffer;
+
 public interface NativeAudioEngineListener {
-    void onAudioData(byte[] audioData);
+    /**
+     * Audio data still held in the shared native ring, called on the native consumer thread.
+     * Only valid for the duration of the call.
+     * @param audioData direct buffer over the whole ring
+     * @param captureNanos System.nanoTime() at which the first frame was captured, 0 if unknown
+     */
+    void onAudioData(ByteBuffer audioData, int offset, int length, long captureNanos);
 }
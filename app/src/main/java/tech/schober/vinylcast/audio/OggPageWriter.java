@@ -0,0 +1,146 @@
+package tech.schober.vinylcast.audio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Muxes packets of one logical bitstream into Ogg pages (RFC 3533). Packets are collected with
+ * addPacket() until flushPage() writes them out as a single page, so each page can be published
+ * as one self-contained chunk. Not thread safe.
+ */
+final class OggPageWriter {
+
+    // "OggS" in ascii
+    private static final byte[] CAPTURE_PATTERN = new byte[]{0x4f, 0x67, 0x67, 0x53};
+    private static final int PAGE_HEADER_SIZE = 27;
+    private static final int MAX_SEGMENTS = 255;
+    private static final int MAX_SEGMENT_SIZE = 255;
+
+    static final int HEADER_TYPE_BEGIN_OF_STREAM = 0x02;
+    static final int HEADER_TYPE_END_OF_STREAM = 0x04;
+
+    private static final int[] CRC_TABLE = createCrcTable();
+
+    private final int serialNumber;
+    private int pageSequence = 0;
+
+    // packets collected for the next page
+    private byte[] pageData = new byte[4096];
+    private int pageDataLength = 0;
+    private final byte[] lacingValues = new byte[MAX_SEGMENTS];
+    private int segmentCount = 0;
+    private long granulePosition = 0;
+
+    OggPageWriter(int serialNumber) {
+        this.serialNumber = serialNumber;
+    }
+
+    /**
+     * @return true if a packet of length bytes still fits on the current page
+     */
+    boolean canAddPacket(int length) {
+        return segmentCount + length / MAX_SEGMENT_SIZE + 1 <= MAX_SEGMENTS;
+    }
+
+    /**
+     * Add a complete packet to the current page.
+     * @param packet remaining bytes are consumed
+     * @param granulePosition codec defined position once this packet is decoded
+     * @throws IllegalStateException if the packet doesn't fit, see canAddPacket()
+     */
+    void addPacket(ByteBuffer packet, long granulePosition) {
+        int length = packet.remaining();
+        if (!canAddPacket(length)) {
+            throw new IllegalStateException("Packet of " + length + " bytes doesn't fit on the page");
+        }
+        if (pageDataLength + length > pageData.length) {
+            pageData = Arrays.copyOf(pageData, Math.max(pageData.length * 2, pageDataLength + length));
+        }
+        packet.get(pageData, pageDataLength, length);
+        pageDataLength += length;
+
+        // a packet is a run of 255 lacing values ended by one below 255, possibly 0
+        for (int remaining = length; ; remaining -= MAX_SEGMENT_SIZE) {
+            if (remaining < MAX_SEGMENT_SIZE) {
+                lacingValues[segmentCount++] = (byte) remaining;
+                break;
+            }
+            lacingValues[segmentCount++] = (byte) MAX_SEGMENT_SIZE;
+        }
+        this.granulePosition = granulePosition;
+    }
+
+    void addPacket(byte[] packet, long granulePosition) {
+        addPacket(ByteBuffer.wrap(packet), granulePosition);
+    }
+
+    /**
+     * Write all packets added since the last flush as one page.
+     * @param headerType HEADER_TYPE flags, the first page must be HEADER_TYPE_BEGIN_OF_STREAM
+     * @return the complete page, or null if there is nothing to write
+     */
+    byte[] flushPage(int headerType) {
+        if (segmentCount == 0 && (headerType & HEADER_TYPE_END_OF_STREAM) == 0) {
+            return null;
+        }
+
+        byte[] page = new byte[PAGE_HEADER_SIZE + segmentCount + pageDataLength];
+        System.arraycopy(CAPTURE_PATTERN, 0, page, 0, CAPTURE_PATTERN.length);
+        page[4] = 0; // stream structure version
+        page[5] = (byte) headerType;
+        writeLong(page, 6, granulePosition);
+        writeInt(page, 14, serialNumber);
+        writeInt(page, 18, pageSequence++);
+        // checksum at 22 is computed with the field set to 0
+        page[26] = (byte) segmentCount;
+        System.arraycopy(lacingValues, 0, page, PAGE_HEADER_SIZE, segmentCount);
+        System.arraycopy(pageData, 0, page, PAGE_HEADER_SIZE + segmentCount, pageDataLength);
+        writeInt(page, 22, crc(page));
+
+        pageDataLength = 0;
+        segmentCount = 0;
+        return page;
+    }
+
+    /**
+     * Ogg CRC-32: polynomial 0x04c11db7, no reflection, initial value and final xor 0. Not the
+     * same as java.util.zip.CRC32.
+     */
+    static int crc(byte[] data) {
+        int crc = 0;
+        for (byte b : data) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int[] createCrcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            int r = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04c11db7 : r << 1;
+            }
+            table[i] = r;
+        }
+        return table;
+    }
+
+    /**
+     * Little Endian writing of an integer to the array.
+     */
+    static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Little Endian writing of a long to the array.
+     */
+    static void writeLong(byte[] data, int offset, long value) {
+        writeInt(data, offset, (int) value);
+        writeInt(data, offset + 4, (int) (value >> 32));
+    }
+}
@@ -0,0 +1,304 @@
+package tech.schober.vinylcast.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runnable used to convert raw PCM audio data from rawAudioInputStream to Opus packets muxed into
+ * an Ogg stream (RFC 7845). Each Ogg page is published as its own immutable chunk in
+ * encodedFrameBuffer. The identification and comment header pages are built once the encoder
+ * has reported its pre-skip and are available from getStreamHeader() so a consumer joining at any
+ * page can be sent a valid stream.
+ * <p>
+ * Uses the platform MediaCodec Opus encoder which is available from Android 10 (API 29).
+ */
+public class OpusAudioStreamProvider extends MediaCodecAudioStreamProvider {
+    private static final String TAG = "OpusAudioTask";
+
+    private static final int OPUS_BIT_RATE = 128000;
+    // Opus encodes at one of these rates, it has no resampler of its own
+    private static final int[] OPUS_SAMPLE_RATES = {48000, 24000, 16000, 12000, 8000};
+    // granule positions always count 48kHz samples whatever the input rate
+    private static final int OPUS_GRANULE_RATE = 48000;
+    // 20ms, the default Opus frame duration
+    private static final int OPUS_FRAME_DURATION_MS = 20;
+    // encoder lookahead the decoder has to discard, if the encoder doesn't report it: 6.5ms at
+    // 48kHz for libopus
+    private static final int OPUS_DEFAULT_PRE_SKIP = 312;
+    // how long getStreamHeader() waits for the encoder's output format
+    private static final long OPUS_HEADER_TIMEOUT_MS = 1000;
+    private static final int OPUS_HEAD_SIZE = 19;
+    // channel mapping family 0 only covers mono and stereo
+    private static final int OPUS_MAX_CHANNELS = 2;
+    // 10, 20, 40 and 60ms SILK frames in 48kHz samples
+    private static final int[] OPUS_SILK_FRAME_SAMPLES = {480, 960, 1920, 2880};
+
+    // packets are collected into pages of about this length, trading ~28 bytes of page overhead
+    // against how long a packet waits before it is published
+    private static final int OGG_PAGE_DURATION_MS = 40;
+
+    // "OpusHead" and "OpusTags" in ascii
+    private static final byte[] OPUS_HEAD_MAGIC = "OpusHead".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPUS_TAGS_MAGIC = "OpusTags".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPUS_TAGS_VENDOR = "vinyl-cast".getBytes(StandardCharsets.US_ASCII);
+
+    private final OggPageWriter oggPageWriter;
+    // guarded by this, null until the pre-skip is known
+    private byte[] streamHeader;
+    // decoded samples so far, which include the pre-skip
+    private long granulePosition = 0;
+    private int pageSamples = 0;
+
+    /**
+     * Create an OpusAudioStreamProvider encoding at the sample rate and channel count of rawAudioStream
+     * @param rawAudioStream
+     * @throws IllegalArgumentException if Opus can't encode the stream format
+     */
+    public OpusAudioStreamProvider(AudioStreamProvider rawAudioStream) {
+        super(rawAudioStream, rawAudioStream.getSampleRate() * OPUS_FRAME_DURATION_MS / 1000);
+        Log.d(TAG, "OpusAudioTask - sampleRate: " + sampleRate + ", channel count: " + channelCount
+                + ", bitRate: " + OPUS_BIT_RATE);
+        if (!isOpusSampleRate(sampleRate)) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " not supported by Opus");
+        }
+        if (channelCount < 1 || channelCount > OPUS_MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channel count " + channelCount + " not supported by Opus channel mapping family 0");
+        }
+
+        this.oggPageWriter = new OggPageWriter(new Random().nextInt());
+    }
+
+    /**
+     * Create the stream header unless it already has been, the first pre-skip passed in wins.
+     * @return OpusHead and OpusTags pages, the first two pages of the Ogg stream
+     */
+    private synchronized byte[] createStreamHeader(int preSkip) {
+        if (streamHeader != null) {
+            return streamHeader;
+        }
+        Log.d(TAG, "Opus pre-skip: " + preSkip);
+        byte[] opusHead = new byte[OPUS_HEAD_SIZE];
+        System.arraycopy(OPUS_HEAD_MAGIC, 0, opusHead, 0, OPUS_HEAD_MAGIC.length);
+        opusHead[8] = 1; // version
+        opusHead[9] = (byte) channelCount;
+        opusHead[10] = (byte) preSkip;
+        opusHead[11] = (byte) (preSkip >> 8);
+        OggPageWriter.writeInt(opusHead, 12, sampleRate);
+        // output gain 0 at 16, channel mapping family 0 at 18
+
+        byte[] opusTags = new byte[OPUS_TAGS_MAGIC.length + 4 + OPUS_TAGS_VENDOR.length + 4];
+        System.arraycopy(OPUS_TAGS_MAGIC, 0, opusTags, 0, OPUS_TAGS_MAGIC.length);
+        OggPageWriter.writeInt(opusTags, OPUS_TAGS_MAGIC.length, OPUS_TAGS_VENDOR.length);
+        System.arraycopy(OPUS_TAGS_VENDOR, 0, opusTags, OPUS_TAGS_MAGIC.length + 4, OPUS_TAGS_VENDOR.length);
+        // user comment list length 0 fills the last 4 bytes
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        oggPageWriter.addPacket(opusHead, 0);
+        byte[] headPage = oggPageWriter.flushPage(OggPageWriter.HEADER_TYPE_BEGIN_OF_STREAM);
+        header.write(headPage, 0, headPage.length);
+        oggPageWriter.addPacket(opusTags, 0);
+        byte[] tagsPage = oggPageWriter.flushPage(0);
+        header.write(tagsPage, 0, tagsPage.length);
+        streamHeader = header.toByteArray();
+        notifyAll();
+        return streamHeader;
+    }
+
+    /**
+     * Build the stream header with the encoder's own pre-skip, the output format comes before the
+     * first packet.
+     */
+    @Override
+    protected void onCodecOutputFormat(MediaFormat format) {
+        int preSkip = getPreSkip(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        if (preSkip < 0) {
+            Log.w(TAG, "Encoder output format has no pre-skip, using " + OPUS_DEFAULT_PRE_SKIP);
+            preSkip = OPUS_DEFAULT_PRE_SKIP;
+        }
+        createStreamHeader(preSkip);
+    }
+
+    /**
+     * Pre-skip from the encoder's codec specific data: the OpusHead in csd-0, or else the codec
+     * delay in csd-1 as an unsigned 64 bit native order count of nanoseconds.
+     * @return pre-skip in 48kHz samples, -1 if neither has it
+     */
+    static int getPreSkip(ByteBuffer opusHead, ByteBuffer codecDelay) {
+        if (opusHead != null && opusHead.remaining() >= OPUS_HEAD_SIZE) {
+            int position = opusHead.position();
+            boolean isOpusHead = true;
+            for (int i = 0; i < OPUS_HEAD_MAGIC.length; i++) {
+                isOpusHead &= opusHead.get(position + i) == OPUS_HEAD_MAGIC[i];
+            }
+            if (isOpusHead) {
+                return (opusHead.get(position + 10) & 0xff) | (opusHead.get(position + 11) & 0xff) << 8;
+            }
+        }
+        if (codecDelay != null && codecDelay.remaining() >= 8) {
+            long delayNanos = codecDelay.duplicate().order(ByteOrder.nativeOrder()).getLong();
+            long preSkip = (delayNanos * OPUS_GRANULE_RATE + TimeUnit.SECONDS.toNanos(1) / 2) / TimeUnit.SECONDS.toNanos(1);
+            if (preSkip >= 0 && preSkip <= 0xffff) {
+                return (int) preSkip;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    protected MediaFormat createMediaFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, OPUS_BIT_RATE);
+        return format;
+    }
+
+    /**
+     * Add the Opus packet to the current Ogg page, publishing the page once it is long enough
+     */
+    @Override
+    protected byte[] frameEncodedData(ByteBuffer encodedFrame, MediaCodec.BufferInfo info) {
+        // header pages come first, even if the encoder never reported its output format
+        createStreamHeader(OPUS_DEFAULT_PRE_SKIP);
+        byte[] fullPage = null;
+        if (!oggPageWriter.canAddPacket(encodedFrame.remaining())) {
+            fullPage = flushPage(0);
+        }
+
+        int packetSamples = getOpusPacketSamples(encodedFrame);
+        granulePosition += packetSamples;
+        pageSamples += packetSamples;
+        oggPageWriter.addPacket(encodedFrame, granulePosition);
+
+        if (fullPage != null) {
+            // only for packets far bigger than OPUS_BIT_RATE allows, publish both pages as one chunk
+            byte[] page = flushPage(0);
+            byte[] pages = new byte[fullPage.length + page.length];
+            System.arraycopy(fullPage, 0, pages, 0, fullPage.length);
+            System.arraycopy(page, 0, pages, fullPage.length, page.length);
+            return pages;
+        }
+        if (pageSamples >= OPUS_GRANULE_RATE / 1000 * OGG_PAGE_DURATION_MS) {
+            return flushPage(0);
+        }
+        return null;
+    }
+
+    @Override
+    protected byte[] finishEncodedData() {
+        return flushPage(OggPageWriter.HEADER_TYPE_END_OF_STREAM);
+    }
+
+    private byte[] flushPage(int headerType) {
+        pageSamples = 0;
+        return oggPageWriter.flushPage(headerType);
+    }
+
+    /**
+     * Number of 48kHz samples decoded from an Opus packet, from its TOC byte (RFC 6716 3.1)
+     */
+    static int getOpusPacketSamples(ByteBuffer packet) {
+        int position = packet.position();
+        if (packet.remaining() < 1) {
+            return 0;
+        }
+        int toc = packet.get(position) & 0xff;
+        int config = toc >> 3;
+        int frameSamples;
+        if (config < 12) {
+            // SILK only
+            frameSamples = OPUS_SILK_FRAME_SAMPLES[config & 3];
+        } else if (config < 16) {
+            // Hybrid: 10 or 20ms
+            frameSamples = (config & 1) == 0 ? 480 : 960;
+        } else {
+            // CELT only: 2.5, 5, 10 or 20ms
+            frameSamples = 120 << (config & 3);
+        }
+
+        int frameCount;
+        switch (toc & 3) {
+            case 0:
+                frameCount = 1;
+                break;
+            case 1:
+            case 2:
+                frameCount = 2;
+                break;
+            default:
+                frameCount = packet.remaining() < 2 ? 0 : packet.get(position + 1) & 0x3f;
+                break;
+        }
+        return frameSamples * frameCount;
+    }
+
+    private static boolean isOpusSampleRate(int sampleRate) {
+        for (int opusSampleRate : OPUS_SAMPLE_RATES) {
+            if (opusSampleRate == sampleRate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the encoder to report its pre-skip, falling back to the libopus default if it
+     * hasn't within OPUS_HEADER_TIMEOUT_MS.
+     */
+    @Override
+    public synchronized byte[] getStreamHeader() {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPUS_HEADER_TIMEOUT_MS);
+        while (streamHeader == null) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                Log.w(TAG, "Timed out waiting for encoder output format, using default pre-skip");
+                return createStreamHeader(OPUS_DEFAULT_PRE_SKIP);
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return createStreamHeader(OPUS_DEFAULT_PRE_SKIP);
+            }
+        }
+        return streamHeader;
+    }
+
+    @Override
+    public int getAudioEncoding() {
+        return AUDIO_ENCODING_OPUS;
+    }
+
+    /**
+     * @return true if this device has a MediaCodec Opus encoder
+     */
+    public static boolean isOpusEncoderAvailable() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return false;
+        }
+        for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(MediaFormat.MIMETYPE_AUDIO_OPUS)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static int getOpusStreamBitRate() {
+        return OPUS_BIT_RATE;
+    }
+}
@@ -0,0 +1,77 @@
+package tech.schober.vinylcast.server;
+
+/**
+ * Reads the fields of ADTS frame headers (https://wiki.multimedia.cx/index.php/ADTS) that the
+ * segmenters need to cut and timestamp the AAC stream, and the sample rate index the encoder
+ * writes into them.
+ */
+public final class AdtsFrames {
+
+    static final int HEADER_SIZE = 7;
+    // header followed by a CRC when protection_absent is 0
+    static final int PROTECTED_HEADER_SIZE = 9;
+    static final int FRAME_SAMPLES = 1024;
+
+    // index in this table is the ADTS sample rate index
+    private static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private AdtsFrames() {
+    }
+
+    /**
+     * @return length of the ADTS frame at offset including its header, or -1 if there is no
+     * complete, valid frame within length bytes
+     */
+    static int getFrameLength(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE || (data[offset] & 0xff) != 0xff || (data[offset + 1] & 0xf0) != 0xf0) {
+            return -1;
+        }
+        int frameLength = ((data[offset + 3] & 0x03) << 11) | ((data[offset + 4] & 0xff) << 3) | ((data[offset + 5] & 0xe0) >> 5);
+        if (getSampleRateIndex(data, offset) >= SAMPLE_RATES.length || frameLength < getHeaderLength(data, offset) || frameLength > length) {
+            return -1;
+        }
+        return frameLength;
+    }
+
+    static int getHeaderLength(byte[] data, int offset) {
+        return (data[offset + 1] & 0x01) != 0 ? HEADER_SIZE : PROTECTED_HEADER_SIZE;
+    }
+
+    /**
+     * @return MPEG-4 audio object type, 2 for AAC LC
+     */
+    static int getAudioObjectType(byte[] data, int offset) {
+        return ((data[offset + 2] >> 6) & 0x03) + 1;
+    }
+
+    /**
+     * @return ADTS sample rate index of sampleRate, or -1 if ADTS can't describe it
+     */
+    public static int findSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int getSampleRateIndex(byte[] data, int offset) {
+        return (data[offset + 2] >> 2) & 0x0f;
+    }
+
+    /**
+     * HE-AAC headers carry the core rate, which is also the rate frame durations are counted in
+     */
+    static int getSampleRate(byte[] data, int offset) {
+        return SAMPLE_RATES[getSampleRateIndex(data, offset)];
+    }
+
+    static int getChannelConfig(byte[] data, int offset) {
+        return ((data[offset + 2] & 0x01) << 2) | ((data[offset + 3] >> 6) & 0x03);
+    }
+
+    static int getSamples(byte[] data, int offset) {
+        return FRAME_SAMPLES * ((data[offset + 6] & 0x03) + 1);
+    }
+}
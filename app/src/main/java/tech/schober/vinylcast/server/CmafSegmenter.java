@@ -0,0 +1,465 @@
+package tech.schober.vinylcast.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import tech.schober.vinylcast.audio.AudioChunk;
+import timber.log.Timber;
+
+/**
+ * Muxes a live stream of ADTS AAC frames into low latency CMAF for DASH receivers. Fragments of a
+ * few hundred milliseconds are made of one CMAF chunk per provider chunk, so a client requesting
+ * the fragment in progress gets each chunk as soon as the encoder has produced it. Fragments stay
+ * cached once complete, so clients joining late or recovering from an error fetch them again
+ * instead of needing their own stream.
+ * <p>
+ * Receivers work out which fragment is live from the wall clock, so fragments are numbered by the
+ * wall clock time their audio was captured rather than by counting frames. Numbers are skipped
+ * when audio went missing (or the ADC clock runs slow) and frames are dropped when the ADC clock
+ * runs ahead, keeping every fragment within half a fragment of where the manifest says it is.
+ * <p>
+ * addChunk() is called from a single thread following the encoded frames, everything else from
+ * any server thread.
+ */
+final class CmafSegmenter {
+
+    static final String MANIFEST_NAME = "live.mpd";
+    static final String INIT_SEGMENT_NAME = "init.mp4";
+    static final String CONTENT_TYPE_MANIFEST = "application/dash+xml";
+    static final String CONTENT_TYPE_SEGMENT = "audio/mp4";
+
+    private static final String FRAGMENT_PREFIX = "fragment";
+    private static final String FRAGMENT_SUFFIX = ".m4s";
+
+    // every fragment has the same number of frames, as close to this as possible
+    private static final double FRAGMENT_TARGET_SECONDS = 0.4;
+    // complete fragments kept for late joiners, the manifest's time shift buffer
+    private static final int TIME_SHIFT_BUFFER_SECONDS = 20;
+    private static final long FRAGMENT_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(TIME_SHIFT_BUFFER_SECONDS + 10);
+    // how far behind the live edge receivers should play
+    private static final int TARGET_LATENCY_MILLIS = 800;
+    // advertised until enough of the stream has been seen to measure it
+    private static final int DEFAULT_BANDWIDTH = 256000;
+
+    /**
+     * Fragment whose CMAF chunks become available one by one while it is in progress.
+     */
+    static final class Fragment {
+        final long number;
+        // guarded by this
+        private final ArrayList<byte[]> chunks = new ArrayList<>();
+        private int length = 0;
+        private boolean complete = false;
+        private long completedNanos;
+
+        Fragment(long number) {
+            this.number = number;
+        }
+
+        synchronized void addChunk(byte[] chunk) {
+            chunks.add(chunk);
+            length += chunk.length;
+            notifyAll();
+        }
+
+        synchronized void complete() {
+            if (!complete) {
+                complete = true;
+                completedNanos = System.nanoTime();
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return the chunk at index or null if it hasn't been produced yet
+         */
+        synchronized byte[] getChunk(int index) {
+            return index < chunks.size() ? chunks.get(index) : null;
+        }
+
+        synchronized int getChunkCount() {
+            return chunks.size();
+        }
+
+        synchronized boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return length of the fragment, final once it is complete
+         */
+        synchronized int getLength() {
+            return length;
+        }
+
+        /**
+         * @return stream of the whole fragment, blocking while waiting for chunks in progress
+         */
+        InputStream newInputStream() {
+            return new FragmentInputStream(this);
+        }
+    }
+
+    private static final class FragmentInputStream extends InputStream {
+        private final Fragment fragment;
+        private int chunkIndex = 0;
+        private int chunkOffset = 0;
+
+        FragmentInputStream(Fragment fragment) {
+            this.fragment = fragment;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            byte[] chunk;
+            synchronized (fragment) {
+                while ((chunk = fragment.getChunk(chunkIndex)) == null) {
+                    if (fragment.isComplete()) {
+                        return -1;
+                    }
+                    try {
+                        fragment.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            int bytesRead = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, b, off, bytesRead);
+            chunkOffset += bytesRead;
+            if (chunkOffset == chunk.length) {
+                chunkIndex++;
+                chunkOffset = 0;
+            }
+            return bytesRead;
+        }
+    }
+
+    // guarded by this, complete fragments followed by the one in progress
+    private final ArrayDeque<Fragment> fragments = new ArrayDeque<>();
+
+    // set from the first frame, fixed for the whole stream
+    private volatile FragmentedMp4Writer mp4Writer;
+    private int audioObjectType;
+    private int sampleRate;
+    private int channelConfig;
+    private int fragmentFrames;
+    private double frameMillis;
+    private long availabilityStartMillis;
+
+    // only touched by the thread calling addChunk()
+    private Fragment currentFragment;
+    private int currentFragmentFrames = 0;
+    // wall clock time the audio of the next frame was captured
+    private double frameCaptureMillis;
+    private long droppedFrames = 0;
+    // read for the manifest's bandwidth
+    private volatile long streamBytes = 0;
+    private int[] frameOffsets = new int[8];
+    private int[] frameSizes = new int[8];
+    private int chunkFrames = 0;
+    private int chunkFrameSamples;
+    private byte[] chunkData;
+
+    /**
+     * Add the ADTS frames in chunk as a single CMAF chunk, or more if it crosses a fragment boundary.
+     */
+    void addChunk(AudioChunk chunk) {
+        byte[] data = chunk.getData();
+        int offset = 0;
+        boolean firstFrame = true;
+        while (offset < chunk.getLength()) {
+            int frameLength = AdtsFrames.getFrameLength(data, offset, chunk.getLength() - offset);
+            if (frameLength < 0) {
+                Timber.w("Invalid ADTS frame, dropping rest of chunk " + chunk.getSequence());
+                break;
+            }
+            if (mp4Writer == null) {
+                start(chunk, offset);
+            }
+            if (firstFrame) {
+                frameCaptureMillis = getCaptureMillis(chunk);
+                firstFrame = false;
+            }
+
+            if (currentFragmentFrames + chunkFrames == 0) {
+                if (isAheadOfClock(currentFragment.number)) {
+                    droppedFrames++;
+                    frameCaptureMillis += frameMillis;
+                    offset += frameLength;
+                    continue;
+                }
+                skipToClock();
+            }
+            if (chunkFrames == frameOffsets.length) {
+                frameOffsets = Arrays.copyOf(frameOffsets, chunkFrames * 2);
+                frameSizes = Arrays.copyOf(frameSizes, chunkFrames * 2);
+            }
+            int headerLength = AdtsFrames.getHeaderLength(data, offset);
+            chunkData = data;
+            chunkFrameSamples = AdtsFrames.getSamples(data, offset);
+            frameOffsets[chunkFrames] = offset + headerLength;
+            frameSizes[chunkFrames] = frameLength - headerLength;
+            chunkFrames++;
+            offset += frameLength;
+            frameCaptureMillis += frameMillis;
+
+            if (currentFragmentFrames + chunkFrames == fragmentFrames) {
+                flushChunk();
+                finishFragment();
+            }
+        }
+        flushChunk();
+    }
+
+    private void start(AudioChunk chunk, int offset) {
+        byte[] data = chunk.getData();
+        audioObjectType = AdtsFrames.getAudioObjectType(data, offset);
+        sampleRate = AdtsFrames.getSampleRate(data, offset);
+        channelConfig = AdtsFrames.getChannelConfig(data, offset);
+        fragmentFrames = Math.max(1, (int) Math.round(FRAGMENT_TARGET_SECONDS * sampleRate / AdtsFrames.FRAME_SAMPLES));
+        frameMillis = AdtsFrames.FRAME_SAMPLES * 1000.0 / sampleRate;
+        // the stream starts with its first frame
+        availabilityStartMillis = (long) getCaptureMillis(chunk);
+        synchronized (this) {
+            currentFragment = new Fragment(0);
+            fragments.addLast(currentFragment);
+            mp4Writer = new FragmentedMp4Writer(audioObjectType, AdtsFrames.getSampleRateIndex(data, offset), sampleRate, channelConfig);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return wall clock time the chunk's first frame was captured, when it was published if the
+     * chunk has no capture time
+     */
+    private double getCaptureMillis(AudioChunk chunk) {
+        long captureNanos = chunk.getCaptureNanos() != AudioChunk.NO_CAPTURE_TIME
+                ? chunk.getCaptureNanos() : chunk.getPublishTimeNanos() - (long) (frameMillis * 1000000);
+        return System.currentTimeMillis() - (System.nanoTime() - captureNanos) / 1e6;
+    }
+
+    /**
+     * @return true if the next frame was captured more than half a fragment before the manifest
+     * says fragment number starts
+     */
+    private boolean isAheadOfClock(long number) {
+        double fragmentMillis = fragmentFrames * frameMillis;
+        return frameCaptureMillis < availabilityStartMillis + (number - 0.5) * fragmentMillis;
+    }
+
+    /**
+     * @return number of the fragment starting with the next frame according to the wall clock
+     */
+    private long getClockFragmentNumber() {
+        double fragmentMillis = fragmentFrames * frameMillis;
+        return Math.round((frameCaptureMillis - availabilityStartMillis) / fragmentMillis);
+    }
+
+    private void flushChunk() {
+        if (chunkFrames == 0) {
+            return;
+        }
+        // media time follows the fragment numbers, which are what receivers derive it from
+        long decodeFrames = currentFragment.number * fragmentFrames + currentFragmentFrames;
+        byte[] cmafChunk = mp4Writer.writeChunk(chunkData, frameOffsets, frameSizes, chunkFrames, chunkFrameSamples, decodeFrames * AdtsFrames.FRAME_SAMPLES);
+        currentFragment.addChunk(cmafChunk);
+        currentFragmentFrames += chunkFrames;
+        streamBytes += cmafChunk.length;
+        chunkFrames = 0;
+        chunkData = null;
+    }
+
+    /**
+     * Renumber the fragment about to start if its audio was captured more than half a fragment
+     * after the manifest says it starts, because audio went missing or the ADC clock is slow. The
+     * skipped fragments never exist, receivers already waiting for the empty one get no data.
+     */
+    private void skipToClock() {
+        long clockNumber = getClockFragmentNumber();
+        if (clockNumber <= currentFragment.number) {
+            return;
+        }
+        Timber.d("CMAF audio behind the clock, skipping fragments " + currentFragment.number + " to " + (clockNumber - 1));
+        Fragment skippedFragment = currentFragment;
+        currentFragment = new Fragment(clockNumber);
+        synchronized (this) {
+            fragments.remove(skippedFragment);
+            fragments.addLast(currentFragment);
+        }
+        skippedFragment.complete();
+    }
+
+    private void finishFragment() {
+        currentFragment.complete();
+        if (droppedFrames > 0) {
+            Timber.d("CMAF audio ahead of the clock, dropped " + droppedFrames + " frames");
+            droppedFrames = 0;
+        }
+        Fragment nextFragment = new Fragment(currentFragment.number + 1);
+        synchronized (this) {
+            // add the next fragment right away, receivers may ask for it before its first chunk
+            fragments.addLast(nextFragment);
+            evictFragments(System.nanoTime());
+        }
+        currentFragment = nextFragment;
+        currentFragmentFrames = 0;
+    }
+
+    private void evictFragments(long nowNanos) {
+        Iterator<Fragment> iterator = fragments.iterator();
+        while (iterator.hasNext()) {
+            Fragment fragment = iterator.next();
+            if (fragment.isComplete() && nowNanos - fragment.completedNanos > FRAGMENT_MAX_AGE_NANOS) {
+                iterator.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Complete the fragment in progress so clients following it finish their response.
+     */
+    void close() {
+        synchronized (this) {
+            for (Fragment fragment : fragments) {
+                fragment.complete();
+            }
+        }
+    }
+
+    /**
+     * @return true once the first frame has been seen and the manifest can be created
+     */
+    boolean isStarted() {
+        return mp4Writer != null;
+    }
+
+    /**
+     * Wait for the first frame, receivers are usually told about the manifest right as the stream
+     * starts.
+     * @return true if the manifest can be created
+     */
+    synchronized boolean awaitStarted(long timeoutMillis) throws InterruptedException {
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        long remainingMillis = timeoutMillis;
+        while (mp4Writer == null && remainingMillis > 0) {
+            wait(remainingMillis);
+            remainingMillis = deadlineMillis - System.currentTimeMillis();
+        }
+        return mp4Writer != null;
+    }
+
+    /**
+     * @return true if name is one of the files served for this segmenter
+     */
+    static boolean isCmafFile(String name) {
+        return name.equals(MANIFEST_NAME) || name.equals(INIT_SEGMENT_NAME) || name.endsWith(FRAGMENT_SUFFIX);
+    }
+
+    static String getContentType(String name) {
+        return name.equals(MANIFEST_NAME) ? CONTENT_TYPE_MANIFEST : CONTENT_TYPE_SEGMENT;
+    }
+
+    /**
+     * @return the init segment or null until the first frame has been seen
+     */
+    byte[] getInitSegment() {
+        FragmentedMp4Writer writer = mp4Writer;
+        return writer != null ? writer.getInitSegment() : null;
+    }
+
+    /**
+     * @param name file name from the manifest, e.g. fragment12.m4s
+     * @return the fragment, possibly still in progress, or null if it isn't (or is no longer) cached
+     */
+    Fragment getFragment(String name) {
+        if (!name.startsWith(FRAGMENT_PREFIX) || !name.endsWith(FRAGMENT_SUFFIX)) {
+            return null;
+        }
+        long number;
+        try {
+            number = Long.parseLong(name.substring(FRAGMENT_PREFIX.length(), name.length() - FRAGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        synchronized (this) {
+            for (Fragment fragment : fragments) {
+                if (fragment.number == number) {
+                    return fragment;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the DASH manifest or null until the first frame has been seen
+     */
+    byte[] getManifest() {
+        if (mp4Writer == null) {
+            return null;
+        }
+        long nowMillis = System.currentTimeMillis();
+        double fragmentSeconds = (double) fragmentFrames * AdtsFrames.FRAME_SAMPLES / sampleRate;
+        // a fragment becomes available as soon as its first chunk is
+        double availabilityTimeOffset = fragmentSeconds - (double) AdtsFrames.FRAME_SAMPLES / sampleRate;
+        double streamSeconds = (nowMillis - availabilityStartMillis) / 1000.0;
+        int bandwidth = streamSeconds >= 1 ? (int) (streamBytes * 8 / streamSeconds) : DEFAULT_BANDWIDTH;
+
+        String manifest = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\" type=\"dynamic\""
+                + " availabilityStartTime=\"" + formatTime(availabilityStartMillis) + "\""
+                + " publishTime=\"" + formatTime(nowMillis) + "\""
+                + String.format(Locale.US, " minBufferTime=\"PT%.3fS\"", fragmentSeconds)
+                + String.format(Locale.US, " maxSegmentDuration=\"PT%.3fS\"", fragmentSeconds)
+                + " timeShiftBufferDepth=\"PT" + TIME_SHIFT_BUFFER_SECONDS + "S\">\n"
+                + "  <ServiceDescription id=\"0\">\n"
+                + "    <Latency target=\"" + TARGET_LATENCY_MILLIS + "\"/>\n"
+                + "  </ServiceDescription>\n"
+                + "  <Period id=\"0\" start=\"PT0S\">\n"
+                + "    <AdaptationSet id=\"0\" contentType=\"audio\" mimeType=\"" + CONTENT_TYPE_SEGMENT + "\" segmentAlignment=\"true\" startWithSAP=\"1\" lang=\"und\">\n"
+                + "      <Representation id=\"0\" codecs=\"" + FragmentedMp4Writer.getCodecs(audioObjectType) + "\""
+                + " audioSamplingRate=\"" + sampleRate + "\" bandwidth=\"" + bandwidth + "\">\n"
+                + "        <AudioChannelConfiguration schemeIdUri=\"urn:mpeg:dash:23003:3:audio_channel_configuration:2011\" value=\"" + channelConfig + "\"/>\n"
+                + "        <SegmentTemplate timescale=\"" + sampleRate + "\" duration=\"" + fragmentFrames * AdtsFrames.FRAME_SAMPLES + "\""
+                + " startNumber=\"0\" initialization=\"" + INIT_SEGMENT_NAME + "\" media=\"" + FRAGMENT_PREFIX + "$Number$" + FRAGMENT_SUFFIX + "\""
+                + String.format(Locale.US, " availabilityTimeOffset=\"%.3f\"", availabilityTimeOffset)
+                + " availabilityTimeComplete=\"false\"/>\n"
+                + "      </Representation>\n"
+                + "    </AdaptationSet>\n"
+                + "  </Period>\n"
+                // receivers sync their clock to ours, so availability times match on any network
+                + "  <UTCTiming schemeIdUri=\"urn:mpeg:dash:utc:direct:2014\" value=\"" + formatTime(nowMillis) + "\"/>\n"
+                + "</MPD>\n";
+        return manifest.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String formatTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,296 @@
+package tech.schober.vinylcast.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a single AAC track as CMAF (ISO/IEC 23000-19): an init segment describing the track and
+ * self-contained chunks of one moof and mdat each, which can be sent to clients as soon as they
+ * are written.
+ * <p>
+ * Only the boxes needed by CMAF audio players are written, with all times in samples of the
+ * AAC core sample rate.
+ */
+final class FragmentedMp4Writer {
+
+    private static final int TRACK_ID = 1;
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    // tfhd default-base-is-moof: data offsets are relative to the moof
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // trun data-offset-present, sample-duration-present and sample-size-present
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200;
+    private static final int MOOF_HEADER_SIZE = 8 + 16 + 8 + 16 + 20 + 20;
+    private static final int TRUN_SAMPLE_SIZE = 8;
+    private static final int MDAT_HEADER_SIZE = 8;
+    // box types written for every chunk
+    private static final byte[] MOOF = fourCc("moof");
+    private static final byte[] MFHD = fourCc("mfhd");
+    private static final byte[] TRAF = fourCc("traf");
+    private static final byte[] TFHD = fourCc("tfhd");
+    private static final byte[] TFDT = fourCc("tfdt");
+    private static final byte[] TRUN = fourCc("trun");
+    private static final byte[] MDAT = fourCc("mdat");
+
+    private final int sampleRate;
+    private final byte[] initSegment;
+    private int nextFragmentSequence = 1;
+
+    /**
+     * @param audioObjectType MPEG-4 audio object type of the AAC frames, 2 for AAC LC
+     * @param sampleRateIndex sample rate index as found in ADTS headers
+     * @param sampleRate sample rate at sampleRateIndex, the timescale of the track
+     * @param channelConfig channel configuration as found in ADTS headers
+     */
+    FragmentedMp4Writer(int audioObjectType, int sampleRateIndex, int sampleRate, int channelConfig) {
+        this.sampleRate = sampleRate;
+        this.initSegment = createInitSegment(audioObjectType, sampleRateIndex, channelConfig);
+    }
+
+    /**
+     * @return ftyp and moov, everything a player needs before the first chunk
+     */
+    byte[] getInitSegment() {
+        return initSegment;
+    }
+
+    /**
+     * Write one chunk holding the raw AAC frames (without ADTS headers) in frames, one sample each.
+     * @param decodeTime time of the first frame in samples since the start of the stream
+     * @param frameOffsets offset of each frame in frames
+     * @param frameSizes size of each frame
+     * @param frameCount number of frames in the chunk
+     * @param frameSamples duration of each frame in samples
+     */
+    byte[] writeChunk(byte[] frames, int[] frameOffsets, int[] frameSizes, int frameCount, int frameSamples, long decodeTime) {
+        int moofSize = MOOF_HEADER_SIZE + TRUN_SAMPLE_SIZE * frameCount;
+        int mdatSize = MDAT_HEADER_SIZE;
+        for (int i = 0; i < frameCount; i++) {
+            mdatSize += frameSizes[i];
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(moofSize + mdatSize);
+        chunk.putInt(moofSize).put(MOOF);
+        chunk.putInt(16).put(MFHD).putInt(0).putInt(nextFragmentSequence++);
+        chunk.putInt(moofSize - 24).put(TRAF);
+        chunk.putInt(16).put(TFHD).putInt(TFHD_DEFAULT_BASE_IS_MOOF).putInt(TRACK_ID);
+        chunk.putInt(20).put(TFDT).putInt(1 << 24).putLong(decodeTime);
+        chunk.putInt(20 + TRUN_SAMPLE_SIZE * frameCount).put(TRUN).putInt(TRUN_FLAGS)
+                .putInt(frameCount).putInt(moofSize + MDAT_HEADER_SIZE);
+        for (int i = 0; i < frameCount; i++) {
+            chunk.putInt(frameSamples).putInt(frameSizes[i]);
+        }
+        chunk.putInt(mdatSize).put(MDAT);
+        for (int i = 0; i < frameCount; i++) {
+            chunk.put(frames, frameOffsets[i], frameSizes[i]);
+        }
+        return chunk.array();
+    }
+
+    /**
+     * @return RFC 6381 codecs parameter of the track, e.g. mp4a.40.2
+     */
+    static String getCodecs(int audioObjectType) {
+        return "mp4a.40." + audioObjectType;
+    }
+
+    private byte[] createInitSegment(int audioObjectType, int sampleRateIndex, int channelConfig) {
+        try {
+            ByteArrayOutputStream initSegment = new ByteArrayOutputStream();
+
+            Box ftyp = new Box("ftyp");
+            ftyp.out.write(fourCc("cmfc"));
+            ftyp.out.writeInt(0);
+            ftyp.out.write(fourCc("cmfc"));
+            ftyp.out.write(fourCc("iso6"));
+            ftyp.out.write(fourCc("dash"));
+            ftyp.writeTo(initSegment);
+
+            Box mvhd = new Box("mvhd", 0, 0);
+            mvhd.out.writeInt(0); // creation_time
+            mvhd.out.writeInt(0); // modification_time
+            mvhd.out.writeInt(1000); // timescale
+            mvhd.out.writeInt(0); // duration, unknown
+            mvhd.out.writeInt(0x00010000); // rate 1.0
+            mvhd.out.writeShort(0x0100); // volume 1.0
+            mvhd.out.write(new byte[10]);
+            writeMatrix(mvhd.out);
+            mvhd.out.write(new byte[24]); // pre_defined
+            mvhd.out.writeInt(TRACK_ID + 1); // next_track_ID
+
+            Box tkhd = new Box("tkhd", 0, 0x000003); // track enabled and in movie
+            tkhd.out.writeInt(0); // creation_time
+            tkhd.out.writeInt(0); // modification_time
+            tkhd.out.writeInt(TRACK_ID);
+            tkhd.out.writeInt(0);
+            tkhd.out.writeInt(0); // duration
+            tkhd.out.write(new byte[8]);
+            tkhd.out.writeShort(0); // layer
+            tkhd.out.writeShort(0); // alternate_group
+            tkhd.out.writeShort(0x0100); // volume 1.0
+            tkhd.out.writeShort(0);
+            writeMatrix(tkhd.out);
+            tkhd.out.writeInt(0); // width
+            tkhd.out.writeInt(0); // height
+
+            Box mdhd = new Box("mdhd", 0, 0);
+            mdhd.out.writeInt(0); // creation_time
+            mdhd.out.writeInt(0); // modification_time
+            mdhd.out.writeInt(sampleRate); // timescale
+            mdhd.out.writeInt(0); // duration
+            mdhd.out.writeShort(0x55c4); // language "und"
+            mdhd.out.writeShort(0);
+
+            Box hdlr = new Box("hdlr", 0, 0);
+            hdlr.out.writeInt(0);
+            hdlr.out.write(fourCc("soun"));
+            hdlr.out.write(new byte[12]);
+            hdlr.out.write("SoundHandler\0".getBytes(StandardCharsets.US_ASCII));
+
+            Box smhd = new Box("smhd", 0, 0);
+            smhd.out.writeShort(0); // balance
+            smhd.out.writeShort(0);
+
+            Box url = new Box("url ", 0, 0x000001); // media is in this file
+            Box dref = new Box("dref", 0, 0);
+            dref.out.writeInt(1);
+            url.writeTo(dref.out);
+            Box dinf = new Box("dinf");
+            dref.writeTo(dinf.out);
+
+            Box stsd = new Box("stsd", 0, 0);
+            stsd.out.writeInt(1);
+            createMp4a(audioObjectType, sampleRateIndex, channelConfig).writeTo(stsd.out);
+            Box stbl = new Box("stbl");
+            stsd.writeTo(stbl.out);
+            // the sample tables are empty, samples are described by each moof
+            for (String type : new String[]{"stts", "stsc", "stco"}) {
+                Box empty = new Box(type, 0, 0);
+                empty.out.writeInt(0);
+                empty.writeTo(stbl.out);
+            }
+            Box stsz = new Box("stsz", 0, 0);
+            stsz.out.writeInt(0); // sample_size
+            stsz.out.writeInt(0); // sample_count
+            stsz.writeTo(stbl.out);
+
+            Box minf = new Box("minf");
+            smhd.writeTo(minf.out);
+            dinf.writeTo(minf.out);
+            stbl.writeTo(minf.out);
+            Box mdia = new Box("mdia");
+            mdhd.writeTo(mdia.out);
+            hdlr.writeTo(mdia.out);
+            minf.writeTo(mdia.out);
+            Box trak = new Box("trak");
+            tkhd.writeTo(trak.out);
+            mdia.writeTo(trak.out);
+
+            Box trex = new Box("trex", 0, 0);
+            trex.out.writeInt(TRACK_ID);
+            trex.out.writeInt(1); // default_sample_description_index
+            trex.out.writeInt(AdtsFrames.FRAME_SAMPLES); // default_sample_duration
+            trex.out.writeInt(0); // default_sample_size
+            trex.out.writeInt(0); // default_sample_flags, every audio sample is a sync sample
+            Box mvex = new Box("mvex");
+            trex.writeTo(mvex.out);
+
+            Box moov = new Box("moov");
+            mvhd.writeTo(moov.out);
+            trak.writeTo(moov.out);
+            mvex.writeTo(moov.out);
+            moov.writeTo(initSegment);
+
+            return initSegment.toByteArray();
+        } catch (IOException e) {
+            // only writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Box createMp4a(int audioObjectType, int sampleRateIndex, int channelConfig) throws IOException {
+        // AudioSpecificConfig (ISO/IEC 14496-3 1.6.2.1), SBR is signalled implicitly as in ADTS
+        byte[] audioSpecificConfig = {
+                (byte) ((audioObjectType << 3) | (sampleRateIndex >> 1)),
+                (byte) (((sampleRateIndex & 0x01) << 7) | (channelConfig << 3))
+        };
+        // DecoderSpecificInfo and SLConfigDescriptor inside DecoderConfigDescriptor inside
+        // ES_Descriptor (ISO/IEC 14496-1 7.2.6), every length fits in a single byte
+        int decoderConfigLength = 13 + 2 + audioSpecificConfig.length;
+        int esLength = 3 + 2 + decoderConfigLength + 2 + 1;
+
+        Box esds = new Box("esds", 0, 0);
+        esds.out.writeByte(0x03); // ES_DescrTag
+        esds.out.writeByte(esLength);
+        esds.out.writeShort(0); // ES_ID
+        esds.out.writeByte(0); // no stream dependence, url or OCR stream
+        esds.out.writeByte(0x04); // DecoderConfigDescrTag
+        esds.out.writeByte(decoderConfigLength);
+        esds.out.writeByte(0x40); // objectTypeIndication MPEG-4 audio
+        esds.out.writeByte((0x05 << 2) | 0x01); // streamType audio, upStream 0, reserved 1
+        esds.out.write(new byte[3]); // bufferSizeDB
+        esds.out.writeInt(0); // maxBitrate
+        esds.out.writeInt(0); // avgBitrate
+        esds.out.writeByte(0x05); // DecSpecificInfoTag
+        esds.out.writeByte(audioSpecificConfig.length);
+        esds.out.write(audioSpecificConfig);
+        esds.out.writeByte(0x06); // SLConfigDescrTag
+        esds.out.writeByte(1);
+        esds.out.writeByte(0x02); // predefined for MP4 files
+
+        Box mp4a = new Box("mp4a");
+        mp4a.out.write(new byte[6]);
+        mp4a.out.writeShort(1); // data_reference_index
+        mp4a.out.write(new byte[8]);
+        mp4a.out.writeShort(channelConfig == 0 ? 2 : Math.min(channelConfig, 2)); // channelcount
+        mp4a.out.writeShort(16); // samplesize
+        mp4a.out.writeShort(0);
+        mp4a.out.writeShort(0);
+        // 16.16 fixed point, rates that don't fit are only given by the AudioSpecificConfig
+        mp4a.out.writeInt(sampleRate <= 0xffff ? sampleRate << 16 : 0);
+        esds.writeTo(mp4a.out);
+        return mp4a;
+    }
+
+    private static void writeMatrix(DataOutputStream out) throws IOException {
+        for (int value : UNITY_MATRIX) {
+            out.writeInt(value);
+        }
+    }
+
+    private static byte[] fourCc(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Box whose size is only known once its content has been written
+     */
+    private static final class Box {
+        private final String type;
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(content);
+
+        Box(String type) {
+            this.type = type;
+        }
+
+        /**
+         * FullBox with version and flags
+         */
+        Box(String type, int version, int flags) throws IOException {
+            this(type);
+            out.writeInt((version << 24) | flags);
+        }
+
+        void writeTo(OutputStream parent) throws IOException {
+            DataOutputStream parentOut = new DataOutputStream(parent);
+            parentOut.writeInt(8 + content.size());
+            parentOut.write(fourCc(type));
+            content.writeTo(parent);
+        }
+    }
+}
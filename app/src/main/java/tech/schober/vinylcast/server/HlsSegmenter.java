@@ -0,0 +1,285 @@
+package tech.schober.vinylcast.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import tech.schober.vinylcast.audio.AudioChunk;
+import timber.log.Timber;
+
+/**
+ * Cuts a live stream of ADTS AAC frames into HLS packed audio segments (RFC 8216 3.4), each
+ * starting with the ID3 timestamp HLS requires. Every segment is built once, kept as an immutable
+ * byte[] in a bounded in-memory cache and served to any number of clients, so a client that
+ * reconnects just fetches segments again instead of needing its own stream.
+ * <p>
+ * Chunks missing from the sequence, e.g. dropped while this fell behind the encoder, end the
+ * segment early and the next one is marked with EXT-X-DISCONTINUITY so players don't expect the
+ * audio on either side of the gap to join up.
+ * <p>
+ * addChunk() is called from a single thread following the encoded frames, the getters from any
+ * server thread.
+ */
+final class HlsSegmenter {
+
+    static final String PLAYLIST_NAME = "live.m3u8";
+    static final String CONTENT_TYPE_PLAYLIST = "application/vnd.apple.mpegurl";
+    static final String CONTENT_TYPE_SEGMENT = "audio/aac";
+
+    private static final String SEGMENT_PREFIX = "segment";
+    private static final String SEGMENT_SUFFIX = ".aac";
+
+    // segments are cut at the first frame boundary after this long
+    private static final double SEGMENT_TARGET_SECONDS = 2.0;
+    // segments listed in the playlist, older ones stay fetchable until evicted
+    private static final int PLAYLIST_SEGMENTS = 5;
+    private static final long SEGMENT_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int SEGMENT_CACHE_SIZE = 32;
+
+    // ID3v2.4 tag holding one PRIV frame with the 33 bit MPEG-2 timestamp (90kHz) of the segment
+    private static final byte[] ID3_TIMESTAMP_OWNER = "com.apple.streaming.transportStreamTimestamp\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int ID3_HEADER_SIZE = 10;
+    private static final int ID3_PRIV_SIZE = ID3_TIMESTAMP_OWNER.length + 8;
+    private static final int ID3_TAG_SIZE = ID3_HEADER_SIZE + ID3_HEADER_SIZE + ID3_PRIV_SIZE;
+    private static final long MPEG_CLOCK_RATE = 90000;
+
+    static final class Segment {
+        final long sequence;
+        final byte[] data;
+        final double durationSeconds;
+        final long createdNanos;
+        // discontinuities up to and including the one before this segment, if any
+        final long discontinuitySequence;
+        final boolean discontinuity;
+
+        Segment(long sequence, byte[] data, double durationSeconds, long createdNanos, long discontinuitySequence, boolean discontinuity) {
+            this.sequence = sequence;
+            this.data = data;
+            this.durationSeconds = durationSeconds;
+            this.createdNanos = createdNanos;
+            this.discontinuitySequence = discontinuitySequence;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private final long segmentMaxAgeNanos;
+
+    // guarded by this
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // a live playlist without segments until the first one is complete, receivers just reload it
+    private volatile byte[] playlist = createPlaylist();
+
+    // segment being built, only touched by the thread calling addChunk()
+    private byte[] pendingFrames = new byte[64 * 1024];
+    private int pendingLength = 0;
+    private long pendingSamples = 0;
+    private int pendingSampleRate;
+    private long nextSequence = 0;
+    // samples before the pending segment, for its timestamp
+    private long streamSamples = 0;
+    // sequence of the chunk expected next, -1 before the first one
+    private long nextChunkSequence = -1;
+    private long discontinuitySequence = 0;
+    private boolean pendingDiscontinuity = false;
+
+    HlsSegmenter() {
+        this(SEGMENT_MAX_AGE_NANOS);
+    }
+
+    /**
+     * @param segmentMaxAgeNanos how long complete segments stay cached
+     */
+    HlsSegmenter(long segmentMaxAgeNanos) {
+        this.segmentMaxAgeNanos = segmentMaxAgeNanos;
+    }
+
+    /**
+     * Add the ADTS frames in chunk, completing a segment once it is long enough.
+     */
+    void addChunk(AudioChunk chunk) {
+        if (nextChunkSequence >= 0 && chunk.getSequence() != nextChunkSequence) {
+            Timber.d("Chunks " + nextChunkSequence + " to " + (chunk.getSequence() - 1) + " missing, starting discontinuity");
+            if (pendingSamples > 0) {
+                finishSegment();
+            }
+            if (!pendingDiscontinuity) {
+                pendingDiscontinuity = true;
+                discontinuitySequence++;
+            }
+        }
+        nextChunkSequence = chunk.getSequence() + 1;
+
+        byte[] data = chunk.getData();
+        int offset = 0;
+        while (offset < chunk.getLength()) {
+            int frameLength = AdtsFrames.getFrameLength(data, offset, chunk.getLength() - offset);
+            if (frameLength < 0) {
+                Timber.w("Invalid ADTS frame, dropping rest of chunk " + chunk.getSequence());
+                return;
+            }
+            addFrame(data, offset, frameLength, AdtsFrames.getSamples(data, offset), AdtsFrames.getSampleRate(data, offset));
+            offset += frameLength;
+        }
+    }
+
+    private void addFrame(byte[] data, int offset, int length, int samples, int sampleRate) {
+        // fixed for the whole stream
+        pendingSampleRate = sampleRate;
+        if (pendingLength + length > pendingFrames.length) {
+            pendingFrames = Arrays.copyOf(pendingFrames, Math.max(pendingFrames.length * 2, pendingLength + length));
+        }
+        System.arraycopy(data, offset, pendingFrames, pendingLength, length);
+        pendingLength += length;
+        pendingSamples += samples;
+
+        if (pendingSamples >= SEGMENT_TARGET_SECONDS * pendingSampleRate) {
+            finishSegment();
+        }
+    }
+
+    private void finishSegment() {
+        byte[] data = new byte[ID3_TAG_SIZE + pendingLength];
+        long timestamp = (streamSamples * MPEG_CLOCK_RATE / pendingSampleRate) & 0x1ffffffffL;
+        writeId3Timestamp(data, timestamp);
+        System.arraycopy(pendingFrames, 0, data, ID3_TAG_SIZE, pendingLength);
+        Segment segment = new Segment(nextSequence++, data, (double) pendingSamples / pendingSampleRate, System.nanoTime(),
+                discontinuitySequence, pendingDiscontinuity);
+
+        streamSamples += pendingSamples;
+        pendingSamples = 0;
+        pendingLength = 0;
+        pendingDiscontinuity = false;
+
+        synchronized (this) {
+            segments.addLast(segment);
+            evictSegments(segment.createdNanos);
+            playlist = createPlaylist();
+        }
+    }
+
+    private void evictSegments(long nowNanos) {
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segments.size() > SEGMENT_CACHE_SIZE || nowNanos - segment.createdNanos > segmentMaxAgeNanos) {
+                iterator.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private byte[] createPlaylist() {
+        int skip = Math.max(0, segments.size() - PLAYLIST_SEGMENTS);
+        Iterator<Segment> iterator = segments.iterator();
+        for (int i = 0; i < skip; i++) {
+            iterator.next();
+        }
+
+        StringBuilder entries = new StringBuilder();
+        long firstSequence = -1;
+        long firstDiscontinuitySequence = 0;
+        double maxDuration = SEGMENT_TARGET_SECONDS;
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (firstSequence < 0) {
+                // the discontinuity before the first listed segment is counted by the sequence instead
+                firstSequence = segment.sequence;
+                firstDiscontinuitySequence = segment.discontinuitySequence;
+            } else if (segment.discontinuity) {
+                entries.append("#EXT-X-DISCONTINUITY\n");
+            }
+            maxDuration = Math.max(maxDuration, segment.durationSeconds);
+            entries.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationSeconds))
+                    .append(SEGMENT_PREFIX).append(segment.sequence).append(SEGMENT_SUFFIX).append('\n');
+        }
+
+        String playlist = "#EXTM3U\n"
+                + "#EXT-X-VERSION:3\n"
+                + "#EXT-X-TARGETDURATION:" + Math.round(maxDuration) + "\n"
+                + "#EXT-X-MEDIA-SEQUENCE:" + Math.max(firstSequence, 0) + "\n"
+                + "#EXT-X-DISCONTINUITY-SEQUENCE:" + firstDiscontinuitySequence + "\n"
+                + entries;
+        return playlist.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param name file name relative to the playlist
+     * @return the playlist or segment or null if there is no such file (yet)
+     */
+    byte[] getFile(String name) {
+        return name.equals(PLAYLIST_NAME) ? getPlaylist() : getSegment(name);
+    }
+
+    static String getContentType(String name) {
+        return name.equals(PLAYLIST_NAME) ? CONTENT_TYPE_PLAYLIST : CONTENT_TYPE_SEGMENT;
+    }
+
+    /**
+     * @return the live playlist, without segments until the first one is complete
+     */
+    byte[] getPlaylist() {
+        return playlist;
+    }
+
+    /**
+     * @param name file name from the playlist, e.g. segment12.aac
+     * @return the segment's data or null if it isn't (or is no longer) cached
+     */
+    byte[] getSegment(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.sequence == sequence) {
+                    return segment.data;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void writeId3Timestamp(byte[] data, long timestamp) {
+        int offset = 0;
+        // "ID3", version 2.4.0, no flags, syncsafe size of everything after the header
+        data[offset++] = 'I';
+        data[offset++] = 'D';
+        data[offset++] = '3';
+        data[offset++] = 4;
+        data[offset++] = 0;
+        data[offset++] = 0;
+        offset = writeSyncsafeInt(data, offset, ID3_TAG_SIZE - ID3_HEADER_SIZE);
+        // "PRIV" frame, syncsafe size, no flags
+        data[offset++] = 'P';
+        data[offset++] = 'R';
+        data[offset++] = 'I';
+        data[offset++] = 'V';
+        offset = writeSyncsafeInt(data, offset, ID3_PRIV_SIZE);
+        data[offset++] = 0;
+        data[offset++] = 0;
+        System.arraycopy(ID3_TIMESTAMP_OWNER, 0, data, offset, ID3_TIMESTAMP_OWNER.length);
+        offset += ID3_TIMESTAMP_OWNER.length;
+        // big endian, the top 31 bits are 0
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            data[offset++] = (byte) (timestamp >> shift);
+        }
+    }
+
+    static int writeSyncsafeInt(byte[] data, int offset, int value) {
+        data[offset++] = (byte) ((value >> 21) & 0x7f);
+        data[offset++] = (byte) ((value >> 14) & 0x7f);
+        data[offset++] = (byte) ((value >> 7) & 0x7f);
+        data[offset++] = (byte) (value & 0x7f);
+        return offset;
+    }
+}
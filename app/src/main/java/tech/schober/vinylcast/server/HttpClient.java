@@ -3,4 +3,5 @@ package tech.schober.vinylcast.server;
 public interface HttpClient {
     String getIpAddress();
     String getHostname();
+    int getPort();
 }
@@ -1,8 +1,27 @@
 package tech.schober.vinylcast.server;
 
+import androidx.annotation.IntDef;
+
 import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 
 public interface HttpStreamServer {
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({HTTP_SERVER_TYPE_NANOHTTPD, HTTP_SERVER_TYPE_NIO})
+    @interface HttpServerType {}
+    int HTTP_SERVER_TYPE_NANOHTTPD = 0;
+    int HTTP_SERVER_TYPE_NIO = 1;
+
+    // how Cast receivers are given the stream, HLS and CMAF fall back to the continuous stream
+    // when they aren't served for the encoding
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({CAST_DELIVERY_STREAM, CAST_DELIVERY_HLS, CAST_DELIVERY_CMAF})
+    @interface CastDelivery {}
+    int CAST_DELIVERY_STREAM = 0;
+    int CAST_DELIVERY_HLS = 1;
+    int CAST_DELIVERY_CMAF = 2;
+
     String HTTP_SERVER_URL_PATH = "/vinylcast";
     int HTTP_SERVER_PORT = 8080;
 
@@ -10,6 +29,17 @@ public interface HttpStreamServer {
     void stop();
     String getStreamUrl();
     String getContentType();
+
+    /**
+     * @return url of the live HLS playlist of the same stream, or null if it isn't served as HLS
+     */
+    String getHlsPlaylistUrl();
+
+    /**
+     * @return url of the live low latency CMAF (DASH) manifest of the same stream, or null if it
+     * isn't served as CMAF
+     */
+    String getCmafManifestUrl();
     int getClientCount();
     void addServerListener(HttpStreamServerListener listener);
     void removeServerListener(HttpStreamServerListener listener);
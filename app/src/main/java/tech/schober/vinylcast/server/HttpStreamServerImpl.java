@@ -1,28 +1,34 @@
 package tech.schober.vinylcast.server;
 
 import android.content.Context;
-import android.util.Log;
-import android.util.Pair;
 
 import androidx.annotation.StringDef;
 
-import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import fi.iki.elonen.NanoHTTPD;
+import tech.schober.vinylcast.audio.AudioChunk;
+import tech.schober.vinylcast.audio.AudioChunkBuffer;
+import tech.schober.vinylcast.audio.AudioRingBuffer;
 import tech.schober.vinylcast.audio.AudioStreamProvider;
+import tech.schober.vinylcast.utils.Metrics;
 import tech.schober.vinylcast.utils.VinylCastHelpers;
 import timber.log.Timber;
 
 import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_AAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_FLAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_OPUS;
 import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_WAV;
 
 /**
@@ -31,40 +37,98 @@ import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_WA
 
 public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer {
     @Retention(RetentionPolicy.SOURCE)
-    @StringDef({CONTENT_TYPE_WAV, CONTENT_TYPE_AAC})
+    @StringDef({CONTENT_TYPE_WAV, CONTENT_TYPE_AAC, CONTENT_TYPE_OGG, CONTENT_TYPE_FLAC})
     public @interface ContentType {}
     public static final String CONTENT_TYPE_WAV = "audio/wav";
     public static final String CONTENT_TYPE_AAC = "audio/aac";
+    public static final String CONTENT_TYPE_OGG = "audio/ogg";
+    public static final String CONTENT_TYPE_FLAC = "audio/flac";
+
+    // number of chunks shared by all clients, each client's queue is bounded by this and maxLag
+    private static final int CLIENT_CHUNK_BUFFER_SIZE = 512;
+    // how far following the provider's chunks may fall behind before frames are dropped
+    private static final long FOLLOW_MAX_LAG_MILLIS = 1000;
+    // how long a request for the CMAF manifest waits for the stream to start
+    private static final long CMAF_START_TIMEOUT_MILLIS = 5000;
 
     private Context context;
     private String serverUrlPath;
     private int serverPort;
+    private AudioStreamProvider audioStreamProvider;
     private InputStream audioStream;
     private int audioBufferSize;
+    private @AudioChunkBuffer.SlowConsumerPolicy int slowClientPolicy;
+    private long slowClientMaxLagMillis;
 
     private List<HttpStreamServerListener> listeners;
 
     private String streamUrl;
     private String contentType;
+    // sent to each client ahead of the chunks: the WAV header built from the provider's
+    // negotiated format once it has started, or the provider's own stream header (e.g. Ogg)
+    private byte[] streamHeader;
     private HttpServerClients httpServerClients;
+    private AudioChunkBuffer clientChunkBuffer;
+    // false when clients read the provider's own chunk buffer
+    private boolean ownsClientChunkBuffer;
+    private AudioChunkBuffer.Cursor followAudioCursor;
+    // HLS playlist and segments cut from the provider's chunks, null unless AAC or stopped
+    private volatile HlsSegmenter hlsSegmenter;
+    private String hlsPlaylistUrl;
+    // low latency CMAF fragments cut from the provider's chunks, null unless AAC or stopped
+    private volatile CmafSegmenter cmafSegmenter;
+    private String cmafManifestUrl;
     private Thread readAudioThread;
+    // socket of the connection being served on the current NanoHTTPD client thread
+    private final ThreadLocal<Socket> clientSocket = new ThreadLocal<>();
+    private final Metrics.Collector clientMetricsCollector = new Metrics.Collector() {
+        @Override
+        public void collect(Metrics.Writer writer) {
+            HttpServerClients httpServerClients = HttpStreamServerImpl.this.httpServerClients;
+            if (httpServerClients == null) {
+                return;
+            }
+            List<HttpClientImpl> clients = httpServerClients.getHttpClients();
+            writer.gauge("vinylcast_http_clients", "Connected HTTP clients", clients.size());
+            for (HttpClientImpl httpClient : clients) {
+                writer.counter("vinylcast_http_client_sent_bytes_total", "Audio sent to the client", "client", getClientLabel(httpClient), httpClient.audioCursor.getConsumedBytes());
+            }
+            for (HttpClientImpl httpClient : clients) {
+                long lagNanos = httpClient.audioCursor.getLagNanos();
+                // a lapped client is at least a full buffer behind, report it as such
+                double lagSeconds = lagNanos == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : lagNanos / (double) TimeUnit.SECONDS.toNanos(1);
+                writer.gauge("vinylcast_http_client_lag_seconds", "Age of the oldest audio not yet sent to the client", "client", getClientLabel(httpClient), lagSeconds);
+            }
+            for (HttpClientImpl httpClient : clients) {
+                writer.gauge("vinylcast_http_client_queued_chunks", "Chunks waiting to be sent to the client", "client", getClientLabel(httpClient), httpClient.audioCursor.getQueuedChunks());
+            }
+        }
+    };
 
-    public HttpStreamServerImpl(Context context, String serverUrlPath, int serverPort, @AudioStreamProvider.AudioEncoding int audioEncoding, InputStream audioStream, int audioBufferSize) {
+    public HttpStreamServerImpl(Context context, String serverUrlPath, int serverPort, AudioStreamProvider audioStreamProvider, int audioBufferSize, @AudioChunkBuffer.SlowConsumerPolicy int slowClientPolicy, long slowClientMaxLagMillis) {
         super(serverPort);
         this.context = context;
         this.serverUrlPath = serverUrlPath;
         this.serverPort = serverPort;
         this.audioBufferSize = audioBufferSize;
+        this.slowClientPolicy = slowClientPolicy;
+        this.slowClientMaxLagMillis = slowClientMaxLagMillis;
 
-        switch(audioEncoding) {
+        switch(audioStreamProvider.getAudioEncoding()) {
             case AUDIO_ENCODING_WAV:
                 this.contentType = CONTENT_TYPE_WAV;
                 break;
             case AUDIO_ENCODING_AAC:
                 this.contentType = CONTENT_TYPE_AAC;
                 break;
+            case AUDIO_ENCODING_OPUS:
+                this.contentType = CONTENT_TYPE_OGG;
+                break;
+            case AUDIO_ENCODING_FLAC:
+                this.contentType = CONTENT_TYPE_FLAC;
+                break;
         }
-        this.audioStream = audioStream;
+        this.audioStreamProvider = audioStreamProvider;
 
         this.listeners = Collections.synchronizedList(new ArrayList());
     }
@@ -73,8 +137,9 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         // Start NanoHTTPD
         super.start();
 
-        // Create fresh list of clients
+        // Create fresh list of clients and the chunks they all share
         httpServerClients = new HttpServerClients();
+        startClientChunkBuffer();
 
         // Create / start HttpReadAudioStream thread
         readAudioThread = new Thread(new HttpReadAudioStreamRunnable(), "HttpReadAudioStream");
@@ -83,6 +148,9 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         // Set stream url and contentType
         streamUrl = "http://" + VinylCastHelpers.getIpAddress(context) + ":" + serverPort + serverUrlPath;
         Timber.d("HTTP Server streaming at: " + streamUrl);
+        hlsPlaylistUrl = hlsSegmenter != null ? streamUrl + "/" + HlsSegmenter.PLAYLIST_NAME : null;
+        cmafManifestUrl = cmafSegmenter != null ? streamUrl + "/" + CmafSegmenter.MANIFEST_NAME : null;
+        Metrics.addCollector(clientMetricsCollector);
 
         // Notify listeners
         for (HttpStreamServerListener listener : listeners) {
@@ -97,6 +165,8 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         }
 
         // Remove all Http clients
+        Metrics.removeCollector(clientMetricsCollector);
+        stopClientChunkBuffer();
         httpServerClients.removeAllClients();
 
         // stop NanoHTTPD server
@@ -105,6 +175,8 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         // clear stream url
         Timber.d("HTTP Server stopped streaming at: " + streamUrl);
         streamUrl = null;
+        hlsPlaylistUrl = null;
+        cmafManifestUrl = null;
 
         // Notify listeners
         for (HttpStreamServerListener listener : listeners) {
@@ -112,6 +184,50 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         }
     }
 
+    /**
+     * Clients read the provider's chunks directly if it has them, otherwise its stream is read
+     * once into chunks shared by all clients.
+     */
+    private void startClientChunkBuffer() {
+        streamHeader = contentType.equals(CONTENT_TYPE_WAV) ? WavHeader.create(audioStreamProvider) : audioStreamProvider.getStreamHeader();
+        AudioChunkBuffer providerChunkBuffer = audioStreamProvider.getAudioChunkBuffer();
+        if (providerChunkBuffer != null) {
+            clientChunkBuffer = providerChunkBuffer;
+            ownsClientChunkBuffer = false;
+            audioStream = null;
+            followAudioCursor = clientChunkBuffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, FOLLOW_MAX_LAG_MILLIS);
+            hlsSegmenter = contentType.equals(CONTENT_TYPE_AAC) ? new HlsSegmenter() : null;
+            cmafSegmenter = contentType.equals(CONTENT_TYPE_AAC) ? new CmafSegmenter() : null;
+        } else {
+            clientChunkBuffer = new AudioChunkBuffer(CLIENT_CHUNK_BUFFER_SIZE);
+            ownsClientChunkBuffer = true;
+            audioStream = audioStreamProvider.getAudioInputStream();
+            followAudioCursor = null;
+            hlsSegmenter = null;
+            cmafSegmenter = null;
+        }
+    }
+
+    private void stopClientChunkBuffer() {
+        if (ownsClientChunkBuffer) {
+            clientChunkBuffer.close();
+        } else {
+            followAudioCursor.close();
+        }
+        // requests still being handled get 404s instead of a stream that no longer grows
+        hlsSegmenter = null;
+        cmafSegmenter = null;
+    }
+
+    /**
+     * @return ip:port of the client's connection, unique among connected clients even when several
+     * connect from the same device
+     */
+    static String getClientLabel(HttpClient httpClient) {
+        String ipAddress = httpClient.getIpAddress();
+        return (ipAddress.indexOf(':') >= 0 ? "[" + ipAddress + "]" : ipAddress) + ":" + httpClient.getPort();
+    }
+
     public String getStreamUrl() {
         return this.streamUrl;
     }
@@ -120,6 +236,16 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         return this.contentType;
     }
 
+    @Override
+    public String getHlsPlaylistUrl() {
+        return this.hlsPlaylistUrl;
+    }
+
+    @Override
+    public String getCmafManifestUrl() {
+        return this.cmafManifestUrl;
+    }
+
     @Override
     public int getClientCount() {
         return httpServerClients.getHttpClients().size();
@@ -133,12 +259,31 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         listeners.remove(listener);
     }
 
+    /**
+     * Remember each connection's socket on the thread serving it, so a client evicted while
+     * blocked writing to it can be disconnected rather than left until TCP gives up.
+     */
+    @Override
+    protected ClientHandler createClientHandler(final Socket socket, InputStream inputStream) {
+        return new ClientHandler(inputStream, socket) {
+            @Override
+            public void run() {
+                clientSocket.set(socket);
+                try {
+                    super.run();
+                } finally {
+                    clientSocket.remove();
+                }
+            }
+        };
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         String path = session.getUri();
         if (path.equals(serverUrlPath)) {
             Timber.d("Received HTTP Request: " + session.getRemoteIpAddress());
-            HttpClientImpl httpClient = httpServerClients.createHttpClient(session.getRemoteIpAddress(), session.getRemoteHostName());
+            HttpClientImpl httpClient = httpServerClients.createHttpClient(session.getRemoteIpAddress(), session.getRemoteHostName(), clientSocket.get());
             if (httpClient == null) {
                 Timber.e("Failed to create HttpClient.");
                 return newFixedLengthResponse(Response.Status.NO_CONTENT, contentType, "Stream not available.");
@@ -147,31 +292,90 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
             Response response = newChunkedResponse(Response.Status.OK, contentType, httpClient.inputStream);
             Timber.d("Sending HTTP Response: " + response);
             return response;
+        } else if (path.equals(Metrics.PATH)) {
+            return addFileHeaders(newFixedLengthResponse(Response.Status.OK, Metrics.CONTENT_TYPE, Metrics.toPrometheusText()));
+        } else if (path.startsWith(serverUrlPath + "/")) {
+            String name = path.substring(serverUrlPath.length() + 1);
+            // cleared when the server stops while requests may still be handled
+            HlsSegmenter hlsSegmenter = this.hlsSegmenter;
+            CmafSegmenter cmafSegmenter = this.cmafSegmenter;
+            if (cmafSegmenter != null && CmafSegmenter.isCmafFile(name)) {
+                return serveCmafFile(cmafSegmenter, name);
+            } else if (hlsSegmenter != null) {
+                return serveFile(HlsSegmenter.getContentType(name), hlsSegmenter.getFile(name));
+            }
+            return super.serve(session);
         } else {
             return super.serve(session);
         }
     }
 
+    /**
+     * Serve a playlist, segment or manifest, cached data is shared by every request.
+     */
+    private Response serveFile(String fileContentType, byte[] file) {
+        if (file == null) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "Not found.");
+        }
+        return addFileHeaders(newFixedLengthResponse(Response.Status.OK, fileContentType, new ByteArrayInputStream(file), file.length));
+    }
+
+    /**
+     * Serve a CMAF file. A fragment still in progress is sent chunk by chunk as the encoder
+     * produces them, and requests for the manifest wait until the stream has started.
+     */
+    private Response serveCmafFile(CmafSegmenter cmafSegmenter, String name) {
+        if (name.equals(CmafSegmenter.MANIFEST_NAME) || name.equals(CmafSegmenter.INIT_SEGMENT_NAME)) {
+            try {
+                cmafSegmenter.awaitStarted(CMAF_START_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] file = name.equals(CmafSegmenter.MANIFEST_NAME) ? cmafSegmenter.getManifest() : cmafSegmenter.getInitSegment();
+            return serveFile(CmafSegmenter.getContentType(name), file);
+        }
+
+        CmafSegmenter.Fragment fragment = cmafSegmenter.getFragment(name);
+        if (fragment == null) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "Not found.");
+        }
+        if (fragment.isComplete()) {
+            return addFileHeaders(newFixedLengthResponse(Response.Status.OK, CmafSegmenter.CONTENT_TYPE_SEGMENT, fragment.newInputStream(), fragment.getLength()));
+        }
+        return addFileHeaders(newChunkedResponse(Response.Status.OK, CmafSegmenter.CONTENT_TYPE_SEGMENT, fragment.newInputStream()));
+    }
+
+    private static Response addFileHeaders(Response response) {
+        response.addHeader("Cache-Control", "no-cache");
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        return response;
+    }
+
     class HttpReadAudioStreamRunnable implements Runnable {
 
         @Override
         public void run() {
             Timber.d("starting...");
+            if (audioStream == null) {
+                followAudioChunks();
+                return;
+            }
             //Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 
             byte[] buffer = new byte[audioBufferSize];
+            AudioRingBuffer.Reader audioReader = audioStream instanceof AudioRingBuffer.Reader ? (AudioRingBuffer.Reader) audioStream : null;
             while (!Thread.currentThread().isInterrupted()) {
                 try {
+                    long captureNanos = audioReader != null ? audioReader.getCaptureNanos() : AudioChunk.NO_CAPTURE_TIME;
                     int bufferReadResult = audioStream.read(buffer, 0, buffer.length);
-                    for (HttpClientImpl httpClient : httpServerClients.getHttpClients()) {
-                        try {
-                            httpClient.outputStream.write(buffer, 0, bufferReadResult);
-                            httpClient.outputStream.flush();
-                        } catch (Exception e) {
-                            Timber.w(e, "Exception writing to HttpClient. Removing client from list.");
-                            httpServerClients.removeClient(httpClient);
-                        }
+                    if (bufferReadResult < 0) {
+                        Timber.d("Reached end of audio stream input. Exiting.");
+                        break;
                     }
+                    // single immutable chunk shared by all clients, each reads at its own pace
+                    clientChunkBuffer.publish(buffer, 0, bufferReadResult, captureNanos);
+
+                    removeLaggingClients();
                 } catch (IOException e) {
                     Timber.e(e,"Exception reading audio stream input. Exiting.");
                     break;
@@ -181,6 +385,54 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
             Timber.d("interrupted, calling HttpStreamServerImpl.stop()");
             stop();
         }
+
+        /**
+         * Never wait on a client: NanoHTTPD closes a client's stream once its connection goes
+         * away and stalled clients are disconnected per slowClientPolicy.
+         */
+        private void removeLaggingClients() {
+            for (HttpClientImpl httpClient : httpServerClients.getHttpClients()) {
+                if (httpClient.audioCursor.closeIfLagging()) {
+                    Timber.d("HttpClient stream closed or too far behind. Removing client from list.");
+                    httpServerClients.removeClient(httpClient);
+                }
+            }
+        }
+
+        /**
+         * Provider publishes its own chunks which clients read directly, just keep track of them
+         * and cut them into HLS segments and CMAF fragments.
+         */
+        private void followAudioChunks() {
+            // cleared when the server stops while this thread may still be running
+            HlsSegmenter hlsSegmenter = HttpStreamServerImpl.this.hlsSegmenter;
+            CmafSegmenter cmafSegmenter = HttpStreamServerImpl.this.cmafSegmenter;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    AudioChunk chunk = followAudioCursor.nextChunk();
+                    if (chunk == null) {
+                        Timber.d("Reached end of audio chunks. Exiting.");
+                        break;
+                    }
+                    if (hlsSegmenter != null) {
+                        hlsSegmenter.addChunk(chunk);
+                    }
+                    if (cmafSegmenter != null) {
+                        cmafSegmenter.addChunk(chunk);
+                    }
+                    removeLaggingClients();
+                } catch (IOException e) {
+                    Timber.d("Stopped following audio chunks: " + e.getMessage());
+                    break;
+                }
+            }
+            if (cmafSegmenter != null) {
+                cmafSegmenter.close();
+            }
+
+            Timber.d("interrupted, calling HttpStreamServerImpl.stop()");
+            stop();
+        }
     }
 
     class HttpServerClients {
@@ -188,19 +440,22 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         // Thread-safe list tracking connected clients and their associated streams
         private CopyOnWriteArrayList<HttpClientImpl> httpClients = new CopyOnWriteArrayList<>();
 
-        HttpClientImpl createHttpClient(String ipAddress, String hostname) {
-            HttpClientImpl newClient;
-            try {
-                Pair<OutputStream, InputStream> httpClientStreams = VinylCastHelpers.getPipedAudioStreams(audioBufferSize);
-                newClient = new HttpClientImpl(ipAddress, hostname, httpClientStreams.first, httpClientStreams.second);
-                if (contentType.equals(CONTENT_TYPE_WAV)) {
-                    writeWAVHeaders(newClient.outputStream);
-                }
-            } catch (IOException e) {
-                Timber.e(e, "Exception getting new stream.");
+        HttpClientImpl createHttpClient(String ipAddress, String hostname, Socket socket) {
+            if (clientChunkBuffer.isClosed()) {
                 return null;
             }
 
+            HttpClientImpl newClient;
+            // start at the most recent chunk boundary so encoded streams are decodable right away
+            AudioChunkBuffer.Cursor audioCursor = clientChunkBuffer.newCursorFromNewest(slowClientPolicy, slowClientMaxLagMillis);
+            audioCursor.setCaptureLatency(Metrics.CAPTURE_LATENCY_SERVER);
+            if (streamHeader != null) {
+                InputStream inputStream = new SequenceInputStream(new ByteArrayInputStream(streamHeader), audioCursor);
+                newClient = new HttpClientImpl(ipAddress, hostname, socket, audioCursor, inputStream);
+            } else {
+                newClient = new HttpClientImpl(ipAddress, hostname, socket, audioCursor, audioCursor);
+            }
+
             httpClients.add(newClient);
             for (HttpStreamServerListener listener : listeners) {
                 listener.onClientConnected(newClient);
@@ -209,12 +464,10 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         }
 
         void removeClient(HttpClientImpl httpClient) {
-            try {
-                httpClient.inputStream.close();
-                httpClient.outputStream.close();
-            } catch (IOException e) {
-                Timber.e(e, "Exception closing HttpClient streams.");
-            }
+            httpClient.audioCursor.close();
+            // a client thread blocked writing to a stalled connection only returns once the
+            // socket is closed
+            httpClient.closeSocket();
             httpClients.remove(httpClient);
             for (HttpStreamServerListener listener : listeners) {
                 listener.onClientDisconnected(httpClient);
@@ -235,91 +488,35 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         List<HttpClientImpl> getHttpClients() {
             return Collections.unmodifiableList(this.httpClients);
         }
-
-
-
-        void writeWAVHeaders(OutputStream outputStream) throws IOException {
-            DataOutputStream dataOutputStream;
-            if (outputStream instanceof DataOutputStream) {
-                dataOutputStream = (DataOutputStream) outputStream;
-            } else {
-                dataOutputStream = new DataOutputStream(outputStream);
-            }
-
-            dataOutputStream.write(HEADER_RIFF);
-            writeInt(dataOutputStream, -1);
-            dataOutputStream.write(HEADER_WAVE);
-            dataOutputStream.write(HEADER_FMT);
-            writeInt(dataOutputStream, HEADER_PCM_SUBCHUNK_1_SIZE);
-            writeShort(dataOutputStream, HEADER_PCM_FORMAT);
-            writeShort(dataOutputStream, (short) DEFAULT_CHANNEL_COUNT);
-            writeInt(dataOutputStream, DEFAULT_SAMPLE_RATE);
-            writeInt(dataOutputStream, getByteRate());
-            writeShort(dataOutputStream, getBlockAlign());
-            writeShort(dataOutputStream, (short) DEFAULT_BITS_PER_SAMPLE);
-            dataOutputStream.write(HEADER_DATA);
-            writeInt(dataOutputStream, -1);
-        }
-
-        /**
-         * Little Endian writing of an integer to the stream.
-         */
-        private void writeInt(DataOutputStream output, int value) throws IOException {
-            output.write(value);
-            output.write(value >> 8);
-            output.write(value >> 16);
-            output.write(value >> 24);
-        }
-
-        /**
-         * Little Endian writing of a short to the stream.
-         */
-        private void writeShort(final DataOutputStream output, final short value) throws IOException {
-            output.write(value);
-            output.write(value >> 8);
-        }
-
-        private int getByteRate() {
-            return DEFAULT_CHANNEL_COUNT * DEFAULT_SAMPLE_RATE * (DEFAULT_BITS_PER_SAMPLE / 8);
-        }
-
-        private short getBlockAlign() {
-            return (short) (DEFAULT_CHANNEL_COUNT * (DEFAULT_BITS_PER_SAMPLE / 8));
-        }
     }
 
-    // "RIFF" in ascii
-    private static final byte[] HEADER_RIFF = new byte[]{0x52, 0x49, 0x46, 0x46};
-    // 36 bytes in the header (add to total size of input)
-    private static final int HEADER_CHUNK_PREFIX_SIZE = 36;
-    // "WAVE" in ascii
-    private static final byte[] HEADER_WAVE = new byte[]{0x57, 0x41, 0x56, 0x45};
-    // "fmt " in ascii
-    private static final byte[] HEADER_FMT = new byte[]{0x66, 0x6d, 0x74, 0x20};
-    // 1 = PCM
-    private static final short HEADER_PCM_FORMAT = 1;
-    // "data" in ascii
-    private static final byte[] HEADER_DATA = new byte[]{0x64, 0x61, 0x74, 0x61};
-    // PCM = 16
-    private static final int HEADER_PCM_SUBCHUNK_1_SIZE = 16;
-
-    private static final int DEFAULT_CHANNEL_COUNT = 2;
-    private static final int DEFAULT_BITS_PER_SAMPLE = 16;
-    private static final int DEFAULT_SAMPLE_RATE = 48000;
-
     class HttpClientImpl implements HttpClient {
         private String ipAddress;
         private String hostname;
-        protected OutputStream outputStream;
+        // null if the request wasn't served on a NanoHTTPD client thread
+        private Socket socket;
+        protected AudioChunkBuffer.Cursor audioCursor;
         protected InputStream inputStream;
 
-        public HttpClientImpl(String ipAddress, String hostname, OutputStream outputStream, InputStream inputStream) {
+        public HttpClientImpl(String ipAddress, String hostname, Socket socket, AudioChunkBuffer.Cursor audioCursor, InputStream inputStream) {
             this.ipAddress = ipAddress;
             this.hostname = hostname;
-            this.outputStream = outputStream;
+            this.socket = socket;
+            this.audioCursor = audioCursor;
             this.inputStream = inputStream;
         }
 
+        void closeSocket() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Timber.w(e, "Exception closing HttpClient socket");
+            }
+        }
+
         public String getIpAddress() {
             return ipAddress;
         }
@@ -327,5 +524,9 @@ public class HttpStreamServerImpl extends NanoHTTPD implements HttpStreamServer
         public String getHostname() {
             return hostname;
         }
+
+        public int getPort() {
+            return socket != null ? socket.getPort() : 0;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,850 @@
+package tech.schober.vinylcast.server;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import tech.schober.vinylcast.audio.AudioChunk;
+import tech.schober.vinylcast.audio.AudioChunkBuffer;
+import tech.schober.vinylcast.audio.AudioRingBuffer;
+import tech.schober.vinylcast.audio.AudioStreamProvider;
+import tech.schober.vinylcast.utils.Metrics;
+import tech.schober.vinylcast.utils.VinylCastHelpers;
+import timber.log.Timber;
+
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_AAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_FLAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_OPUS;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_WAV;
+import static tech.schober.vinylcast.server.HttpStreamServerImpl.CONTENT_TYPE_AAC;
+import static tech.schober.vinylcast.server.HttpStreamServerImpl.CONTENT_TYPE_FLAC;
+import static tech.schober.vinylcast.server.HttpStreamServerImpl.CONTENT_TYPE_OGG;
+import static tech.schober.vinylcast.server.HttpStreamServerImpl.CONTENT_TYPE_WAV;
+import static tech.schober.vinylcast.server.HttpStreamServerImpl.getClientLabel;
+
+/**
+ * HTTP Server sending InputStream of data to connected clients from a single selector thread.
+ * <p>
+ * The audio stream is read once into shared immutable chunks. Every client is a non-blocking
+ * SocketChannel with its own AudioChunkBuffer.Cursor and the selector thread writes each chunk
+ * straight out of the shared chunk with a gathering write (chunk size line, data, CRLF). The
+ * server uses two threads no matter how many clients are connected and never copies audio per
+ * client.
+ */
+public class NioHttpStreamServer implements HttpStreamServer {
+
+    // number of chunks shared by all clients, each client's queue is bounded by this and maxLag
+    private static final int CLIENT_CHUNK_BUFFER_SIZE = 512;
+    // how far following the provider's chunks may fall behind before frames are dropped
+    private static final long FOLLOW_MAX_LAG_MILLIS = 1000;
+    // requests are only ever a request line and a few headers
+    private static final int MAX_REQUEST_SIZE = 4096;
+
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+    // ends a chunked response
+    private static final byte[] LAST_CHUNK = new byte[]{'0', '\r', '\n', '\r', '\n'};
+
+    private Context context;
+    private String serverUrlPath;
+    private int serverPort;
+    private AudioStreamProvider audioStreamProvider;
+    private InputStream audioStream;
+    private int audioBufferSize;
+    private @AudioChunkBuffer.SlowConsumerPolicy int slowClientPolicy;
+    private long slowClientMaxLagMillis;
+
+    private List<HttpStreamServerListener> listeners;
+
+    private String streamUrl;
+    private String contentType;
+    // sent to each client ahead of the chunks: the WAV header built from the provider's
+    // negotiated format once it has started, or the provider's own stream header (e.g. Ogg)
+    private byte[] streamHeader;
+    private AudioChunkBuffer clientChunkBuffer;
+    // false when clients read the provider's own chunk buffer
+    private boolean ownsClientChunkBuffer;
+    private AudioChunkBuffer.Cursor followAudioCursor;
+    // HLS playlist and segments cut from the provider's chunks, null unless AAC or stopped
+    private volatile HlsSegmenter hlsSegmenter;
+    private String hlsPlaylistUrl;
+    // low latency CMAF fragments cut from the provider's chunks, null unless AAC or stopped
+    private volatile CmafSegmenter cmafSegmenter;
+    private String cmafManifestUrl;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private Thread readAudioThread;
+    private volatile boolean running = false;
+
+    // Streaming clients, only modified on the selector thread
+    private CopyOnWriteArrayList<NioHttpClient> httpClients = new CopyOnWriteArrayList<>();
+    // Clients waiting for the CMAF manifest or following a fragment in progress, only modified on
+    // the selector thread
+    private CopyOnWriteArrayList<NioHttpClient> cmafClients = new CopyOnWriteArrayList<>();
+    private final Metrics.Collector clientMetricsCollector = new Metrics.Collector() {
+        @Override
+        public void collect(Metrics.Writer writer) {
+            List<NioHttpClient> clients = httpClients;
+            writer.gauge("vinylcast_http_clients", "Connected HTTP clients", clients.size());
+            for (NioHttpClient httpClient : clients) {
+                writer.counter("vinylcast_http_client_sent_bytes_total", "Audio sent to the client", "client", getClientLabel(httpClient), httpClient.audioCursor.getConsumedBytes());
+            }
+            for (NioHttpClient httpClient : clients) {
+                long lagNanos = httpClient.audioCursor.getLagNanos();
+                // a lapped client is at least a full buffer behind, report it as such
+                double lagSeconds = lagNanos == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : lagNanos / (double) TimeUnit.SECONDS.toNanos(1);
+                writer.gauge("vinylcast_http_client_lag_seconds", "Age of the oldest audio not yet sent to the client", "client", getClientLabel(httpClient), lagSeconds);
+            }
+            for (NioHttpClient httpClient : clients) {
+                writer.gauge("vinylcast_http_client_queued_chunks", "Chunks waiting to be sent to the client", "client", getClientLabel(httpClient), httpClient.audioCursor.getQueuedChunks());
+            }
+        }
+    };
+
+    public NioHttpStreamServer(Context context, String serverUrlPath, int serverPort, AudioStreamProvider audioStreamProvider, int audioBufferSize, @AudioChunkBuffer.SlowConsumerPolicy int slowClientPolicy, long slowClientMaxLagMillis) {
+        this.context = context;
+        this.serverUrlPath = serverUrlPath;
+        this.serverPort = serverPort;
+        this.audioBufferSize = audioBufferSize;
+        this.slowClientPolicy = slowClientPolicy;
+        this.slowClientMaxLagMillis = slowClientMaxLagMillis;
+
+        switch(audioStreamProvider.getAudioEncoding()) {
+            case AUDIO_ENCODING_WAV:
+                this.contentType = CONTENT_TYPE_WAV;
+                break;
+            case AUDIO_ENCODING_AAC:
+                this.contentType = CONTENT_TYPE_AAC;
+                break;
+            case AUDIO_ENCODING_OPUS:
+                this.contentType = CONTENT_TYPE_OGG;
+                break;
+            case AUDIO_ENCODING_FLAC:
+                this.contentType = CONTENT_TYPE_FLAC;
+                break;
+        }
+        this.audioStreamProvider = audioStreamProvider;
+
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public synchronized void start() throws IOException {
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(serverPort));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(serverChannel);
+            selector.close();
+            throw e;
+        }
+
+        startClientChunkBuffer();
+        running = true;
+
+        selectorThread = new Thread(new SelectorRunnable(), "HttpStreamSelector");
+        selectorThread.start();
+
+        // Create / start HttpReadAudioStream thread
+        readAudioThread = new Thread(new HttpReadAudioStreamRunnable(), "HttpReadAudioStream");
+        readAudioThread.start();
+
+        // Set stream url and contentType
+        streamUrl = "http://" + VinylCastHelpers.getIpAddress(context) + ":" + serverPort + serverUrlPath;
+        Timber.d("HTTP Server streaming at: " + streamUrl);
+        hlsPlaylistUrl = hlsSegmenter != null ? streamUrl + "/" + HlsSegmenter.PLAYLIST_NAME : null;
+        cmafManifestUrl = cmafSegmenter != null ? streamUrl + "/" + CmafSegmenter.MANIFEST_NAME : null;
+        Metrics.addCollector(clientMetricsCollector);
+
+        // Notify listeners
+        for (HttpStreamServerListener listener : listeners) {
+            listener.onStarted();
+        }
+    }
+
+    public void stop() {
+        // called from the service as well as both server threads when they exit
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+
+        // Stop ReadAudio thread
+        readAudioThread.interrupt();
+        Metrics.removeCollector(clientMetricsCollector);
+        stopClientChunkBuffer();
+
+        // Selector thread closes all clients and the server socket on its way out. It must not be
+        // interrupted since that would close whichever channel it happens to be writing to.
+        selector.wakeup();
+        if (Thread.currentThread() != selectorThread) {
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // clear stream url
+        Timber.d("HTTP Server stopped streaming at: " + streamUrl);
+        streamUrl = null;
+        hlsPlaylistUrl = null;
+        cmafManifestUrl = null;
+
+        // Notify listeners
+        for (HttpStreamServerListener listener : listeners) {
+            listener.onStopped();
+        }
+    }
+
+    /**
+     * Clients read the provider's chunks directly if it has them, otherwise its stream is read
+     * once into chunks shared by all clients.
+     */
+    private void startClientChunkBuffer() {
+        streamHeader = contentType.equals(CONTENT_TYPE_WAV) ? WavHeader.create(audioStreamProvider) : audioStreamProvider.getStreamHeader();
+        AudioChunkBuffer providerChunkBuffer = audioStreamProvider.getAudioChunkBuffer();
+        if (providerChunkBuffer != null) {
+            clientChunkBuffer = providerChunkBuffer;
+            ownsClientChunkBuffer = false;
+            audioStream = null;
+            followAudioCursor = clientChunkBuffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, FOLLOW_MAX_LAG_MILLIS);
+            hlsSegmenter = contentType.equals(CONTENT_TYPE_AAC) ? new HlsSegmenter() : null;
+            cmafSegmenter = contentType.equals(CONTENT_TYPE_AAC) ? new CmafSegmenter() : null;
+        } else {
+            clientChunkBuffer = new AudioChunkBuffer(CLIENT_CHUNK_BUFFER_SIZE);
+            ownsClientChunkBuffer = true;
+            audioStream = audioStreamProvider.getAudioInputStream();
+            followAudioCursor = null;
+            hlsSegmenter = null;
+            cmafSegmenter = null;
+        }
+    }
+
+    private void stopClientChunkBuffer() {
+        if (ownsClientChunkBuffer) {
+            clientChunkBuffer.close();
+        } else {
+            followAudioCursor.close();
+        }
+        // requests still being handled get 404s instead of a stream that no longer grows
+        hlsSegmenter = null;
+        cmafSegmenter = null;
+    }
+
+    public String getStreamUrl() {
+        return this.streamUrl;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    @Override
+    public String getHlsPlaylistUrl() {
+        return this.hlsPlaylistUrl;
+    }
+
+    @Override
+    public String getCmafManifestUrl() {
+        return this.cmafManifestUrl;
+    }
+
+    @Override
+    public int getClientCount() {
+        return httpClients.size();
+    }
+
+    public void addServerListener(HttpStreamServerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeServerListener(HttpStreamServerListener listener) {
+        listeners.remove(listener);
+    }
+
+    class HttpReadAudioStreamRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            Timber.d("starting...");
+            if (audioStream == null) {
+                followAudioChunks();
+                return;
+            }
+
+            byte[] buffer = new byte[audioBufferSize];
+            AudioRingBuffer.Reader audioReader = audioStream instanceof AudioRingBuffer.Reader ? (AudioRingBuffer.Reader) audioStream : null;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    long captureNanos = audioReader != null ? audioReader.getCaptureNanos() : AudioChunk.NO_CAPTURE_TIME;
+                    int bufferReadResult = audioStream.read(buffer, 0, buffer.length);
+                    if (bufferReadResult < 0) {
+                        Timber.d("Reached end of audio stream input. Exiting.");
+                        break;
+                    }
+                    if (bufferReadResult == 0) {
+                        continue;
+                    }
+                    // single immutable chunk shared by all clients, selector thread sends it out
+                    clientChunkBuffer.publish(buffer, 0, bufferReadResult, captureNanos);
+                    selector.wakeup();
+                } catch (IOException e) {
+                    Timber.e(e,"Exception reading audio stream input. Exiting.");
+                    break;
+                }
+            }
+
+            Timber.d("interrupted, calling NioHttpStreamServer.stop()");
+            stop();
+        }
+
+        /**
+         * Provider publishes its own chunks which clients read directly, just keep track of them
+         * and cut them into HLS segments and CMAF fragments.
+         */
+        private void followAudioChunks() {
+            // cleared when the server stops while this thread may still be running
+            HlsSegmenter hlsSegmenter = NioHttpStreamServer.this.hlsSegmenter;
+            CmafSegmenter cmafSegmenter = NioHttpStreamServer.this.cmafSegmenter;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    AudioChunk chunk = followAudioCursor.nextChunk();
+                    if (chunk == null) {
+                        Timber.d("Reached end of audio chunks. Exiting.");
+                        break;
+                    }
+                    if (hlsSegmenter != null) {
+                        hlsSegmenter.addChunk(chunk);
+                    }
+                    if (cmafSegmenter != null) {
+                        cmafSegmenter.addChunk(chunk);
+                    }
+                    selector.wakeup();
+                } catch (IOException e) {
+                    Timber.d("Stopped following audio chunks: " + e.getMessage());
+                    break;
+                }
+            }
+            if (cmafSegmenter != null) {
+                cmafSegmenter.close();
+            }
+
+            Timber.d("interrupted, calling NioHttpStreamServer.stop()");
+            stop();
+        }
+    }
+
+    class SelectorRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            Timber.d("starting...");
+            try {
+                while (running) {
+                    // woken by the audio thread for every published chunk
+                    selector.select();
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptClient();
+                            continue;
+                        }
+
+                        NioHttpClient httpClient = (NioHttpClient) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                httpClient.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                httpClient.onWritable();
+                            }
+                        } catch (IOException e) {
+                            Timber.d("HttpClient connection closed: " + e.getMessage());
+                            closeClient(httpClient);
+                        }
+                    }
+
+                    // hand newly published chunks to clients and evict stalled ones
+                    for (NioHttpClient httpClient : httpClients) {
+                        if (httpClient.audioCursor.closeIfLagging()) {
+                            Timber.d("HttpClient too far behind. Removing client from list.");
+                            closeClient(httpClient);
+                        } else {
+                            httpClient.updateInterest();
+                        }
+                    }
+                    CmafSegmenter cmafSegmenter = NioHttpStreamServer.this.cmafSegmenter;
+                    for (NioHttpClient httpClient : cmafClients) {
+                        if (httpClient.awaitedCmafFile != null) {
+                            if (cmafSegmenter != null && cmafSegmenter.isStarted()) {
+                                cmafClients.remove(httpClient);
+                                sendCmafFile(cmafSegmenter, httpClient, httpClient.awaitedCmafMethod, httpClient.awaitedCmafFile, httpClient.awaitedCmafHttp11);
+                            }
+                        } else {
+                            httpClient.updateInterest();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Timber.e(e, "Exception in selector loop. Exiting.");
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioHttpClient) {
+                        closeClient((NioHttpClient) key.attachment());
+                    }
+                }
+                closeQuietly(serverChannel);
+                closeQuietly(selector);
+            }
+
+            Timber.d("exited, calling NioHttpStreamServer.stop()");
+            stop();
+        }
+
+        private void acceptClient() {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioHttpClient httpClient = new NioHttpClient(channel);
+                httpClient.key = channel.register(selector, SelectionKey.OP_READ, httpClient);
+            } catch (IOException e) {
+                Timber.w(e, "Failed to accept connection.");
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void closeClient(NioHttpClient httpClient) {
+        if (httpClient.key != null) {
+            httpClient.key.cancel();
+        }
+        closeQuietly(httpClient.channel);
+        cmafClients.remove(httpClient);
+        if (httpClient.audioCursor != null) {
+            httpClient.audioCursor.close();
+            if (httpClients.remove(httpClient)) {
+                for (HttpStreamServerListener listener : listeners) {
+                    listener.onClientDisconnected(httpClient);
+                }
+            }
+        }
+    }
+
+    private void startStreaming(NioHttpClient httpClient, String method, String path, boolean http11) {
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            path = path.substring(0, queryStart);
+        }
+
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            httpClient.respondAndClose("405 Method Not Allowed");
+            return;
+        }
+        if (path.equals(Metrics.PATH)) {
+            sendFile(httpClient, method, http11, Metrics.CONTENT_TYPE, Metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (path.startsWith(serverUrlPath + "/")) {
+            String name = path.substring(serverUrlPath.length() + 1);
+            // cleared when the server stops while requests may still be handled
+            HlsSegmenter hlsSegmenter = this.hlsSegmenter;
+            CmafSegmenter cmafSegmenter = this.cmafSegmenter;
+            if (cmafSegmenter != null && CmafSegmenter.isCmafFile(name)) {
+                sendCmafFile(cmafSegmenter, httpClient, method, name, http11);
+            } else if (hlsSegmenter != null) {
+                sendFile(httpClient, method, http11, HlsSegmenter.getContentType(name), hlsSegmenter.getFile(name));
+            } else {
+                httpClient.respondAndClose("404 Not Found");
+            }
+            return;
+        }
+        if (!path.equals(serverUrlPath)) {
+            httpClient.respondAndClose("404 Not Found");
+            return;
+        }
+        if (clientChunkBuffer.isClosed()) {
+            Timber.e("Failed to create HttpClient.");
+            httpClient.respondAndClose("204 No Content");
+            return;
+        }
+
+        Timber.d("Received HTTP Request: " + httpClient.getIpAddress());
+        // HTTP/1.0 clients don't understand chunked encoding, closing the connection ends their body
+        httpClient.chunked = http11;
+        httpClient.chunkBuffers = new ByteBuffer[http11 ? 3 : 1];
+        StringBuilder headers = new StringBuilder()
+                .append(http11 ? "HTTP/1.1" : "HTTP/1.0").append(" 200 OK\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append("Connection: close\r\n");
+        if (http11) {
+            headers.append("Transfer-Encoding: chunked\r\n");
+        }
+        headers.append("\r\n");
+        byte[] headerBytes = headers.toString().getBytes(StandardCharsets.US_ASCII);
+
+        if (method.equals("HEAD")) {
+            httpClient.responseBuffer = ByteBuffer.wrap(headerBytes);
+            httpClient.closeWhenWritten = true;
+            httpClient.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        ByteBuffer responseBuffer = ByteBuffer.allocate(headerBytes.length + (streamHeader != null ? streamHeader.length : 0) + 16);
+        responseBuffer.put(headerBytes);
+        if (streamHeader != null) {
+            if (http11) {
+                responseBuffer.put(Integer.toHexString(streamHeader.length).getBytes(StandardCharsets.US_ASCII)).put(CRLF);
+            }
+            responseBuffer.put(streamHeader);
+            if (http11) {
+                responseBuffer.put(CRLF);
+            }
+        }
+        responseBuffer.flip();
+        httpClient.responseBuffer = responseBuffer;
+        // start at the most recent chunk boundary so encoded streams are decodable right away
+        httpClient.audioCursor = clientChunkBuffer.newCursorFromNewest(slowClientPolicy, slowClientMaxLagMillis);
+        httpClient.audioCursor.setCaptureLatency(Metrics.CAPTURE_LATENCY_SERVER);
+        httpClient.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        httpClients.add(httpClient);
+        for (HttpStreamServerListener listener : listeners) {
+            listener.onClientConnected(httpClient);
+        }
+        Timber.d("Sending HTTP Response to: " + httpClient.getIpAddress());
+    }
+
+    /**
+     * Send a playlist, segment or manifest in a single response, the client isn't kept around
+     * after that. Cached data is shared, only the header is per request.
+     */
+    private void sendFile(NioHttpClient httpClient, String method, boolean http11, String fileContentType, byte[] file) {
+        if (file == null) {
+            httpClient.respondAndClose("404 Not Found");
+            return;
+        }
+        String headers = (http11 ? "HTTP/1.1" : "HTTP/1.0") + " 200 OK\r\n"
+                + "Content-Type: " + fileContentType + "\r\n"
+                + "Content-Length: " + file.length + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: close\r\n\r\n";
+        httpClient.responseBuffer = ByteBuffer.wrap(headers.getBytes(StandardCharsets.US_ASCII));
+        if (method.equals("GET")) {
+            httpClient.responseBody = ByteBuffer.wrap(file);
+        }
+        httpClient.closeWhenWritten = true;
+        httpClient.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Send a CMAF file. A fragment still in progress is sent chunk by chunk as the encoder
+     * produces them, and requests for the manifest wait until the stream has started.
+     */
+    private void sendCmafFile(CmafSegmenter cmafSegmenter, NioHttpClient httpClient, String method, String name, boolean http11) {
+        if (name.equals(CmafSegmenter.MANIFEST_NAME) || name.equals(CmafSegmenter.INIT_SEGMENT_NAME)) {
+            if (!cmafSegmenter.isStarted()) {
+                // keep only reading to notice the client going away, answered from the selector loop
+                httpClient.awaitedCmafFile = name;
+                httpClient.awaitedCmafMethod = method;
+                httpClient.awaitedCmafHttp11 = http11;
+                httpClient.key.interestOps(SelectionKey.OP_READ);
+                cmafClients.add(httpClient);
+                return;
+            }
+            httpClient.awaitedCmafFile = null;
+            byte[] file = name.equals(CmafSegmenter.MANIFEST_NAME) ? cmafSegmenter.getManifest() : cmafSegmenter.getInitSegment();
+            sendFile(httpClient, method, http11, CmafSegmenter.getContentType(name), file);
+            return;
+        }
+
+        CmafSegmenter.Fragment fragment = cmafSegmenter.getFragment(name);
+        if (fragment == null) {
+            httpClient.respondAndClose("404 Not Found");
+            return;
+        }
+        // complete fragments have a known length, the one in progress is sent chunked
+        boolean complete = fragment.isComplete();
+        httpClient.chunked = http11 && !complete;
+        httpClient.chunkBuffers = new ByteBuffer[httpClient.chunked ? 3 : 1];
+        StringBuilder headers = new StringBuilder()
+                .append(http11 ? "HTTP/1.1" : "HTTP/1.0").append(" 200 OK\r\n")
+                .append("Content-Type: ").append(CmafSegmenter.CONTENT_TYPE_SEGMENT).append("\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append("Access-Control-Allow-Origin: *\r\n")
+                .append("Connection: close\r\n");
+        if (complete) {
+            headers.append("Content-Length: ").append(fragment.getLength()).append("\r\n");
+        } else if (http11) {
+            headers.append("Transfer-Encoding: chunked\r\n");
+        }
+        headers.append("\r\n");
+        httpClient.responseBuffer = ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.US_ASCII));
+
+        if (method.equals("HEAD")) {
+            httpClient.closeWhenWritten = true;
+            httpClient.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        httpClient.fragment = fragment;
+        httpClient.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        cmafClients.add(httpClient);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Timber.w(e, "Exception closing " + closeable);
+        }
+    }
+
+    /**
+     * Connection state of a single client, only touched on the selector thread.
+     */
+    class NioHttpClient implements HttpClient {
+        private final SocketChannel channel;
+        private final String ipAddress;
+        private final String hostname;
+        private final int port;
+        private SelectionKey key;
+
+        private ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer responseBuffer;
+        // body of a response which isn't a stream, written after responseBuffer
+        private ByteBuffer responseBody;
+        private boolean closeWhenWritten = false;
+        private boolean requestHandled = false;
+        // version of the request, also used for error responses
+        private boolean http11 = true;
+
+        // CMAF manifest or init segment requested before the stream started
+        private String awaitedCmafFile;
+        private String awaitedCmafMethod;
+        private boolean awaitedCmafHttp11;
+        // CMAF fragment being sent instead of audio chunks
+        private CmafSegmenter.Fragment fragment;
+        private int fragmentChunksSent = 0;
+
+        private AudioChunkBuffer.Cursor audioCursor;
+        private boolean chunked;
+        // gathering write of chunk size line, shared chunk data and trailing CRLF
+        private final ByteBuffer chunkSizeLine = ByteBuffer.allocate(16);
+        private final ByteBuffer chunkTrailer = ByteBuffer.wrap(CRLF);
+        private ByteBuffer[] chunkBuffers;
+        private boolean chunkInFlight = false;
+
+        NioHttpClient(SocketChannel channel) {
+            this.channel = channel;
+            InetSocketAddress remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            this.ipAddress = remoteAddress.getAddress().getHostAddress();
+            // getHostString() never does a reverse lookup, that would block the selector thread
+            this.hostname = remoteAddress.getHostString();
+            this.port = remoteAddress.getPort();
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        void onReadable() throws IOException {
+            if (requestHandled) {
+                // request already handled, anything else the client sends is ignored but reading
+                // tells us when it goes away
+                requestBuffer.clear();
+                if (channel.read(requestBuffer) < 0) {
+                    throw new IOException("Client closed connection");
+                }
+                return;
+            }
+
+            if (channel.read(requestBuffer) < 0) {
+                throw new IOException("Client closed connection before sending request");
+            }
+            int requestEnd = findRequestEnd();
+            if (requestEnd < 0) {
+                if (!requestBuffer.hasRemaining()) {
+                    respondAndClose("431 Request Header Fields Too Large");
+                }
+                return;
+            }
+
+            String request = new String(requestBuffer.array(), 0, requestEnd, StandardCharsets.US_ASCII);
+            int lineEnd = request.indexOf("\r\n");
+            String[] requestLine = (lineEnd < 0 ? request : request.substring(0, lineEnd)).split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+                respondAndClose("400 Bad Request");
+                return;
+            }
+            if (requestLine[2].equals("HTTP/1.0")) {
+                http11 = false;
+            } else if (!requestLine[2].equals("HTTP/1.1")) {
+                respondAndClose("505 HTTP Version Not Supported");
+                return;
+            }
+            requestHandled = true;
+            startStreaming(this, requestLine[0], requestLine[1], http11);
+        }
+
+        void onWritable() throws IOException {
+            if (responseBuffer.hasRemaining()) {
+                channel.write(responseBuffer);
+                if (responseBuffer.hasRemaining()) {
+                    return;
+                }
+            }
+            if (responseBody != null && responseBody.hasRemaining()) {
+                channel.write(responseBody);
+                if (responseBody.hasRemaining()) {
+                    return;
+                }
+            }
+            if (closeWhenWritten) {
+                closeClient(this);
+                return;
+            }
+
+            while (true) {
+                if (!chunkInFlight) {
+                    if (fragment != null) {
+                        // checked first so no chunk added right before completion is missed
+                        boolean fragmentComplete = fragment.isComplete();
+                        byte[] fragmentChunk = fragment.getChunk(fragmentChunksSent);
+                        if (fragmentChunk == null) {
+                            if (fragmentComplete) {
+                                finishFragment();
+                            } else {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                            return;
+                        }
+                        fragmentChunksSent++;
+                        prepareChunk(fragmentChunk, fragmentChunk.length);
+                    } else {
+                        AudioChunk chunk = audioCursor.pollChunk();
+                        if (chunk == null) {
+                            // caught up, wait for the next published chunk
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        prepareChunk(chunk.getData(), chunk.getLength());
+                    }
+                }
+                channel.write(chunkBuffers);
+                if (chunkBuffers[chunkBuffers.length - 1].hasRemaining()) {
+                    // socket buffer full, continue once it drains
+                    return;
+                }
+                chunkInFlight = false;
+            }
+        }
+
+        void updateInterest() {
+            if (!key.isValid() || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                return;
+            }
+            boolean hasMore = fragment != null
+                    ? fragment.isComplete() || fragment.getChunkCount() > fragmentChunksSent
+                    : audioCursor.getQueuedChunks() > 0;
+            if (hasMore) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void finishFragment() throws IOException {
+            if (!chunked) {
+                closeClient(this);
+                return;
+            }
+            responseBuffer = ByteBuffer.wrap(LAST_CHUNK);
+            closeWhenWritten = true;
+            onWritable();
+        }
+
+        void respondAndClose(String status) {
+            String response = (http11 ? "HTTP/1.1 " : "HTTP/1.0 ") + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+            responseBuffer = ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII));
+            closeWhenWritten = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void prepareChunk(byte[] data, int length) {
+            // only the small wrapper is per client, the chunk data itself is shared
+            ByteBuffer chunkData = ByteBuffer.wrap(data, 0, length);
+            if (chunked) {
+                chunkSizeLine.clear();
+                putHex(chunkSizeLine, length);
+                chunkSizeLine.put(CRLF).flip();
+                chunkTrailer.rewind();
+                chunkBuffers[0] = chunkSizeLine;
+                chunkBuffers[1] = chunkData;
+                chunkBuffers[2] = chunkTrailer;
+            } else {
+                chunkBuffers[0] = chunkData;
+            }
+            chunkInFlight = true;
+        }
+
+        private void putHex(ByteBuffer buffer, int value) {
+            int shift = 28;
+            while (shift > 0 && (value >>> shift) == 0) {
+                shift -= 4;
+            }
+            for (; shift >= 0; shift -= 4) {
+                buffer.put((byte) Character.forDigit((value >>> shift) & 0xf, 16));
+            }
+        }
+
+        private int findRequestEnd() {
+            byte[] request = requestBuffer.array();
+            for (int i = 3; i < requestBuffer.position(); i++) {
+                if (request[i - 3] == '\r' && request[i - 2] == '\n' && request[i - 1] == '\r' && request[i] == '\n') {
+                    return i - 3;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package tech.schober.vinylcast.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import tech.schober.vinylcast.audio.AudioStreamProvider;
+
+import static tech.schober.vinylcast.audio.AudioStreamProvider.SAMPLE_FORMAT_FLOAT;
+
+/**
+ * Builds the RIFF/WAVE header sent ahead of raw PCM audio from the stream's actual format. Since
+ * the stream has no known length the RIFF, fact and data chunk sizes are written as -1
+ * (0xFFFFFFFF).
+ */
+final class WavHeader {
+
+    // "RIFF" in ascii
+    private static final byte[] HEADER_RIFF = new byte[]{0x52, 0x49, 0x46, 0x46};
+    // "WAVE" in ascii
+    private static final byte[] HEADER_WAVE = new byte[]{0x57, 0x41, 0x56, 0x45};
+    // "fmt " in ascii
+    private static final byte[] HEADER_FMT = new byte[]{0x66, 0x6d, 0x74, 0x20};
+    // "fact" in ascii
+    private static final byte[] HEADER_FACT = new byte[]{0x66, 0x61, 0x63, 0x74};
+    // "data" in ascii
+    private static final byte[] HEADER_DATA = new byte[]{0x64, 0x61, 0x74, 0x61};
+    // 1 = PCM
+    private static final short HEADER_PCM_FORMAT = 1;
+    // 3 = WAVE_FORMAT_IEEE_FLOAT
+    private static final short HEADER_IEEE_FLOAT_FORMAT = 3;
+    // PCM = 16
+    private static final int HEADER_PCM_SUBCHUNK_1_SIZE = 16;
+    // non-PCM formats add a 2 byte cbSize, 0 here
+    private static final int HEADER_NON_PCM_SUBCHUNK_1_SIZE = 18;
+    // fact chunk holds the number of samples per channel
+    private static final int HEADER_FACT_SUBCHUNK_SIZE = 4;
+
+    private WavHeader() {}
+
+    static byte[] create(int sampleRate, int channelCount, @AudioStreamProvider.SampleFormat int sampleFormat) {
+        ByteArrayOutputStream wavHeader = new ByteArrayOutputStream();
+        try {
+            write(wavHeader, sampleRate, channelCount, sampleFormat);
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+        return wavHeader.toByteArray();
+    }
+
+    static byte[] create(AudioStreamProvider audioStreamProvider) {
+        return create(audioStreamProvider.getSampleRate(), audioStreamProvider.getChannelCount(), audioStreamProvider.getSampleFormat());
+    }
+
+    private static void write(OutputStream outputStream, int sampleRate, int channelCount, @AudioStreamProvider.SampleFormat int sampleFormat) throws IOException {
+        DataOutputStream dataOutputStream;
+        if (outputStream instanceof DataOutputStream) {
+            dataOutputStream = (DataOutputStream) outputStream;
+        } else {
+            dataOutputStream = new DataOutputStream(outputStream);
+        }
+
+        boolean isFloat = sampleFormat == SAMPLE_FORMAT_FLOAT;
+        int bitsPerSample = AudioStreamProvider.getBytesPerSample(sampleFormat) * 8;
+        int blockAlign = channelCount * (bitsPerSample / 8);
+
+        dataOutputStream.write(HEADER_RIFF);
+        writeInt(dataOutputStream, -1);
+        dataOutputStream.write(HEADER_WAVE);
+        dataOutputStream.write(HEADER_FMT);
+        writeInt(dataOutputStream, isFloat ? HEADER_NON_PCM_SUBCHUNK_1_SIZE : HEADER_PCM_SUBCHUNK_1_SIZE);
+        writeShort(dataOutputStream, isFloat ? HEADER_IEEE_FLOAT_FORMAT : HEADER_PCM_FORMAT);
+        writeShort(dataOutputStream, (short) channelCount);
+        writeInt(dataOutputStream, sampleRate);
+        writeInt(dataOutputStream, sampleRate * blockAlign);
+        writeShort(dataOutputStream, (short) blockAlign);
+        writeShort(dataOutputStream, (short) bitsPerSample);
+        if (isFloat) {
+            // cbSize, then the fact chunk every non-PCM format must have
+            writeShort(dataOutputStream, (short) 0);
+            dataOutputStream.write(HEADER_FACT);
+            writeInt(dataOutputStream, HEADER_FACT_SUBCHUNK_SIZE);
+            writeInt(dataOutputStream, -1);
+        }
+        dataOutputStream.write(HEADER_DATA);
+        writeInt(dataOutputStream, -1);
+    }
+
+    /**
+     * Little Endian writing of an integer to the stream.
+     */
+    private static void writeInt(DataOutputStream output, int value) throws IOException {
+        output.write(value);
+        output.write(value >> 8);
+        output.write(value >> 16);
+        output.write(value >> 24);
+    }
+
+    /**
+     * Little Endian writing of a short to the stream.
+     */
+    private static void writeShort(final DataOutputStream output, final short value) throws IOException {
+        output.write(value);
+        output.write(value >> 8);
+    }
+}
@@ -0,0 +1,199 @@
+package tech.schober.vinylcast.ui.main;
+
+/**
+ * Values, geometry and animation behind BarGraphView, kept apart from the view so they can be
+ * tested without Android.
+ *
+ * Values are kept in a ring of primitive floats and each bar is laid out as one vertical line for
+ * a single Canvas.drawLines() call. Bars move from their height when an update arrives to the new
+ * height over the time since the previous update, so they stay smooth however often the spectrum
+ * comes in. Nothing is allocated once the length is set.
+ */
+class BarGraph {
+
+    // longest an update is spread over, so bars don't trail far behind when updates slow down
+    static final long MAX_INTERPOLATION_MS = 100;
+
+    private float minValue;
+    private float maxValue;
+    private int length;
+    private float width;
+    private float height;
+    private float barWidth;
+
+    // the last count values, oldest at ringStart
+    private float[] values;
+    private int ringStart;
+    private int count;
+
+    // bar heights as a fraction of the view's height: when the last update came in, where that
+    // update moves them to, and where they are now
+    private float[] fromFractions;
+    private float[] toFractions;
+    private float[] fractions;
+    private long updateTimeMs;
+    private long interpolationMs;
+    private boolean hasUpdate;
+
+    // x0, y0, x1, y1 of each bar
+    private float[] lines;
+
+    BarGraph(float minValue, float maxValue, int length) {
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        setLength(length);
+    }
+
+    void setRange(float minValue, float maxValue) {
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        for (int i = 0; i < count; i++) {
+            toFractions[i] = toFraction(values[(ringStart + i) % length]);
+            fromFractions[i] = toFractions[i];
+        }
+        interpolationMs = 0;
+    }
+
+    float getMinValue() {
+        return minValue;
+    }
+
+    float getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Allocates for the new length if it changed, dropping all values.
+     */
+    void setLength(int length) {
+        length = Math.max(1, length);
+        if (values != null && length == this.length) {
+            return;
+        }
+        this.length = length;
+        values = new float[length];
+        fromFractions = new float[length];
+        toFractions = new float[length];
+        fractions = new float[length];
+        lines = new float[length * 4];
+        clear();
+        layout();
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    void setSize(float width, float height) {
+        this.width = width;
+        this.height = height;
+        layout();
+    }
+
+    /**
+     * Bars are a third of the space each, so the gaps between them are twice their width.
+     */
+    float getBarWidth() {
+        return barWidth;
+    }
+
+    void clear() {
+        ringStart = 0;
+        count = 0;
+        hasUpdate = false;
+        interpolationMs = 0;
+        for (int i = 0; i < length; i++) {
+            fromFractions[i] = 0;
+            toFractions[i] = 0;
+            fractions[i] = 0;
+        }
+    }
+
+    /**
+     * Appends a value, dropping the oldest once there are length values.
+     */
+    void add(float value, long nowMs) {
+        startUpdate(nowMs);
+        if (count < length) {
+            values[(ringStart + count) % length] = value;
+            count++;
+        } else {
+            values[ringStart] = value;
+            ringStart = (ringStart + 1) % length;
+        }
+        for (int i = 0; i < count; i++) {
+            toFractions[i] = toFraction(values[(ringStart + i) % length]);
+        }
+    }
+
+    /**
+     * Replaces all values, the length follows data's length.
+     */
+    void set(double[] data, long nowMs) {
+        setLength(data.length);
+        startUpdate(nowMs);
+        ringStart = 0;
+        count = data.length;
+        for (int i = 0; i < count; i++) {
+            values[i] = (float) data[i];
+            toFractions[i] = toFraction(values[i]);
+        }
+    }
+
+    /**
+     * Moves the bars to where they are at nowMs and lays them out in getLines().
+     * @return true while the bars are still moving
+     */
+    boolean update(long nowMs) {
+        float progress = interpolationMs <= 0 ? 1.0f
+                : Math.min(1.0f, (float) (nowMs - updateTimeMs) / interpolationMs);
+        for (int i = 0; i < count; i++) {
+            fractions[i] = fromFractions[i] + (toFractions[i] - fromFractions[i]) * progress;
+            lines[i * 4 + 3] = height - fractions[i] * height;
+        }
+        return progress < 1.0f;
+    }
+
+    /**
+     * Lines of the bars for Canvas.drawLines() with a stroke width of getBarWidth(), the first
+     * getBarCount() * 4 floats are used.
+     */
+    float[] getLines() {
+        return lines;
+    }
+
+    int getBarCount() {
+        return count;
+    }
+
+    float getBarFraction(int bar) {
+        return fractions[bar];
+    }
+
+    private void startUpdate(long nowMs) {
+        // start from wherever the bars are now, over the time the previous update lasted
+        update(nowMs);
+        for (int i = 0; i < length; i++) {
+            fromFractions[i] = fractions[i];
+        }
+        interpolationMs = hasUpdate ? Math.max(0, Math.min(nowMs - updateTimeMs, MAX_INTERPOLATION_MS)) : 0;
+        updateTimeMs = nowMs;
+        hasUpdate = true;
+    }
+
+    private void layout() {
+        barWidth = length > 1 ? width / ((length - 1) * 3 + 1) : width;
+        for (int i = 0; i < length; i++) {
+            float x = barWidth * 3 * i + barWidth / 2;
+            lines[i * 4] = x;
+            lines[i * 4 + 1] = height;
+            lines[i * 4 + 2] = x;
+            lines[i * 4 + 3] = height - fractions[i] * height;
+        }
+    }
+
+    private float toFraction(float value) {
+        float fraction = (value - minValue) / (maxValue - minValue);
+        return Math.max(0.0f, Math.min(1.0f, fraction));
+    }
+}
@@ -6,29 +6,23 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.animation.AnimationUtils;
 
 import androidx.annotation.ColorRes;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
-import java.util.ArrayDeque;
-import java.util.Iterator;
-import java.util.Queue;
-
 import tech.schober.vinylcast.R;
 
 /**
- * Custom view that graphs data in the data queue
+ * Custom view that graphs data as bars, animating between updates. Drawing a frame doesn't
+ * allocate, see BarGraph.
  */
 public class BarGraphView extends View {
 
     private final Paint paint = new Paint();
-
-    private float minValue;
-    private float maxValue;
-    private int length;
-
-    private final Queue<Float> dataQueue = new ArrayDeque<>();
+    private final BarGraph barGraph;
+    private boolean animating;
 
     public BarGraphView(Context context) {
         this(context, null);
@@ -41,14 +35,17 @@ public class BarGraphView extends View {
     public BarGraphView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
 
+        // each bar is a line as wide as the bar
         paint.setAntiAlias(true);
-        paint.setStyle(Paint.Style.FILL);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeCap(Paint.Cap.BUTT);
 
         TypedArray array = context.obtainStyledAttributes(attrs, R.styleable.BarGraphView);
 
-        minValue = array.getFloat(R.styleable.BarGraphView_minValue, 0);
-        maxValue = array.getFloat(R.styleable.BarGraphView_maxValue, 1);
-        length = array.getInteger(R.styleable.BarGraphView_length, 1);
+        float minValue = array.getFloat(R.styleable.BarGraphView_minValue, 0);
+        float maxValue = array.getFloat(R.styleable.BarGraphView_maxValue, 1);
+        int length = array.getInteger(R.styleable.BarGraphView_length, 1);
+        barGraph = new BarGraph(minValue, maxValue, length);
 
         int color = array.getColor(R.styleable.BarGraphView_color, ContextCompat.getColor(context, R.color.colorPrimary));
         paint.setColor(color);
@@ -57,15 +54,18 @@ public class BarGraphView extends View {
     }
 
     public void setMaxValue(float maxValue) {
-        this.maxValue = maxValue;
+        barGraph.setRange(barGraph.getMinValue(), maxValue);
+        invalidate();
     }
 
     public void setMinValue(float minValue) {
-        this.minValue = minValue;
+        barGraph.setRange(minValue, barGraph.getMaxValue());
+        invalidate();
     }
 
     public void setLength(int length) {
-        this.length = length;
+        barGraph.setLength(length);
+        invalidate();
     }
 
     public void setColor(@ColorRes int color) {
@@ -73,55 +73,43 @@ public class BarGraphView extends View {
     }
 
     public void clearData() {
-        dataQueue.clear();
+        barGraph.clear();
         invalidate();
     }
 
     public void addData(float data) {
-        if (dataQueue.size() >= length) {
-            dataQueue.poll();
-        }
-
-        dataQueue.offer(data);
-        invalidate();
+        barGraph.add(data, AnimationUtils.currentAnimationTimeMillis());
+        invalidateIfIdle();
     }
 
     public void setData(double[] data) {
-        length = data.length;
-        dataQueue.clear();
-
-        for (double item : data) {
-            dataQueue.offer((float) item);
-        }
+        barGraph.set(data, AnimationUtils.currentAnimationTimeMillis());
+        invalidateIfIdle();
+    }
 
-        invalidate();
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        barGraph.setSize(w, h);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-
-        float unitLength = (float) getWidth() / ((length - 1) * 3 + 1);
-        float ratio = (float) getHeight() / (maxValue - minValue);
-        float x = 0;
-
-        Iterator<Float> iterator = dataQueue.iterator();
-
-        while (iterator.hasNext()) {
-            float value = iterator.next() - minValue;
-
-            if (value < minValue) {
-                value = minValue;
-            }
-
-            if (value > maxValue - minValue) {
-                value = maxValue - minValue;
-            }
-
-            canvas.drawRect(x, (float) getHeight() - ratio * value, x + unitLength, (float) getHeight(), paint);
-
-            x += unitLength * 3;
+        // frame time of the frame being drawn, the same clock updates are stamped with
+        animating = barGraph.update(AnimationUtils.currentAnimationTimeMillis());
+        paint.setStrokeWidth(barGraph.getBarWidth());
+        canvas.drawLines(barGraph.getLines(), 0, barGraph.getBarCount() * 4, paint);
+        if (animating) {
+            postInvalidateOnAnimation();
         }
 
         super.onDraw(canvas);
     }
+
+    // while animating the next frame is already coming
+    private void invalidateIfIdle() {
+        if (!animating) {
+            postInvalidateOnAnimation();
+        }
+    }
 }
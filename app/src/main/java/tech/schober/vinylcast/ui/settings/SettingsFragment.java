@@ -6,7 +6,9 @@ import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 
 import androidx.annotation.StringRes;
 import androidx.appcompat.app.AlertDialog;
@@ -21,8 +23,10 @@ import com.google.sample.audio_device.AudioDevicePreference;
 
 import java.lang.reflect.Method;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
@@ -33,13 +37,17 @@ import tech.schober.vinylcast.audio.AudioRecordStreamProvider;
 import tech.schober.vinylcast.audio.AudioStreamProvider;
 import tech.schober.vinylcast.audio.ConvertAudioStreamProvider;
 import tech.schober.vinylcast.audio.NativeAudioEngine;
+import tech.schober.vinylcast.audio.OpusAudioStreamProvider;
 import tech.schober.vinylcast.server.HttpClient;
 import tech.schober.vinylcast.server.HttpStreamServer;
 import tech.schober.vinylcast.server.HttpStreamServerListener;
+import tech.schober.vinylcast.utils.Metrics;
 import tech.schober.vinylcast.utils.VinylCastHelpers;
 import timber.log.Timber;
 
 import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_AAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_FLAC;
+import static tech.schober.vinylcast.audio.AudioStreamProvider.AUDIO_ENCODING_OPUS;
 
 
 public class SettingsFragment extends PreferenceFragmentCompat implements ServiceConnection {
@@ -47,8 +55,28 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
     private static final Set<Integer> RECORDING_DEVICES_BUILTIN = new HashSet<>(Arrays.asList(AudioDeviceInfo.TYPE_BUILTIN_MIC));
     private static final Set<Integer> PLAYBACK_DEVICES_BUILTIN = new HashSet<>(Arrays.asList(AudioDeviceInfo.TYPE_BUILTIN_EARPIECE, AudioDeviceInfo.TYPE_BUILTIN_SPEAKER));
 
+    private static final long PIPELINE_STATS_UPDATE_INTERVAL_MS = 1000;
+
     private VinylCastService.VinylCastBinder binder;
 
+    private final Handler pipelineStatsHandler = new Handler(Looper.getMainLooper());
+    // refreshes the pipeline stats every second while visible and recording
+    private final Runnable updatePipelineStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Preference pipelineStatsPref = findPreference(R.string.prefs_key_pipeline_stats);
+            if (pipelineStatsPref == null) {
+                return;
+            }
+            if (binder != null && binder.isRecording()) {
+                pipelineStatsPref.setSummary(Metrics.toSummaryText().trim());
+                pipelineStatsHandler.postDelayed(this, PIPELINE_STATS_UPDATE_INTERVAL_MS);
+            } else {
+                pipelineStatsPref.setSummary(R.string.prefs_default_summary_pipeline_stats);
+            }
+        }
+    };
+
     private Preference.OnPreferenceClickListener disabledPreferenceClickListener = new Preference.OnPreferenceClickListener() {
         @Override
         public boolean onPreferenceClick(Preference preference) {
@@ -121,6 +149,28 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
         return true;
     };
 
+    private void updateToneSummary(SeekBarPreference preference, @StringRes int summaryResId, int newValue) {
+        preference.setSummary(getString(summaryResId, VinylCastHelpers.convertTonePrefToDecibels(newValue)));
+    }
+
+    // audio processing changes are picked up by the audio callback without restarting recording
+    private Preference.OnPreferenceChangeListener audioProcessingOnChangeListener = (preference, newValue) -> {
+        Timber.d("audioProcessingOnChangeListener: " + preference.getKey() + " - " + newValue);
+        String key = preference.getKey();
+        if (key.equals(getString(R.string.prefs_key_rumble_filter))) {
+            NativeAudioEngine.setRumbleFilter(Integer.valueOf((String) newValue));
+        } else if (key.equals(getString(R.string.prefs_key_riaa_equalization))) {
+            NativeAudioEngine.setRiaaEqualization((boolean) newValue);
+        } else if (key.equals(getString(R.string.prefs_key_bass))) {
+            updateToneSummary((SeekBarPreference) preference, R.string.prefs_summary_bass, (int) newValue);
+            VinylCastHelpers.setBassDecibels(VinylCastHelpers.convertTonePrefToDecibels((int) newValue));
+        } else if (key.equals(getString(R.string.prefs_key_treble))) {
+            updateToneSummary((SeekBarPreference) preference, R.string.prefs_summary_treble, (int) newValue);
+            VinylCastHelpers.setTrebleDecibels(VinylCastHelpers.convertTonePrefToDecibels((int) newValue));
+        }
+        return true;
+    };
+
     @Override
     public void onStart() {
         Timber.d("onStart");
@@ -132,12 +182,21 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
     public void onResume() {
         Timber.d("onResume");
         super.onResume();
+        updatePipelineStats();
     }
 
     @Override
     public void onPause() {
         Timber.d("onPause");
         super.onPause();
+        pipelineStatsHandler.removeCallbacks(updatePipelineStatsRunnable);
+    }
+
+    private void updatePipelineStats() {
+        pipelineStatsHandler.removeCallbacks(updatePipelineStatsRunnable);
+        if (isResumed()) {
+            updatePipelineStatsRunnable.run();
+        }
     }
 
     @Override
@@ -150,7 +209,17 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
         AudioDevicePreference playbackDevicePref = findPreference(R.string.prefs_key_local_playback_device_id);
         CheckBoxPreference lowLatencyPref = findPreference(R.string.prefs_key_low_latency);
         ListPreference audioEncodingPref = findPreference(R.string.prefs_key_audio_encoding);
+        ListPreference rumbleFilterPref = findPreference(R.string.prefs_key_rumble_filter);
+        CheckBoxPreference riaaEqualizationPref = findPreference(R.string.prefs_key_riaa_equalization);
+        SeekBarPreference bassPref = findPreference(R.string.prefs_key_bass);
+        SeekBarPreference treblePref = findPreference(R.string.prefs_key_treble);
+        ListPreference declickerPref = findPreference(R.string.prefs_key_declicker);
         SeekBarPreference gainPref = findPreference(R.string.prefs_key_gain);
+        ListPreference aacBitRatePref = findPreference(R.string.prefs_key_aac_bit_rate);
+        ListPreference aacProfilePref = findPreference(R.string.prefs_key_aac_profile);
+        ListPreference slowClientPolicyPref = findPreference(R.string.prefs_key_slow_client_policy);
+        ListPreference httpServerTypePref = findPreference(R.string.prefs_key_http_server_type);
+        ListPreference castDeliveryPref = findPreference(R.string.prefs_key_cast_delivery);
         Preference androidApiLevelPref = findPreference(R.string.prefs_key_android_api_level);
         Preference appVersionPref = findPreference(R.string.prefs_key_app_version);
 
@@ -170,12 +239,49 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
         if (audioEncodingPref != null) {
             audioEncodingPref.setEntries(R.array.prefs_audio_encoding_entries);
             audioEncodingPref.setEntryValues(R.array.prefs_audio_encoding_entry_values);
+            if (!OpusAudioStreamProvider.isOpusEncoderAvailable()) {
+                // only offer Opus where MediaCodec can encode it
+                removeListPreferenceEntry(audioEncodingPref, Integer.toString(AUDIO_ENCODING_OPUS), getString(R.string.prefs_default_audio_encoding));
+            }
             audioEncodingPref.setOnPreferenceClickListener(disabledPreferenceClickListener);
         }
+        if (rumbleFilterPref != null) {
+            rumbleFilterPref.setOnPreferenceChangeListener(audioProcessingOnChangeListener);
+        }
+        if (riaaEqualizationPref != null) {
+            riaaEqualizationPref.setOnPreferenceChangeListener(audioProcessingOnChangeListener);
+        }
+        if (bassPref != null) {
+            bassPref.setOnPreferenceChangeListener(audioProcessingOnChangeListener);
+            updateToneSummary(bassPref, R.string.prefs_summary_bass, bassPref.getValue());
+        }
+        if (treblePref != null) {
+            treblePref.setOnPreferenceChangeListener(audioProcessingOnChangeListener);
+            updateToneSummary(treblePref, R.string.prefs_summary_treble, treblePref.getValue());
+        }
+        if (declickerPref != null) {
+            // the lookahead is the size of a delay line, only set when recording starts
+            declickerPref.setOnPreferenceClickListener(disabledPreferenceClickListener);
+        }
         if (gainPref != null) {
             gainPref.setOnPreferenceChangeListener(gainOnChangeListener);
             updateGainSummary(gainPref, gainPref.getValue());
         }
+        if (aacBitRatePref != null) {
+            aacBitRatePref.setOnPreferenceClickListener(disabledPreferenceClickListener);
+        }
+        if (aacProfilePref != null) {
+            aacProfilePref.setOnPreferenceClickListener(disabledPreferenceClickListener);
+        }
+        if (slowClientPolicyPref != null) {
+            slowClientPolicyPref.setOnPreferenceClickListener(disabledPreferenceClickListener);
+        }
+        if (httpServerTypePref != null) {
+            httpServerTypePref.setOnPreferenceClickListener(disabledPreferenceClickListener);
+        }
+        if (castDeliveryPref != null) {
+            castDeliveryPref.setOnPreferenceClickListener(disabledPreferenceClickListener);
+        }
         if (androidApiLevelPref != null) {
             androidApiLevelPref.setSummaryProvider(preference ->
                     Integer.toString(Build.VERSION.SDK_INT)
@@ -263,6 +369,7 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
                 httpServerPref.setSummary(binder.getHttpStreamServer().getStreamUrl());
                 httpClientsPref.setSummary(Integer.toString(binder.getHttpStreamServer().getClientCount()));
             }
+            updatePipelineStats();
         }
     }
 
@@ -298,6 +405,25 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
         }
     }
 
+    /**
+     * Remove the entry with entryValue, selecting defaultValue instead if it was selected
+     */
+    private static void removeListPreferenceEntry(ListPreference listPreference, String entryValue, String defaultValue) {
+        List<CharSequence> entries = new ArrayList<>(Arrays.asList(listPreference.getEntries()));
+        List<CharSequence> entryValues = new ArrayList<>(Arrays.asList(listPreference.getEntryValues()));
+        int index = entryValues.indexOf(entryValue);
+        if (index < 0) {
+            return;
+        }
+        entries.remove(index);
+        entryValues.remove(index);
+        listPreference.setEntries(entries.toArray(new CharSequence[0]));
+        listPreference.setEntryValues(entryValues.toArray(new CharSequence[0]));
+        if (entryValue.equals(listPreference.getValue())) {
+            listPreference.setValue(defaultValue);
+        }
+    }
+
     private AlertDialog getAudioEncodingInfoDialog(@AudioStreamProvider.AudioEncoding int audioEncoding) {
         float sampleRateKhz;
         int channelCount;
@@ -309,10 +435,25 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Servic
             case AUDIO_ENCODING_AAC:
                 sampleRateKhz = ConvertAudioStreamProvider.getConvertAudioStreamSampleRate() / 1000f;
                 channelCount = ConvertAudioStreamProvider.getConvertAudioStreamChannelCount();
-                bitRateKbps = ConvertAudioStreamProvider.getConvertAudioStreamBitRate() / 1000f;
+                bitRateKbps = ConvertAudioStreamProvider.getConvertAudioStreamBitRate(getContext()) / 1000f;
                 bufferAudioDelay = 20;
                 titleResId = R.string.alert_encodingdetails_aac_title;
                 break;
+            case AUDIO_ENCODING_OPUS:
+                sampleRateKhz = ConvertAudioStreamProvider.getConvertAudioStreamSampleRate() / 1000f;
+                channelCount = ConvertAudioStreamProvider.getConvertAudioStreamChannelCount();
+                bitRateKbps = OpusAudioStreamProvider.getOpusStreamBitRate() / 1000f;
+                bufferAudioDelay = 20;
+                titleResId = R.string.alert_encodingdetails_opus_title;
+                break;
+            case AUDIO_ENCODING_FLAC:
+                // variable bitrate, at most that of the raw PCM
+                sampleRateKhz = AudioRecordStreamProvider.getAudioRecordStreamSampleRate() / 1000f;
+                channelCount = AudioRecordStreamProvider.getAudioRecordStreamChannelCount();
+                bitRateKbps = AudioRecordStreamProvider.getAudioRecordStreamBitRate() / 1000f;
+                bufferAudioDelay = 10;
+                titleResId = R.string.alert_encodingdetails_flac_title;
+                break;
             default:
                 sampleRateKhz = AudioRecordStreamProvider.getAudioRecordStreamSampleRate() / 1000f;
                 channelCount = AudioRecordStreamProvider.getAudioRecordStreamChannelCount();
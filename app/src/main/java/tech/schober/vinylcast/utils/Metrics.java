@@ -0,0 +1,507 @@
+package tech.schober.vinylcast.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and gauges of the audio pipeline, from the native callback to each HTTP client.
+ * <p>
+ * Updating a metric is a single atomic operation and never allocates, so it is fine on the audio
+ * and encoder threads. Values owned by someone else (native counters, per-client cursors) are
+ * read through a Collector only when the metrics are rendered. Rendering allocates and is meant
+ * for the /metrics endpoint and the Pipeline stats preference, about once a second.
+ * <p>
+ * End-to-end latency is tracked from the time the ADC captured the audio, which travels with it
+ * from the native engine through the rings and chunks. Each stage records how long ago the audio
+ * it just handled was captured, so the delay a stage adds is the step from the stage before.
+ */
+public final class Metrics {
+
+    public static final String PATH = "/metrics";
+    // Prometheus text exposition format
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    public static final Counter AUDIO_RECEIVED_BYTES = new Counter("vinylcast_audio_received_bytes_total", "Audio handed to Java by the native engine");
+    public static final Counter ENCODER_INPUT_BYTES = new Counter("vinylcast_encoder_input_bytes_total", "Audio fed to the encoder");
+    public static final Counter ENCODER_OUTPUT_BYTES = new Counter("vinylcast_encoder_output_bytes_total", "Encoded audio produced");
+    public static final Summary ENCODER_FRAME_SECONDS = new Summary("vinylcast_encoder_frame_seconds", "Encoder latency per frame");
+
+    private static final String CAPTURE_LATENCY_NAME = "vinylcast_capture_latency_seconds";
+    private static final String CAPTURE_LATENCY_HELP = "Time since capture";
+    // audio handed to Java by the native engine
+    public static final Histogram CAPTURE_LATENCY_ENGINE = new Histogram(CAPTURE_LATENCY_NAME, CAPTURE_LATENCY_HELP, "stage", "engine");
+    // encoded frame published
+    public static final Histogram CAPTURE_LATENCY_ENCODER = new Histogram(CAPTURE_LATENCY_NAME, CAPTURE_LATENCY_HELP, "stage", "encoder");
+    // chunk handed to a client's socket
+    public static final Histogram CAPTURE_LATENCY_SERVER = new Histogram(CAPTURE_LATENCY_NAME, CAPTURE_LATENCY_HELP, "stage", "server");
+
+    private static final Metric[] METRICS = {AUDIO_RECEIVED_BYTES, ENCODER_INPUT_BYTES, ENCODER_OUTPUT_BYTES, ENCODER_FRAME_SECONDS,
+            CAPTURE_LATENCY_ENGINE, CAPTURE_LATENCY_ENCODER, CAPTURE_LATENCY_SERVER};
+    private static final CopyOnWriteArrayList<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    private Metrics() {}
+
+    public static void addCollector(Collector collector) {
+        collectors.addIfAbsent(collector);
+    }
+
+    public static void removeCollector(Collector collector) {
+        collectors.remove(collector);
+    }
+
+    /**
+     * Zero the registry's own metrics, e.g. when recording starts.
+     */
+    public static void reset() {
+        for (Metric metric : METRICS) {
+            metric.reset();
+        }
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    public static String toPrometheusText() {
+        PrometheusWriter writer = new PrometheusWriter();
+        collect(writer);
+        return writer.toString();
+    }
+
+    /**
+     * @return all metrics one per line for people, e.g. "Encoder latency per frame: 1.2ms avg"
+     */
+    public static String toSummaryText() {
+        SummaryWriter writer = new SummaryWriter();
+        collect(writer);
+        return writer.toString();
+    }
+
+    private static void collect(Writer writer) {
+        for (Metric metric : METRICS) {
+            metric.write(writer);
+        }
+        for (Collector collector : collectors) {
+            collector.collect(writer);
+        }
+    }
+
+    private static abstract class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract void reset();
+
+        abstract void write(Writer writer);
+    }
+
+    public static final class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        void reset() {
+            value.set(0);
+        }
+
+        @Override
+        void write(Writer writer) {
+            writer.counter(name, help, null, null, get());
+        }
+    }
+
+    /**
+     * Count, total and maximum of a duration, e.g. how long each frame spent in the encoder.
+     */
+    public static final class Summary extends Metric {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Summary(String name, String help) {
+            super(name, help);
+        }
+
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        void reset() {
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        @Override
+        void write(Writer writer) {
+            writer.summary(name, help, null, null, getCount(), getTotalNanos(), getMaxNanos());
+        }
+    }
+
+    /**
+     * Distribution of a duration in fixed buckets, four per doubling from 250us to about 14s,
+     * so percentiles are within 10% or so of the real value.
+     */
+    public static final class Histogram extends Metric {
+        static final long FIRST_BUCKET_NANOS = TimeUnit.MICROSECONDS.toNanos(250);
+        static final int BUCKETS_PER_DOUBLING = 4;
+        static final int BUCKET_COUNT = 64;
+        // upper bound of each bucket, anything longer is counted in one more bucket
+        private static final long[] BUCKET_UPPER_NANOS = new long[BUCKET_COUNT];
+        static {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                BUCKET_UPPER_NANOS[i] = Math.round(FIRST_BUCKET_NANOS * Math.pow(2, (double) i / BUCKETS_PER_DOUBLING));
+            }
+        }
+
+        private final String labelName;
+        private final String labelValue;
+        private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram(String name, String help, String labelName, String labelValue) {
+            super(name, help);
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+        }
+
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            int bucket = Arrays.binarySearch(BUCKET_UPPER_NANOS, nanos);
+            bucketCounts.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+         * @return the duration, interpolated within its bucket, or 0 if nothing was recorded
+         */
+        public long getPercentileNanos(double quantile) {
+            long total = 0;
+            long[] counts = new long[BUCKET_COUNT + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = bucketCounts.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long max = maxNanos.get();
+            long below = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (below + counts[i] >= rank) {
+                    long lower = i == 0 ? 0 : BUCKET_UPPER_NANOS[i - 1];
+                    long upper = Math.min(i < BUCKET_COUNT ? BUCKET_UPPER_NANOS[i] : max, max);
+                    if (upper <= lower) {
+                        return upper;
+                    }
+                    return lower + (upper - lower) * (rank - below) / counts[i];
+                }
+                below += counts[i];
+            }
+            return max;
+        }
+
+        /**
+         * @return number of durations up to and including each bucket's upper bound, the last
+         * one counts everything
+         */
+        long[] getCumulativeCounts() {
+            long[] cumulative = new long[BUCKET_COUNT + 1];
+            long total = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                total += bucketCounts.get(i);
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        static long getBucketUpperNanos(int bucket) {
+            return BUCKET_UPPER_NANOS[bucket];
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < bucketCounts.length(); i++) {
+                bucketCounts.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        @Override
+        void write(Writer writer) {
+            writer.histogram(name, help, labelName, labelValue, this);
+        }
+    }
+
+    /**
+     * Reports metrics whose values live elsewhere, called each time the metrics are rendered.
+     */
+    public interface Collector {
+        void collect(Writer writer);
+    }
+
+    /**
+     * Where collectors put their values. A metric reported for several label values (e.g. one
+     * per client) must be reported for all of them one after the other.
+     */
+    public static abstract class Writer {
+        /**
+         * @param labelName null for a metric without labels
+         */
+        public abstract void counter(String name, String help, String labelName, String labelValue, long value);
+
+        public abstract void gauge(String name, String help, String labelName, String labelValue, double value);
+
+        /**
+         * Durations in nanoseconds, reported in seconds.
+         */
+        public abstract void summary(String name, String help, String labelName, String labelValue, long count, long totalNanos, long maxNanos);
+
+        public abstract void histogram(String name, String help, String labelName, String labelValue, Histogram histogram);
+
+        public void counter(String name, String help, long value) {
+            counter(name, help, null, null, value);
+        }
+
+        public void gauge(String name, String help, double value) {
+            gauge(name, help, null, null, value);
+        }
+    }
+
+    static class PrometheusWriter extends Writer {
+        private final StringBuilder text = new StringBuilder();
+        private String lastName;
+
+        @Override
+        public void counter(String name, String help, String labelName, String labelValue, long value) {
+            header(name, help, "counter");
+            sample(name, labelName, labelValue).append(value).append('\n');
+        }
+
+        @Override
+        public void gauge(String name, String help, String labelName, String labelValue, double value) {
+            header(name, help, "gauge");
+            sample(name, labelName, labelValue).append(formatDouble(value)).append('\n');
+        }
+
+        @Override
+        public void summary(String name, String help, String labelName, String labelValue, long count, long totalNanos, long maxNanos) {
+            header(name, help, "summary");
+            sample(name + "_sum", labelName, labelValue).append(formatDouble(toSeconds(totalNanos))).append('\n');
+            sample(name + "_count", labelName, labelValue).append(count).append('\n');
+            // Prometheus summaries have no max, so it's a gauge of its own
+            String maxName = name + "_max";
+            header(maxName, help + ", maximum", "gauge");
+            sample(maxName, labelName, labelValue).append(formatDouble(toSeconds(maxNanos))).append('\n');
+        }
+
+        @Override
+        public void histogram(String name, String help, String labelName, String labelValue, Histogram histogram) {
+            header(name, help, "histogram");
+            long[] cumulativeCounts = histogram.getCumulativeCounts();
+            String bucketName = name + "_bucket";
+            for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+                sample(bucketName, labelName, labelValue, formatDouble(toSeconds(Histogram.getBucketUpperNanos(i)))).append(cumulativeCounts[i]).append('\n');
+            }
+            sample(bucketName, labelName, labelValue, "+Inf").append(cumulativeCounts[Histogram.BUCKET_COUNT]).append('\n');
+            sample(name + "_sum", labelName, labelValue).append(formatDouble(toSeconds(histogram.getTotalNanos()))).append('\n');
+            sample(name + "_count", labelName, labelValue).append(histogram.getCount()).append('\n');
+        }
+
+        private void header(String name, String help, String type) {
+            if (name.equals(lastName)) {
+                return;
+            }
+            lastName = name;
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private StringBuilder sample(String name, String labelName, String labelValue) {
+            return sample(name, labelName, labelValue, null);
+        }
+
+        /**
+         * @param le upper bound of a histogram bucket, null if not a bucket
+         */
+        private StringBuilder sample(String name, String labelName, String labelValue, String le) {
+            text.append(name);
+            if (labelName != null || le != null) {
+                text.append('{');
+                if (labelName != null) {
+                    text.append(labelName).append("=\"");
+                    for (int i = 0; i < labelValue.length(); i++) {
+                        char c = labelValue.charAt(i);
+                        if (c == '\\' || c == '"') {
+                            text.append('\\').append(c);
+                        } else if (c == '\n') {
+                            text.append("\\n");
+                        } else {
+                            text.append(c);
+                        }
+                    }
+                    text.append('"');
+                }
+                if (le != null) {
+                    if (labelName != null) {
+                        text.append(',');
+                    }
+                    text.append("le=\"").append(le).append('"');
+                }
+                text.append('}');
+            }
+            return text.append(' ');
+        }
+
+        private static String formatDouble(double value) {
+            if (Double.isInfinite(value)) {
+                return value > 0 ? "+Inf" : "-Inf";
+            }
+            return Double.isNaN(value) ? "NaN" : Double.toString(value);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Formats by unit suffix: _bytes(_total) in KB or MB and _seconds in ms.
+     */
+    static class SummaryWriter extends Writer {
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public void counter(String name, String help, String labelName, String labelValue, long value) {
+            line(help, labelValue).append(format(name, value)).append('\n');
+        }
+
+        @Override
+        public void gauge(String name, String help, String labelName, String labelValue, double value) {
+            line(help, labelValue).append(format(name, value)).append('\n');
+        }
+
+        @Override
+        public void summary(String name, String help, String labelName, String labelValue, long count, long totalNanos, long maxNanos) {
+            line(help, labelValue);
+            if (count == 0) {
+                text.append("-\n");
+                return;
+            }
+            text.append(String.format(Locale.US, "%.2fms avg, %.2fms max",
+                    toMillis(totalNanos / count), toMillis(maxNanos))).append('\n');
+        }
+
+        @Override
+        public void histogram(String name, String help, String labelName, String labelValue, Histogram histogram) {
+            line(help, labelValue);
+            if (histogram.getCount() == 0) {
+                text.append("-\n");
+                return;
+            }
+            text.append(String.format(Locale.US, "%.1fms p50, %.1fms p90, %.1fms p99",
+                    toMillis(histogram.getPercentileNanos(0.5)),
+                    toMillis(histogram.getPercentileNanos(0.9)),
+                    toMillis(histogram.getPercentileNanos(0.99)))).append('\n');
+        }
+
+        private StringBuilder line(String help, String labelValue) {
+            text.append(help);
+            if (labelValue != null) {
+                text.append(" [").append(labelValue).append(']');
+            }
+            return text.append(": ");
+        }
+
+        private static String format(String name, double value) {
+            if (name.endsWith("_bytes") || name.endsWith("_bytes_total")) {
+                if (value >= 1024 * 1024) {
+                    return String.format(Locale.US, "%.1fMB", value / (1024 * 1024));
+                }
+                return String.format(Locale.US, "%.1fKB", value / 1024);
+            }
+            if (name.endsWith("_seconds")) {
+                return String.format(Locale.US, "%.1fms", value * 1000);
+            }
+            return value == Math.rint(value) ? Long.toString((long) value) : String.format(Locale.US, "%.2f", value);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -7,6 +7,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.net.wifi.WifiManager;
 import android.os.Build;
@@ -29,6 +30,7 @@ import java.io.PipedOutputStream;
 
 import tech.schober.vinylcast.R;
 import tech.schober.vinylcast.VinylCastService;
+import tech.schober.vinylcast.audio.NativeAudioEngine;
 import tech.schober.vinylcast.ui.main.MainActivity;
 
 import static android.content.Context.WIFI_SERVICE;
@@ -44,6 +46,15 @@ import static androidx.media.app.NotificationCompat.MediaStyle;
 
 public class VinylCastHelpers {
 
+    // NativeAudioEngine EQ bands used by the tone controls
+    private static final int EQ_BAND_BASS = 0;
+    private static final int EQ_BAND_TREBLE = 1;
+    private static final float EQ_BASS_FREQUENCY_HZ = 100f;
+    private static final float EQ_TREBLE_FREQUENCY_HZ = 10000f;
+    private static final float EQ_SHELF_Q = 0.707f;
+    // tone preferences range 0-24 with 12 as flat
+    private static final int TONE_PREF_FLAT = 12;
+
     private VinylCastHelpers(){}	// not to be instantiated
 
     public static void createStopNotification(MediaSessionCompat mediaSession,
@@ -126,6 +137,30 @@ public class VinylCastHelpers {
         return convertGainPrefToDecibels(intGain);
     }
 
+    public static int convertTonePrefToDecibels(int intTone) {
+        return intTone - TONE_PREF_FLAT;
+    }
+
+    public static void setBassDecibels(int decibels) {
+        NativeAudioEngine.setEqBand(EQ_BAND_BASS, NativeAudioEngine.EQ_BAND_TYPE_LOW_SHELF, EQ_BASS_FREQUENCY_HZ, EQ_SHELF_Q, decibels);
+    }
+
+    public static void setTrebleDecibels(int decibels) {
+        NativeAudioEngine.setEqBand(EQ_BAND_TREBLE, NativeAudioEngine.EQ_BAND_TYPE_HIGH_SHELF, EQ_TREBLE_FREQUENCY_HZ, EQ_SHELF_Q, decibels);
+    }
+
+    /**
+     * Push the Audio Processing preferences to NativeAudioEngine. They can change at any time,
+     * while recording they take effect on the next audio callback.
+     */
+    public static void applyAudioProcessingPreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        NativeAudioEngine.setRumbleFilter(getSharedPreferenceStringAsInteger(context, R.string.prefs_key_rumble_filter, R.string.prefs_default_rumble_filter));
+        NativeAudioEngine.setRiaaEqualization(prefs.getBoolean(context.getString(R.string.prefs_key_riaa_equalization), Boolean.valueOf(context.getString(R.string.prefs_default_riaa_equalization))));
+        setBassDecibels(convertTonePrefToDecibels(prefs.getInt(context.getString(R.string.prefs_key_bass), TONE_PREF_FLAT)));
+        setTrebleDecibels(convertTonePrefToDecibels(prefs.getInt(context.getString(R.string.prefs_key_treble), TONE_PREF_FLAT)));
+    }
+
     /**
      * Get an OutputStream and InputStream that provides raw audio output.
      * @return Pair<OutputStream, InputStream>
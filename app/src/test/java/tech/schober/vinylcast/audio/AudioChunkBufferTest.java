@@ -0,0 +1,154 @@
+package tech.schober.vinylcast.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AudioChunkBufferTest {
+    // long enough that chunks published back to back are never lagging
+    private static final long MAX_LAG_MILLIS = 200;
+
+    @Test
+    public void cursor_readsEveryChunkWhileKeepingUp() throws IOException {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(8);
+        AudioChunkBuffer.Cursor cursor = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, MAX_LAG_MILLIS);
+        for (int i = 0; i < 20; i++) {
+            buffer.publish(new byte[] {(byte) i});
+            assertEquals(1, cursor.getQueuedChunks());
+            AudioChunk chunk = cursor.pollChunk();
+            assertEquals(i, chunk.getSequence());
+            assertEquals(i, chunk.getData()[0]);
+        }
+        assertNull(cursor.pollChunk());
+        assertEquals(0, cursor.getSkippedChunks());
+        assertEquals(20, cursor.getConsumedBytes());
+    }
+
+    @Test
+    public void newCursorFromNewest_startsOnNewestChunk() throws IOException {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(8);
+        buffer.publish(new byte[] {1});
+        buffer.publish(new byte[] {2});
+        AudioChunkBuffer.Cursor fromNewest = buffer.newCursorFromNewest(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, MAX_LAG_MILLIS);
+        AudioChunkBuffer.Cursor fromNext = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, MAX_LAG_MILLIS);
+        buffer.publish(new byte[] {3});
+
+        assertEquals(2, fromNewest.pollChunk().getData()[0]);
+        assertEquals(3, fromNewest.pollChunk().getData()[0]);
+        assertEquals(3, fromNext.pollChunk().getData()[0]);
+    }
+
+    @Test
+    public void dropOldest_dropsOnlyChunksOlderThanMaxLag() throws Exception {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(16);
+        AudioChunkBuffer.Cursor cursor = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, MAX_LAG_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            buffer.publish(new byte[] {(byte) i});
+        }
+        Thread.sleep(MAX_LAG_MILLIS * 2);
+        for (int i = 3; i < 5; i++) {
+            buffer.publish(new byte[] {(byte) i});
+        }
+
+        assertTrue(cursor.isLagging());
+        // closeIfLagging only ever closes disconnecting cursors
+        assertFalse(cursor.closeIfLagging());
+        assertEquals(3, cursor.pollChunk().getData()[0]);
+        assertEquals(3, cursor.getSkippedChunks());
+        assertEquals(4, cursor.pollChunk().getData()[0]);
+        assertNull(cursor.pollChunk());
+    }
+
+    @Test
+    public void dropOldest_lappedCursorKeepsNewestChunks() throws IOException {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(4);
+        AudioChunkBuffer.Cursor cursor = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, MAX_LAG_MILLIS);
+        for (int i = 0; i < 10; i++) {
+            buffer.publish(new byte[] {(byte) i});
+        }
+
+        assertEquals(Long.MAX_VALUE, cursor.getLagNanos());
+        // only the chunks no longer held are dropped, the rest are recent enough
+        assertEquals(6, cursor.pollChunk().getData()[0]);
+        assertEquals(6, cursor.getSkippedChunks());
+        assertEquals(3, cursor.getQueuedChunks());
+    }
+
+    @Test
+    public void skipToLive_jumpsToNewestChunk() throws Exception {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(16);
+        AudioChunkBuffer.Cursor cursor = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_SKIP_TO_LIVE, MAX_LAG_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            buffer.publish(new byte[] {(byte) i});
+        }
+        Thread.sleep(MAX_LAG_MILLIS * 2);
+        for (int i = 3; i < 5; i++) {
+            buffer.publish(new byte[] {(byte) i});
+        }
+
+        assertFalse(cursor.closeIfLagging());
+        // chunk 3 would still have been recent enough, skipping to live drops it too
+        assertEquals(4, cursor.pollChunk().getData()[0]);
+        assertEquals(4, cursor.getSkippedChunks());
+        assertNull(cursor.pollChunk());
+        assertEquals(0, cursor.getLagNanos());
+    }
+
+    @Test
+    public void disconnect_closesCursorWhenReading() throws Exception {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(16);
+        AudioChunkBuffer.Cursor cursor = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DISCONNECT, MAX_LAG_MILLIS);
+        buffer.publish(new byte[] {0});
+        Thread.sleep(MAX_LAG_MILLIS * 2);
+        buffer.publish(new byte[] {1});
+
+        try {
+            cursor.pollChunk();
+            fail("lagging cursor not disconnected");
+        } catch (IOException expected) {
+        }
+        assertTrue(cursor.isClosed());
+        assertEquals(0, buffer.getCursorCount());
+    }
+
+    @Test
+    public void disconnect_closedByPublisherWithoutReading() throws Exception {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(16);
+        AudioChunkBuffer.Cursor keepingUp = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DISCONNECT, MAX_LAG_MILLIS);
+        AudioChunkBuffer.Cursor stalled = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DISCONNECT, MAX_LAG_MILLIS);
+        buffer.publish(new byte[] {0});
+        keepingUp.pollChunk();
+        assertFalse(stalled.closeIfLagging());
+        Thread.sleep(MAX_LAG_MILLIS * 2);
+
+        // what the server's publishing thread does for a client stuck in a socket write
+        assertTrue(stalled.closeIfLagging());
+        assertFalse(keepingUp.closeIfLagging());
+        assertEquals(1, buffer.getCursorCount());
+    }
+
+    @Test
+    public void closedBuffer_drainsThenEndOfStream() throws IOException {
+        AudioChunkBuffer buffer = new AudioChunkBuffer(8);
+        AudioChunkBuffer.Cursor cursor = buffer.newCursor(AudioChunkBuffer.SLOW_CONSUMER_DROP_OLDEST, MAX_LAG_MILLIS);
+        buffer.publish(new byte[] {1, 2, 3}, AudioChunk.NO_CAPTURE_TIME);
+        buffer.publish(new byte[] {9, 4, 5, 9}, 1, 2);
+        buffer.close();
+        assertNull(buffer.publish(new byte[] {6}));
+
+        byte[] read = new byte[8];
+        assertEquals(3, cursor.read(read, 0, read.length));
+        assertEquals(2, cursor.read(read, 3, read.length - 3));
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, Arrays.copyOf(read, 5));
+        assertEquals(-1, cursor.read(read, 0, read.length));
+        assertNull(cursor.nextChunk());
+    }
+}
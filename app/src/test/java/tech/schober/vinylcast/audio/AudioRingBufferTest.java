@@ -0,0 +1,315 @@
+package tech.schober.vinylcast.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AudioRingBufferTest {
+
+    @Test
+    public void capacity_roundedUpToPowerOfTwo() {
+        assertEquals(64, new AudioRingBuffer(64, 4).getCapacity());
+        assertEquals(128, new AudioRingBuffer(65, 4).getCapacity());
+        assertEquals(8, new AudioRingBuffer(1, 6).getCapacity());
+    }
+
+    @Test
+    public void read_returnsWrittenBytesInOrder() throws IOException {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader first = ring.newReader();
+        AudioRingBuffer.Reader second = ring.newReader();
+        // wraps around the end of the ring on the third write
+        for (int position = 0; position < 96; position += 24) {
+            ring.write(positionBytes(position, 24), 0, 24);
+            assertArrayEquals(positionBytes(position, 24), readExactly(first, 24));
+            if (position == 24) {
+                assertArrayEquals(positionBytes(0, 48), readExactly(second, 48));
+            }
+        }
+        assertArrayEquals(positionBytes(48, 48), readExactly(second, 48));
+        assertEquals(0, first.getSkippedBytes());
+        assertEquals(0, second.getSkippedBytes());
+    }
+
+    @Test
+    public void read_intoByteBuffer() throws IOException {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        ring.write(ByteBuffer.wrap(positionBytes(0, 48)), 0, 48);
+        ring.write(ByteBuffer.wrap(positionBytes(48, 32)), 0, 32);
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(40);
+        assertEquals(40, reader.readFully(dst));
+        dst.flip();
+        byte[] read = new byte[40];
+        dst.get(read);
+        // lapped by the second write, see lappedReader_resyncsToOldestFrame
+        assertArrayEquals(positionBytes(20, 40), read);
+    }
+
+    @Test
+    public void lappedReader_resyncsToOldestFrame() throws IOException {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        for (int position = 0; position < 200; position += 8) {
+            ring.write(positionBytes(position, 8), 0, 8);
+        }
+        // everything before writeLimit - capacity was overwritten, plus one frame of margin for
+        // the write that may be in progress
+        byte[] read = new byte[64];
+        int bytesRead = reader.read(read, 0, read.length);
+        assertEquals(60, bytesRead);
+        assertEquals(140, reader.getSkippedBytes());
+        assertEquals((byte) 140, read[0]);
+        assertEquals((byte) 199, read[59]);
+    }
+
+    @Test
+    public void lappedReader_staysFrameAligned() throws IOException {
+        // 6 byte frames don't divide the 64 byte ring
+        AudioRingBuffer ring = new AudioRingBuffer(64, 6);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        for (int position = 0; position < 102; position += 6) {
+            ring.write(positionBytes(position, 6), 0, 6);
+        }
+        byte[] read = new byte[6];
+        assertEquals(6, reader.read(read, 0, read.length));
+        assertEquals(0, reader.getSkippedBytes() % 6);
+        assertEquals(48, reader.getSkippedBytes());
+        assertArrayEquals(positionBytes(48, 6), read);
+    }
+
+    @Test
+    public void writeLargerThanCapacity_keepsNewestBytes() throws IOException {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        ring.write(positionBytes(0, 100), 0, 100);
+        ring.write(positionBytes(100, 4), 0, 4);
+
+        byte[] read = new byte[64];
+        int bytesRead = reader.read(read, 0, read.length);
+        assertEquals((byte) (100 - bytesRead + 4), read[0]);
+        assertEquals((byte) 103, read[bytesRead - 1]);
+        assertEquals(104, reader.getSkippedBytes() + bytesRead);
+    }
+
+    @Test
+    public void skip_limitedToAvailable() throws IOException {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        ring.write(positionBytes(0, 16), 0, 16);
+        assertEquals(16, reader.available());
+        assertEquals(8, reader.skip(8));
+        assertEquals(8, reader.available());
+        assertEquals(8, reader.skip(100));
+        assertEquals(0, reader.skip(1));
+        assertEquals(0, reader.available());
+
+        ring.write(positionBytes(16, 4), 0, 4);
+        assertArrayEquals(positionBytes(16, 4), readExactly(reader, 4));
+        // skipped on purpose, not lost
+        assertEquals(0, reader.getSkippedBytes());
+    }
+
+    @Test
+    public void closedRing_drainsThenEndOfStream() throws IOException {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        ring.write(positionBytes(0, 8), 0, 8);
+        ring.close();
+        ring.write(positionBytes(8, 8), 0, 8);
+
+        assertTrue(ring.isClosed());
+        assertArrayEquals(positionBytes(0, 8), readExactly(reader, 8));
+        assertEquals(-1, reader.read(new byte[8], 0, 8));
+        assertEquals(-1, reader.read());
+    }
+
+    @Test(timeout = 5000)
+    public void blockedReader_wokenByWrite() throws Exception {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = startReading(reader, result);
+
+        awaitParked(thread);
+        ring.write(positionBytes(0, 4), 0, 4);
+        thread.join();
+        assertArrayEquals(positionBytes(0, 4), (byte[]) result.get());
+    }
+
+    @Test(timeout = 5000)
+    public void blockedReader_wokenByRingClose() throws Exception {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = startReading(reader, result);
+
+        awaitParked(thread);
+        ring.close();
+        thread.join();
+        assertEquals(-1, result.get());
+    }
+
+    @Test(timeout = 5000)
+    public void blockedReader_wokenByReaderClose() throws Exception {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = startReading(reader, result);
+
+        awaitParked(thread);
+        reader.close();
+        thread.join();
+        assertTrue(result.get() instanceof IOException);
+        assertTrue(reader.isClosed());
+        assertEquals(0, ring.getReaderCount());
+    }
+
+    @Test(timeout = 5000)
+    public void blockedReader_interrupted() throws Exception {
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = startReading(reader, result);
+
+        awaitParked(thread);
+        thread.interrupt();
+        thread.join();
+        assertTrue(result.get() instanceof InterruptedIOException);
+    }
+
+    @Test
+    public void captureNanos_followsPosition() throws IOException {
+        // 1000 frames per second of 4 bytes, so a byte is 250us
+        AudioRingBuffer ring = new AudioRingBuffer(64, 4, 1000);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        assertEquals(AudioChunk.NO_CAPTURE_TIME, reader.getCaptureNanos());
+        ring.write(positionBytes(0, 16), 0, 16, TimeUnit.SECONDS.toNanos(10));
+        ring.write(positionBytes(16, 16), 0, 16, TimeUnit.SECONDS.toNanos(10) + TimeUnit.MILLISECONDS.toNanos(4));
+
+        assertEquals(TimeUnit.SECONDS.toNanos(10), reader.getCaptureNanos());
+        readExactly(reader, 24);
+        assertEquals(TimeUnit.SECONDS.toNanos(10) + TimeUnit.MILLISECONDS.toNanos(6), reader.getCaptureNanos());
+    }
+
+    /**
+     * Each frame is one value repeated, so a reader that copies a frame the writer is overwriting
+     * sees mixed values, and one that misses a frame sees a gap it didn't count as skipped.
+     */
+    @Test(timeout = 30000)
+    public void concurrentReaders_neverSeeTornFrames() throws Exception {
+        final int frameSize = 8;
+        final int frames = 200000;
+        final AudioRingBuffer ring = new AudioRingBuffer(256, frameSize);
+        final AudioRingBuffer.Reader[] readers = {ring.newReader(), ring.newReader()};
+        final AtomicReference<AssertionError> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(readers.length);
+
+        for (final AudioRingBuffer.Reader reader : readers) {
+            new Thread(() -> {
+                try {
+                    byte[] frame = new byte[frameSize];
+                    long expectedPosition = 0;
+                    while (true) {
+                        long skippedBefore = reader.getSkippedBytes();
+                        int bytesRead = readFrame(reader, frame);
+                        if (bytesRead < 0) {
+                            break;
+                        }
+                        expectedPosition += reader.getSkippedBytes() - skippedBefore;
+                        for (int i = 1; i < frameSize; i++) {
+                            assertEquals("torn frame", frame[0], frame[i]);
+                        }
+                        assertEquals((byte) (expectedPosition / frameSize), frame[0]);
+                        expectedPosition += frameSize;
+                    }
+                } catch (AssertionError e) {
+                    failure.compareAndSet(null, e);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, new AssertionError(e));
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        byte[] frame = new byte[frameSize];
+        for (int i = 0; i < frames; i++) {
+            java.util.Arrays.fill(frame, (byte) i);
+            ring.write(frame, 0, frameSize);
+        }
+        ring.close();
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static int readFrame(AudioRingBuffer.Reader reader, byte[] frame) throws IOException {
+        // reads are frame aligned as long as whole frames are asked for
+        int offset = 0;
+        while (offset < frame.length) {
+            int bytesRead = reader.read(frame, offset, frame.length - offset);
+            if (bytesRead < 0) {
+                if (offset != 0) {
+                    fail("end of stream mid frame");
+                }
+                return -1;
+            }
+            offset += bytesRead;
+        }
+        return offset;
+    }
+
+    private static Thread startReading(AudioRingBuffer.Reader reader, AtomicReference<Object> result) {
+        Thread thread = new Thread(() -> {
+            try {
+                byte[] read = new byte[4];
+                int bytesRead = reader.read(read, 0, read.length);
+                result.set(bytesRead < 0 ? (Object) bytesRead : read);
+            } catch (IOException e) {
+                result.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        assertFalse(thread.isInterrupted());
+    }
+
+    private static byte[] readExactly(AudioRingBuffer.Reader reader, int length) throws IOException {
+        byte[] read = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int bytesRead = reader.read(read, offset, length - offset);
+            assertTrue("end of stream after " + offset, bytesRead > 0);
+            offset += bytesRead;
+        }
+        return read;
+    }
+
+    private static byte[] positionBytes(int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (position + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,314 @@
+package tech.schober.vinylcast.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlacEncoderTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK_SIZE = 1152;
+    // measured 0.527 for createMusicLikeSignal(), with a little headroom
+    private static final float MAX_COMPRESSION_RATIO = 0.55f;
+    // measured 130x on a single desktop core, far below that means a slow path crept into the loop
+    private static final double MIN_REAL_TIME_FACTOR = 20;
+
+    @Test
+    public void roundTrip_isBitIdentical() {
+        short[] music = createMusicLikeSignal(2, SAMPLE_RATE * 2, 1);
+        assertArrayEquals(music, roundTrip(music, 2, BLOCK_SIZE));
+    }
+
+    @Test
+    public void roundTrip_silenceAndFullScaleNoise() {
+        short[] pcm = new short[2 * BLOCK_SIZE * 4];
+        Random random = new Random(2);
+        // digital silence, one constant block, then two blocks of incompressible noise
+        Arrays.fill(pcm, 2 * BLOCK_SIZE, 4 * BLOCK_SIZE, Short.MIN_VALUE);
+        for (int i = 4 * BLOCK_SIZE; i < pcm.length; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        assertArrayEquals(pcm, roundTrip(pcm, 2, BLOCK_SIZE));
+    }
+
+    @Test
+    public void roundTrip_monoAndShortLastFrame() {
+        short[] mono = createMusicLikeSignal(1, BLOCK_SIZE * 3 + 100, 3);
+        assertArrayEquals(mono, roundTrip(mono, 1, BLOCK_SIZE));
+        short[] stereo = createMusicLikeSignal(2, BLOCK_SIZE * 2 + 300, 4);
+        assertArrayEquals(stereo, roundTrip(stereo, 2, BLOCK_SIZE));
+    }
+
+    @Test
+    public void encode_compressesMusicLikeSignal() {
+        short[] music = createMusicLikeSignal(2, SAMPLE_RATE * 2, 5);
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, 2, BLOCK_SIZE);
+        ByteBuffer pcm = toByteBuffer(music);
+        long encodedBytes = 0;
+        while (pcm.hasRemaining()) {
+            pcm.limit(Math.min(pcm.capacity(), pcm.position() + BLOCK_SIZE * 4));
+            encodedBytes += encoder.encodeFrame(pcm);
+            pcm.limit(pcm.capacity());
+        }
+        float ratio = (float) encodedBytes / (music.length * 2);
+        assertTrue("ratio " + ratio, ratio < MAX_COMPRESSION_RATIO);
+    }
+
+    /**
+     * Throughput check: encodes 60 seconds of 48kHz stereo, which has to take well under the 60
+     * seconds a phone has for it. The factor is in the failure message.
+     */
+    @Test
+    public void benchmark_encodesFasterThanRealTime() {
+        int seconds = 60;
+        short[] music = createMusicLikeSignal(2, SAMPLE_RATE * 10, 6);
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, 2, BLOCK_SIZE);
+        ByteBuffer pcm = toByteBuffer(music);
+        int frameBytes = BLOCK_SIZE * 4;
+
+        // warm up the JIT
+        encodeAll(encoder, pcm, frameBytes);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < seconds / 10; i++) {
+            encodeAll(encoder, pcm, frameBytes);
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        double realTimeFactor = seconds / elapsedSeconds;
+        assertTrue(String.format("%.1fx real time (%.3fs for %ds)", realTimeFactor, elapsedSeconds, seconds), realTimeFactor > MIN_REAL_TIME_FACTOR);
+    }
+
+    private static void encodeAll(FlacEncoder encoder, ByteBuffer pcm, int frameBytes) {
+        pcm.clear();
+        while (pcm.remaining() >= frameBytes) {
+            pcm.limit(pcm.position() + frameBytes);
+            encoder.encodeFrame(pcm);
+            pcm.limit(pcm.capacity());
+        }
+    }
+
+    private static short[] roundTrip(short[] pcm, int channelCount, int blockSize) {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, channelCount, blockSize);
+        FlacDecoder decoder = new FlacDecoder(encoder.getStreamHeader());
+        assertEquals(channelCount, decoder.channelCount);
+        assertEquals(SAMPLE_RATE, decoder.sampleRate);
+
+        ByteBuffer input = toByteBuffer(pcm);
+        short[] output = new short[pcm.length];
+        int outputOffset = 0;
+        int frameBytes = blockSize * channelCount * 2;
+        while (input.hasRemaining()) {
+            input.limit(Math.min(input.capacity(), input.position() + frameBytes));
+            int length = encoder.encodeFrame(input);
+            input.limit(input.capacity());
+            outputOffset += decoder.decodeFrame(Arrays.copyOf(encoder.getFrameBuffer(), length), output, outputOffset);
+        }
+        assertEquals(pcm.length, outputOffset);
+        return output;
+    }
+
+    private static ByteBuffer toByteBuffer(short[] pcm) {
+        ByteBuffer buffer = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(pcm);
+        return buffer;
+    }
+
+    /**
+     * A few partly correlated tones with a little noise, roughly what a record sounds like
+     */
+    private static short[] createMusicLikeSignal(int channelCount, int frames, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[frames * channelCount];
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double common = 6000 * Math.sin(2 * Math.PI * 110 * t) + 3000 * Math.sin(2 * Math.PI * 440 * t);
+            for (int channel = 0; channel < channelCount; channel++) {
+                double own = 2000 * Math.sin(2 * Math.PI * (660 + 220 * channel) * t);
+                pcm[i * channelCount + channel] = (short) (common + own + random.nextGaussian() * 30);
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Just enough of a FLAC decoder to check what FlacEncoder writes: fixed predictors, Rice
+     * coding, verbatim and constant subframes, CRC-8 and CRC-16 checked.
+     */
+    private static class FlacDecoder {
+        final int sampleRate;
+        final int channelCount;
+        private final int bitsPerSample;
+        private byte[] data;
+        private int bitPosition;
+
+        FlacDecoder(byte[] streamHeader) {
+            assertEquals("fLaC", new String(streamHeader, 0, 4));
+            data = streamHeader;
+            bitPosition = 32;
+            assertEquals(1, readBits(1)); // last metadata block
+            assertEquals(0, readBits(7)); // STREAMINFO
+            assertEquals(34, readBits(24));
+            readBits(16 + 16 + 24 + 24);
+            sampleRate = readBits(20);
+            channelCount = readBits(3) + 1;
+            bitsPerSample = readBits(5) + 1;
+            assertEquals(FlacEncoder.BITS_PER_SAMPLE, bitsPerSample);
+            assertEquals(streamHeader.length * 8, bitPosition + 36 + 128);
+        }
+
+        int decodeFrame(byte[] frame, short[] output, int outputOffset) {
+            data = frame;
+            bitPosition = 0;
+            assertEquals(0xfff8, readBits(16));
+            int blockSizeCode = readBits(4);
+            int sampleRateCode = readBits(4);
+            int channelAssignment = readBits(4);
+            assertEquals(4, readBits(3));
+            assertEquals(0, readBits(1));
+            readUtf8();
+            int blockSize;
+            if (blockSizeCode == 1) {
+                blockSize = 192;
+            } else if (blockSizeCode <= 5) {
+                blockSize = 576 << (blockSizeCode - 2);
+            } else if (blockSizeCode == 6) {
+                blockSize = readBits(8) + 1;
+            } else if (blockSizeCode == 7) {
+                blockSize = readBits(16) + 1;
+            } else {
+                blockSize = 256 << (blockSizeCode - 8);
+            }
+            if (sampleRateCode == 12) {
+                readBits(8);
+            } else if (sampleRateCode == 13 || sampleRateCode == 14) {
+                readBits(16);
+            }
+            int headerLength = bitPosition / 8;
+            assertEquals(crc(frame, headerLength, 0x07, 8), readBits(8));
+
+            int[][] channels = new int[channelCount][];
+            for (int channel = 0; channel < channelCount; channel++) {
+                boolean side = (channelAssignment == 8 && channel == 1)
+                        || (channelAssignment == 9 && channel == 0)
+                        || (channelAssignment == 10 && channel == 1);
+                channels[channel] = decodeSubframe(blockSize, bitsPerSample + (side ? 1 : 0));
+            }
+            bitPosition = (bitPosition + 7) & ~7;
+            assertEquals(crc(frame, bitPosition / 8, 0x8005, 16), readBits(16));
+            assertEquals(frame.length * 8, bitPosition);
+
+            for (int i = 0; i < blockSize; i++) {
+                int left = channels[0][i];
+                int right = channelCount > 1 ? channels[1][i] : 0;
+                switch (channelAssignment) {
+                    case 8:
+                        right = left - right;
+                        break;
+                    case 9:
+                        left = left + right;
+                        break;
+                    case 10:
+                        int mid = (left << 1) | (right & 1);
+                        left = (mid + right) >> 1;
+                        right = (mid - right) >> 1;
+                        break;
+                }
+                for (int channel = 0; channel < channelCount; channel++) {
+                    int sample = channel == 0 ? left : channel == 1 ? right : channels[channel][i];
+                    output[outputOffset + i * channelCount + channel] = (short) sample;
+                }
+            }
+            return blockSize * channelCount;
+        }
+
+        private int[] decodeSubframe(int blockSize, int bps) {
+            assertEquals(0, readBits(1));
+            int type = readBits(6);
+            assertEquals(0, readBits(1)); // no wasted bits
+            int[] samples = new int[blockSize];
+            if (type == 0) {
+                Arrays.fill(samples, readSignedBits(bps));
+            } else if (type == 1) {
+                for (int i = 0; i < blockSize; i++) {
+                    samples[i] = readSignedBits(bps);
+                }
+            } else {
+                assertEquals(0x08, type & 0x38);
+                int order = type & 0x07;
+                for (int i = 0; i < order; i++) {
+                    samples[i] = readSignedBits(bps);
+                }
+                assertEquals(0, readBits(2));
+                int partitionOrder = readBits(4);
+                int partitionSize = blockSize >> partitionOrder;
+                int i = order;
+                for (int partition = 0; partition < 1 << partitionOrder; partition++) {
+                    int parameter = readBits(4);
+                    for (; i < (partition + 1) * partitionSize; i++) {
+                        int quotient = 0;
+                        while (readBits(1) == 0) {
+                            quotient++;
+                        }
+                        int value = (quotient << parameter) | readBits(parameter);
+                        samples[i] = (value >>> 1) ^ -(value & 1);
+                    }
+                }
+                for (i = order; i < blockSize; i++) {
+                    switch (order) {
+                        case 1: samples[i] += samples[i - 1]; break;
+                        case 2: samples[i] += 2 * samples[i - 1] - samples[i - 2]; break;
+                        case 3: samples[i] += 3 * samples[i - 1] - 3 * samples[i - 2] + samples[i - 3]; break;
+                        case 4: samples[i] += 4 * samples[i - 1] - 6 * samples[i - 2] + 4 * samples[i - 3] - samples[i - 4]; break;
+                    }
+                }
+            }
+            return samples;
+        }
+
+        private void readUtf8() {
+            int first = readBits(8);
+            int continuationBytes = 0;
+            while ((first & (0x80 >> continuationBytes)) != 0) {
+                continuationBytes++;
+            }
+            for (int i = 1; i < continuationBytes; i++) {
+                assertEquals(2, readBits(2));
+                readBits(6);
+            }
+        }
+
+        private int readSignedBits(int bits) {
+            int value = readBits(bits);
+            return (value << (32 - bits)) >> (32 - bits);
+        }
+
+        private int readBits(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                int bit = (data[bitPosition >> 3] >> (7 - (bitPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                bitPosition++;
+            }
+            return value;
+        }
+
+        private static int crc(byte[] data, int length, int polynomial, int width) {
+            int crc = 0;
+            int topBit = 1 << (width - 1);
+            for (int i = 0; i < length; i++) {
+                crc ^= (data[i] & 0xff) << (width - 8);
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & topBit) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+                }
+                crc &= (1 << width) - 1;
+            }
+            return crc;
+        }
+    }
+}
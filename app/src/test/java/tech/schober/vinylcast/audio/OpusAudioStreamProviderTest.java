@@ -0,0 +1,44 @@
+package tech.schober.vinylcast.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class OpusAudioStreamProviderTest {
+
+    @Test
+    public void getPreSkip_fromOpusHead() {
+        ByteBuffer opusHead = ByteBuffer.allocate(2 + 19);
+        opusHead.position(2);
+        opusHead.put("OpusHead".getBytes(StandardCharsets.US_ASCII)).put((byte) 1).put((byte) 2);
+        // little endian 0x0138, 312
+        opusHead.put((byte) 0x38).put((byte) 0x01);
+        opusHead.position(2);
+        assertEquals(312, OpusAudioStreamProvider.getPreSkip(opusHead, createCodecDelay(1000000)));
+        assertEquals(2, opusHead.position());
+    }
+
+    @Test
+    public void getPreSkip_fromCodecDelay() {
+        // 6.5ms at 48kHz
+        assertEquals(312, OpusAudioStreamProvider.getPreSkip(null, createCodecDelay(6500000)));
+        ByteBuffer notOpusHead = ByteBuffer.wrap(new byte[19]);
+        assertEquals(120, OpusAudioStreamProvider.getPreSkip(notOpusHead, createCodecDelay(2500000)));
+    }
+
+    @Test
+    public void getPreSkip_missing() {
+        assertEquals(-1, OpusAudioStreamProvider.getPreSkip(null, null));
+        assertEquals(-1, OpusAudioStreamProvider.getPreSkip(ByteBuffer.allocate(8), ByteBuffer.allocate(4)));
+    }
+
+    private static ByteBuffer createCodecDelay(long nanos) {
+        ByteBuffer codecDelay = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        codecDelay.putLong(nanos).flip();
+        return codecDelay;
+    }
+}
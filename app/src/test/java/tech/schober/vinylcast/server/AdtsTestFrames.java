@@ -0,0 +1,43 @@
+package tech.schober.vinylcast.server;
+
+/**
+ * ADTS frames for the segmenter tests: AAC LC, 48kHz, stereo, one raw data block each.
+ */
+final class AdtsTestFrames {
+    static final int SAMPLE_RATE = 48000;
+    static final long FRAME_NANOS = AdtsFrames.FRAME_SAMPLES * 1000000000L / SAMPLE_RATE;
+
+    private AdtsTestFrames() {
+    }
+
+    /**
+     * @return a frame whose payload is payloadLength bytes of value, so tests can tell frames apart
+     */
+    static byte[] frame(int payloadLength, int value) {
+        int frameLength = AdtsFrames.HEADER_SIZE + payloadLength;
+        byte[] frame = new byte[frameLength];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xf1; // MPEG-4, no CRC
+        frame[2] = (byte) ((1 << 6) | (3 << 2)); // AAC LC, 48kHz
+        frame[3] = (byte) ((2 << 6) | (frameLength >> 11)); // stereo
+        frame[4] = (byte) (frameLength >> 3);
+        frame[5] = (byte) (((frameLength & 0x07) << 5) | 0x1f);
+        frame[6] = (byte) 0xfc;
+        for (int i = AdtsFrames.HEADER_SIZE; i < frameLength; i++) {
+            frame[i] = (byte) value;
+        }
+        return frame;
+    }
+
+    /**
+     * @return count frames back to back, valued first, first + 1, ...
+     */
+    static byte[] frames(int count, int payloadLength, int first) {
+        int frameLength = AdtsFrames.HEADER_SIZE + payloadLength;
+        byte[] frames = new byte[count * frameLength];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(frame(payloadLength, first + i), 0, frames, i * frameLength, frameLength);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,183 @@
+package tech.schober.vinylcast.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import tech.schober.vinylcast.audio.AudioChunk;
+import tech.schober.vinylcast.audio.AudioChunkBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CmafSegmenterTest {
+    // 0.4s of 48kHz frames
+    private static final int FRAGMENT_FRAMES = 19;
+    private static final int PAYLOAD_LENGTH = 16;
+
+    private final AudioChunkBuffer chunkBuffer = new AudioChunkBuffer(16);
+    private final CmafSegmenter segmenter = new CmafSegmenter();
+    // capture time of the first frame
+    private final long startNanos = System.nanoTime();
+
+    @Test
+    public void fragments_numberedInCaptureOrder() {
+        addFrames(0, FRAGMENT_FRAMES * 3, 0);
+
+        for (int number = 0; number < 3; number++) {
+            CmafSegmenter.Fragment fragment = getFragment(number);
+            assertTrue(fragment.isComplete());
+            assertEquals(FRAGMENT_FRAMES, fragment.getChunkCount());
+            assertEquals((long) number * FRAGMENT_FRAMES * AdtsFrames.FRAME_SAMPLES, getDecodeTime(fragment.getChunk(0)));
+            assertEquals(number * FRAGMENT_FRAMES, getFirstFrameValue(fragment.getChunk(0)));
+        }
+        // the next fragment is there before its first frame
+        assertFalse(getFragment(3).isComplete());
+        assertEquals(0, getFragment(3).getChunkCount());
+    }
+
+    @Test
+    public void chunks_decodeTimesContinuous() {
+        addFrames(0, FRAGMENT_FRAMES * 2 + 3, 0);
+
+        long expected = 0;
+        for (int number = 0; number < 3; number++) {
+            CmafSegmenter.Fragment fragment = getFragment(number);
+            for (int i = 0; i < fragment.getChunkCount(); i++) {
+                assertEquals(expected, getDecodeTime(fragment.getChunk(i)));
+                expected += AdtsFrames.FRAME_SAMPLES;
+            }
+        }
+        assertEquals((FRAGMENT_FRAMES * 2 + 3) * AdtsFrames.FRAME_SAMPLES, expected);
+    }
+
+    @Test
+    public void fragmentInputStream_blocksUntilChunkArrives() throws Exception {
+        CmafSegmenter.Fragment fragment = new CmafSegmenter.Fragment(0);
+        final InputStream in = fragment.newInputStream();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> read = executor.submit(() -> readFully(in, 3));
+            try {
+                read.get(100, TimeUnit.MILLISECONDS);
+                fail("read returned before any chunk");
+            } catch (TimeoutException expected) {
+            }
+
+            fragment.addChunk(new byte[] {1, 2});
+            fragment.addChunk(new byte[] {3});
+            assertArrayEquals(new byte[] {1, 2, 3}, read.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fragmentInputStream_endOfStreamOnComplete() throws Exception {
+        CmafSegmenter.Fragment fragment = new CmafSegmenter.Fragment(0);
+        fragment.addChunk(new byte[] {1, 2});
+        final InputStream in = fragment.newInputStream();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertArrayEquals(new byte[] {1, 2}, readFully(in, 2));
+            Future<Integer> read = executor.submit(() -> in.read());
+            Thread.sleep(100);
+            assertFalse(read.isDone());
+
+            fragment.complete();
+            assertEquals(-1, (int) read.get(1, TimeUnit.SECONDS));
+            // a stream opened on a complete fragment reads it whole, then ends
+            InputStream late = fragment.newInputStream();
+            assertArrayEquals(new byte[] {1, 2}, readFully(late, 2));
+            assertEquals(-1, late.read(new byte[4], 0, 4));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fragments_skippedAcrossMissingAudio() {
+        addFrames(0, FRAGMENT_FRAMES, 0);
+        // a second of audio lost, more than two fragments
+        addFrames(FRAGMENT_FRAMES, FRAGMENT_FRAMES, TimeUnit.SECONDS.toNanos(1));
+
+        assertTrue(getFragment(0).isComplete());
+        assertNull(segmenter.getFragment("fragment1.m4s"));
+        assertNull(segmenter.getFragment("fragment2.m4s"));
+        CmafSegmenter.Fragment fragment = getFragment(3);
+        assertTrue(fragment.isComplete());
+        assertEquals(FRAGMENT_FRAMES, getFirstFrameValue(fragment.getChunk(0)));
+        // media time agrees with the number receivers asked for
+        assertEquals(3L * FRAGMENT_FRAMES * AdtsFrames.FRAME_SAMPLES, getDecodeTime(fragment.getChunk(0)));
+    }
+
+    @Test
+    public void frames_droppedWhenAheadOfClock() {
+        addFrames(0, FRAGMENT_FRAMES, 0);
+        // fragment 1 captured 300ms early, as if the ADC clock had been running fast for hours
+        addFrames(FRAGMENT_FRAMES, FRAGMENT_FRAMES + 10, -TimeUnit.MILLISECONDS.toNanos(300));
+
+        CmafSegmenter.Fragment fragment = getFragment(1);
+        assertTrue(fragment.isComplete());
+        // frames are dropped until within half a fragment (about 203ms) of the clock, 5 of 21.3ms
+        assertEquals(FRAGMENT_FRAMES + 5, getFirstFrameValue(fragment.getChunk(0)));
+        assertEquals((long) FRAGMENT_FRAMES * AdtsFrames.FRAME_SAMPLES, getDecodeTime(fragment.getChunk(0)));
+    }
+
+    /**
+     * Add count frames, one chunk each, captured back to back from frame first on
+     * @param shiftNanos how far the capture times are off from where frame first should be
+     */
+    private void addFrames(int first, int count, long shiftNanos) {
+        for (int i = first; i < first + count; i++) {
+            AudioChunk chunk = chunkBuffer.publish(AdtsTestFrames.frame(PAYLOAD_LENGTH, i), startNanos + i * AdtsTestFrames.FRAME_NANOS + shiftNanos);
+            segmenter.addChunk(chunk);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int bytesRead = in.read(data, offset, length - offset);
+            assertTrue("end of stream after " + offset + " bytes", bytesRead > 0);
+            offset += bytesRead;
+        }
+        return data;
+    }
+
+    private CmafSegmenter.Fragment getFragment(long number) {
+        CmafSegmenter.Fragment fragment = segmenter.getFragment("fragment" + number + ".m4s");
+        assertNotNull("fragment " + number, fragment);
+        return fragment;
+    }
+
+    /**
+     * @return baseMediaDecodeTime of the tfdt, moof > traf > tfdt after mfhd and tfhd
+     */
+    static long getDecodeTime(byte[] chunk) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        assertEquals(0x74666474, buffer.getInt(48 + 4)); // tfdt
+        return buffer.getLong(48 + 12);
+    }
+
+    /**
+     * @return value of the first frame in the chunk's mdat, see AdtsTestFrames.frame()
+     */
+    private static int getFirstFrameValue(byte[] chunk) {
+        int moofSize = ByteBuffer.wrap(chunk).getInt(0);
+        return chunk[moofSize + 8] & 0xff;
+    }
+}
@@ -0,0 +1,175 @@
+package tech.schober.vinylcast.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FragmentedMp4WriterTest {
+    // boxes holding only other boxes
+    private static final List<String> CONTAINERS = Arrays.asList("moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf");
+
+    private final FragmentedMp4Writer writer = new FragmentedMp4Writer(2, 3, 48000, 2);
+
+    @Test
+    public void initSegment_boxTree() {
+        Box root = Box.parse(writer.getInitSegment());
+        assertEquals("[ftyp, moov]", root.childTypes());
+        Box moov = root.child("moov");
+        assertEquals("[mvhd, trak, mvex]", moov.childTypes());
+        assertEquals("[tkhd, mdia]", moov.child("trak").childTypes());
+        Box mdia = moov.child("trak").child("mdia");
+        assertEquals("[mdhd, hdlr, minf]", mdia.childTypes());
+        assertEquals("[smhd, dinf, stbl]", mdia.child("minf").childTypes());
+        assertEquals("[stsd, stts, stsc, stco, stsz]", mdia.child("minf").child("stbl").childTypes());
+
+        assertEquals("cmfc", root.child("ftyp").fourCc(0));
+        // mdhd timescale is the sample rate
+        assertEquals(48000, mdia.child("mdhd").content.getInt(4 + 8));
+        assertEquals("soun", mdia.child("hdlr").fourCc(8));
+        assertEquals(1024, moov.child("mvex").child("trex").content.getInt(4 + 8));
+    }
+
+    @Test
+    public void initSegment_audioSpecificConfig() {
+        Box stsd = Box.parse(writer.getInitSegment()).child("moov").child("trak").child("mdia").child("minf").child("stbl").child("stsd");
+        assertEquals(1, stsd.content.getInt(4));
+        // stsd entries follow its version, flags and entry count
+        Box mp4a = Box.parse(Arrays.copyOfRange(stsd.bytes(), 8, stsd.content.limit())).child("mp4a");
+        assertEquals(2, mp4a.content.getShort(16)); // channelcount
+        assertEquals(48000 << 16, mp4a.content.getInt(24));
+        Box esds = Box.parse(Arrays.copyOfRange(mp4a.bytes(), 28, mp4a.content.limit())).child("esds");
+        byte[] descriptors = Arrays.copyOfRange(esds.bytes(), 4, esds.content.limit());
+        // ES_Descriptor length covers the rest, DecSpecificInfo is AAC LC, 48kHz, stereo
+        assertEquals(0x03, descriptors[0]);
+        assertEquals(descriptors.length - 2, descriptors[1]);
+        int decSpecificInfo = 2 + 3 + 2 + 13;
+        assertEquals(0x05, descriptors[decSpecificInfo]);
+        assertEquals(2, descriptors[decSpecificInfo + 1]);
+        assertArrayEquals(new byte[] {0x11, (byte) 0x90}, Arrays.copyOfRange(descriptors, decSpecificInfo + 2, decSpecificInfo + 4));
+    }
+
+    @Test
+    public void writeChunk_moofDescribesMdat() {
+        byte[] frames = new byte[] {9, 1, 1, 1, 9, 2, 2, 9};
+        int[] offsets = {1, 5};
+        int[] sizes = {3, 2};
+        byte[] chunk = writer.writeChunk(frames, offsets, sizes, 2, 1024, 5 * 1024);
+
+        Box root = Box.parse(chunk);
+        assertEquals("[moof, mdat]", root.childTypes());
+        Box moof = root.child("moof");
+        assertEquals("[mfhd, traf]", moof.childTypes());
+        Box traf = moof.child("traf");
+        assertEquals("[tfhd, tfdt, trun]", traf.childTypes());
+
+        assertEquals(1, moof.child("mfhd").content.getInt(4));
+        // default-base-is-moof, track 1
+        assertEquals(0x020000, traf.child("tfhd").content.getInt(0));
+        assertEquals(1, traf.child("tfhd").content.getInt(4));
+        // version 1, 64 bit decode time
+        assertEquals(1 << 24, traf.child("tfdt").content.getInt(0));
+        assertEquals(5 * 1024, traf.child("tfdt").content.getLong(4));
+
+        ByteBuffer trun = traf.child("trun").content;
+        assertEquals(2, trun.getInt(4));
+        int dataOffset = trun.getInt(8);
+        assertEquals(moof.size + 8, dataOffset);
+        assertEquals(1024, trun.getInt(12));
+        assertEquals(3, trun.getInt(16));
+        assertEquals(1024, trun.getInt(20));
+        assertEquals(2, trun.getInt(24));
+        // the data offset points at the first frame, the sizes cover the mdat exactly
+        assertArrayEquals(new byte[] {1, 1, 1, 2, 2}, Arrays.copyOfRange(chunk, dataOffset, chunk.length));
+        assertEquals(8 + 5, root.child("mdat").size);
+    }
+
+    @Test
+    public void writeChunk_sequenceNumbersIncrease() {
+        byte[] frames = new byte[4];
+        for (int i = 1; i <= 3; i++) {
+            byte[] chunk = writer.writeChunk(frames, new int[] {0}, new int[] {4}, 1, 1024, i * 1024);
+            assertEquals(i, Box.parse(chunk).child("moof").child("mfhd").content.getInt(4));
+        }
+    }
+
+    /**
+     * Just enough of an ISO BMFF parser to walk the tree and check every size adds up
+     */
+    private static final class Box {
+        final String type;
+        final int size;
+        // after the size and type
+        final ByteBuffer content;
+        final List<Box> children = new ArrayList<>();
+
+        private Box(String type, int size, ByteBuffer content) {
+            this.type = type;
+            this.size = size;
+            this.content = content;
+        }
+
+        static Box parse(byte[] data) {
+            Box root = new Box("root", data.length, ByteBuffer.wrap(data));
+            root.parseChildren();
+            return root;
+        }
+
+        private void parseChildren() {
+            ByteBuffer buffer = content.duplicate();
+            while (buffer.hasRemaining()) {
+                int childSize = buffer.getInt();
+                byte[] childType = new byte[4];
+                buffer.get(childType);
+                ByteBuffer childContent = buffer.slice();
+                childContent.limit(childSize - 8);
+                Box child = new Box(new String(childType, StandardCharsets.US_ASCII), childSize, childContent);
+                if (CONTAINERS.contains(child.type)) {
+                    child.parseChildren();
+                }
+                children.add(child);
+                // throws if a size overruns its parent
+                buffer.position(buffer.position() + childSize - 8);
+            }
+        }
+
+        Box child(String childType) {
+            for (Box child : children) {
+                if (child.type.equals(childType)) {
+                    return child;
+                }
+            }
+            fail("no " + childType + " in " + type);
+            return null;
+        }
+
+        String childTypes() {
+            List<String> types = new ArrayList<>();
+            for (Box child : children) {
+                types.add(child.type);
+            }
+            return types.toString();
+        }
+
+        String fourCc(int offset) {
+            byte[] fourCc = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                fourCc[i] = content.get(offset + i);
+            }
+            return new String(fourCc, StandardCharsets.US_ASCII);
+        }
+
+        byte[] bytes() {
+            byte[] bytes = new byte[content.limit()];
+            content.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package tech.schober.vinylcast.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import tech.schober.vinylcast.audio.AudioChunkBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HlsSegmenterTest {
+    // first frame boundary after 2s at 48kHz
+    private static final int SEGMENT_FRAMES = 94;
+    private static final int PAYLOAD_LENGTH = 16;
+    private static final String SEGMENT_DURATION = "#EXTINF:2.005,\n";
+    // ID3 header, PRIV frame header, owner and 8 byte timestamp
+    private static final int ID3_TAG_SIZE = 10 + 10 + 45 + 8;
+
+    private final AudioChunkBuffer chunkBuffer = new AudioChunkBuffer(16);
+    // value of the next frame added, see AdtsTestFrames.frame()
+    private int nextFrame = 0;
+
+    @Test
+    public void playlist_emptyUntilFirstSegment() {
+        HlsSegmenter segmenter = new HlsSegmenter();
+        addFrames(segmenter, SEGMENT_FRAMES - 1);
+        assertEquals("#EXTM3U\n"
+                + "#EXT-X-VERSION:3\n"
+                + "#EXT-X-TARGETDURATION:2\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                + "#EXT-X-DISCONTINUITY-SEQUENCE:0\n", getPlaylist(segmenter));
+    }
+
+    @Test
+    public void playlist_listsNewestSegments() {
+        HlsSegmenter segmenter = new HlsSegmenter();
+        addFrames(segmenter, SEGMENT_FRAMES * 7);
+
+        StringBuilder expected = new StringBuilder("#EXTM3U\n"
+                + "#EXT-X-VERSION:3\n"
+                + "#EXT-X-TARGETDURATION:2\n"
+                + "#EXT-X-MEDIA-SEQUENCE:2\n"
+                + "#EXT-X-DISCONTINUITY-SEQUENCE:0\n");
+        for (int i = 2; i < 7; i++) {
+            expected.append(SEGMENT_DURATION).append("segment").append(i).append(".aac\n");
+        }
+        assertEquals(expected.toString(), getPlaylist(segmenter));
+        // no longer listed, still cached
+        assertNotNull(segmenter.getFile("segment0.aac"));
+        assertNull(segmenter.getFile("segment7.aac"));
+        assertNull(segmenter.getFile("segmentX.aac"));
+        assertNull(segmenter.getFile("other0.aac"));
+    }
+
+    @Test
+    public void segment_startsWithId3Timestamp() {
+        HlsSegmenter segmenter = new HlsSegmenter();
+        addFrames(segmenter, SEGMENT_FRAMES * 2);
+        byte[] segment = segmenter.getFile("segment1.aac");
+
+        assertArrayEquals(new byte[] {'I', 'D', '3', 4, 0, 0}, Arrays.copyOf(segment, 6));
+        // syncsafe sizes, 7 bits per byte
+        assertEquals(ID3_TAG_SIZE - 10, getSyncsafeInt(segment, 6));
+        assertArrayEquals("PRIV".getBytes(StandardCharsets.US_ASCII), Arrays.copyOfRange(segment, 10, 14));
+        assertEquals(45 + 8, getSyncsafeInt(segment, 14));
+        assertEquals("com.apple.streaming.transportStreamTimestamp\0", new String(segment, 20, 45, StandardCharsets.US_ASCII));
+        // 90kHz time of the first frame, after the 94 of segment 0
+        assertEquals(SEGMENT_FRAMES * AdtsFrames.FRAME_SAMPLES * 90000L / AdtsTestFrames.SAMPLE_RATE, ByteBuffer.wrap(segment).getLong(65));
+
+        // followed by the frames, ADTS headers and all
+        int frameLength = AdtsFrames.HEADER_SIZE + PAYLOAD_LENGTH;
+        assertEquals(ID3_TAG_SIZE + SEGMENT_FRAMES * frameLength, segment.length);
+        assertArrayEquals(AdtsTestFrames.frame(PAYLOAD_LENGTH, SEGMENT_FRAMES), Arrays.copyOfRange(segment, ID3_TAG_SIZE, ID3_TAG_SIZE + frameLength));
+    }
+
+    @Test
+    public void syncsafeInt_highBitsCleared() {
+        // sizes above 127 are where syncsafe differs from a plain int
+        byte[] data = new byte[4];
+        HlsSegmenter.writeSyncsafeInt(data, 0, 0x0fffffff);
+        assertArrayEquals(new byte[] {0x7f, 0x7f, 0x7f, 0x7f}, data);
+        HlsSegmenter.writeSyncsafeInt(data, 0, 200);
+        assertArrayEquals(new byte[] {0, 0, 1, 200 - 128}, data);
+        assertEquals(200, getSyncsafeInt(data, 0));
+    }
+
+    @Test
+    public void missingChunks_startDiscontinuity() {
+        HlsSegmenter segmenter = new HlsSegmenter();
+        addFrames(segmenter, SEGMENT_FRAMES + 10);
+        // lost to the segmenter
+        chunkBuffer.publish(AdtsTestFrames.frame(PAYLOAD_LENGTH, 0));
+        addFrames(segmenter, SEGMENT_FRAMES);
+
+        assertEquals("#EXTM3U\n"
+                + "#EXT-X-VERSION:3\n"
+                + "#EXT-X-TARGETDURATION:2\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                + "#EXT-X-DISCONTINUITY-SEQUENCE:0\n"
+                + SEGMENT_DURATION + "segment0.aac\n"
+                // cut short by the gap
+                + "#EXTINF:0.213,\nsegment1.aac\n"
+                + "#EXT-X-DISCONTINUITY\n"
+                + SEGMENT_DURATION + "segment2.aac\n", getPlaylist(segmenter));
+
+        // once the segment before the discontinuity is no longer listed, the sequence counts it
+        addFrames(segmenter, SEGMENT_FRAMES * 4);
+        String playlist = getPlaylist(segmenter);
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:2\n#EXT-X-DISCONTINUITY-SEQUENCE:1\n"));
+        assertFalse(playlist.contains("#EXT-X-DISCONTINUITY\n"));
+    }
+
+    @Test
+    public void segments_evictedByCount() {
+        HlsSegmenter segmenter = new HlsSegmenter();
+        addFrames(segmenter, SEGMENT_FRAMES * 34);
+        assertNull(segmenter.getFile("segment1.aac"));
+        assertNotNull(segmenter.getFile("segment2.aac"));
+        assertNotNull(segmenter.getFile("segment33.aac"));
+    }
+
+    @Test
+    public void segments_evictedByAge() throws InterruptedException {
+        HlsSegmenter segmenter = new HlsSegmenter(TimeUnit.MILLISECONDS.toNanos(100));
+        addFrames(segmenter, SEGMENT_FRAMES * 2);
+        Thread.sleep(200);
+        addFrames(segmenter, SEGMENT_FRAMES);
+
+        assertNull(segmenter.getFile("segment0.aac"));
+        assertNull(segmenter.getFile("segment1.aac"));
+        assertNotNull(segmenter.getFile("segment2.aac"));
+        // the playlist only lists what is still cached
+        assertTrue(getPlaylist(segmenter).contains("#EXT-X-MEDIA-SEQUENCE:2\n"));
+    }
+
+    /**
+     * Add count frames in chunks of up to 10, valued by their position in the segmenter's stream
+     */
+    private void addFrames(HlsSegmenter segmenter, int count) {
+        for (int added = 0; added < count; added += 10) {
+            int frames = Math.min(10, count - added);
+            segmenter.addChunk(chunkBuffer.publish(AdtsTestFrames.frames(frames, PAYLOAD_LENGTH, nextFrame)));
+            nextFrame += frames;
+        }
+    }
+
+    private static String getPlaylist(HlsSegmenter segmenter) {
+        return new String(segmenter.getFile(HlsSegmenter.PLAYLIST_NAME), StandardCharsets.US_ASCII);
+    }
+
+    private static int getSyncsafeInt(byte[] data, int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            assertEquals(0, data[i] & 0x80);
+            value = (value << 7) | data[i];
+        }
+        return value;
+    }
+}
@@ -0,0 +1,130 @@
+package tech.schober.vinylcast.ui.main;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BarGraphTest {
+    private static final float DELTA = 1e-4f;
+    // what getThreadAllocatedBytes() itself may allocate
+    private static final long MAX_MEASURING_BYTES = 256;
+
+    @Test
+    public void layout_barsAndGapsFillWidth() {
+        BarGraph barGraph = new BarGraph(-100, 0, 4);
+        barGraph.setSize(100, 50);
+        barGraph.set(new double[] {0, -50, -100, -200}, 0);
+        assertFalse(barGraph.update(0));
+
+        // 4 bars and 3 gaps of twice a bar's width
+        assertEquals(10.0f, barGraph.getBarWidth(), DELTA);
+        float[] lines = barGraph.getLines();
+        assertEquals(4, barGraph.getBarCount());
+        float[] expected = {
+                5, 50, 5, 0,
+                35, 50, 35, 25,
+                65, 50, 65, 50,
+                95, 50, 95, 50};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("line float " + i, expected[i], lines[i], DELTA);
+        }
+    }
+
+    @Test
+    public void update_interpolatesOverTimeSincePreviousUpdate() {
+        BarGraph barGraph = new BarGraph(0, 1, 2);
+        barGraph.setSize(10, 100);
+        // the first update has nothing to move from
+        barGraph.set(new double[] {0, 1}, 1000);
+        assertFalse(barGraph.update(1000));
+        assertEquals(1.0f, barGraph.getBarFraction(1), DELTA);
+
+        // spread over the 16ms since the first update
+        barGraph.set(new double[] {1, 0}, 1016);
+        assertTrue(barGraph.update(1020));
+        assertEquals(0.25f, barGraph.getBarFraction(0), DELTA);
+        assertEquals(0.75f, barGraph.getBarFraction(1), DELTA);
+
+        // an update halfway starts from where the bars are
+        barGraph.set(new double[] {0, 0}, 1024);
+        assertTrue(barGraph.update(1024));
+        assertEquals(0.5f, barGraph.getBarFraction(0), DELTA);
+        assertTrue(barGraph.update(1028));
+        assertEquals(0.25f, barGraph.getBarFraction(0), DELTA);
+        assertFalse(barGraph.update(1032));
+        assertEquals(0.0f, barGraph.getBarFraction(0), DELTA);
+
+        // long gaps between updates are capped
+        barGraph.set(new double[] {1, 1}, 5000);
+        assertFalse(barGraph.update(5000 + BarGraph.MAX_INTERPOLATION_MS));
+    }
+
+    @Test
+    public void add_keepsLastLengthValues() {
+        BarGraph barGraph = new BarGraph(0, 10, 3);
+        barGraph.setSize(70, 10);
+        for (int i = 1; i <= 5; i++) {
+            barGraph.add(i, 0);
+        }
+        barGraph.update(0);
+        assertEquals(3, barGraph.getBarCount());
+        assertEquals(0.3f, barGraph.getBarFraction(0), DELTA);
+        assertEquals(0.4f, barGraph.getBarFraction(1), DELTA);
+        assertEquals(0.5f, barGraph.getBarFraction(2), DELTA);
+
+        barGraph.clear();
+        barGraph.update(0);
+        assertEquals(0, barGraph.getBarCount());
+    }
+
+    @Test
+    public void frames_doNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        BarGraph barGraph = new BarGraph(-112, 0, 16);
+        barGraph.setSize(1080, 600);
+        double[] spectrum = new double[16];
+        // warm up until the frame loop is compiled
+        runFrames(barGraph, spectrum, 100000);
+
+        long few = getAllocatedBytes(threadBean, () -> runFrames(barGraph, spectrum, 1000));
+        long many = getAllocatedBytes(threadBean, () -> runFrames(barGraph, spectrum, 100000));
+        // a constant few bytes for the measuring itself, nothing per frame
+        assertTrue("allocated " + few + " bytes over 1000 frames", few <= MAX_MEASURING_BYTES);
+        assertTrue("allocated " + many + " bytes over 100000 frames", many <= MAX_MEASURING_BYTES);
+    }
+
+    /**
+     * A spectrum about every 4 frames, as with a 60Hz display and 15Hz updates
+     */
+    private static void runFrames(BarGraph barGraph, double[] spectrum, int frameCount) {
+        long nowMs = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            nowMs += 16;
+            if (frame % 4 == 0) {
+                for (int i = 0; i < spectrum.length; i++) {
+                    spectrum[i] = -(frame + i * 7) % 112;
+                }
+                barGraph.set(spectrum, nowMs);
+                barGraph.add((float) spectrum[0], nowMs);
+            }
+            barGraph.update(nowMs);
+        }
+    }
+
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadBean, Runnable runnable) {
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        runnable.run();
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
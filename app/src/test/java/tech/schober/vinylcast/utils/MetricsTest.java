@@ -0,0 +1,170 @@
+package tech.schober.vinylcast.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class MetricsTest {
+
+    private final Metrics.Collector clientCollector = new Metrics.Collector() {
+        @Override
+        public void collect(Metrics.Writer writer) {
+            writer.gauge("vinylcast_http_clients", "Connected HTTP clients", 2);
+            writer.counter("vinylcast_http_client_sent_bytes_total", "Audio sent", "client", "10.0.0.2", 4096);
+            writer.counter("vinylcast_http_client_sent_bytes_total", "Audio sent", "client", "a\"b", 2048);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.removeCollector(clientCollector);
+    }
+
+    @Test
+    public void prometheusText_countersAndSummaries() {
+        Metrics.ENCODER_INPUT_BYTES.add(100);
+        Metrics.ENCODER_INPUT_BYTES.add(28);
+        Metrics.ENCODER_FRAME_SECONDS.record(TimeUnit.MILLISECONDS.toNanos(1));
+        Metrics.ENCODER_FRAME_SECONDS.record(TimeUnit.MILLISECONDS.toNanos(3));
+
+        String text = Metrics.toPrometheusText();
+        assertTrue(text, text.contains("# TYPE vinylcast_encoder_input_bytes_total counter\nvinylcast_encoder_input_bytes_total 128\n"));
+        assertTrue(text, text.contains("# TYPE vinylcast_encoder_frame_seconds summary\n"
+                + "vinylcast_encoder_frame_seconds_sum 0.004\n"
+                + "vinylcast_encoder_frame_seconds_count 2\n"));
+        assertTrue(text, text.contains("# TYPE vinylcast_encoder_frame_seconds_max gauge\nvinylcast_encoder_frame_seconds_max 0.003\n"));
+    }
+
+    @Test
+    public void prometheusText_labelsShareOneHeader() {
+        Metrics.addCollector(clientCollector);
+        String text = Metrics.toPrometheusText();
+        assertTrue(text, text.contains("vinylcast_http_clients 2.0\n"));
+        assertTrue(text, text.contains("# TYPE vinylcast_http_client_sent_bytes_total counter\n"
+                + "vinylcast_http_client_sent_bytes_total{client=\"10.0.0.2\"} 4096\n"
+                + "vinylcast_http_client_sent_bytes_total{client=\"a\\\"b\"} 2048\n"));
+
+        Metrics.removeCollector(clientCollector);
+        assertFalse(Metrics.toPrometheusText().contains("vinylcast_http_clients"));
+    }
+
+    @Test
+    public void summaryText_formatsUnits() {
+        Metrics.AUDIO_RECEIVED_BYTES.add(3 * 1024 * 1024);
+        Metrics.ENCODER_FRAME_SECONDS.record(TimeUnit.MICROSECONDS.toNanos(1500));
+        Metrics.addCollector(clientCollector);
+
+        String text = Metrics.toSummaryText();
+        assertTrue(text, text.contains("Audio handed to Java by the native engine: 3.0MB\n"));
+        assertTrue(text, text.contains("Encoder latency per frame: 1.50ms avg, 1.50ms max\n"));
+        assertTrue(text, text.contains("Connected HTTP clients: 2\n"));
+        assertTrue(text, text.contains("Audio sent [10.0.0.2]: 4.0KB\n"));
+    }
+
+    @Test
+    public void histogram_percentilesWithinBucketResolution() {
+        // 1 to 1000ms evenly, so the n-th percentile is n * 10ms
+        for (int i = 1; i <= 1000; i++) {
+            Metrics.CAPTURE_LATENCY_ENGINE.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, Metrics.CAPTURE_LATENCY_ENGINE.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), Metrics.CAPTURE_LATENCY_ENGINE.getMaxNanos());
+        double[] quantiles = {0.5, 0.9, 0.99};
+        for (double quantile : quantiles) {
+            double expected = TimeUnit.MILLISECONDS.toNanos(Math.round(quantile * 1000));
+            double actual = Metrics.CAPTURE_LATENCY_ENGINE.getPercentileNanos(quantile);
+            assertEquals("p" + quantile, expected, actual, expected * 0.1);
+        }
+        // never beyond the longest recorded
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), Metrics.CAPTURE_LATENCY_ENGINE.getPercentileNanos(1.0));
+        assertEquals(0, Metrics.CAPTURE_LATENCY_SERVER.getPercentileNanos(0.5));
+    }
+
+    @Test
+    public void histogram_outOfRangeDurations() {
+        Metrics.CAPTURE_LATENCY_SERVER.record(-5);
+        Metrics.CAPTURE_LATENCY_SERVER.record(TimeUnit.SECONDS.toNanos(60));
+        // negative durations (clocks disagreeing by a little) count as the shortest
+        assertTrue(Metrics.CAPTURE_LATENCY_SERVER.getPercentileNanos(0.5) <= TimeUnit.MICROSECONDS.toNanos(250));
+        // beyond the last bucket only the maximum is known
+        assertEquals(TimeUnit.SECONDS.toNanos(60), Metrics.CAPTURE_LATENCY_SERVER.getPercentileNanos(0.99));
+    }
+
+    @Test
+    public void prometheusText_histogramBuckets() {
+        Metrics.CAPTURE_LATENCY_ENCODER.record(TimeUnit.MICROSECONDS.toNanos(200));
+        Metrics.CAPTURE_LATENCY_ENCODER.record(TimeUnit.MILLISECONDS.toNanos(20));
+
+        String text = Metrics.toPrometheusText();
+        // one header for all stages
+        assertEquals(text.indexOf("# TYPE vinylcast_capture_latency_seconds histogram"),
+                text.lastIndexOf("# TYPE vinylcast_capture_latency_seconds histogram"));
+        assertTrue(text, text.contains("vinylcast_capture_latency_seconds_bucket{stage=\"encoder\",le=\"2.5E-4\"} 1\n"));
+        assertTrue(text, text.contains("vinylcast_capture_latency_seconds_bucket{stage=\"encoder\",le=\"+Inf\"} 2\n"));
+        assertTrue(text, text.contains("vinylcast_capture_latency_seconds_count{stage=\"encoder\"} 2\n"));
+        assertTrue(text, text.contains("vinylcast_capture_latency_seconds_count{stage=\"engine\"} 0\n"));
+
+        String summary = Metrics.toSummaryText();
+        assertTrue(summary, summary.contains("Time since capture [engine]: -\n"));
+        assertTrue(summary, summary.contains("Time since capture [encoder]: "));
+    }
+
+    @Test
+    public void histogram_recordDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        Runnable records = () -> {
+            for (int i = 0; i < 100000; i++) {
+                Metrics.CAPTURE_LATENCY_ENGINE.record(i * 1000L);
+                Metrics.AUDIO_RECEIVED_BYTES.add(i);
+            }
+        };
+        // warm up, and measure the measuring
+        records.run();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        records.run();
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+        assertTrue("allocated " + allocated + " bytes over 100000 records", allocated < 10000);
+    }
+
+    @Test
+    public void summary_keepsMaximumAcrossThreads() throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    Metrics.ENCODER_FRAME_SECONDS.record(i * threads.length + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, Metrics.ENCODER_FRAME_SECONDS.getCount());
+        assertEquals(39999, Metrics.ENCODER_FRAME_SECONDS.getMaxNanos());
+        assertEquals(39999L * 40000 / 2, Metrics.ENCODER_FRAME_SECONDS.getTotalNanos());
+    }
+}